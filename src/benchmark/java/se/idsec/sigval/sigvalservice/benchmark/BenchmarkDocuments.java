@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.benchmark;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSObjectJSON;
+import com.nimbusds.jose.Payload;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.util.Base64;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureOptions;
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.transforms.Transforms;
+import org.apache.xml.security.transforms.params.XPath2FilterContainer;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.ess.ESSCertIDv2;
+import org.bouncycastle.asn1.ess.SigningCertificateV2;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.DefaultSignedAttributeTableGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import se.swedenconnect.sigval.commons.document.DocType;
+
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Creates signed XML, PDF and JOSE test documents with any number of signatures using a {@link BenchmarkPki}.
+ */
+public class BenchmarkDocuments {
+
+  private static final String DOCUMENT_NS = "http://id.swedenconnect.se/sigval/benchmark";
+  private static final String SIGNATURE_XPATH =
+    "//*[local-name()='Signature' and namespace-uri()='http://www.w3.org/2000/09/xmldsig#']";
+  private static final String CONTENT = "Signature validation benchmark document. "
+    + "This document holds a number of signatures created with a locally generated test PKI.";
+
+  private final BenchmarkPki pki;
+
+  /**
+   * Constructor
+   *
+   * @param pki test PKI used to sign documents
+   */
+  public BenchmarkDocuments(BenchmarkPki pki) {
+    this.pki = pki;
+  }
+
+  /**
+   * Create a signed document
+   *
+   * @param docType the type of document to create. {@link DocType#JOSE} creates a JWS with JSON serialization
+   * @param signatureCount the number of signatures of the document
+   * @return the signed document
+   * @throws Exception on errors creating the document
+   */
+  public byte[] create(DocType docType, int signatureCount) throws Exception {
+    switch (docType) {
+    case XML:
+      return createXml(signatureCount);
+    case PDF:
+      return createPdf(signatureCount);
+    case JOSE:
+      return createJose(signatureCount);
+    default:
+      throw new IllegalArgumentException("Unsupported benchmark document type " + docType);
+    }
+  }
+
+  /**
+   * Create an XML document with enveloped signatures. Each signature excludes all signatures from its reference so
+   * that adding a signature does not break the previous signatures.
+   */
+  public byte[] createXml(int signatureCount) throws Exception {
+    DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+    documentBuilderFactory.setNamespaceAware(true);
+    Document document = documentBuilderFactory.newDocumentBuilder().newDocument();
+    Element root = document.createElementNS(DOCUMENT_NS, "bm:BenchmarkDocument");
+    root.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:bm", DOCUMENT_NS);
+    document.appendChild(root);
+    Element content = document.createElementNS(DOCUMENT_NS, "bm:Content");
+    content.setTextContent(CONTENT);
+    root.appendChild(content);
+
+    for (int i = 0; i < signatureCount; i++) {
+      BenchmarkPki.Credential signer = pki.getSigner(i);
+      XMLSignature signature = new XMLSignature(document, "", XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA256,
+        Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+      root.appendChild(signature.getElement());
+      Transforms transforms = new Transforms(document);
+      transforms.addTransform(Transforms.TRANSFORM_XPATH2FILTER,
+        XPath2FilterContainer.newInstanceSubtract(document, SIGNATURE_XPATH).getElementPlusReturns());
+      transforms.addTransform(Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
+      signature.addDocument("", transforms, DigestMethod.SHA256);
+      for (X509Certificate certificate : pki.getChain(signer)) {
+        signature.addKeyInfo(certificate);
+      }
+      signature.sign(signer.getPrivateKey());
+    }
+
+    Transformer transformer = TransformerFactory.newInstance().newTransformer();
+    transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    transformer.transform(new DOMSource(document), new StreamResult(outputStream));
+    return outputStream.toByteArray();
+  }
+
+  /**
+   * Create a PDF document with PAdES signatures. Each signature is added in an incremental update.
+   */
+  public byte[] createPdf(int signatureCount) throws Exception {
+    byte[] pdf;
+    try (PDDocument document = new PDDocument()) {
+      PDPage page = new PDPage();
+      document.addPage(page);
+      try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+        contentStream.beginText();
+        contentStream.setFont(PDType1Font.HELVETICA, 10);
+        contentStream.newLineAtOffset(50, 700);
+        contentStream.showText(CONTENT);
+        contentStream.endText();
+      }
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      document.save(outputStream);
+      pdf = outputStream.toByteArray();
+    }
+
+    for (int i = 0; i < signatureCount; i++) {
+      BenchmarkPki.Credential signer = pki.getSigner(i);
+      try (PDDocument document = PDDocument.load(pdf); SignatureOptions signatureOptions = new SignatureOptions()) {
+        PDSignature signature = new PDSignature();
+        signature.setFilter(PDSignature.FILTER_ADOBE_PPKLITE);
+        signature.setSubFilter(PDSignature.SUBFILTER_ETSI_CADES_DETACHED);
+        signature.setName(signer.getCertificate().getSubjectX500Principal().getName());
+        signature.setSignDate(Calendar.getInstance());
+        signatureOptions.setPreferredSignatureSize(SignatureOptions.DEFAULT_SIGNATURE_SIZE * 2);
+        document.addSignature(signature, content -> getCmsSignature(content, signer), signatureOptions);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        document.saveIncremental(outputStream);
+        pdf = outputStream.toByteArray();
+      }
+    }
+    return pdf;
+  }
+
+  /**
+   * Create a JWS with JSON serialization holding one signature per signer
+   */
+  public byte[] createJose(int signatureCount) throws Exception {
+    JWSObjectJSON jwsObject = new JWSObjectJSON(new Payload(
+      "{\"document\":\"" + CONTENT + "\",\"signatures\":" + signatureCount + "}"));
+    for (int i = 0; i < signatureCount; i++) {
+      BenchmarkPki.Credential signer = pki.getSigner(i);
+      List<Base64> chain = new ArrayList<>();
+      for (X509Certificate certificate : pki.getChain(signer)) {
+        chain.add(Base64.encode(certificate.getEncoded()));
+      }
+      jwsObject.sign(new JWSHeader.Builder(JWSAlgorithm.RS256).x509CertChain(chain).build(),
+        new RSASSASigner((RSAPrivateKey) signer.getPrivateKey()));
+    }
+    return jwsObject.serializeGeneral().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Create a detached CMS signature with a signing certificate attribute as required by PAdES
+   */
+  private byte[] getCmsSignature(InputStream content, BenchmarkPki.Credential signer) throws IOException {
+    try {
+      X509Certificate certificate = signer.getCertificate();
+      ESSCertIDv2 certId = new ESSCertIDv2(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded()));
+      ASN1EncodableVector signedAttributes = new ASN1EncodableVector();
+      signedAttributes.add(new Attribute(PKCSObjectIdentifiers.id_aa_signingCertificateV2,
+        new DERSet(new SigningCertificateV2(new ESSCertIDv2[] { certId }))));
+
+      CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+      generator.addSignerInfoGenerator(new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+        .setSignedAttributeGenerator(new DefaultSignedAttributeTableGenerator(new AttributeTable(signedAttributes)))
+        .build(new JcaContentSignerBuilder("SHA256withRSA").build(signer.getPrivateKey()), certificate));
+      generator.addCertificates(new JcaCertStore(pki.getChain(signer)));
+      return generator.generate(new CMSProcessableByteArray(IOUtils.toByteArray(content)), false).getEncoded();
+    }
+    catch (IOException ex) {
+      throw ex;
+    }
+    catch (Exception ex) {
+      throw new IOException("Failed to create CMS signature", ex);
+    }
+  }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.benchmark;
+
+import lombok.Getter;
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import se.idsec.sigval.sigvalservice.SigvalServiceApplication;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs the signature validation service with a locally generated test PKI.
+ *
+ * <p>The service is started with its regular configuration except that the certificate validators trust the test
+ * PKI, the web server listens on a random port and the validation result and certificate validation caches are
+ * disabled so that every benchmark invocation performs a full validation. Signature certificates are trusted through
+ * the TSL Trust policy root of the test PKI. Timestamp and SVT certificates are trusted through the trust folder.</p>
+ */
+public class BenchmarkEnvironment implements Closeable {
+
+  private final File folder;
+  @Getter private final BenchmarkPki pki;
+  @Getter private final BenchmarkDocuments documents;
+  @Getter private final ConfigurableApplicationContext context;
+
+  /**
+   * Start the service with a new test PKI
+   *
+   * @param additionalProperties properties that override the benchmark configuration
+   * @throws Exception on errors creating the test PKI or starting the service
+   */
+  public BenchmarkEnvironment(Map<String, Object> additionalProperties) throws Exception {
+    System.setProperty("org.apache.xml.security.ignoreLineBreaks", "true");
+    Security.insertProviderAt(new BouncyCastleProvider(), 2);
+    org.apache.xml.security.Init.init();
+
+    folder = Files.createTempDirectory("sigval-benchmark").toFile();
+    pki = new BenchmarkPki(folder);
+    documents = new BenchmarkDocuments(pki);
+
+    String trustFolder = pki.getTrustFolder().getAbsolutePath();
+    Map<String, Object> properties = new HashMap<>();
+    properties.put("server.port", "0");
+    properties.put("sigval-service.cert-validator.sig.tsltrust-root", pki.getPolicyRootFile().getAbsolutePath());
+    properties.put("sigval-service.cert-validator.tsa.trusted-folder", trustFolder);
+    properties.put("sigval-service.cert-validator.svt.trusted-folder", trustFolder);
+    properties.put("sigval-service.crl.cache-folder", new File(folder, "crl-cache").getAbsolutePath());
+    properties.put("sigval-service.tsl.cache-folder", new File(folder, "tsl-cache").getAbsolutePath());
+    properties.put("sigval-service.document-store.type", "memory");
+    properties.put("sigval-service.validation-cache.max-entries", "0");
+    properties.put("sigval-service.cert-validation-cache.max-entries", "0");
+    properties.putAll(additionalProperties);
+
+    context = new SpringApplicationBuilder(SigvalServiceApplication.class)
+      .properties(properties)
+      .run();
+  }
+
+  /**
+   * Start the service with a new test PKI and the benchmark configuration
+   *
+   * @throws Exception on errors creating the test PKI or starting the service
+   */
+  public BenchmarkEnvironment() throws Exception {
+    this(new HashMap<>());
+  }
+
+  /**
+   * Get a bean of the running service
+   *
+   * @param beanClass the class of the bean
+   * @param <T> the type of the bean
+   * @return the bean
+   */
+  public <T> T getBean(Class<T> beanClass) {
+    return context.getBean(beanClass);
+  }
+
+  /**
+   * Get the port of the web server of the service
+   *
+   * @return web server port
+   */
+  public int getPort() {
+    return Integer.parseInt(context.getEnvironment().getRequiredProperty("local.server.port"));
+  }
+
+  @Override public void close() throws IOException {
+    context.close();
+    pki.close();
+    FileUtils.deleteQuietly(folder);
+  }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.benchmark;
+
+import com.sun.net.httpserver.HttpServer;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.*;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSAbsentContent;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import se.idsec.sigval.sigvalservice.configuration.keys.BasicX509Utils;
+import se.idsec.sigval.sigvalservice.configuration.keys.X509DnNameType;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Locally generated test PKI for benchmarks and load tests.
+ *
+ * <p>The PKI consists of a root CA, an issuing CA issued by the root and a number of signer certificates issued by the
+ * issuing CA. A TSL Trust policy root cross certifies the issuing CA. The cross certificate is published in a CA
+ * repository referenced by the policy root in the same way as a TSL Trust service does.</p>
+ *
+ * <p>All certificates below the roots hold a CRL distribution point. CRLs and the CA repository are served by a local
+ * HTTP server so that validation does not depend on any external service.</p>
+ */
+public class BenchmarkPki implements Closeable {
+
+  /** Number of signer credentials. Signatures of a document are created by the signers in turn */
+  public static final int SIGNER_COUNT = 5;
+
+  private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+  private static final ASN1ObjectIdentifier CA_REPOSITORY = new ASN1ObjectIdentifier("1.3.6.1.5.5.7.48.5");
+  private static final long VALIDITY_MILLIS = 2L * 365 * 24 * 3600 * 1000;
+  private static final long CRL_VALIDITY_MILLIS = 30L * 24 * 3600 * 1000;
+
+  private final AtomicLong serial = new AtomicLong(System.currentTimeMillis());
+  private final Map<String, byte[]> publishedObjects = new ConcurrentHashMap<>();
+  private final HttpServer server;
+  private final String baseUrl;
+
+  /** Root CA certificate. This is a V1 certificate */
+  @Getter private final Credential rootCredential;
+  @Getter private final Credential issuingCaCredential;
+  @Getter private final Credential policyRootCredential;
+  /** Trust folder holding the root CA certificate */
+  @Getter private final File trustFolder;
+  /** TSL Trust policy root certificate file */
+  @Getter private final File policyRootFile;
+  private final List<Credential> signers = new ArrayList<>();
+
+  /**
+   * Generate a test PKI and start the server providing its CRLs and CA repository
+   *
+   * @param folder the folder where the trust folder and the policy root file of the PKI are created
+   * @throws Exception on errors generating the PKI
+   */
+  public BenchmarkPki(File folder) throws Exception {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    baseUrl = "http://localhost:" + server.getAddress().getPort();
+    server.createContext("/", exchange -> {
+      byte[] data = publishedObjects.get(exchange.getRequestURI().getPath());
+      if (data == null) {
+        exchange.sendResponseHeaders(404, -1);
+        exchange.close();
+        return;
+      }
+      exchange.sendResponseHeaders(200, data.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(data);
+      }
+    });
+
+    KeyPair rootKeyPair = generateKeyPair();
+    rootCredential = new Credential(rootKeyPair.getPrivate(),
+      BasicX509Utils.generateV1Certificate(rootKeyPair, getName("Benchmark Root CA")));
+    publishCrl("/crl/root.crl", rootCredential);
+
+    KeyPair issuingCaKeyPair = generateKeyPair();
+    X500Name issuingCaName = getName("Benchmark Issuing CA");
+    issuingCaCredential = new Credential(issuingCaKeyPair.getPrivate(),
+      issueCaCertificate(rootCredential, issuingCaName, issuingCaKeyPair.getPublic(), "/crl/root.crl"));
+    publishCrl("/crl/issuing-ca.crl", issuingCaCredential);
+
+    for (int i = 0; i < SIGNER_COUNT; i++) {
+      signers.add(issueSigner(getName("Benchmark Signer " + (i + 1))));
+    }
+
+    KeyPair policyRootKeyPair = generateKeyPair();
+    X500Name policyRootName = getName("Benchmark TSL Trust Policy Root");
+    JcaX509v3CertificateBuilder policyRootBuilder = getCertificateBuilder(policyRootName, policyRootName,
+      policyRootKeyPair.getPublic());
+    policyRootBuilder
+      .addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+      .addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign))
+      .addExtension(Extension.subjectKeyIdentifier, false,
+        new JcaX509ExtensionUtils().createSubjectKeyIdentifier(policyRootKeyPair.getPublic()))
+      .addExtension(Extension.subjectInfoAccess, false, new DERSequence(new AccessDescription(CA_REPOSITORY,
+        new GeneralName(GeneralName.uniformResourceIdentifier, baseUrl + "/tsltrust/ca-repository.p7c"))));
+    policyRootCredential = new Credential(policyRootKeyPair.getPrivate(),
+      getCertificate(policyRootBuilder, policyRootKeyPair.getPrivate()));
+    publishCrl("/crl/policy-root.crl", policyRootCredential);
+    publishCaRepository(issueCaCertificate(policyRootCredential, issuingCaName, issuingCaKeyPair.getPublic(),
+      "/crl/policy-root.crl"));
+
+    server.start();
+
+    trustFolder = new File(folder, "trust");
+    if (!trustFolder.exists() && !trustFolder.mkdirs()) {
+      throw new IOException("Unable to create trust folder " + trustFolder.getAbsolutePath());
+    }
+    writePem(new File(trustFolder, "benchmark-root.crt"), rootCredential.getCertificate());
+    policyRootFile = new File(folder, "tsltrust-policy-root.crt");
+    writePem(policyRootFile, policyRootCredential.getCertificate());
+  }
+
+  /**
+   * Get a signer credential
+   *
+   * @param index index of the signature to create
+   * @return the signer credential used for signatures with this index
+   */
+  public Credential getSigner(int index) {
+    return signers.get(index % SIGNER_COUNT);
+  }
+
+  /**
+   * Issue a new signer certificate from the issuing CA
+   *
+   * @param subject subject name of the signer
+   * @return signer credential
+   * @throws Exception on errors issuing the certificate
+   */
+  public Credential issueSigner(X500Name subject) throws Exception {
+    KeyPair keyPair = generateKeyPair();
+    JcaX509v3CertificateBuilder builder = getCertificateBuilder(getSubject(issuingCaCredential), subject,
+      keyPair.getPublic());
+    builder
+      .addExtension(Extension.basicConstraints, true, new BasicConstraints(false))
+      .addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature | KeyUsage.nonRepudiation));
+    addIdentifiersAndCrlDp(builder, keyPair.getPublic(), issuingCaCredential, "/crl/issuing-ca.crl");
+    return new Credential(keyPair.getPrivate(), getCertificate(builder, issuingCaCredential.getPrivateKey()));
+  }
+
+  /**
+   * Get the certificate chain of a signer, starting with the signer certificate and ending with the root
+   *
+   * @param signer signer credential
+   * @return certificate chain
+   */
+  public List<X509Certificate> getChain(Credential signer) {
+    return List.of(signer.getCertificate(), issuingCaCredential.getCertificate(), rootCredential.getCertificate());
+  }
+
+  @Override public void close() {
+    server.stop(0);
+  }
+
+  private X509Certificate issueCaCertificate(Credential issuer, X500Name subject, PublicKey publicKey,
+    String crlPath) throws Exception {
+    JcaX509v3CertificateBuilder builder = getCertificateBuilder(getSubject(issuer), subject, publicKey);
+    builder
+      .addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+      .addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+    addIdentifiersAndCrlDp(builder, publicKey, issuer, crlPath);
+    return getCertificate(builder, issuer.getPrivateKey());
+  }
+
+  private void addIdentifiersAndCrlDp(JcaX509v3CertificateBuilder builder, PublicKey publicKey, Credential issuer,
+    String crlPath) throws Exception {
+    JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils();
+    builder
+      .addExtension(Extension.subjectKeyIdentifier, false, extensionUtils.createSubjectKeyIdentifier(publicKey))
+      .addExtension(Extension.authorityKeyIdentifier, false,
+        extensionUtils.createAuthorityKeyIdentifier(issuer.getCertificate().getPublicKey()))
+      .addExtension(Extension.cRLDistributionPoints, false, new CRLDistPoint(new DistributionPoint[] {
+        new DistributionPoint(new DistributionPointName(new GeneralNames(
+          new GeneralName(GeneralName.uniformResourceIdentifier, baseUrl + crlPath))), null, null) }));
+  }
+
+  private void publishCrl(String path, Credential issuer) throws Exception {
+    Date now = new Date();
+    X509v2CRLBuilder crlBuilder = new JcaX509v2CRLBuilder(issuer.getCertificate(), now);
+    crlBuilder.setNextUpdate(new Date(now.getTime() + CRL_VALIDITY_MILLIS));
+    publishedObjects.put(path, crlBuilder.build(getContentSigner(issuer.getPrivateKey())).getEncoded());
+  }
+
+  /**
+   * Publish the cross certificates of the policy root as a certs-only CMS signed data object
+   */
+  private void publishCaRepository(X509Certificate... crossCertificates) throws Exception {
+    CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+    generator.addCertificates(new JcaCertStore(Arrays.asList(crossCertificates)));
+    publishedObjects.put("/tsltrust/ca-repository.p7c", generator.generate(new CMSAbsentContent()).getEncoded());
+  }
+
+  private JcaX509v3CertificateBuilder getCertificateBuilder(X500Name issuer, X500Name subject, PublicKey publicKey) {
+    long now = System.currentTimeMillis();
+    return new JcaX509v3CertificateBuilder(issuer, BigInteger.valueOf(serial.incrementAndGet()),
+      new Date(now - 3600 * 1000), new Date(now + VALIDITY_MILLIS), subject, publicKey);
+  }
+
+  private static X500Name getName(String commonName) {
+    Map<X509DnNameType, String> nameMap = new HashMap<>();
+    nameMap.put(X509DnNameType.CN, commonName);
+    nameMap.put(X509DnNameType.Org, "Sigval Benchmark");
+    nameMap.put(X509DnNameType.Country, "SE");
+    return BasicX509Utils.getDn(nameMap);
+  }
+
+  private static X500Name getSubject(Credential credential) {
+    return X500Name.getInstance(credential.getCertificate().getSubjectX500Principal().getEncoded());
+  }
+
+  private static X509Certificate getCertificate(JcaX509v3CertificateBuilder builder, PrivateKey issuerKey)
+    throws Exception {
+    return new JcaX509CertificateConverter().getCertificate(builder.build(getContentSigner(issuerKey)));
+  }
+
+  private static ContentSigner getContentSigner(PrivateKey privateKey) throws Exception {
+    return new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(privateKey);
+  }
+
+  private static KeyPair generateKeyPair() throws NoSuchAlgorithmException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    return generator.generateKeyPair();
+  }
+
+  private static void writePem(File file, X509Certificate certificate) throws IOException {
+    try (JcaPEMWriter pemWriter = new JcaPEMWriter(
+      new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+      pemWriter.writeObject(certificate);
+    }
+  }
+
+  /**
+   * Private key and certificate
+   */
+  @Getter
+  @AllArgsConstructor
+  public static class Credential {
+    private final PrivateKey privateKey;
+    private final X509Certificate certificate;
+  }
+
+}
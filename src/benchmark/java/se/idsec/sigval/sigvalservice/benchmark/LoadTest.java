@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.benchmark;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import se.swedenconnect.sigval.commons.document.DocType;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Load test of the REST APIs of the signature validation service.
+ *
+ * <p>The service is started with a locally generated test PKI. A corpus of signed documents is posted to the selected
+ * endpoints by a number of concurrent clients for a fixed time. Throughput and latency percentiles are reported per
+ * endpoint and per document type and number of signatures.</p>
+ *
+ * <p>Options are given as arguments in the form {@code name=value}:</p>
+ * <ul>
+ *   <li>{@code concurrency} - number of concurrent clients (default 8)</li>
+ *   <li>{@code duration} - measured duration in seconds (default 60)</li>
+ *   <li>{@code warmup} - warmup duration in seconds before measuring (default 10)</li>
+ *   <li>{@code endpoints} - comma separated list of validate, report and svt (default all)</li>
+ *   <li>{@code doctypes} - comma separated list of XML, PDF and JOSE (default all)</li>
+ *   <li>{@code signatures} - comma separated list of signature counts (default 1,10)</li>
+ *   <li>{@code result-cache} - true to enable the validation result cache (default false)</li>
+ *   <li>{@code cert-cache} - true to enable the certificate validation cache (default true)</li>
+ *   <li>{@code admission} - false to disable admission control (default true)</li>
+ * </ul>
+ */
+public class LoadTest {
+
+  private final int concurrency;
+  private final long durationMillis;
+  private final long warmupMillis;
+  private final List<Endpoint> endpoints;
+  private final List<DocType> docTypes;
+  private final List<Integer> signatureCounts;
+  private final boolean resultCache;
+  private final boolean certCache;
+  private final boolean admission;
+
+  private final Map<String, LatencyRecorder> recorders = new TreeMap<>();
+
+  public LoadTest(Map<String, String> options) {
+    concurrency = Integer.parseInt(options.getOrDefault("concurrency", "8"));
+    durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("duration", "60")));
+    warmupMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("warmup", "10")));
+    endpoints = parseList(options.getOrDefault("endpoints", "validate,report,svt"),
+      value -> Endpoint.valueOf(value.toUpperCase()));
+    docTypes = parseList(options.getOrDefault("doctypes", "XML,PDF,JOSE"), value -> DocType.valueOf(value.toUpperCase()));
+    signatureCounts = parseList(options.getOrDefault("signatures", "1,10"), Integer::parseInt);
+    resultCache = Boolean.parseBoolean(options.getOrDefault("result-cache", "false"));
+    certCache = Boolean.parseBoolean(options.getOrDefault("cert-cache", "true"));
+    admission = Boolean.parseBoolean(options.getOrDefault("admission", "true"));
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int idx = arg.indexOf('=');
+      if (idx < 1) {
+        throw new IllegalArgumentException("Illegal argument " + arg + " - arguments must have the form name=value");
+      }
+      options.put(arg.substring(0, idx), arg.substring(idx + 1));
+    }
+    new LoadTest(options).run();
+    System.exit(0);
+  }
+
+  /**
+   * Start the service, run the load test and print the result
+   *
+   * @throws Exception on errors starting the service or creating the document corpus
+   */
+  public void run() throws Exception {
+    Map<String, Object> properties = new HashMap<>();
+    properties.put("sigval-service.validation-cache.max-entries", resultCache ? "100" : "0");
+    properties.put("sigval-service.cert-validation-cache.max-entries", certCache ? "1000" : "0");
+    properties.put("sigval-service.admission.enabled", String.valueOf(admission));
+
+    try (BenchmarkEnvironment environment = new BenchmarkEnvironment(properties)) {
+      String baseUrl = "http://localhost:" + environment.getPort()
+        + environment.getContext().getEnvironment().getProperty("server.servlet.context-path", "");
+      List<LoadRequest> corpus = createCorpus(environment.getDocuments(), baseUrl);
+
+      HttpClient httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+      AtomicLong requestCounter = new AtomicLong();
+      long startTime = System.currentTimeMillis();
+      long measureStartTime = startTime + warmupMillis;
+      long endTime = measureStartTime + durationMillis;
+
+      System.out.printf("Running %d clients for %d s after %d s warmup on %d document requests%n",
+        concurrency, TimeUnit.MILLISECONDS.toSeconds(durationMillis), TimeUnit.MILLISECONDS.toSeconds(warmupMillis),
+        corpus.size());
+
+      ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+      for (int i = 0; i < concurrency; i++) {
+        clients.execute(() -> {
+          while (System.currentTimeMillis() < endTime) {
+            LoadRequest loadRequest = corpus.get((int) (requestCounter.getAndIncrement() % corpus.size()));
+            long start = System.nanoTime();
+            int status;
+            try {
+              HttpResponse<byte[]> response = httpClient.send(loadRequest.getRequest(),
+                HttpResponse.BodyHandlers.ofByteArray());
+              status = response.statusCode();
+            }
+            catch (Exception ex) {
+              status = 0;
+            }
+            if (System.currentTimeMillis() >= measureStartTime) {
+              long latency = System.nanoTime() - start;
+              getRecorder(loadRequest.getEndpoint().name()).record(latency, status);
+              getRecorder(loadRequest.getName()).record(latency, status);
+            }
+          }
+        });
+      }
+      clients.shutdown();
+      clients.awaitTermination(warmupMillis + durationMillis + TimeUnit.MINUTES.toMillis(5), TimeUnit.MILLISECONDS);
+
+      printResult();
+    }
+  }
+
+  private List<LoadRequest> createCorpus(BenchmarkDocuments documents, String baseUrl) throws Exception {
+    List<LoadRequest> corpus = new ArrayList<>();
+    for (DocType docType : docTypes) {
+      for (int signatureCount : signatureCounts) {
+        byte[] document = documents.create(docType, signatureCount);
+        for (Endpoint endpoint : endpoints) {
+          HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + endpoint.getPath()))
+            .header("Content-Type", getContentType(docType))
+            .timeout(Duration.ofMinutes(2))
+            .POST(HttpRequest.BodyPublishers.ofByteArray(document))
+            .build();
+          corpus.add(new LoadRequest(endpoint, endpoint.name() + " " + docType + " " + signatureCount, request));
+        }
+      }
+    }
+    // Mix request types so that all endpoints and documents are loaded at the same time
+    Collections.shuffle(corpus, new Random(1));
+    return corpus;
+  }
+
+  private synchronized LatencyRecorder getRecorder(String name) {
+    return recorders.computeIfAbsent(name, key -> new LatencyRecorder());
+  }
+
+  private void printResult() {
+    double seconds = durationMillis / 1000.0;
+    System.out.println();
+    System.out.printf("%-24s %9s %7s %8s %9s %9s %9s %9s %9s %9s%n",
+      "Endpoint", "Requests", "Errors", "Rejected", "Req/s", "Mean ms", "p50 ms", "p90 ms", "p99 ms", "Max ms");
+    for (Map.Entry<String, LatencyRecorder> entry : recorders.entrySet()) {
+      LatencyRecorder recorder = entry.getValue();
+      System.out.printf("%-24s %9d %7d %8d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+        entry.getKey(), recorder.getCount(), recorder.getErrors(), recorder.getRejected(),
+        recorder.getCount() / seconds, recorder.getMeanMillis(), recorder.getPercentileMillis(0.5),
+        recorder.getPercentileMillis(0.9), recorder.getPercentileMillis(0.99), recorder.getPercentileMillis(1.0));
+    }
+  }
+
+  private static String getContentType(DocType docType) {
+    switch (docType) {
+    case XML:
+      return "text/xml";
+    case PDF:
+      return "application/pdf";
+    case JOSE:
+    case JOSE_COMPACT:
+      return "application/json";
+    default:
+      return "application/octet-stream";
+    }
+  }
+
+  private static <T> List<T> parseList(String value, Function<String, T> parser) {
+    List<T> list = new ArrayList<>();
+    for (String item : value.split(",")) {
+      if (!item.isBlank()) {
+        list.add(parser.apply(item.trim()));
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Endpoints of the REST APIs
+   */
+  @Getter
+  @AllArgsConstructor
+  public enum Endpoint {
+    VALIDATE("/api/v1/validate"),
+    REPORT("/report"),
+    SVT("/issue-svt");
+
+    private final String path;
+  }
+
+  @Getter
+  @AllArgsConstructor
+  private static class LoadRequest {
+    private final Endpoint endpoint;
+    private final String name;
+    private final HttpRequest request;
+  }
+
+  /**
+   * Records request latencies. Requests rejected by admission control (HTTP status 503) are counted separately from
+   * other errors.
+   */
+  private static class LatencyRecorder {
+    private long[] latencies = new long[1024];
+    private int count;
+    private int errors;
+    private int rejected;
+
+    synchronized void record(long latencyNanos, int status) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = latencyNanos;
+      if (status == 503) {
+        rejected++;
+      }
+      else if (status != 200) {
+        errors++;
+      }
+    }
+
+    synchronized int getCount() {
+      return count;
+    }
+
+    synchronized int getErrors() {
+      return errors;
+    }
+
+    synchronized int getRejected() {
+      return rejected;
+    }
+
+    synchronized double getMeanMillis() {
+      if (count == 0) {
+        return 0;
+      }
+      long sum = 0;
+      for (int i = 0; i < count; i++) {
+        sum += latencies[i];
+      }
+      return sum / (double) count / 1_000_000;
+    }
+
+    synchronized double getPercentileMillis(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long[] sorted = Arrays.copyOf(latencies, count);
+      Arrays.sort(sorted);
+      int index = Math.max(0, (int) Math.ceil(percentile * count) - 1);
+      return sorted[index] / 1_000_000.0;
+    }
+  }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.benchmark;
+
+import com.nimbusds.jwt.SignedJWT;
+import org.openjdk.jmh.annotations.*;
+import se.idsec.sigval.sigvalservice.configuration.SignatureValidatorProvider;
+import se.idsec.sigval.sigvalservice.configuration.ValidatorSet;
+import se.idsec.sigval.sigvalservice.configuration.keys.PooledSigner;
+import se.swedenconnect.sigval.commons.document.DocType;
+import se.swedenconnect.sigval.pdf.svt.PDFSVTSigValClaimsIssuer;
+import se.swedenconnect.sigval.pdf.timestamp.issue.impl.DefaultPDFDocTimestampSignatureInterface;
+import se.swedenconnect.sigval.pdf.timestamp.issue.impl.PDFDocTimstampProcessor;
+import se.swedenconnect.sigval.svt.issuer.SVTModel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of PDF SVT issuance. SVT claims issuance includes validation of the document. Creating the SVT sealed
+ * PDF adds the document timestamp holding the SVT to the document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SvtBenchmark {
+
+  @Param({ "1", "10", "50" })
+  private int signatures;
+
+  private BenchmarkEnvironment environment;
+  private ValidatorSet validators;
+  private SVTModel svtModel;
+  private byte[] document;
+  private String svt;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    environment = new BenchmarkEnvironment();
+    validators = environment.getBean(SignatureValidatorProvider.class).getValidators();
+    svtModel = environment.getBean(SVTModel.class);
+    document = environment.getDocuments().create(DocType.PDF, signatures);
+    svt = pdfSvtClaims().serialize();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    environment.close();
+  }
+
+  @Benchmark
+  public SignedJWT pdfSvtClaims() throws Exception {
+    try (PooledSigner.Lease<PDFSVTSigValClaimsIssuer> claimsIssuer = validators.getPdfsvtSigValClaimsIssuer().acquire()) {
+      return claimsIssuer.get().getSignedSvtJWT(document, svtModel);
+    }
+  }
+
+  @Benchmark
+  public byte[] svtSealedPdf() throws Exception {
+    try (PooledSigner.Lease<DefaultPDFDocTimestampSignatureInterface> svtTsSigner =
+           validators.getSvtTsSigner().acquire()) {
+      return PDFDocTimstampProcessor.createSVTSealedPDF(document, svt, svtTsSigner.get()).getDocument();
+    }
+  }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import se.idsec.sigval.sigvalservice.configuration.SignatureValidatorProvider;
+import se.idsec.sigval.sigvalservice.configuration.ValidatorSet;
+import se.idsec.sigval.sigvalservice.configuration.keys.PooledSigner;
+import se.idsec.sigval.sigvalservice.result.ResultPageDataGenerator;
+import se.idsec.sigval.sigvalservice.result.data.ResultPageData;
+import se.swedenconnect.sigval.commons.data.ExtendedSigValResult;
+import se.swedenconnect.sigval.commons.data.SignedDocumentValidationResult;
+import se.swedenconnect.sigval.commons.document.DocType;
+import se.swedenconnect.sigval.jose.data.ExtendedJOSESigvalResult;
+import se.swedenconnect.sigval.pdf.data.ExtendedPdfSigValResult;
+import se.swedenconnect.sigval.report.data.SignedDataRepresentation;
+import se.swedenconnect.sigval.report.data.SigvalReportOptions;
+import se.swedenconnect.sigval.report.xml.ReportSigner;
+import se.swedenconnect.sigval.xml.data.ExtendedXmlSigvalResult;
+import se.swedenconnect.sigval.xml.utils.XMLDocumentBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of signature validation, signed validation report generation and result page data generation for XML,
+ * PDF and JOSE documents with different numbers of signatures.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ValidationBenchmark {
+
+  @Param({ "XML", "PDF", "JOSE" })
+  private DocType docType;
+
+  @Param({ "1", "10", "50" })
+  private int signatures;
+
+  private BenchmarkEnvironment environment;
+  private ValidatorSet validators;
+  private ResultPageDataGenerator resultPageDataGenerator;
+  private SigvalReportOptions reportOptions;
+  private byte[] document;
+  private SignedDocumentValidationResult<? extends ExtendedSigValResult> validationResult;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    environment = new BenchmarkEnvironment();
+    validators = environment.getBean(SignatureValidatorProvider.class).getValidators();
+    resultPageDataGenerator = environment.getBean(ResultPageDataGenerator.class);
+    reportOptions = new SigvalReportOptions(false, true, SignedDataRepresentation.DIGEST);
+    document = environment.getDocuments().create(docType, signatures);
+    validationResult = validate();
+    if (validationResult.getSignatureCount() != signatures) {
+      throw new IllegalStateException("Expected " + signatures + " signatures but validated "
+        + validationResult.getSignatureCount());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    environment.close();
+  }
+
+  @Benchmark
+  public SignedDocumentValidationResult<? extends ExtendedSigValResult> validate() throws Exception {
+    switch (docType) {
+    case XML:
+      return validators.getXmlSignedDocumentValidator().extendedResultValidation(
+        XMLDocumentBuilder.getDocument(document));
+    case PDF:
+      return validators.getPdfSignatureValidator().extendedResultValidation(document);
+    case JOSE:
+      return validators.getJoseSignedDocumentValidator().extendedResultValidation(document);
+    default:
+      throw new IllegalArgumentException("Unsupported document type " + docType);
+    }
+  }
+
+  @Benchmark
+  public byte[] signedReport() throws Exception {
+    try (PooledSigner.Lease<ReportSigner> reportSigner = validators.getReportSigner().acquire()) {
+      return signedReport(reportSigner.get());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private byte[] signedReport(ReportSigner reportSigner) throws Exception {
+    switch (docType) {
+    case XML:
+      return validators.getXmlSigValReportGenerator().getSignedValidationReport(
+        (SignedDocumentValidationResult<ExtendedXmlSigvalResult>) validationResult, reportOptions,
+        reportSigner);
+    case PDF:
+      return validators.getPdfSigValReportGenerator().getSignedValidationReport(
+        (SignedDocumentValidationResult<ExtendedPdfSigValResult>) validationResult, reportOptions,
+        reportSigner);
+    case JOSE:
+      return validators.getJoseSigValReportGenerator().getSignedValidationReport(
+        (SignedDocumentValidationResult<ExtendedJOSESigvalResult>) validationResult, reportOptions,
+        reportSigner);
+    default:
+      throw new IllegalArgumentException("Unsupported document type " + docType);
+    }
+  }
+
+  @Benchmark
+  public ResultPageData resultPageData() {
+    return resultPageDataGenerator.getResultPageData(validationResult, "benchmark", null, "en");
+  }
+
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.admission;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import se.idsec.sigval.sigvalservice.configuration.FileSize;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.swedenconnect.sigval.commons.document.DocType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of validation, report and SVT requests that are processed at the same time.
+ *
+ * <p>A request is admitted when it is within the limit of its endpoint, the limit of its document type, the total
+ * number of requests and the total size of the documents that are processed. Each document counts with its size
+ * against the document size limit, so a few large PDF documents use the same capacity as many small documents.</p>
+ *
+ * <p>A request that can not be admitted at once waits in a short queue. A request is rejected when the queue is full
+ * or when it has waited for the queue timeout. Rejected requests are returned with HTTP status 503 and a Retry-After
+ * header, so the service stays within its memory limits under peak load instead of running out of memory.</p>
+ *
+ * <p>Waiting requests are admitted in arrival order. A request is not admitted ahead of an earlier waiting request if
+ * it needs a limit that the earlier request is waiting for, so a stream of small documents can not starve a large
+ * document waiting for the document size limit. A request may still pass a waiting request that waits for a limit it
+ * does not use, such as the limit of another document type.</p>
+ */
+@Slf4j
+@Component
+public class AdmissionControl {
+
+  /** Validation endpoints */
+  public static final String VALIDATE = "validate";
+  /** Validation report endpoints */
+  public static final String REPORT = "report";
+  /** SVT issuance endpoints */
+  public static final String SVT = "svt";
+
+  private static final Permit NO_PERMIT = new Permit(null, new ArrayList<>(), 0);
+
+  private final boolean enabled;
+  private final WeightedLimiter totalLimiter;
+  private final WeightedLimiter documentSizeLimiter;
+  private final Map<String, WeightedLimiter> endpointLimiters = new HashMap<>();
+  private final Map<String, WeightedLimiter> docTypeLimiters = new HashMap<>();
+  private final int queueSize;
+  private final long queueTimeoutNanos;
+  private final int retryAfterSeconds;
+  private final ValidationMetrics validationMetrics;
+  /** Waiting requests in arrival order. Guarded by the lock */
+  private final Deque<Request> queue = new ArrayDeque<>();
+  /**
+   * Guards all limiters and the queue. Waiting requests wait on this lock and are notified when a permit is closed or
+   * a request leaves the queue.
+   */
+  private final Object lock = new Object();
+
+  @Autowired
+  public AdmissionControl(
+    @Value("${sigval-service.admission.enabled:true}") boolean enabled,
+    @Value("${sigval-service.admission.max-concurrent:0}") int maxConcurrent,
+    @Value("${sigval-service.admission.max-concurrent.validate:0}") int maxValidate,
+    @Value("${sigval-service.admission.max-concurrent.report:0}") int maxReport,
+    @Value("${sigval-service.admission.max-concurrent.svt:0}") int maxSvt,
+    @Value("${sigval-service.admission.max-concurrent.pdf:0}") int maxPdf,
+    @Value("${sigval-service.admission.max-concurrent.xml:0}") int maxXml,
+    @Value("${sigval-service.admission.max-concurrent.jose:0}") int maxJose,
+    @Value("${sigval-service.admission.max-document-size:0}") String maxDocumentSize,
+    @Value("${sigval-service.admission.queue-size:20}") int queueSize,
+    @Value("${sigval-service.admission.queue-timeout-millis:2000}") long queueTimeoutMillis,
+    @Value("${sigval-service.admission.retry-after-seconds:5}") int retryAfterSeconds,
+    FileSize maxFileSize, ValidationMetrics validationMetrics) {
+    this.enabled = enabled;
+    this.queueSize = Math.max(queueSize, 0);
+    this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(queueTimeoutMillis, 0));
+    this.retryAfterSeconds = Math.max(retryAfterSeconds, 1);
+    this.validationMetrics = validationMetrics;
+
+    int total = maxConcurrent > 0 ? maxConcurrent : 2 * Runtime.getRuntime().availableProcessors();
+    this.totalLimiter = new WeightedLimiter(total);
+    long documentSize = DataSize.parse(maxDocumentSize).toBytes();
+    this.documentSizeLimiter = new WeightedLimiter(documentSize > 0
+      ? documentSize
+      : (long) total * maxFileSize.getIntValue());
+    addLimiter(endpointLimiters, VALIDATE, maxValidate);
+    addLimiter(endpointLimiters, REPORT, maxReport);
+    addLimiter(endpointLimiters, SVT, maxSvt);
+    addLimiter(docTypeLimiters, "pdf", maxPdf);
+    addLimiter(docTypeLimiters, "xml", maxXml);
+    addLimiter(docTypeLimiters, "jose", maxJose);
+
+    if (enabled) {
+      log.info("Admission control max concurrent requests: {}, max document size in process: {}, "
+          + "endpoint limits: {}, document type limits: {}, queue size: {}, queue timeout (ms): {}",
+        total, documentSizeLimiter.getCapacity(), getCapacities(endpointLimiters), getCapacities(docTypeLimiters),
+        this.queueSize, queueTimeoutMillis);
+    }
+    else {
+      log.info("Admission control is disabled");
+    }
+  }
+
+  /**
+   * Admit a request for processing. The returned permit must be closed when the request has been processed.
+   *
+   * @param endpoint the endpoint of the request ({@link #VALIDATE}, {@link #REPORT} or {@link #SVT})
+   * @param docType the document type of the document of the request
+   * @param documentSize the size of the document of the request
+   * @return permit to be closed when the request has been processed
+   * @throws AdmissionRejectedException if the request was not admitted
+   */
+  public Permit admit(String endpoint, DocType docType, long documentSize) throws AdmissionRejectedException {
+    if (!enabled) {
+      return NO_PERMIT;
+    }
+    List<WeightedLimiter> limiters = new ArrayList<>();
+    limiters.add(totalLimiter);
+    if (endpointLimiters.containsKey(endpoint)) {
+      limiters.add(endpointLimiters.get(endpoint));
+    }
+    String docTypeKey = getDocTypeKey(docType);
+    if (docTypeLimiters.containsKey(docTypeKey)) {
+      limiters.add(docTypeLimiters.get(docTypeKey));
+    }
+
+    Request request = new Request(limiters, documentSize);
+
+    synchronized (lock) {
+      // Requests that can be admitted at once never enter the queue
+      if (isAdmissible(request)) {
+        return acquire(request);
+      }
+      if (queue.size() >= queueSize) {
+        throw reject(endpoint, docType, "queue-full");
+      }
+      queue.addLast(request);
+      try {
+        long deadline = System.nanoTime() + queueTimeoutNanos;
+        while (!isAdmissible(request)) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            throw reject(endpoint, docType, "queue-timeout");
+          }
+          TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+        }
+        return acquire(request);
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw reject(endpoint, docType, "interrupted");
+      }
+      finally {
+        queue.remove(request);
+        // Requests behind this request may be admissible when it leaves the queue
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Test if a request can be admitted. All limiters of the request must be available and none of them may be a limiter
+   * that a request ahead of it in the queue is waiting for. A request that is not queued is behind all queued requests.
+   * Must be called holding the lock.
+   */
+  private boolean isAdmissible(Request request) {
+    Set<WeightedLimiter> blocked = new HashSet<>();
+    for (Request queued : queue) {
+      if (queued == request) {
+        break;
+      }
+      queued.limiters.stream()
+        .filter(limiter -> !limiter.isAvailable(1))
+        .forEach(blocked::add);
+      if (!documentSizeLimiter.isAvailable(queued.documentSize)) {
+        blocked.add(documentSizeLimiter);
+      }
+    }
+    for (WeightedLimiter limiter : request.limiters) {
+      if (blocked.contains(limiter)) {
+        return false;
+      }
+    }
+    return !blocked.contains(documentSizeLimiter) && isAvailable(request.limiters, request.documentSize);
+  }
+
+  /**
+   * Acquire all limiters of an admissible request. The limiters are acquired at once, so a waiting request holds no
+   * capacity that other requests could use. Must be called holding the lock.
+   */
+  private Permit acquire(Request request) {
+    request.limiters.forEach(limiter -> limiter.acquire(1));
+    documentSizeLimiter.acquire(request.documentSize);
+    return new Permit(this, request.limiters, request.documentSize);
+  }
+
+  private boolean isAvailable(List<WeightedLimiter> limiters, long documentSize) {
+    for (WeightedLimiter limiter : limiters) {
+      if (!limiter.isAvailable(1)) {
+        return false;
+      }
+    }
+    return documentSizeLimiter.isAvailable(documentSize);
+  }
+
+  private void release(List<WeightedLimiter> limiters, long documentSize) {
+    synchronized (lock) {
+      limiters.forEach(limiter -> limiter.release(1));
+      documentSizeLimiter.release(documentSize);
+      lock.notifyAll();
+    }
+  }
+
+  private AdmissionRejectedException reject(String endpoint, DocType docType, String reason) {
+    log.debug("Rejected {} request for {} document - {}", endpoint, docType, reason);
+    validationMetrics.count(ValidationMetrics.ADMISSION_REJECTED,
+      "endpoint", endpoint, "doctype", ValidationMetrics.docTypeTag(docType), "reason", reason);
+    return new AdmissionRejectedException("The service is busy - retry the request later", retryAfterSeconds);
+  }
+
+  private static String getDocTypeKey(DocType docType) {
+    if (docType == null) {
+      return null;
+    }
+    switch (docType) {
+    case PDF:
+      return "pdf";
+    case XML:
+      return "xml";
+    case JOSE:
+    case JOSE_COMPACT:
+      return "jose";
+    default:
+      return null;
+    }
+  }
+
+  private static void addLimiter(Map<String, WeightedLimiter> limiters, String name, int capacity) {
+    if (capacity > 0) {
+      limiters.put(name, new WeightedLimiter(capacity));
+    }
+  }
+
+  private static Map<String, Long> getCapacities(Map<String, WeightedLimiter> limiters) {
+    Map<String, Long> capacities = new HashMap<>();
+    limiters.forEach((name, limiter) -> capacities.put(name, limiter.getCapacity()));
+    return capacities;
+  }
+
+  /**
+   * A request for admission
+   */
+  private static class Request {
+
+    private final List<WeightedLimiter> limiters;
+    private final long documentSize;
+
+    private Request(List<WeightedLimiter> limiters, long documentSize) {
+      this.limiters = limiters;
+      this.documentSize = documentSize;
+    }
+  }
+
+  /**
+   * Permit of an admitted request. Closing the permit releases the capacity held by the request.
+   */
+  public static class Permit implements AutoCloseable {
+
+    private final AdmissionControl admissionControl;
+    private final List<WeightedLimiter> limiters;
+    private final long documentSize;
+    private boolean closed;
+
+    private Permit(AdmissionControl admissionControl, List<WeightedLimiter> limiters, long documentSize) {
+      this.admissionControl = admissionControl;
+      this.limiters = limiters;
+      this.documentSize = documentSize;
+    }
+
+    @Override public synchronized void close() {
+      if (admissionControl != null && !closed) {
+        closed = true;
+        admissionControl.release(limiters, documentSize);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.admission;
+
+import lombok.Getter;
+
+/**
+ * Thrown when a request is not admitted because the service is processing the max number of requests.
+ *
+ * <p>This is a checked exception so that it is not handled by the IOException and RuntimeException handlers of the
+ * controllers. It is returned as HTTP status 503 with a Retry-After header.</p>
+ */
+public class AdmissionRejectedException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Number of seconds after which the client may retry the request */
+  @Getter private final int retryAfterSeconds;
+
+  /**
+   * Constructor
+   *
+   * @param message the message
+   * @param retryAfterSeconds number of seconds after which the client may retry the request
+   */
+  public AdmissionRejectedException(String message, int retryAfterSeconds) {
+    super(message);
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.admission;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes validation, report and SVT requests on a dedicated thread pool using asynchronous request processing.
+ *
+ * <p>Much of the time of a validation is spent waiting for revocation data, trust lists and key operations. When
+ * asynchronous execution is enabled, the request thread of the servlet container is released as soon as the request
+ * has been read and the request is processed on this thread pool. The number of requests in process is then limited by
+ * this thread pool and by the {@link AdmissionControl}, and not by the number of request threads.</p>
+ *
+ * <p>A request that times out while it is waiting for a thread is not started and is rejected as an admission
+ * rejection. A request that times out while it is processed is cancelled and returned as a {@link
+ * RequestTimeoutException}.</p>
+ *
+ * <p>Tasks must not use the HTTP session or the request, since they are not bound to the thread executing the task.
+ * When asynchronous execution is disabled, tasks are executed on the request thread.</p>
+ */
+@Slf4j
+@Component
+public class AsyncRequestExecutor implements DisposableBean {
+
+  private final boolean enabled;
+  private final long timeoutMillis;
+  private final int retryAfterSeconds;
+  private final ValidationMetrics validationMetrics;
+  private final ThreadPoolExecutor executor;
+
+  @Autowired
+  public AsyncRequestExecutor(
+    @Value("${sigval-service.async.enabled:false}") boolean enabled,
+    @Value("${sigval-service.async.threads:0}") int threads,
+    @Value("${sigval-service.async.queue-size:100}") int queueSize,
+    @Value("${sigval-service.async.timeout-seconds:120}") long timeoutSeconds,
+    @Value("${sigval-service.admission.retry-after-seconds:5}") int retryAfterSeconds,
+    ValidationMetrics validationMetrics) {
+    this.enabled = enabled;
+    this.timeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(timeoutSeconds, 1));
+    this.retryAfterSeconds = Math.max(retryAfterSeconds, 1);
+    this.validationMetrics = validationMetrics;
+
+    if (!enabled) {
+      this.executor = null;
+      log.info("Validation, report and SVT requests are executed on the request threads");
+      return;
+    }
+    int poolSize = threads > 0 ? threads : 4 * Runtime.getRuntime().availableProcessors();
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = runnable -> {
+      Thread thread = new Thread(runnable, "sigval-request-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>(Math.max(queueSize, 1)), threadFactory);
+    this.executor.allowCoreThreadTimeOut(true);
+    log.info("Validation, report and SVT requests are executed asynchronously on {} threads, queue size: {}, "
+      + "timeout (seconds): {}", poolSize, Math.max(queueSize, 1), timeoutSeconds);
+  }
+
+  /**
+   * Execute a request task
+   *
+   * @param endpoint the endpoint of the request, used for rejected request metrics
+   * @param task the task producing the response of the request
+   * @param <T> the response type
+   * @return deferred result that is set to the result of the task, to the exception thrown by the task, to an
+   *   {@link AdmissionRejectedException} if the task was rejected or timed out before it was started, or to a
+   *   {@link RequestTimeoutException} if the task timed out while it was executed
+   */
+  public <T> DeferredResult<T> execute(String endpoint, Callable<T> task) {
+    if (!enabled) {
+      DeferredResult<T> deferredResult = new DeferredResult<>();
+      complete(deferredResult, task);
+      return deferredResult;
+    }
+
+    DeferredResult<T> deferredResult = new DeferredResult<>(timeoutMillis);
+    // Set by the task when it starts, or by the timeout handler if the task has not started
+    AtomicBoolean started = new AtomicBoolean();
+    try {
+      Future<?> future = executor.submit(() -> {
+        if (started.compareAndSet(false, true)) {
+          complete(deferredResult, task);
+        }
+      });
+      deferredResult.onTimeout(() -> {
+        if (started.compareAndSet(false, true)) {
+          future.cancel(false);
+          deferredResult.setErrorResult(reject(endpoint, "timeout"));
+          return;
+        }
+        // The result is set before the task is interrupted so that the timeout is not reported as a task error
+        log.warn("Processing of {} request did not complete within {} ms - cancelled", endpoint, timeoutMillis);
+        deferredResult.setErrorResult(new RequestTimeoutException("Processing of the request timed out"));
+        future.cancel(true);
+      });
+    }
+    catch (RejectedExecutionException ex) {
+      deferredResult.setErrorResult(reject(endpoint, "executor-full"));
+    }
+    return deferredResult;
+  }
+
+  /**
+   * Get a deferred result that is already completed
+   *
+   * @param result the result
+   * @param <T> the response type
+   * @return completed deferred result
+   */
+  public <T> DeferredResult<T> completed(T result) {
+    DeferredResult<T> deferredResult = new DeferredResult<>();
+    deferredResult.setResult(result);
+    return deferredResult;
+  }
+
+  private static <T> void complete(DeferredResult<T> deferredResult, Callable<T> task) {
+    try {
+      deferredResult.setResult(task.call());
+    }
+    catch (Exception ex) {
+      deferredResult.setErrorResult(ex);
+    }
+    catch (Error err) {
+      deferredResult.setErrorResult(err);
+      throw err;
+    }
+  }
+
+  private AdmissionRejectedException reject(String endpoint, String reason) {
+    log.debug("Rejected {} request - {}", endpoint, reason);
+    validationMetrics.count(ValidationMetrics.ADMISSION_REJECTED,
+      "endpoint", endpoint, "doctype", ValidationMetrics.docTypeTag(null), "reason", reason);
+    return new AdmissionRejectedException("The service is busy - retry the request later", retryAfterSeconds);
+  }
+
+  @Override public void destroy() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.admission;
+
+/**
+ * Thrown when a request that has started processing does not complete within the request timeout.
+ *
+ * <p>This is a checked exception so that it is not handled by the IOException and RuntimeException handlers of the
+ * controllers. It is returned as HTTP status 504.</p>
+ */
+public class RequestTimeoutException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Constructor
+   *
+   * @param message the message
+   */
+  public RequestTimeoutException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.admission;
+
+import lombok.Getter;
+
+/**
+ * Limits the total weight of the requests that are processed at the same time.
+ *
+ * <p>A request with a weight larger than the capacity is given the whole capacity, so it is processed when no other
+ * request holds this limiter.</p>
+ *
+ * <p>This class is not thread safe. The {@link AdmissionControl} accesses all limiters under one lock, so that a
+ * request acquires all its limiters or none of them.</p>
+ */
+class WeightedLimiter {
+
+  @Getter private final long capacity;
+  @Getter private long used;
+
+  /**
+   * Constructor
+   *
+   * @param capacity the max total weight of the requests holding this limiter
+   */
+  WeightedLimiter(long capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * Test if weight is available from this limiter
+   *
+   * @param weight the requested weight
+   * @return true if the weight can be acquired
+   */
+  boolean isAvailable(long weight) {
+    return used + getRequestedWeight(weight) <= capacity;
+  }
+
+  /**
+   * Acquire weight from this limiter. The caller must first check that the weight is available.
+   *
+   * @param weight the requested weight
+   */
+  void acquire(long weight) {
+    used += getRequestedWeight(weight);
+  }
+
+  /**
+   * Release weight acquired from this limiter
+   *
+   * @param weight the weight passed to {@link #acquire(long)}
+   */
+  void release(long weight) {
+    used -= getRequestedWeight(weight);
+  }
+
+  private long getRequestedWeight(long weight) {
+    return Math.max(1, Math.min(weight, capacity));
+  }
+
+}
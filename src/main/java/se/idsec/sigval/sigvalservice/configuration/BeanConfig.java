@@ -22,8 +22,14 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import se.swedenconnect.sigval.cert.validity.crl.CRLCache;
-import se.swedenconnect.sigval.cert.validity.crl.impl.CRLCacheImpl;
 import se.idsec.sigval.sigvalservice.configuration.keys.LocalKeySource;
+import se.idsec.sigval.sigvalservice.configuration.keys.SigningKeyPool;
+import se.idsec.sigval.sigvalservice.crl.RefreshingCRLCache;
+import se.idsec.sigval.sigvalservice.tsl.RefreshingTslTrustStore;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.idsec.sigval.sigvalservice.store.DocumentStore;
+import se.idsec.sigval.sigvalservice.store.FileDocumentStore;
+import se.idsec.sigval.sigvalservice.store.MemoryDocumentStore;
 import se.swedenconnect.sigval.svt.issuer.SVTModel;
 import se.swedenconnect.opensaml.pkcs11.PKCS11Provider;
 import se.swedenconnect.opensaml.pkcs11.PKCS11ProviderFactory;
@@ -33,8 +39,10 @@ import se.swedenconnect.opensaml.pkcs11.configuration.PKCS11SoftHsmProviderConfi
 import se.swedenconnect.opensaml.pkcs11.configuration.SoftHsmCredentialConfiguration;
 
 import java.io.File;
+import java.io.IOException;
 import java.security.Provider;
 import java.security.Security;
+import java.time.Duration;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -65,9 +73,14 @@ public class BeanConfig {
   }
 
   @Bean
-  public CRLCache crlCache(
+  public RefreshingCRLCache crlCache(
     @Value("${sigval-service.crl.cache-folder:#{null}}") String cacheFolder,
-    @Value("${sigval-service.crl.recache-grace-period}") long recacheGracePeiod
+    @Value("${sigval-service.crl.recache-grace-period}") long recacheGracePeiod,
+    @Value("${sigval-service.crl.recache-delay-seconds:3600}") long recacheDelaySeconds,
+    @Value("${sigval-service.crl.refresh-margin-seconds:300}") long refreshMarginSeconds,
+    @Value("${sigval-service.crl.expiry-grace-seconds:3600}") long expiryGraceSeconds,
+    @Value("${sigval-service.crl.max-downloads-per-host:2}") int maxDownloadsPerHost,
+    ValidationMetrics validationMetrics
   ) {
     File cacheFolderFile = cacheFolder == null
       ? new File(System.getProperty("user.dir"), "target/crl-cache")
@@ -75,7 +88,45 @@ public class BeanConfig {
 
     log.info("Setup CRL cache storage at: {}", cacheFolderFile.getAbsolutePath());
     log.info("CRL cache grace period set to (milliseconds): {}", recacheGracePeiod);
-    return new CRLCacheImpl(cacheFolderFile, recacheGracePeiod);
+    log.info("CRL max refresh interval set to (seconds): {}, refresh margin (seconds): {}, expiry grace (seconds): {}, "
+      + "max downloads per host: {}", recacheDelaySeconds, refreshMarginSeconds, expiryGraceSeconds, maxDownloadsPerHost);
+    return new RefreshingCRLCache(cacheFolderFile, recacheGracePeiod, recacheDelaySeconds * 1000L,
+      refreshMarginSeconds * 1000L, expiryGraceSeconds * 1000L, maxDownloadsPerHost, CRLCache.DEFAULT_CONNECT_TIMEOUT,
+      CRLCache.DEFAULT_READ_TIMEOUT, validationMetrics);
+  }
+
+  @Bean
+  public RefreshingTslTrustStore tslTrustStore(
+    @Value("${sigval-service.tsl.cache-folder:#{null}}") String cacheFolder,
+    @Value("${sigval-service.tsl.refresh-interval-seconds:600}") long refreshIntervalSeconds,
+    @Value("${sigval-service.tsl.retry-delay-seconds:30}") long retryDelaySeconds
+  ) {
+    File cacheFolderFile = cacheFolder == null
+      ? new File(System.getProperty("user.dir"), "target/tsl-cache")
+      : new File(cacheFolder);
+
+    log.info("Setup TSL Trust cache storage at: {}", cacheFolderFile.getAbsolutePath());
+    log.info("TSL Trust refresh interval set to (seconds): {}, retry delay (seconds): {}", refreshIntervalSeconds,
+      retryDelaySeconds);
+    return new RefreshingTslTrustStore(cacheFolderFile, refreshIntervalSeconds * 1000L, retryDelaySeconds * 1000L);
+  }
+
+  @Bean
+  public DocumentStore documentStore(
+    @Value("${sigval-service.document-store.type:file}") String storeType,
+    @Value("${sigval-service.document-store.folder:#{null}}") String storeFolder,
+    @Value("${server.servlet.session.timeout:30m}") Duration sessionTimeout
+  ) throws IOException {
+    if ("memory".equalsIgnoreCase(storeType)) {
+      log.info("Uploaded documents are stored in memory");
+      return new MemoryDocumentStore();
+    }
+    File storeFolderFile = storeFolder == null
+      ? new File(System.getProperty("java.io.tmpdir"), "sigval-documents")
+      : new File(storeFolder);
+    log.info("Uploaded documents are stored at: {}", storeFolderFile.getAbsolutePath());
+    // Documents of other instances are abandoned when they are older than any session that can refer to them
+    return new FileDocumentStore(storeFolderFile, sessionTimeout.toMillis());
   }
 
   @Bean
@@ -114,6 +165,20 @@ public class BeanConfig {
     return keySourceMap;
   }
 
+  @Bean
+  public Map<String, SigningKeyPool> signingKeyPoolMap(
+    Map<String, LocalKeySource> keySourceMap,
+    @Value("${sigval-service.signing.sessions-per-slot:4}") int sessionsPerSlot,
+    @Value("${sigval-service.signing.acquire-timeout-millis:5000}") long acquireTimeoutMillis,
+    @Value("${sigval-service.admission.retry-after-seconds:5}") int retryAfterSeconds,
+    ValidationMetrics validationMetrics
+  ){
+    Map<String, SigningKeyPool> signingKeyPoolMap = new HashMap<>();
+    keySourceMap.forEach((name, keySource) -> signingKeyPoolMap.put(name, new SigningKeyPool(name, keySource,
+      sessionsPerSlot, acquireTimeoutMillis, retryAfterSeconds, validationMetrics)));
+    return signingKeyPoolMap;
+  }
+
   @Bean
   PKCS11Provider pkcs11Provider(
     @Value("${sigval-service.pkcs11.external-config-locations:#{null}}") String hsmExternalCfgLocations,
@@ -16,10 +16,13 @@
 
 package se.idsec.sigval.sigvalservice.configuration;
 
+import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.StringUtils;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.util.encoders.Hex;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
@@ -28,19 +31,34 @@ import se.swedenconnect.sigval.cert.chain.impl.StatusCheckingCertificateValidato
 import se.swedenconnect.sigval.cert.validity.crl.CRLCache;
 import se.swedenconnect.sigval.commons.utils.SVAUtils;
 import se.idsec.sigval.sigvalservice.configuration.keys.TslTrustCertStoreFactory;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.idsec.sigval.sigvalservice.ocsp.OCSPFirstPathValidatorFactory;
+import se.idsec.sigval.sigvalservice.ocsp.OCSPResponseCache;
+import se.idsec.sigval.sigvalservice.tsl.RefreshingTslTrustStore;
+import se.idsec.sigval.sigvalservice.validation.CachingCertificateValidator;
+import se.idsec.sigval.sigvalservice.validation.CertificateValidationCache;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertStore;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+@Slf4j
 @Configuration
 public class CertificateValidators {
 
   private final CRLCache crlCache;
+  private final CertificateValidationCache certificateValidationCache;
+  private final ValidationMetrics validationMetrics;
+  private final OCSPFirstPathValidatorFactory ocspFirstPathValidatorFactory;
+  private final RefreshingTslTrustStore tslTrustStore;
   @Value("${sigval-service.cert-validator.sig.tsltrust-root:#{null}}") String sigTslTrustRoot;
   @Value("${sigval-service.cert-validator.sig.trusted-folder:#{null}}") String sigTrustFolder;
   @Value("${sigval-service.cert-validator.tsa.tsltrust-root:#{null}}") String tsaTslTrustRoot;
@@ -54,31 +72,112 @@ public class CertificateValidators {
   @Getter private CertificateValidator svtCertificateValidator;
   @Getter private List<X509Certificate> kidMatchCerts;
 
+  /** Fingerprint of the trust configuration used to build the current validators */
+  private byte[] trustFingerprint;
+
   @Autowired
-  public CertificateValidators(CRLCache crlCache) {
+  public CertificateValidators(CRLCache crlCache, CertificateValidationCache certificateValidationCache,
+    ValidationMetrics validationMetrics, OCSPResponseCache ocspResponseCache,
+    @Value("${sigval-service.ocsp.enabled:true}") boolean ocspEnabled, RefreshingTslTrustStore tslTrustStore) {
     this.crlCache = crlCache;
+    this.tslTrustStore = tslTrustStore;
+    this.certificateValidationCache = certificateValidationCache;
+    this.validationMetrics = validationMetrics;
+    // Revocation is checked with OCSP first and CRL as fallback. If disabled, OCSP and CRL are checked in parallel.
+    this.ocspFirstPathValidatorFactory = ocspEnabled
+      ? new OCSPFirstPathValidatorFactory(ocspResponseCache, validationMetrics)
+      : null;
+    log.info("OCSP first revocation checking enabled: {}", ocspEnabled);
   }
 
-  public void loadValidators() throws IOException, CertificateException {
-    signatureCertificateValidator = getCertValidator(crlCache, sigTrustFolder, sigTslTrustRoot);
-    timestampCertificateValidator = getCertValidator(crlCache, tsaTrustFolder, tsaTslTrustRoot);
-    svtCertificateValidator = getCertValidator(crlCache, svtTrustFolder, svtTslTrustRoot);
-    kidMatchCerts = Arrays.asList(getAdditionalTrustedCerts(null, kidMatchFolder));
+  /**
+   * Loads the trust configuration and creates new certificate validators if the trust configuration has changed
+   * since the last load.
+   *
+   * @return true if new certificate validators were created, false if the trust configuration was unchanged
+   * @throws IOException on error reading the trust configuration
+   * @throws CertificateException on error parsing trusted certificates
+   */
+  public synchronized boolean loadValidators() throws IOException, CertificateException {
+    TrustMaterial sigTrust = getTrustMaterial(sigTrustFolder, sigTslTrustRoot);
+    TrustMaterial tsaTrust = getTrustMaterial(tsaTrustFolder, tsaTslTrustRoot);
+    TrustMaterial svtTrust = getTrustMaterial(svtTrustFolder, svtTslTrustRoot);
+    List<X509Certificate> kidMatchCertList = Arrays.asList(getAdditionalTrustedCerts(null, kidMatchFolder));
+
+    byte[] fingerprint = getFingerprint(sigTrust, tsaTrust, svtTrust, new TrustMaterial(null, kidMatchCertList, null));
+    if (signatureCertificateValidator != null && Arrays.equals(fingerprint, trustFingerprint)) {
+      log.debug("Trust configuration is unchanged - keeping current certificate validators");
+      return false;
+    }
+
+    signatureCertificateValidator = getCertValidator("sig", sigTrust);
+    timestampCertificateValidator = getCertValidator("tsa", tsaTrust);
+    svtCertificateValidator = getCertValidator("svt", svtTrust);
+    kidMatchCerts = kidMatchCertList;
+    trustFingerprint = fingerprint;
+    return true;
   }
 
-  private CertificateValidator getCertValidator(CRLCache crlCache, String trustFolder, String tslTrustRoot)
+  private TrustMaterial getTrustMaterial(String trustFolder, String tslTrustRoot)
     throws IOException, CertificateException {
 
     X509Certificate policyRoot = null;
     CertStore certStore = null;
+    List<X509Certificate> storeCertificates = new ArrayList<>();
 
     if (tslTrustRoot != null) {
-      TslTrustCertStoreFactory ttCSFactory = new TslTrustCertStoreFactory(tslTrustRoot);
+      // The caRepository of the policy root is refreshed in the background by the TSL Trust store
+      TslTrustCertStoreFactory ttCSFactory = tslTrustStore.getTslTrust(tslTrustRoot);
       policyRoot = ttCSFactory.getPolicyRoot();
       certStore = ttCSFactory.getCertStore();
+      storeCertificates = ttCSFactory.getCertificates();
     }
     X509Certificate[] additionalCertsArray = getAdditionalTrustedCerts(policyRoot, trustFolder);
-    return new StatusCheckingCertificateValidatorImpl(crlCache, certStore, additionalCertsArray);
+    return new TrustMaterial(certStore, Arrays.asList(additionalCertsArray), storeCertificates);
+  }
+
+  private CertificateValidator getCertValidator(String validatorName, TrustMaterial trustMaterial)
+    throws CertificateException {
+    StatusCheckingCertificateValidatorImpl certificateValidator = new StatusCheckingCertificateValidatorImpl(crlCache,
+      trustMaterial.getCertStore(), trustMaterial.getTrustedCerts().toArray(new X509Certificate[0]));
+    if (ocspFirstPathValidatorFactory != null) {
+      certificateValidator.setCertificatePathValidatorFactory(ocspFirstPathValidatorFactory);
+    }
+    // Validation outcomes are cached per validator and trust material
+    String trustId = validatorName + ":" + Hex.toHexString(getFingerprint(trustMaterial));
+    return new CachingCertificateValidator(certificateValidator, certificateValidationCache, trustId,
+      validationMetrics, validatorName);
+  }
+
+  /**
+   * Calculates a fingerprint over all trust material. The certificate hashes of each set of certificates are sorted
+   * so that the fingerprint does not depend on file listing order or the order of certificates in a TSL Trust list.
+   */
+  private static byte[] getFingerprint(TrustMaterial... trustMaterials) throws CertificateException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      for (TrustMaterial trustMaterial : trustMaterials) {
+        updateDigest(md, trustMaterial.getTrustedCerts());
+        updateDigest(md, trustMaterial.getStoreCertificates());
+      }
+      return md.digest();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-256 is not supported", e);
+    }
+  }
+
+  private static void updateDigest(MessageDigest md, List<X509Certificate> certificates)
+    throws CertificateException, NoSuchAlgorithmException {
+    List<String> certHashList = new ArrayList<>();
+    if (certificates != null) {
+      for (X509Certificate certificate : certificates) {
+        certHashList.add(Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded())));
+      }
+    }
+    Collections.sort(certHashList);
+    md.update(String.join(",", certHashList).getBytes(StandardCharsets.UTF_8));
+    md.update((byte) ';');
   }
 
   private X509Certificate[] getAdditionalTrustedCerts(X509Certificate policyRoot, String trustFolderName) {
@@ -126,4 +225,12 @@ public class CertificateValidators {
     }
     return pemObjList;
   }
+
+  @Getter
+  @AllArgsConstructor
+  private static class TrustMaterial {
+    private final CertStore certStore;
+    private final List<X509Certificate> trustedCerts;
+    private final List<X509Certificate> storeCertificates;
+  }
 }
@@ -18,7 +18,7 @@ package se.idsec.sigval.sigvalservice.configuration;
 
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWSAlgorithm;
-import lombok.Getter;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.StringUtils;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
@@ -38,7 +38,6 @@ import se.swedenconnect.sigval.jose.svt.JOSESVTValidator;
 import se.swedenconnect.sigval.jose.verify.DefalutJOSESigValReportGenerator;
 import se.swedenconnect.sigval.jose.verify.JOSESignatureDataValidator;
 import se.swedenconnect.sigval.jose.verify.JOSESignatureDataValidatorImpl;
-import se.swedenconnect.sigval.jose.verify.JOSESignedDocumentValidator;
 import se.swedenconnect.sigval.pdf.pdfstruct.impl.DefaultPDFSignatureContextFactory;
 import se.swedenconnect.sigval.pdf.svt.PDFSVTSigValClaimsIssuer;
 import se.swedenconnect.sigval.pdf.svt.PDFSVTValidator;
@@ -47,10 +46,19 @@ import se.swedenconnect.sigval.pdf.verify.ExtendedPDFSignatureValidator;
 import se.swedenconnect.sigval.pdf.verify.PDFSingleSignatureValidator;
 import se.swedenconnect.sigval.pdf.verify.impl.DefalutPDFSigValReportGenerator;
 import se.swedenconnect.sigval.pdf.verify.impl.PDFSingleSignatureValidatorImpl;
-import se.swedenconnect.sigval.pdf.verify.impl.SVTenabledPDFDocumentSigVerifier;
 import se.swedenconnect.sigval.pdf.verify.policy.PDFSignaturePolicyValidator;
 import se.swedenconnect.sigval.pdf.verify.policy.impl.PkixPdfSignaturePolicyValidator;
+import se.idsec.sigval.sigvalservice.configuration.keys.DelegatedSigner;
 import se.idsec.sigval.sigvalservice.configuration.keys.LocalKeySource;
+import se.idsec.sigval.sigvalservice.configuration.keys.PooledSigner;
+import se.idsec.sigval.sigvalservice.configuration.keys.SigningKeyPool;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.idsec.sigval.sigvalservice.validation.CachingPDFDocumentSigVerifier;
+import se.idsec.sigval.sigvalservice.validation.ParallelJOSESignedDocumentValidator;
+import se.idsec.sigval.sigvalservice.validation.ParallelPDFDocumentSigVerifier;
+import se.idsec.sigval.sigvalservice.validation.ParallelXMLSignedDocumentValidator;
+import se.idsec.sigval.sigvalservice.validation.SignatureValidationExecutor;
+import se.idsec.sigval.sigvalservice.validation.ValidationResultCache;
 import se.swedenconnect.sigval.report.xml.ReportSigner;
 import se.swedenconnect.sigval.svt.algorithms.SVTAlgoRegistry;
 import se.swedenconnect.sigval.xml.policy.XMLSignaturePolicyValidator;
@@ -58,11 +66,9 @@ import se.swedenconnect.sigval.xml.policy.impl.PkixXmlSignaturePolicyValidator;
 import se.swedenconnect.sigval.xml.svt.XMLDocumentSVTIssuer;
 import se.swedenconnect.sigval.xml.svt.XMLSVTSigValClaimsIssuer;
 import se.swedenconnect.sigval.xml.svt.XMLSVTValidator;
-import se.swedenconnect.sigval.xml.verify.ExtendedXMLSignedDocumentValidator;
 import se.swedenconnect.sigval.xml.verify.XMLSignatureElementValidator;
 import se.swedenconnect.sigval.xml.verify.impl.DefalutXMLSigValReportGenerator;
 import se.swedenconnect.sigval.xml.verify.impl.XMLSignatureElementValidatorImpl;
-import se.swedenconnect.sigval.xml.verify.impl.XMLSignedDocumentValidator;
 
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
@@ -81,75 +87,128 @@ public class SignatureValidatorProvider {
 
   private final CertificateValidators certValidators;
   private final Map<String, LocalKeySource> keySourceMap;
+  private final Map<String, SigningKeyPool> signingKeyPoolMap;
+  private final ValidationResultCache validationResultCache;
+  private final SignatureValidationExecutor signatureValidationExecutor;
+  private final ValidationMetrics validationMetrics;
 
   @Value("${sigval-service.svt.model.sig-algo}") String svtSigAlgo;
   @Value("${sigval-service.svt.timestamp.policy:#{null}}") String timestampPolicy;
   @Value("${sigval-service.svt.validator-enabled}") boolean enableSvtValidation;
   @Value("${sigval-service.validator.strict-pdf-context}") boolean strictPdfContextFactory;
   @Value("${sigval-service.report.default-digest-algorithm}") String defaultSigValReportDigestAlgorithm;
+  @Value("${sigval-service.report.delegated-key.enabled:false}") boolean delegatedReportKey;
+  @Value("${sigval-service.report.delegated-key.validity-minutes:60}") long delegatedReportKeyValidityMinutes;
+  @Value("${sigval-service.report.delegated-key.allow-non-ca-issuer:false}") boolean delegatedReportKeyNonCaIssuer;
 
-  @Getter private DefaultPDFDocTimestampSignatureInterface svtTsSigner;
-  @Getter private PDFSVTSigValClaimsIssuer pdfsvtSigValClaimsIssuer;
-  @Getter private ExtendedPDFSignatureValidator pdfSignatureValidator;
-  @Getter private DefalutPDFSigValReportGenerator pdfSigValReportGenerator;
-  @Getter private XMLDocumentSVTIssuer xmlDocumentSVTIssuer;
-  @Getter private ExtendedXMLSignedDocumentValidator xmlSignedDocumentValidator;
-  @Getter private XMLSignatureElementValidator xmlSignatureElementValidator;
-  @Getter private DefalutXMLSigValReportGenerator xmlSigValReportGenerator;
-  @Getter private JOSEDocumentSVTIssuer joseDocumentSVTIssuer;
-  @Getter private JOSESignedDocumentValidator joseSignedDocumentValidator;
-  @Getter private JOSESignatureDataValidator joseSignatureDataValidator;
-  @Getter private DefalutJOSESigValReportGenerator joseSigValReportGenerator;
-
-  @Getter ReportSigner reportSigner;
-
-  private TimeStampPolicyVerifier timeStampPolicyVerifier;
-  private JWSAlgorithm svtJWSAlgorithm;
+  /** The report signer does not depend on the trust configuration and is shared by all validator sets */
+  private PooledSigner<ReportSigner> reportSigner;
 
+  /** The current validator set. Replaced as a whole when the trust configuration changes */
+  private volatile ValidatorSet validators;
 
   @Autowired
-  public SignatureValidatorProvider(CertificateValidators certValidators, Map<String, LocalKeySource> keySourceMap) {
+  public SignatureValidatorProvider(CertificateValidators certValidators, Map<String, LocalKeySource> keySourceMap,
+    Map<String, SigningKeyPool> signingKeyPoolMap, ValidationResultCache validationResultCache,
+    SignatureValidationExecutor signatureValidationExecutor, ValidationMetrics validationMetrics) {
     this.certValidators = certValidators;
     this.keySourceMap = keySourceMap;
+    this.signingKeyPoolMap = signingKeyPoolMap;
+    this.validationResultCache = validationResultCache;
+    this.signatureValidationExecutor = signatureValidationExecutor;
+    this.validationMetrics = validationMetrics;
+  }
+
+  /**
+   * Get the current validator set. Callers should obtain the validator set once per request.
+   *
+   * @return the current validator set
+   */
+  public ValidatorSet getValidators() {
+    return validators;
   }
 
-  public void loadValidators() throws JOSEException, NoSuchAlgorithmException, IOException, CertificateException {
-    certValidators.loadValidators();
-    svtJWSAlgorithm = jwsAlgorithm();
-    timeStampPolicyVerifier = timeStampPolicyVerifier();
-    xmlSignatureElementValidator = xmlSignatureElementValidator();
-    xmlSignedDocumentValidator = xmlSignedDocumentValidator();
-    xmlDocumentSVTIssuer = xmlDocumentSVTIssuer();
-    pdfSignatureValidator = pdfSignatureValidator();
-    pdfsvtSigValClaimsIssuer = pdfsvtSigValClaimsIssuer();
-    joseSignatureDataValidator = joseSignatureDataValidator();
-    joseSignedDocumentValidator = joseSignedDocumentValidator();
-    joseDocumentSVTIssuer = joseDocumentSVTIssuer();
-    pdfSigValReportGenerator = pdfSigValReportGenerator();
-    xmlSigValReportGenerator = xmlSigValReportGenerator();
-    joseSigValReportGenerator = joseSigValReportGenerator();
-    svtTsSigner = svtTsSigner();
-    reportSigner = reportSigner();
+  /**
+   * Get the generation of the current trust configuration
+   *
+   * @return trust configuration generation
+   */
+  public long getTrustConfigGeneration() {
+    ValidatorSet current = validators;
+    return current == null ? 0 : current.getTrustConfigGeneration();
   }
 
-  private ReportSigner reportSigner() {
-    return new ReportSigner(keySourceMap.get(REPORT_KEYSOURCE).getCredential().getPrivateKey(),
-      new ArrayList<>(keySourceMap.get(REPORT_KEYSOURCE).getCredential().getEntityCertificateChain()));
+  /**
+   * Reloads the trust configuration and builds a new validator set if the trust configuration has changed.
+   * The new validator set is built separately and replaces the current set in a single assignment so that requests
+   * never see a mix of validators from different trust configurations.
+   */
+  public synchronized void loadValidators() throws JOSEException, NoSuchAlgorithmException, IOException, CertificateException {
+    Timer.Sample sample = validationMetrics.start();
+    boolean changed = false;
+    try {
+      boolean trustChanged = certValidators.loadValidators();
+      ValidatorSet current = validators;
+      if (!trustChanged && current != null) {
+        log.debug("Trust configuration unchanged. Keeping validators of generation {}", current.getTrustConfigGeneration());
+        return;
+      }
+      long generation = current == null ? 1 : current.getTrustConfigGeneration() + 1;
+      validators = buildValidators(generation);
+      changed = true;
+      log.info("Loaded validators for trust configuration generation {}", generation);
+    }
+    finally {
+      validationMetrics.stop(sample, ValidationMetrics.VALIDATOR_RELOAD, "changed", String.valueOf(changed));
+    }
   }
 
-  private DefalutXMLSigValReportGenerator xmlSigValReportGenerator() {
-    return new DefalutXMLSigValReportGenerator(defaultSigValReportDigestAlgorithm);
+  private ValidatorSet buildValidators(long generation)
+    throws JOSEException, NoSuchAlgorithmException, IOException {
+    JWSAlgorithm svtJWSAlgorithm = jwsAlgorithm();
+    TimeStampPolicyVerifier timeStampPolicyVerifier = timeStampPolicyVerifier();
+    XMLSignatureElementValidator xmlSignatureElementValidator = xmlSignatureElementValidator(timeStampPolicyVerifier);
+    ExtendedPDFSignatureValidator pdfSignatureValidator = pdfSignatureValidator(timeStampPolicyVerifier, null, 0);
+    JOSESignatureDataValidator joseSignatureDataValidator = joseSignatureDataValidator(timeStampPolicyVerifier);
+
+    return ValidatorSet.builder()
+      .trustConfigGeneration(generation)
+      .xmlSignatureElementValidator(xmlSignatureElementValidator)
+      .xmlSignedDocumentValidator(
+        new ParallelXMLSignedDocumentValidator(xmlSignatureElementValidator, signatureValidationExecutor))
+      .xmlDocumentSVTIssuer(xmlDocumentSVTIssuer(svtJWSAlgorithm, xmlSignatureElementValidator))
+      .pdfSignatureValidator(pdfSignatureValidator)
+      .pdfsvtSigValClaimsIssuer(pdfsvtSigValClaimsIssuer(svtJWSAlgorithm,
+        pdfSignatureValidator(timeStampPolicyVerifier, validationResultCache, generation)))
+      .joseSignatureDataValidator(joseSignatureDataValidator)
+      .joseSignedDocumentValidator(
+        new ParallelJOSESignedDocumentValidator(joseSignatureDataValidator, signatureValidationExecutor))
+      .joseDocumentSVTIssuer(joseDocumentSVTIssuer(svtJWSAlgorithm, joseSignatureDataValidator))
+      .pdfSigValReportGenerator(new DefalutPDFSigValReportGenerator(defaultSigValReportDigestAlgorithm))
+      .xmlSigValReportGenerator(new DefalutXMLSigValReportGenerator(defaultSigValReportDigestAlgorithm))
+      .joseSigValReportGenerator(new DefalutJOSESigValReportGenerator(defaultSigValReportDigestAlgorithm))
+      .svtTsSigner(svtTsSigner(svtJWSAlgorithm))
+      .reportSigner(reportSigner())
+      .build();
   }
 
-  private DefalutJOSESigValReportGenerator joseSigValReportGenerator() {
-    return new DefalutJOSESigValReportGenerator(defaultSigValReportDigestAlgorithm);
+  private PooledSigner<ReportSigner> reportSigner() {
+    if (reportSigner == null) {
+      PooledSigner.SignerFactory<ReportSigner> signerFactory =
+        (privateKey, certificateChain) -> new ReportSigner(privateKey, new ArrayList<>(certificateChain));
+      reportSigner = delegatedReportKey
+        ? new DelegatedSigner<>(signingKeyPoolMap.get(REPORT_KEYSOURCE), signerFactory,
+          delegatedReportKeyValidityMinutes, delegatedReportKeyNonCaIssuer, validationMetrics)
+        : new PooledSigner<>(signingKeyPoolMap.get(REPORT_KEYSOURCE), signerFactory);
+    }
+    return reportSigner;
   }
 
-  private DefalutPDFSigValReportGenerator pdfSigValReportGenerator() {
-    return new DefalutPDFSigValReportGenerator(defaultSigValReportDigestAlgorithm);
+  private <T> PooledSigner<T> svtSigner(PooledSigner.SignerFactory<T> signerFactory) {
+    return new PooledSigner<>(signingKeyPoolMap.get(SVT_KEYSOURCE), signerFactory);
   }
 
-  private JOSESignatureDataValidator joseSignatureDataValidator() {
+  private JOSESignatureDataValidator joseSignatureDataValidator(TimeStampPolicyVerifier timeStampPolicyVerifier) {
     JOSESignaturePolicyValidator joseSignaturePolicyValidator = new PkixJOSESignaturePolicyValidator();
 
     return new JOSESignatureDataValidatorImpl(
@@ -161,41 +220,45 @@ public class SignatureValidatorProvider {
 
   }
 
-  private JOSESignedDocumentValidator joseSignedDocumentValidator() {
-    return new JOSESignedDocumentValidator(joseSignatureDataValidator);
-  }
-
-  private JOSEDocumentSVTIssuer joseDocumentSVTIssuer() throws NoSuchAlgorithmException, JOSEException {
-    JOSESVTSigValClaimsIssuer claimsIssuer = new JOSESVTSigValClaimsIssuer(
+  private PooledSigner<JOSEDocumentSVTIssuer> joseDocumentSVTIssuer(JWSAlgorithm svtJWSAlgorithm,
+    JOSESignatureDataValidator joseSignatureDataValidator) {
+    return svtSigner((privateKey, certificateChain) -> new JOSEDocumentSVTIssuer(new JOSESVTSigValClaimsIssuer(
       svtJWSAlgorithm,
-      Objects.requireNonNull(keySourceMap.get(SVT_KEYSOURCE).getCredential().getPrivateKey()),
-      Collections.singletonList(keySourceMap.get(SVT_KEYSOURCE).getCredential().getEntityCertificate()),
+      Objects.requireNonNull(privateKey),
+      Collections.singletonList(certificateChain.get(0)),
       joseSignatureDataValidator
-    );
-    return new JOSEDocumentSVTIssuer(claimsIssuer);
+    )));
   }
 
-  private DefaultPDFDocTimestampSignatureInterface svtTsSigner() {
-    DefaultPDFDocTimestampSignatureInterface timeStampSigner = new DefaultPDFDocTimestampSignatureInterface(
-      keySourceMap.get(SVT_KEYSOURCE).getCredential().getPrivateKey(),
-      Collections.singletonList(keySourceMap.get(SVT_KEYSOURCE).getCredential().getEntityCertificate()),
-      SVTAlgoRegistry.getAlgoParams(svtJWSAlgorithm).getSigAlgoId());
-    if (StringUtils.isNotEmpty(timestampPolicy)){
-      timeStampSigner.setTimeStampPolicyOid(new ASN1ObjectIdentifier(timestampPolicy));
-    }
-    return timeStampSigner;
+  private PooledSigner<DefaultPDFDocTimestampSignatureInterface> svtTsSigner(JWSAlgorithm svtJWSAlgorithm) {
+    return svtSigner((privateKey, certificateChain) -> {
+      DefaultPDFDocTimestampSignatureInterface timeStampSigner = new DefaultPDFDocTimestampSignatureInterface(
+        privateKey,
+        Collections.singletonList(certificateChain.get(0)),
+        SVTAlgoRegistry.getAlgoParams(svtJWSAlgorithm).getSigAlgoId());
+      if (StringUtils.isNotEmpty(timestampPolicy)){
+        timeStampSigner.setTimeStampPolicyOid(new ASN1ObjectIdentifier(timestampPolicy));
+      }
+      return timeStampSigner;
+    });
   }
 
-  PDFSVTSigValClaimsIssuer pdfsvtSigValClaimsIssuer() throws NoSuchAlgorithmException, JOSEException {
-    return new PDFSVTSigValClaimsIssuer(
+  private PooledSigner<PDFSVTSigValClaimsIssuer> pdfsvtSigValClaimsIssuer(JWSAlgorithm svtJWSAlgorithm,
+    ExtendedPDFSignatureValidator pdfSignatureValidator) {
+    return svtSigner((privateKey, certificateChain) -> new PDFSVTSigValClaimsIssuer(
       svtJWSAlgorithm,
-      Objects.requireNonNull(keySourceMap.get(SVT_KEYSOURCE).getCredential().getPrivateKey()),
-      Collections.singletonList(keySourceMap.get(SVT_KEYSOURCE).getCredential().getEntityCertificate()),
-      pdfSignatureValidator);
+      Objects.requireNonNull(privateKey),
+      Collections.singletonList(certificateChain.get(0)),
+      pdfSignatureValidator));
   }
 
 
-  private ExtendedPDFSignatureValidator pdfSignatureValidator() {
+  /**
+   * Create the PDF signature validator. A validator with a validation result cache serves results of documents that
+   * were validated under the same trust configuration generation from the cache.
+   */
+  private ExtendedPDFSignatureValidator pdfSignatureValidator(TimeStampPolicyVerifier timeStampPolicyVerifier,
+    ValidationResultCache resultCache, long generation) {
     PDFSignaturePolicyValidator signaturePolicyValidator = new PkixPdfSignaturePolicyValidator();
     PDFSingleSignatureValidator pdfSignatureVerifier = new PDFSingleSignatureValidatorImpl(
       certValidators.getSignatureCertificateValidator(), signaturePolicyValidator,
@@ -208,21 +271,31 @@ public class SignatureValidatorProvider {
     pdfContextFactory.setStrict(strictPdfContextFactory);
 
     // Get the pdf validator
-    return new SVTenabledPDFDocumentSigVerifier(
+    if (resultCache != null) {
+      return new CachingPDFDocumentSigVerifier(
+        pdfSignatureVerifier,
+        enableSvtValidation ? pdfsvtValidator : null,
+        pdfContextFactory,
+        signatureValidationExecutor,
+        resultCache,
+        generation);
+    }
+    return new ParallelPDFDocumentSigVerifier(
       pdfSignatureVerifier,
       enableSvtValidation ? pdfsvtValidator : null,
-      pdfContextFactory);
+      pdfContextFactory,
+      signatureValidationExecutor);
   }
 
 
-  public XMLDocumentSVTIssuer xmlDocumentSVTIssuer() throws JOSEException, NoSuchAlgorithmException {
-    XMLSVTSigValClaimsIssuer claimsIssuer = new XMLSVTSigValClaimsIssuer(
+  private PooledSigner<XMLDocumentSVTIssuer> xmlDocumentSVTIssuer(JWSAlgorithm svtJWSAlgorithm,
+    XMLSignatureElementValidator xmlSignatureElementValidator) {
+    return svtSigner((privateKey, certificateChain) -> new XMLDocumentSVTIssuer(new XMLSVTSigValClaimsIssuer(
       svtJWSAlgorithm,
-      Objects.requireNonNull(keySourceMap.get(SVT_KEYSOURCE).getCredential().getPrivateKey()),
-      Collections.singletonList(keySourceMap.get(SVT_KEYSOURCE).getCredential().getEntityCertificate()),
+      Objects.requireNonNull(privateKey),
+      Collections.singletonList(certificateChain.get(0)),
       xmlSignatureElementValidator
-    );
-    return new XMLDocumentSVTIssuer(claimsIssuer);
+    )));
   }
 
   private JWSAlgorithm jwsAlgorithm() throws IOException, NoSuchAlgorithmException {
@@ -242,12 +315,7 @@ public class SignatureValidatorProvider {
     throw new NoSuchAlgorithmException("The selected algorithm does not match the provided SVT signing key");
   }
 
-
-  public ExtendedXMLSignedDocumentValidator xmlSignedDocumentValidator() {
-    return new XMLSignedDocumentValidator(xmlSignatureElementValidator);
-  }
-
-  private XMLSignatureElementValidator xmlSignatureElementValidator(){
+  private XMLSignatureElementValidator xmlSignatureElementValidator(TimeStampPolicyVerifier timeStampPolicyVerifier){
     XMLSignaturePolicyValidator xmlSignaturePolicyValidator = new PkixXmlSignaturePolicyValidator();
 
     return new XMLSignatureElementValidatorImpl(
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.configuration;
+
+import lombok.Builder;
+import lombok.Getter;
+import se.idsec.sigval.sigvalservice.configuration.keys.PooledSigner;
+import se.swedenconnect.sigval.jose.svt.JOSEDocumentSVTIssuer;
+import se.swedenconnect.sigval.jose.verify.DefalutJOSESigValReportGenerator;
+import se.swedenconnect.sigval.jose.verify.JOSESignatureDataValidator;
+import se.swedenconnect.sigval.jose.verify.JOSESignedDocumentValidator;
+import se.swedenconnect.sigval.pdf.svt.PDFSVTSigValClaimsIssuer;
+import se.swedenconnect.sigval.pdf.timestamp.issue.impl.DefaultPDFDocTimestampSignatureInterface;
+import se.swedenconnect.sigval.pdf.verify.ExtendedPDFSignatureValidator;
+import se.swedenconnect.sigval.pdf.verify.impl.DefalutPDFSigValReportGenerator;
+import se.swedenconnect.sigval.report.xml.ReportSigner;
+import se.swedenconnect.sigval.xml.svt.XMLDocumentSVTIssuer;
+import se.swedenconnect.sigval.xml.verify.ExtendedXMLSignedDocumentValidator;
+import se.swedenconnect.sigval.xml.verify.XMLSignatureElementValidator;
+import se.swedenconnect.sigval.xml.verify.impl.DefalutXMLSigValReportGenerator;
+
+/**
+ * Immutable set of validators, report generators and SVT issuers built from one trust configuration.
+ *
+ * <p>A request should obtain the current set once from {@link SignatureValidatorProvider#getValidators()} and use it
+ * throughout the request so that all components used in the request stem from the same trust configuration.</p>
+ *
+ * <p>Report signers and SVT issuers are provided by {@link PooledSigner} instances sharing the signing keys of the key
+ * sources. A signer is acquired for each signing operation and the lease is closed when the operation is done.</p>
+ */
+@Getter
+@Builder
+public class ValidatorSet {
+
+  /** Generation of the trust configuration used to build this validator set */
+  private final long trustConfigGeneration;
+
+  private final PooledSigner<DefaultPDFDocTimestampSignatureInterface> svtTsSigner;
+  private final PooledSigner<PDFSVTSigValClaimsIssuer> pdfsvtSigValClaimsIssuer;
+  private final ExtendedPDFSignatureValidator pdfSignatureValidator;
+  private final DefalutPDFSigValReportGenerator pdfSigValReportGenerator;
+  private final PooledSigner<XMLDocumentSVTIssuer> xmlDocumentSVTIssuer;
+  private final ExtendedXMLSignedDocumentValidator xmlSignedDocumentValidator;
+  private final XMLSignatureElementValidator xmlSignatureElementValidator;
+  private final DefalutXMLSigValReportGenerator xmlSigValReportGenerator;
+  private final PooledSigner<JOSEDocumentSVTIssuer> joseDocumentSVTIssuer;
+  private final JOSESignedDocumentValidator joseSignedDocumentValidator;
+  private final JOSESignatureDataValidator joseSignatureDataValidator;
+  private final DefalutJOSESigValReportGenerator joseSigValReportGenerator;
+  private final PooledSigner<ReportSigner> reportSigner;
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.configuration.keys;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import se.idsec.sigval.sigvalservice.admission.AdmissionRejectedException;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Provides signers using a short-lived delegated key that is certified by the key of a {@link SigningKeyPool}.
+ *
+ * <p>The delegated key is generated in memory and its certificate is issued with the key of the pool, so the key of
+ * the pool, typically held by an HSM, is used once per validity period instead of once per signature. Signatures are
+ * ordinary signatures with the delegated key, and the certificate chain of the signer starts with the delegated
+ * certificate followed by the certificate chain of the key of the pool.</p>
+ *
+ * <p>The delegated private key is held in the JVM heap and not in the HSM holding the key of the pool. The key of the
+ * pool must be a CA key, unless it is explicitly allowed that its certificate is trusted directly.</p>
+ *
+ * <p>A new delegated key is issued when the validity period has passed. The delegated certificate is valid for two
+ * validity periods, so the current key is used while a new key is issued or if the issuance fails.</p>
+ *
+ * @param <T> the signer type
+ */
+@Slf4j
+public class DelegatedSigner<T> extends PooledSigner<T> {
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final SigningKeyPool issuerKeyPool;
+  private final SignerFactory<T> signerFactory;
+  private final long validityMillis;
+  private final ValidationMetrics validationMetrics;
+  private final ReentrantLock issueLock = new ReentrantLock();
+  private volatile Delegation<T> delegation;
+
+  /**
+   * Constructor
+   *
+   * @param issuerKeyPool the signing key pool holding the key certifying the delegated keys
+   * @param signerFactory factory creating a signer for a delegated key
+   * @param validityMinutes the number of minutes a delegated key is used before a new key is issued
+   * @param allowNonCaIssuer true to allow an issuer certificate that is not a CA certificate. Delegated certificates
+   *   are then only valid where the issuer certificate is trusted directly
+   * @param validationMetrics metrics
+   * @throws IllegalArgumentException if the issuer certificate is not a CA certificate allowed to sign certificates and
+   *   this is not explicitly allowed
+   */
+  public DelegatedSigner(SigningKeyPool issuerKeyPool, SignerFactory<T> signerFactory, long validityMinutes,
+    boolean allowNonCaIssuer, ValidationMetrics validationMetrics) {
+    super(issuerKeyPool, signerFactory);
+    this.issuerKeyPool = issuerKeyPool;
+    this.signerFactory = signerFactory;
+    this.validityMillis = TimeUnit.MINUTES.toMillis(Math.max(validityMinutes, 1));
+    this.validationMetrics = validationMetrics;
+    if (!isCaCertificate(issuerKeyPool.getCertificateChain().get(0))) {
+      if (!allowNonCaIssuer) {
+        throw new IllegalArgumentException("The " + issuerKeyPool.getName() + " key certificate is not a CA certificate "
+          + "with the keyCertSign key usage and can not issue delegated signing certificates");
+      }
+      log.warn("The {} key certificate is not a CA certificate. Delegated {} signing certificates are only valid "
+        + "where this certificate is trusted directly", issuerKeyPool.getName(), issuerKeyPool.getName());
+    }
+  }
+
+  /**
+   * Check that a certificate is a CA certificate that may sign certificates. A certificate without key usage extension
+   * is not restricted in its key usage.
+   */
+  static boolean isCaCertificate(X509Certificate certificate) {
+    boolean[] keyUsage = certificate.getKeyUsage();
+    return certificate.getBasicConstraints() >= 0 && (keyUsage == null || (keyUsage.length > 5 && keyUsage[5]));
+  }
+
+  /**
+   * Acquire a signer using the current delegated key. A new delegated key is issued if the validity period of the
+   * current key has passed.
+   *
+   * @return lease of a signer
+   * @throws AdmissionRejectedException if a new delegated key was needed and the key of the pool was not available
+   */
+  @Override public Lease<T> acquire() throws AdmissionRejectedException {
+    Delegation<T> current = delegation;
+    long now = System.currentTimeMillis();
+    if (current == null || now >= current.renewAt) {
+      if (current != null && now < current.notAfter) {
+        // Keep using the current key while another thread issues the new key
+        if (issueLock.tryLock()) {
+          try {
+            current = issue();
+          }
+          finally {
+            issueLock.unlock();
+          }
+        }
+      }
+      else {
+        issueLock.lock();
+        try {
+          current = issue();
+        }
+        finally {
+          issueLock.unlock();
+        }
+      }
+    }
+    return new Lease<>(null, current.signer);
+  }
+
+  private Delegation<T> issue() throws AdmissionRejectedException {
+    Delegation<T> current = delegation;
+    long now = System.currentTimeMillis();
+    if (current != null && now < current.renewAt) {
+      return current;
+    }
+    try (SigningKeyPool.Lease issuerKey = issuerKeyPool.acquire()) {
+      List<X509Certificate> issuerChain = issuerKeyPool.getCertificateChain();
+      KeyPair keyPair = generateKeyPair(issuerChain.get(0).getPublicKey());
+      X509Certificate certificate = issueCertificate(keyPair.getPublic(), issuerKey.getPrivateKey(),
+        issuerChain.get(0), now);
+      List<X509Certificate> certificateChain = new ArrayList<>();
+      certificateChain.add(certificate);
+      certificateChain.addAll(issuerChain);
+      long notAfter = certificate.getNotAfter().getTime();
+      delegation = new Delegation<>(signerFactory.create(keyPair.getPrivate(), certificateChain),
+        Math.min(now + validityMillis, notAfter), notAfter);
+      validationMetrics.count(ValidationMetrics.SIGNING_DELEGATION,
+        "keysource", issuerKeyPool.getName(), "outcome", "issued");
+      log.info("Issued delegated {} signing certificate {}, valid to {}", issuerKeyPool.getName(),
+        certificate.getSerialNumber().toString(16), certificate.getNotAfter());
+      return delegation;
+    }
+    catch (AdmissionRejectedException ex) {
+      if (current != null && now < current.notAfter) {
+        return current;
+      }
+      throw ex;
+    }
+    catch (Exception ex) {
+      validationMetrics.count(ValidationMetrics.SIGNING_DELEGATION,
+        "keysource", issuerKeyPool.getName(), "outcome", "failed");
+      if (current != null && now < current.notAfter) {
+        log.warn("Unable to issue delegated {} signing certificate - using current key: {}", issuerKeyPool.getName(),
+          ex.getMessage());
+        return current;
+      }
+      throw new IllegalStateException("Unable to issue delegated " + issuerKeyPool.getName() + " signing certificate",
+        ex);
+    }
+  }
+
+  private X509Certificate issueCertificate(PublicKey publicKey, PrivateKey issuerKey, X509Certificate issuerCert,
+    long now) throws Exception {
+    X500Name issuerName = X500Name.getInstance(issuerCert.getSubjectX500Principal().getEncoded());
+    X500Name subjectName = new X500Name(BCStyle.INSTANCE, "CN=" + getCommonName(issuerName) + " - delegated");
+    Date notBefore = new Date(now - TimeUnit.MINUTES.toMillis(5));
+    Date notAfter = new Date(Math.min(now + 2 * validityMillis, issuerCert.getNotAfter().getTime()));
+    JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils();
+
+    X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuerName, new BigInteger(64, RANDOM),
+      notBefore, notAfter, subjectName, publicKey)
+      .addExtension(Extension.basicConstraints, true, new BasicConstraints(false))
+      .addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature | KeyUsage.nonRepudiation))
+      .addExtension(Extension.subjectKeyIdentifier, false, extensionUtils.createSubjectKeyIdentifier(publicKey))
+      .addExtension(Extension.authorityKeyIdentifier, false,
+        extensionUtils.createAuthorityKeyIdentifier(issuerCert.getPublicKey()));
+    String signatureAlgorithm = issuerCert.getPublicKey() instanceof ECPublicKey ? "SHA256withECDSA" : "SHA256withRSA";
+    return new JcaX509CertificateConverter().getCertificate(
+      builder.build(new JcaContentSignerBuilder(signatureAlgorithm).build(issuerKey)));
+  }
+
+  private static String getCommonName(X500Name name) {
+    return name.getRDNs(BCStyle.CN).length > 0
+      ? IETFUtils.valueToString(name.getRDNs(BCStyle.CN)[0].getFirst().getValue())
+      : "Signer";
+  }
+
+  private static KeyPair generateKeyPair(PublicKey issuerPublicKey) throws Exception {
+    if (issuerPublicKey instanceof ECPublicKey) {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+      generator.initialize(((ECPublicKey) issuerPublicKey).getParams());
+      return generator.generateKeyPair();
+    }
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    int bits = issuerPublicKey instanceof RSAPublicKey
+      ? ((RSAPublicKey) issuerPublicKey).getModulus().bitLength()
+      : 2048;
+    generator.initialize(Math.max(bits, 2048));
+    return generator.generateKeyPair();
+  }
+
+  private static class Delegation<T> {
+    private final T signer;
+    private final long renewAt;
+    private final long notAfter;
+
+    private Delegation(T signer, long renewAt, long notAfter) {
+      this.signer = signer;
+      this.renewAt = renewAt;
+      this.notAfter = notAfter;
+    }
+  }
+
+}
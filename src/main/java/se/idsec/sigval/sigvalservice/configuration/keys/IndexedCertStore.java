@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.configuration.keys;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.util.encoders.Hex;
+
+import javax.security.auth.x500.X500Principal;
+import java.math.BigInteger;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Provider;
+import java.security.cert.*;
+import java.util.*;
+
+/**
+ * Certificate store that indexes certificates by subject name, subject key identifier and issuer name and serial
+ * number.
+ *
+ * <p>A collection cert store tests every certificate against the selector of each lookup. Path building looks up
+ * issuer certificates by subject name and, if present, by the authority key identifier of the issued certificate. This
+ * store only tests the certificates of the matching index entry, so the cost of a lookup does not depend on the number
+ * of certificates in the store. Selectors without indexed criteria are matched against all certificates.</p>
+ */
+public class IndexedCertStore extends CertStoreSpi {
+
+  /** Cert store type */
+  public static final String TYPE = "Indexed";
+
+  private static final Provider PROVIDER = new Provider("SigvalIndexedCertStore", "1.0", "Indexed cert store") {
+  };
+
+  private final List<X509Certificate> certificates;
+  private final Map<X500Principal, List<X509Certificate>> subjectIndex = new HashMap<>();
+  private final Map<String, List<X509Certificate>> subjectKeyIdIndex = new HashMap<>();
+  private final Map<IssuerSerial, List<X509Certificate>> issuerSerialIndex = new HashMap<>();
+
+  /**
+   * Constructor
+   *
+   * @param params collection cert store parameters holding the certificates of the store
+   * @throws InvalidAlgorithmParameterException if the parameters are not collection cert store parameters
+   */
+  public IndexedCertStore(CertStoreParameters params) throws InvalidAlgorithmParameterException {
+    super(params);
+    if (!(params instanceof CollectionCertStoreParameters)) {
+      throw new InvalidAlgorithmParameterException("Collection cert store parameters are required");
+    }
+    List<X509Certificate> certificateList = new ArrayList<>();
+    for (Object object : ((CollectionCertStoreParameters) params).getCollection()) {
+      if (object instanceof X509Certificate) {
+        X509Certificate certificate = (X509Certificate) object;
+        certificateList.add(certificate);
+        addToIndex(subjectIndex, certificate.getSubjectX500Principal(), certificate);
+        addToIndex(issuerSerialIndex,
+          new IssuerSerial(certificate.getIssuerX500Principal(), certificate.getSerialNumber()), certificate);
+        String subjectKeyId = getSubjectKeyIdentifier(certificate);
+        if (subjectKeyId != null) {
+          addToIndex(subjectKeyIdIndex, subjectKeyId, certificate);
+        }
+      }
+    }
+    this.certificates = Collections.unmodifiableList(certificateList);
+  }
+
+  /**
+   * Create an indexed cert store
+   *
+   * @param certificates the certificates of the store
+   * @return cert store
+   */
+  public static CertStore getInstance(Collection<X509Certificate> certificates) {
+    CollectionCertStoreParameters params = new CollectionCertStoreParameters(certificates);
+    try {
+      return new CertStore(new IndexedCertStore(params), PROVIDER, TYPE, params) {
+      };
+    }
+    catch (InvalidAlgorithmParameterException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  @Override public Collection<? extends Certificate> engineGetCertificates(CertSelector selector) {
+    if (selector == null) {
+      return certificates;
+    }
+    List<X509Certificate> matches = new ArrayList<>();
+    for (X509Certificate certificate : getCandidates(selector)) {
+      if (selector.match(certificate)) {
+        matches.add(certificate);
+      }
+    }
+    return matches;
+  }
+
+  @Override public Collection<? extends CRL> engineGetCRLs(CRLSelector selector) {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Get the certificates that may match a selector using the most selective index for the criteria of the selector
+   */
+  private List<X509Certificate> getCandidates(CertSelector selector) {
+    if (!(selector instanceof X509CertSelector)) {
+      return certificates;
+    }
+    X509CertSelector x509Selector = (X509CertSelector) selector;
+    if (x509Selector.getCertificate() != null) {
+      return subjectIndex.getOrDefault(x509Selector.getCertificate().getSubjectX500Principal(),
+        Collections.emptyList());
+    }
+    if (x509Selector.getIssuer() != null && x509Selector.getSerialNumber() != null) {
+      return issuerSerialIndex.getOrDefault(
+        new IssuerSerial(x509Selector.getIssuer(), x509Selector.getSerialNumber()), Collections.emptyList());
+    }
+    if (x509Selector.getSubjectKeyIdentifier() != null) {
+      return subjectKeyIdIndex.getOrDefault(Hex.toHexString(x509Selector.getSubjectKeyIdentifier()),
+        Collections.emptyList());
+    }
+    if (x509Selector.getSubject() != null) {
+      return subjectIndex.getOrDefault(x509Selector.getSubject(), Collections.emptyList());
+    }
+    return certificates;
+  }
+
+  /**
+   * Get the subject key identifier in the form used by {@link X509CertSelector#getSubjectKeyIdentifier()}, which is
+   * the DER encoded key identifier octet string
+   */
+  private static String getSubjectKeyIdentifier(X509Certificate certificate) {
+    byte[] extensionValue = certificate.getExtensionValue(Extension.subjectKeyIdentifier.getId());
+    if (extensionValue == null) {
+      return null;
+    }
+    try {
+      return Hex.toHexString(ASN1OctetString.getInstance(extensionValue).getOctets());
+    }
+    catch (Exception ex) {
+      return null;
+    }
+  }
+
+  private static <K> void addToIndex(Map<K, List<X509Certificate>> index, K key, X509Certificate certificate) {
+    index.computeIfAbsent(key, k -> new ArrayList<>(1)).add(certificate);
+  }
+
+  @AllArgsConstructor
+  @EqualsAndHashCode
+  private static class IssuerSerial {
+    private final X500Principal issuer;
+    private final BigInteger serialNumber;
+  }
+
+}
@@ -40,6 +40,9 @@ import java.util.*;
 @Slf4j
 public class LocalKeySource {
 
+    /** Slot name of key sources that are not PKCS#11 key sources */
+    public static final String LOCAL_SLOT = "local";
+
     private X509Credential credential;
     private String keySourceType, keySourceLocation, keySourcePassword, keySourceAlias, keySourceCertLocation;
     private String entityId, countryCode, orgName;
@@ -90,6 +93,47 @@ public class LocalKeySource {
         return credential.getEntityCertificate();
     }
 
+    /**
+     * Check if this is a PKCS#11 key source
+     * @return true if the key is held by a PKCS#11 token
+     */
+    public boolean isPkcs11() {
+        return "pkcs11".equalsIgnoreCase(keySourceType);
+    }
+
+    /**
+     * Get the names of the slots holding the key of this key source. A PKCS#11 key source has one slot for each
+     * configured PKCS#11 provider. Other key sources have a single slot.
+     * @return slot names
+     */
+    public List<String> getSlotNames() {
+        if (isPkcs11() && pkcs11Provider != null && !(pkcs11Provider instanceof PKCS11NullProvider)) {
+            return pkcs11Provider.getProviderNameList();
+        }
+        return Collections.singletonList(LOCAL_SLOT);
+    }
+
+    /**
+     * Load the private key of a slot. For a PKCS#11 key source the key is loaded from the token of the PKCS#11
+     * provider with the slot name, without testing the key.
+     * @param slotName the name of the slot as returned by {@link #getSlotNames()}
+     * @return private key
+     * @throws GeneralSecurityException if the key can not be loaded
+     * @throws IOException if the token can not be accessed
+     */
+    public PrivateKey loadPrivateKey(String slotName) throws GeneralSecurityException, IOException {
+        if (LOCAL_SLOT.equals(slotName)) {
+            return credential.getPrivateKey();
+        }
+        KeyStore keyStore = KeyStore.getInstance("PKCS11", slotName);
+        keyStore.load(null, keySourcePassword.toCharArray());
+        PrivateKey key = (PrivateKey) keyStore.getKey(keySourceAlias, keySourcePassword.toCharArray());
+        if (key == null) {
+            throw new KeyStoreException("No private key under alias " + keySourceAlias + " in " + slotName);
+        }
+        return key;
+    }
+
     private X509Credential getCredentialFromKeyStore(KeyStore keyStore) throws KeyStoreException, CertificateException, UnrecoverableKeyException, NoSuchAlgorithmException, IOException {
         Certificate cert = getCertFromKeyStore(keyStore);
         X509Certificate certificate = SVAUtils.getCertificate(cert.getEncoded());
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.configuration.keys;
+
+import se.idsec.sigval.sigvalservice.admission.AdmissionRejectedException;
+
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Provides signers, such as report signers and SVT issuers, using the keys of a {@link SigningKeyPool}.
+ *
+ * <p>One signer is created for each slot of the pool, using the key of that slot. A signer is created again when
+ * the key of its slot has been reloaded.</p>
+ *
+ * @param <T> the signer type
+ */
+public class PooledSigner<T> {
+
+  private final SigningKeyPool signingKeyPool;
+  private final SignerFactory<T> signerFactory;
+  private final Map<SigningKeyPool.Slot, SlotSigner<T>> signers = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor
+   *
+   * @param signingKeyPool the signing key pool
+   * @param signerFactory factory creating a signer for a signing key
+   */
+  public PooledSigner(SigningKeyPool signingKeyPool, SignerFactory<T> signerFactory) {
+    this.signingKeyPool = signingKeyPool;
+    this.signerFactory = signerFactory;
+  }
+
+  /**
+   * Acquire a signer. The returned lease must be closed when the signing operation is done.
+   *
+   * @return lease of a signer
+   * @throws AdmissionRejectedException if no signing key was available before the acquire timeout of the pool
+   */
+  public Lease<T> acquire() throws AdmissionRejectedException {
+    SigningKeyPool.Lease keyLease = signingKeyPool.acquire();
+    try {
+      SlotSigner<T> slotSigner = signers.get(keyLease.getSlot());
+      if (slotSigner == null || slotSigner.generation != keyLease.getGeneration()) {
+        slotSigner = new SlotSigner<>(keyLease.getGeneration(),
+          signerFactory.create(keyLease.getPrivateKey(), signingKeyPool.getCertificateChain()));
+        signers.put(keyLease.getSlot(), slotSigner);
+      }
+      return new Lease<>(keyLease, slotSigner.signer);
+    }
+    catch (Exception ex) {
+      keyLease.close();
+      throw new IllegalStateException("Unable to create " + signingKeyPool.getName() + " signer", ex);
+    }
+  }
+
+  /**
+   * Factory creating a signer for a signing key
+   *
+   * @param <T> the signer type
+   */
+  @FunctionalInterface
+  public interface SignerFactory<T> {
+
+    /**
+     * Create a signer
+     *
+     * @param privateKey the private key
+     * @param certificateChain the certificate chain of the key
+     * @return signer
+     * @throws Exception if the signer can not be created
+     */
+    T create(PrivateKey privateKey, List<X509Certificate> certificateChain) throws Exception;
+  }
+
+  private static class SlotSigner<T> {
+    private final long generation;
+    private final T signer;
+
+    private SlotSigner(long generation, T signer) {
+      this.generation = generation;
+      this.signer = signer;
+    }
+  }
+
+  /**
+   * Lease of a signer. Closing the lease returns the signing key to the pool, if the signer uses a key of the pool.
+   *
+   * @param <T> the signer type
+   */
+  public static class Lease<T> implements AutoCloseable {
+
+    private final SigningKeyPool.Lease keyLease;
+    private final T signer;
+
+    Lease(SigningKeyPool.Lease keyLease, T signer) {
+      this.keyLease = keyLease;
+      this.signer = signer;
+    }
+
+    /**
+     * Get the signer
+     *
+     * @return signer
+     */
+    public T get() {
+      return signer;
+    }
+
+    @Override public void close() {
+      if (keyLease != null) {
+        keyLease.close();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.configuration.keys;
+
+import io.micrometer.core.instrument.Timer;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import se.idsec.sigval.sigvalservice.admission.AdmissionRejectedException;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of the signing keys of a key source.
+ *
+ * <p>The key of a PKCS#11 key source is loaded once from each configured PKCS#11 provider (slot). Each slot allows a
+ * configured number of signing operations at the same time, matching the number of sessions the HSM handles per slot.
+ * A signer acquires the least used healthy slot, and waits in a queue for a limited time when all slots are busy.</p>
+ *
+ * <p>The keys are tested by {@link #checkHealth()}, which is called in the background. A key that fails the test is
+ * reloaded from its slot, and the slot is not used until it passes the test again. Keys are never tested on the
+ * request path.</p>
+ */
+@Slf4j
+public class SigningKeyPool {
+
+  private static final byte[] TEST_DATA = "Signing key health check".getBytes(StandardCharsets.UTF_8);
+
+  /** The name of the key source of this pool */
+  @Getter private final String name;
+  /** The certificate chain of the signing key */
+  @Getter private final List<X509Certificate> certificateChain;
+  private final LocalKeySource keySource;
+  private final List<Slot> slots = new ArrayList<>();
+  private final long acquireTimeoutNanos;
+  private final int retryAfterSeconds;
+  private final ValidationMetrics validationMetrics;
+  private int waiting;
+
+  /**
+   * Constructor
+   *
+   * @param name the name of the key source
+   * @param keySource the key source
+   * @param sessionsPerSlot the max number of signing operations at the same time in each slot of a PKCS#11 key source
+   * @param acquireTimeoutMillis max time to wait for a slot
+   * @param retryAfterSeconds the Retry-After seconds of requests rejected because no slot was available
+   * @param validationMetrics metrics
+   */
+  public SigningKeyPool(String name, LocalKeySource keySource, int sessionsPerSlot, long acquireTimeoutMillis,
+    int retryAfterSeconds, ValidationMetrics validationMetrics) {
+    this.name = name;
+    this.keySource = keySource;
+    this.certificateChain = Collections.unmodifiableList(
+      new ArrayList<>(keySource.getCredential().getEntityCertificateChain()));
+    this.acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(acquireTimeoutMillis, 0));
+    this.retryAfterSeconds = Math.max(retryAfterSeconds, 1);
+    this.validationMetrics = validationMetrics;
+
+    // Software keys are not limited, since signing with them only uses CPU
+    int capacity = keySource.isPkcs11() ? Math.max(sessionsPerSlot, 1) : Integer.MAX_VALUE;
+    for (String slotName : keySource.getSlotNames()) {
+      Slot slot = new Slot(slotName, capacity);
+      try {
+        slot.privateKey = keySource.loadPrivateKey(slotName);
+        slot.healthy = true;
+      }
+      catch (Exception ex) {
+        log.warn("Unable to load {} signing key from slot {}: {}", name, slotName, ex.getMessage());
+      }
+      slots.add(slot);
+    }
+    validationMetrics.gauge(ValidationMetrics.SIGNING_QUEUE, this, SigningKeyPool::getWaiting, "keysource", name);
+    log.info("{} signing key pool slots: {}, signing operations per slot: {}", name, keySource.getSlotNames(),
+      keySource.isPkcs11() ? String.valueOf(capacity) : "unlimited");
+  }
+
+  /**
+   * Acquire a slot for one signing operation. The returned lease must be closed when the signing operation is done.
+   *
+   * @return lease of a slot
+   * @throws AdmissionRejectedException if no slot was available before the acquire timeout
+   */
+  public Lease acquire() throws AdmissionRejectedException {
+    Timer.Sample sample = validationMetrics.start();
+    Lease lease = null;
+    String outcome = "timeout";
+    synchronized (this) {
+      Slot slot = null;
+      waiting++;
+      try {
+        long deadline = System.nanoTime() + acquireTimeoutNanos;
+        slot = selectSlot();
+        while (slot == null) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            break;
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+          slot = selectSlot();
+        }
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        outcome = "interrupted";
+      }
+      finally {
+        waiting--;
+      }
+      if (slot != null) {
+        slot.inUse++;
+        lease = new Lease(slot);
+        outcome = "acquired";
+      }
+    }
+    validationMetrics.stop(sample, ValidationMetrics.SIGNING_WAIT, "keysource", name, "outcome", outcome);
+    if (lease == null) {
+      log.debug("No {} signing key slot available - {}", name, outcome);
+      throw new AdmissionRejectedException("The signing service is busy - retry the request later", retryAfterSeconds);
+    }
+    return lease;
+  }
+
+  /**
+   * Select the healthy slot with the least signing operations in process. Unhealthy slots are used if no slot is
+   * healthy, so that signing fails with the error of the key rather than with a timeout.
+   */
+  private Slot selectSlot() {
+    boolean anyHealthy = slots.stream().anyMatch(slot -> slot.healthy);
+    Slot selected = null;
+    for (Slot slot : slots) {
+      if (slot.privateKey == null || (anyHealthy && !slot.healthy) || slot.inUse >= slot.capacity) {
+        continue;
+      }
+      if (selected == null || slot.inUse < selected.inUse) {
+        selected = slot;
+      }
+    }
+    return selected;
+  }
+
+  private synchronized void release(Slot slot) {
+    slot.inUse--;
+    notifyAll();
+  }
+
+  private synchronized int getWaiting() {
+    return waiting;
+  }
+
+  /**
+   * Test the key of each slot of a PKCS#11 key source with a test signature. A key that fails the test is reloaded
+   * from its slot. Slots where all sessions are in use are in use by signers and are not tested.
+   */
+  public void checkHealth() {
+    if (!keySource.isPkcs11()) {
+      return;
+    }
+    for (Slot slot : slots) {
+      synchronized (this) {
+        if (slot.privateKey != null && slot.inUse >= slot.capacity) {
+          continue;
+        }
+        slot.inUse++;
+      }
+      try {
+        checkSlot(slot);
+      }
+      finally {
+        release(slot);
+      }
+    }
+  }
+
+  private void checkSlot(Slot slot) {
+    if (slot.privateKey != null && testKey(slot.privateKey)) {
+      if (!slot.healthy) {
+        log.info("{} signing key in slot {} is available again", name, slot.name);
+      }
+      slot.healthy = true;
+      validationMetrics.count(ValidationMetrics.SIGNING_KEY_CHECK, "keysource", name, "outcome", "ok");
+      return;
+    }
+    slot.healthy = false;
+    try {
+      PrivateKey privateKey = keySource.loadPrivateKey(slot.name);
+      if (!testKey(privateKey)) {
+        throw new IllegalStateException("Reloaded key failed the test signature");
+      }
+      synchronized (this) {
+        slot.privateKey = privateKey;
+        slot.generation++;
+      }
+      slot.healthy = true;
+      log.info("Reloaded {} signing key in slot {}", name, slot.name);
+      validationMetrics.count(ValidationMetrics.SIGNING_KEY_CHECK, "keysource", name, "outcome", "reloaded");
+    }
+    catch (Exception ex) {
+      log.warn("{} signing key in slot {} is not available: {}", name, slot.name, ex.getMessage());
+      validationMetrics.count(ValidationMetrics.SIGNING_KEY_CHECK, "keysource", name, "outcome", "failed");
+    }
+  }
+
+  private boolean testKey(PrivateKey privateKey) {
+    try {
+      Signature signature = Signature.getInstance("EC".equalsIgnoreCase(privateKey.getAlgorithm())
+        ? "SHA256withECDSA"
+        : "SHA256withRSA");
+      signature.initSign(privateKey);
+      signature.update(TEST_DATA);
+      signature.sign();
+      return true;
+    }
+    catch (Exception ex) {
+      log.debug("Test signature with {} signing key failed: {}", name, ex.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * A slot holding the signing key
+   */
+  static class Slot {
+    private final String name;
+    private final int capacity;
+    private PrivateKey privateKey;
+    /** Incremented each time the key is reloaded */
+    private long generation;
+    private volatile boolean healthy;
+    private int inUse;
+
+    private Slot(String name, int capacity) {
+      this.name = name;
+      this.capacity = capacity;
+    }
+  }
+
+  /**
+   * Lease of a slot for one signing operation. Closing the lease returns the slot to the pool.
+   */
+  public class Lease implements AutoCloseable {
+
+    @Getter(AccessLevel.PACKAGE) private final Slot slot;
+    /** The private key of the slot */
+    @Getter private final PrivateKey privateKey;
+    /** The generation of the private key of the slot */
+    @Getter private final long generation;
+    private boolean closed;
+
+    private Lease(Slot slot) {
+      this.slot = slot;
+      this.privateKey = slot.privateKey;
+      this.generation = slot.generation;
+    }
+
+    @Override public synchronized void close() {
+      if (!closed) {
+        closed = true;
+        release(slot);
+      }
+    }
+  }
+
+}
@@ -25,7 +25,6 @@ import org.bouncycastle.asn1.DERIA5String;
 import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
 import org.bouncycastle.asn1.cms.ContentInfo;
 import org.bouncycastle.asn1.cms.SignedData;
-import org.bouncycastle.asn1.x509.GeneralName;
 import se.swedenconnect.sigval.cert.utils.CertUtils;
 import se.swedenconnect.sigval.commons.utils.SVAUtils;
 import se.swedenconnect.cert.extensions.SubjectInformationAccess;
@@ -46,6 +45,7 @@ public class TslTrustCertStoreFactory {
 
   X509Certificate policyRoot;
   CertStore certStore;
+  List<X509Certificate> certificates = new ArrayList<>();
 
   public TslTrustCertStoreFactory(String policyRootLocation) throws IOException, CertificateException {
     this.policyRoot = SVAUtils.getCertificate(IOUtils.toByteArray(new FileInputStream(new File(policyRootLocation))));
@@ -56,19 +56,27 @@ public class TslTrustCertStoreFactory {
     init();
   }
 
+  /**
+   * Creates a cert store from certificates already obtained from the caRepository of the policy root
+   *
+   * @param policyRoot the TSL Trust policy root certificate
+   * @param certificates the certificates of the caRepository of the policy root
+   */
+  public TslTrustCertStoreFactory(X509Certificate policyRoot, List<X509Certificate> certificates) {
+    this.policyRoot = policyRoot;
+    this.certificates = certificates;
+    if (!certificates.isEmpty()) {
+      this.certStore = IndexedCertStore.getInstance(certificates);
+    }
+  }
+
   private void init() {
-    List<X509Certificate> certificateList = new ArrayList<>();
     try {
-      SubjectInformationAccess siaExtension = CertUtils.getSIAExtension(policyRoot);
-      if (siaExtension == null){
-        log.debug("The policy root certificate contains no SubjectInformationAccess Extension");
+      String location = getCaRepositoryLocation(policyRoot);
+      if (location == null){
+        log.debug("The policy root certificate contains no caRepository SubjectInformationAccess Extension");
         return;
       }
-      GeneralName generalName = Arrays.stream(siaExtension.getAccessDescriptions())
-        .filter(accessDescription -> accessDescription.getAccessMethod().getId().equals(OidName.id_pkix_ad_caRepository.getOid()))
-        .map(accessDescription -> accessDescription.getAccessLocation())
-        .findFirst().get();
-      String location = ((DERIA5String) generalName.getName()).getString();
 
       URL url = new URL(location);
       URLConnection connection = url.openConnection();
@@ -76,24 +84,8 @@ public class TslTrustCertStoreFactory {
       connection.setReadTimeout(3000);
       byte[] bytes = IOUtils.toByteArray(connection);
 
-      ASN1InputStream ain = new ASN1InputStream(bytes);
-      ContentInfo cmsContentInfo = ContentInfo.getInstance(ain.readObject());
-      if (!cmsContentInfo.getContentType().equals(CMSObjectIdentifiers.signedData)){
-        throw new IOException("Illegal content type");
-      }
-      SignedData signedData = SignedData.getInstance(cmsContentInfo.getContent());
-      Iterator<ASN1Encodable> iterator = signedData.getCertificates().iterator();
-      while (iterator.hasNext()){
-        try {
-          byte[] certByte = iterator.next().toASN1Primitive().getEncoded("DER");
-          certificateList.add(CertUtils.getCert(new ByteArrayInputStream(certByte)));
-        } catch (Exception ex){
-          log.warn("Unable to decode certificate from signed data");
-        }
-      }
-
-      CertStoreParameters certStoreParameters = new CollectionCertStoreParameters(certificateList);
-      certStore = CertStore.getInstance("Collection", certStoreParameters, "BC");
+      certificates = getCertificates(bytes);
+      certStore = IndexedCertStore.getInstance(certificates);
 
     } catch (Exception ex){
       log.warn("Unable to extract cert store from provided policy root certificate", ex);
@@ -101,4 +93,51 @@ public class TslTrustCertStoreFactory {
     }
   }
 
+  /**
+   * Get the caRepository location of a TSL Trust policy root certificate
+   *
+   * @param policyRoot the TSL Trust policy root certificate
+   * @return the caRepository URL or null if the certificate has no caRepository SubjectInformationAccess extension
+   */
+  public static String getCaRepositoryLocation(X509Certificate policyRoot) {
+    SubjectInformationAccess siaExtension = CertUtils.getSIAExtension(policyRoot);
+    if (siaExtension == null){
+      return null;
+    }
+    return Arrays.stream(siaExtension.getAccessDescriptions())
+      .filter(accessDescription -> accessDescription.getAccessMethod().getId().equals(OidName.id_pkix_ad_caRepository.getOid()))
+      .map(accessDescription -> ((DERIA5String) accessDescription.getAccessLocation().getName()).getString())
+      .findFirst().orElse(null);
+  }
+
+  /**
+   * Get the certificates of a caRepository
+   *
+   * @param signedDataBytes the caRepository content as CMS SignedData
+   * @return the certificates of the SignedData
+   * @throws IOException if the content is not CMS SignedData
+   */
+  public static List<X509Certificate> getCertificates(byte[] signedDataBytes) throws IOException {
+    List<X509Certificate> certificateList = new ArrayList<>();
+    ASN1InputStream ain = new ASN1InputStream(signedDataBytes);
+    ContentInfo cmsContentInfo = ContentInfo.getInstance(ain.readObject());
+    if (cmsContentInfo == null || !cmsContentInfo.getContentType().equals(CMSObjectIdentifiers.signedData)){
+      throw new IOException("Illegal content type");
+    }
+    SignedData signedData = SignedData.getInstance(cmsContentInfo.getContent());
+    if (signedData.getCertificates() == null) {
+      return certificateList;
+    }
+    Iterator<ASN1Encodable> iterator = signedData.getCertificates().iterator();
+    while (iterator.hasNext()){
+      try {
+        byte[] certByte = iterator.next().toASN1Primitive().getEncoded("DER");
+        certificateList.add(CertUtils.getCert(new ByteArrayInputStream(certByte)));
+      } catch (Exception ex){
+        log.warn("Unable to decode certificate from signed data");
+      }
+    }
+    return certificateList;
+  }
+
 }
@@ -21,12 +21,19 @@ import lombok.Getter;
 import org.springframework.context.support.ResourceBundleMessageSource;
 import org.springframework.stereotype.Component;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
 
 @Component
 public class UIText extends ResourceBundleMessageSource{
 
+  /** The default language of the UI */
+  public static final String DEFAULT_LANGUAGE = "sv";
+  /** The languages supported by the UI */
+  public static final List<String> LANGUAGES = Arrays.asList("sv", "en");
+
   public UIText() {
     this.setBasenames(
       UiBundle.infoText.getBaseName(),
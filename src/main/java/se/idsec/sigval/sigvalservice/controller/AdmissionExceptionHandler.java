@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.controller;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import se.idsec.sigval.sigvalservice.admission.AdmissionRejectedException;
+import se.idsec.sigval.sigvalservice.admission.RequestTimeoutException;
+
+/**
+ * Returns requests rejected by admission control with HTTP status 503 and a Retry-After header, and requests that
+ * timed out while being processed with HTTP status 504
+ */
+@ControllerAdvice
+public class AdmissionExceptionHandler {
+
+  @ExceptionHandler(AdmissionRejectedException.class)
+  public ResponseEntity<String> handleAdmissionRejected(AdmissionRejectedException ex) {
+    return ResponseEntity
+      .status(HttpStatus.SERVICE_UNAVAILABLE)
+      .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+      .contentType(MediaType.TEXT_PLAIN)
+      .body(ex.getMessage());
+  }
+
+  @ExceptionHandler(RequestTimeoutException.class)
+  public ResponseEntity<String> handleRequestTimeout(RequestTimeoutException ex) {
+    return ResponseEntity
+      .status(HttpStatus.GATEWAY_TIMEOUT)
+      .contentType(MediaType.TEXT_PLAIN)
+      .body(ex.getMessage());
+  }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.idsec.sigval.sigvalservice.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads posted documents into memory.
+ *
+ * <p>When the length of the document is known, the document is read directly into an array of the exact document
+ * size. This avoids the buffer growth and the final copy of reading into a growing buffer, so a posted document only
+ * occupies its own size in memory.</p>
+ */
+public class DocumentReader {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  /**
+   * Read a document
+   *
+   * @param inputStream the input stream holding the document
+   * @param length the length of the document or -1 if the length is unknown
+   * @param maxSize the maximum allowed document size
+   * @return the bytes of the document, or null if there is no document or if the document exceeds the max size
+   * @throws IOException on errors reading the document
+   */
+  public static byte[] read(InputStream inputStream, long length, int maxSize) throws IOException {
+    if (inputStream == null || length == 0 || length > maxSize) {
+      return null;
+    }
+    return length > 0
+      ? readKnownLength(inputStream, (int) length)
+      : readUnknownLength(inputStream, maxSize);
+  }
+
+  private static byte[] readKnownLength(InputStream inputStream, int length) throws IOException {
+    byte[] documentBytes = new byte[length];
+    int offset = 0;
+    while (offset < length) {
+      int read = inputStream.read(documentBytes, offset, length - offset);
+      if (read == -1) {
+        throw new EOFException("Document ended before the expected length " + length);
+      }
+      offset += read;
+    }
+    return documentBytes;
+  }
+
+  private static byte[] readUnknownLength(InputStream inputStream, int maxSize) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(BUFFER_SIZE);
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int read;
+    while ((read = inputStream.read(buffer)) != -1) {
+      if (bos.size() + read > maxSize) {
+        return null;
+      }
+      bos.write(buffer, 0, read);
+    }
+    return bos.size() == 0 ? null : bos.toByteArray();
+  }
+
+}
@@ -49,13 +49,11 @@ public class MainController {
   @RequestMapping("/")
   public String getMainPage(Model model, @CookieValue(name = "langSelect", defaultValue = "sv") String lang){
 
-    // Clear http session
+    // Clear http session. Removing the signed document handle also removes the stored document
     httpSession.removeAttribute(SessionAttr.signedDoc.name());
     httpSession.removeAttribute(SessionAttr.docName.name());
     httpSession.removeAttribute(SessionAttr.docMimeType.name());
     httpSession.removeAttribute(SessionAttr.docType.name());
-    httpSession.removeAttribute(SessionAttr.validationResult.name());
-    httpSession.removeAttribute(SessionAttr.resultPageData.name());
     httpSession.removeAttribute(SessionAttr.uploadErrorMessage.name());
     httpSession.removeAttribute(SessionAttr.svtDocument.name());
 
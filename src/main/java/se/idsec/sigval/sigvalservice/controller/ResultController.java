@@ -27,10 +27,9 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.xml.sax.SAXException;
 import se.idsec.sigval.sigvalservice.configuration.ui.BasicUiModel;
 import se.idsec.sigval.sigvalservice.configuration.ui.UIText;
-import se.idsec.sigval.sigvalservice.result.ResultPageDataGenerator;
 import se.idsec.sigval.sigvalservice.result.data.ResultPageData;
-import se.swedenconnect.sigval.commons.data.ExtendedSigValResult;
-import se.swedenconnect.sigval.commons.data.SignedDocumentValidationResult;
+import se.idsec.sigval.sigvalservice.result.data.StoredValidationResult;
+import se.idsec.sigval.sigvalservice.store.SessionDocumentStore;
 import se.swedenconnect.sigval.commons.document.DocType;
 import se.swedenconnect.sigval.xml.utils.XMLDocumentBuilder;
 
@@ -55,59 +54,49 @@ public class ResultController {
 
   private final UIText uiText;
   private final HttpSession httpSession;
-  private final ResultPageDataGenerator resultPageDataGenerator;
   private final BasicUiModel basicUiModel;
+  private final SessionDocumentStore sessionDocumentStore;
 
-
-  public ResultController(UIText uiText, HttpSession httpSession, BasicUiModel basicUiModel, ResultPageDataGenerator resultPageDataGenerator) {
+  public ResultController(UIText uiText, HttpSession httpSession, BasicUiModel basicUiModel,
+    SessionDocumentStore sessionDocumentStore) {
     this.uiText = uiText;
     this.httpSession = httpSession;
     this.basicUiModel = basicUiModel;
-    this.resultPageDataGenerator = resultPageDataGenerator;
+    this.sessionDocumentStore = sessionDocumentStore;
   }
 
   @RequestMapping("/result")
   public String getResultPage(Model model, @CookieValue(name = "langSelect", defaultValue = "sv") String lang)
     throws ParserConfigurationException, SAXException, IOException {
 
-    byte[] signedDoc = (byte[]) httpSession.getAttribute(SessionAttr.signedDoc.name());
-    String docMimeType = (String) httpSession.getAttribute(SessionAttr.docMimeType.name());
-    String docName = (String) httpSession.getAttribute(SessionAttr.docName.name());
+    byte[] signedDoc = sessionDocumentStore.getDocument(httpSession, SessionAttr.signedDoc.name());
     DocType docType = (DocType) httpSession.getAttribute(SessionAttr.docType.name());
-    SignedDocumentValidationResult<? extends ExtendedSigValResult> validationResult =
-      (SignedDocumentValidationResult<? extends ExtendedSigValResult>) httpSession.getAttribute(SessionAttr.validationResult.name());
 
-    if (validationResult == null) return "redirect:/";
-      ResultPageData resultPageData = resultPageDataGenerator.getResultPageData(validationResult, docName, docMimeType, lang);
+    if (signedDoc == null || docType == null) return "redirect:/";
+    // The result is stored when the document is validated
+    StoredValidationResult storedResult = sessionDocumentStore.getObject(httpSession,
+      SessionAttr.validationResult.name(), StoredValidationResult.class);
+    if (storedResult == null) return "redirect:/validate";
+    ResultPageData resultPageData = storedResult.getResultPageData(lang);
 
     String xmlPrettyPrint = docType.equals(DocType.XML) ? XMLDocumentBuilder.getDocText(XMLDocumentBuilder.getDocument(signedDoc)) : null;
 
     String jsonPrettyPrint = getJsonPrettyPrint(docType, signedDoc);
     String joseCompact = docType.equals(DocType.JOSE_COMPACT) ? new String(signedDoc, StandardCharsets.UTF_8) : null;
 
-
-    List<? extends ExtendedSigValResult> signatureValidationResults = validationResult.getSignatureValidationResults();
     List<String> signedDocumentList = new ArrayList<>();
-    for (int i=0; i<signatureValidationResults.size(); i++){
-      if (docType.equals(DocType.XML)){
-        try {
-          signedDocumentList.add(XMLDocumentBuilder.getDocText(XMLDocumentBuilder.getDocument(signatureValidationResults.get(i).getSignedDocument())));
-        }
-        catch (Exception e) {
-          signedDocumentList.add("No document available");
-        }
-      } else {
-        signedDocumentList.add("inlinepdf?id="+i);
+    if (docType.equals(DocType.XML)) {
+      signedDocumentList.addAll(storedResult.getSignedDocuments());
+    } else {
+      for (int i = 0; i < storedResult.getSignedDocumentLengths().size(); i++) {
+        signedDocumentList.add("inlinepdf?id=" + i);
       }
     }
-
-    // Determine if SVT is available.
-    boolean svtAvailable = signatureValidationResults.stream().anyMatch(sigValResult -> sigValResult.getSvtJWT() == null);
+    boolean svtAvailable = storedResult.isSvtAvailable();
 
     // Set view model
     model.addAttribute("basicModel", basicUiModel);
     model.addAttribute("resultPageData", resultPageData);
-    model.addAttribute("validationResult", validationResult);
     model.addAttribute("lang", lang);
     model.addAttribute("text", uiText.getBundle(UIText.UiBundle.resultText, lang));
     model.addAttribute("docType", docType);
@@ -16,14 +16,11 @@
 
 package se.idsec.sigval.sigvalservice.controller;
 
-import com.nimbusds.jwt.SignedJWT;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.bouncycastle.util.encoders.Base64;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -32,18 +29,22 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import org.w3c.dom.Document;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import se.idsec.sigval.sigvalservice.admission.AdmissionControl;
+import se.idsec.sigval.sigvalservice.admission.AdmissionRejectedException;
+import se.idsec.sigval.sigvalservice.admission.AsyncRequestExecutor;
+import se.idsec.sigval.sigvalservice.configuration.FileSize;
 import se.idsec.sigval.sigvalservice.configuration.SignatureValidatorProvider;
+import se.idsec.sigval.sigvalservice.configuration.ValidatorSet;
+import se.idsec.sigval.sigvalservice.store.SessionDocumentStore;
+import se.idsec.sigval.sigvalservice.svt.SvtIssuanceService;
 import se.swedenconnect.sigval.commons.document.DocType;
 import se.swedenconnect.sigval.commons.svt.SVTExtendpolicy;
-import se.swedenconnect.sigval.pdf.timestamp.issue.impl.PDFDocTimstampProcessor;
-import se.swedenconnect.sigval.svt.issuer.SVTModel;
-import se.swedenconnect.sigval.xml.utils.XMLDocumentBuilder;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 @RestController
 @Slf4j
@@ -51,41 +52,50 @@ public class SVTIssuanceController {
 
   @Value("${sigval-service.svt.issuer-enabled}") boolean enableSvtIssuer;
   @Value("${sigval-service.svt.default-replace}") boolean defaultReplaceSvt;
-  @Value("${sigval-service.ui.downloaded-svt-suffix}") String svtSuffix;
 
   private final HttpSession httpSession;
   private final SignatureValidatorProvider signatureValidatorProvider;
-  private final SVTModel svtModel;
+  private final SvtIssuanceService svtIssuanceService;
+  private final SessionDocumentStore sessionDocumentStore;
+  private final FileSize maxFileSize;
+  private final AdmissionControl admissionControl;
+  private final AsyncRequestExecutor asyncRequestExecutor;
 
   @Autowired
   public SVTIssuanceController(HttpSession httpSession,
-    SignatureValidatorProvider signatureValidatorProvider, SVTModel svtModel) {
+    SignatureValidatorProvider signatureValidatorProvider, SvtIssuanceService svtIssuanceService,
+    SessionDocumentStore sessionDocumentStore, FileSize maxFileSize,
+    AdmissionControl admissionControl, AsyncRequestExecutor asyncRequestExecutor) {
     this.httpSession = httpSession;
+    this.maxFileSize = maxFileSize;
     this.signatureValidatorProvider = signatureValidatorProvider;
-    this.svtModel = svtModel;
+    this.svtIssuanceService = svtIssuanceService;
+    this.sessionDocumentStore = sessionDocumentStore;
+    this.admissionControl = admissionControl;
+    this.asyncRequestExecutor = asyncRequestExecutor;
   }
 
   @RequestMapping("/issue-svt-internal")
-  public ResponseEntity<InputStreamResource> issueSvtInternal(
+  public DeferredResult<ResponseEntity<StreamingResponseBody>> issueSvtInternal(
     @RequestParam(name = "replace", required = false) String replace) throws IOException, RuntimeException {
-    byte[] documentBytes = (byte[]) httpSession.getAttribute(SessionAttr.signedDoc.name());
+    byte[] documentBytes = sessionDocumentStore.getDocument(httpSession, SessionAttr.signedDoc.name());
     String name = (String) httpSession.getAttribute(SessionAttr.docName.name());
-    return issueSvtFunction(documentBytes, name, replace);
+    return asyncRequestExecutor.execute(AdmissionControl.SVT, () -> issueSvtFunction(documentBytes, name, replace));
   }
 
   @RequestMapping(value = "/issue-svt", method = RequestMethod.POST)
-  public ResponseEntity<InputStreamResource> issueSvtApi(
-    InputStream postedDocumentStream,
+  public DeferredResult<ResponseEntity<StreamingResponseBody>> issueSvtApi(
+    HttpServletRequest request,
     @RequestParam(name = "name", required = false) String name,
     @RequestParam(name = "replace", required = false) String replace) throws IOException, RuntimeException {
-    byte[] documentBytes = postedDocumentStream == null
-      ? null
-      : IOUtils.toByteArray(postedDocumentStream);
-    return issueSvtFunction(documentBytes, name, replace);
+    byte[] documentBytes = DocumentReader.read(request.getInputStream(), request.getContentLengthLong(),
+      maxFileSize.getIntValue());
+    return asyncRequestExecutor.execute(AdmissionControl.SVT, () -> issueSvtFunction(documentBytes, name, replace));
   }
 
-  public ResponseEntity<InputStreamResource> issueSvtFunction(byte[] documentBytes,
-    String name, String replace) throws IOException, RuntimeException {
+  @SuppressWarnings("try")
+  public ResponseEntity<StreamingResponseBody> issueSvtFunction(byte[] documentBytes,
+    String name, String replace) throws IOException, RuntimeException, AdmissionRejectedException {
 
     if (documentBytes == null) {
       log.debug("Bad request - no document provided in the request");
@@ -103,67 +113,31 @@ public class SVTIssuanceController {
         : SVTExtendpolicy.EXTEND;
     }
 
-    byte[] svtEnhancedDocument;
-    MediaType mediaType;
+    // Use the same validator set for the whole SVT issuance
+    ValidatorSet validators = signatureValidatorProvider.getValidators();
 
-    // Generate report based on document type
     DocType docType = DocType.getDocType(documentBytes);
-    switch (docType) {
-    case XML:
-      try {
-        Document xmlDocument = XMLDocumentBuilder.getDocument(documentBytes);
-        svtEnhancedDocument = signatureValidatorProvider.getXmlDocumentSVTIssuer().issueSvt(xmlDocument, svtModel, svtExtendpolicy);
-        mediaType = MediaType.TEXT_XML;
-      }
-      catch (Exception ex) {
-        log.error("Error issuing XML SVT token {}", ex.getMessage());
-        throw new IOException(ex.getMessage());
-      }
-      break;
-    case PDF:
-      try {
-        SignedJWT signedSvtJWT = signatureValidatorProvider.getPdfsvtSigValClaimsIssuer().getSignedSvtJWT(documentBytes, svtModel);
-        PDFDocTimstampProcessor.Result result = PDFDocTimstampProcessor.createSVTSealedPDF(
-          documentBytes, signedSvtJWT.serialize(), signatureValidatorProvider.getSvtTsSigner());
-        svtEnhancedDocument = result.getDocument();
-        mediaType = MediaType.APPLICATION_PDF;
-      }
-      catch (Exception ex) {
-        log.error("Error issuing PDF SVT token {}", ex.getMessage());
-        throw new IOException(ex.getMessage());
-      }
-      break;
-    case JOSE:
-    case JOSE_COMPACT:
-      try {
-        svtEnhancedDocument = signatureValidatorProvider.getJoseDocumentSVTIssuer().issueSvt(documentBytes, svtModel, svtExtendpolicy);
-        mediaType = MediaType.APPLICATION_JSON;
-      }
-      catch (Exception ex) {
-        log.error("Error issuing JOSE SVT token {}", ex.getMessage());
-        throw new IOException(ex.getMessage());
-      }
-      break;
-    default:
-      log.debug("Bad request - data type not recognized");
-      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    SvtIssuanceService.IssuedSvtDocument issuedSvtDocument;
+    try (AdmissionControl.Permit permit = admissionControl.admit(AdmissionControl.SVT, docType,
+      documentBytes.length)) {
+      issuedSvtDocument = svtIssuanceService.issueSvt(documentBytes, docType, svtExtendpolicy, validators);
     }
-
-    if (svtEnhancedDocument == null) {
-      throw new IOException("No SVT document was created");
+    if (issuedSvtDocument == null) {
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
     }
+    MediaType mediaType = issuedSvtDocument.getMediaType();
 
     // Get filename
     name = StringUtils.isBlank(name) ? "svt_enhanced_signed_document" : name;
     name = name.replaceAll("\\s*,\\s*", "-");
-    String fileName = getSvtFileName(name, mediaType);
+    String fileName = svtIssuanceService.getSvtFileName(name, mediaType);
 
     return ResponseEntity
       .ok()
       .headers(getHeaders(fileName))
-      .contentLength(svtEnhancedDocument.length)
+      .contentLength(issuedSvtDocument.getLength())
       .contentType(mediaType)
-      .body(new InputStreamResource(new ByteArrayInputStream(svtEnhancedDocument)));
+      .body(issuedSvtDocument::writeTo);
   }
 
   private HttpHeaders getHeaders(String fileName) {
@@ -175,28 +149,4 @@ public class SVTIssuanceController {
     return headers;
   }
 
-  private String getSvtFileName(String fileName, MediaType tbsType) {
-
-    if (tbsType.equals(MediaType.TEXT_XML)) {
-      return fileName.toLowerCase().endsWith(".xml")
-        ? stripFileName(fileName, 4) + svtSuffix + ".xml"
-        : fileName + svtSuffix + ".xml";
-    }
-    if (tbsType.equals(MediaType.APPLICATION_PDF)) {
-      return fileName.toLowerCase().endsWith(".pdf")
-        ? stripFileName(fileName, 4) + svtSuffix + ".pdf"
-        : fileName + svtSuffix + ".pdf";
-    }
-    if (tbsType.equals(MediaType.APPLICATION_JSON)) {
-      return fileName.toLowerCase().endsWith(".json")
-        ? stripFileName(fileName, 5) + svtSuffix + ".json"
-        : fileName + svtSuffix + ".json";
-    }
-    return fileName;
-  }
-
-  private String stripFileName(String fileName, int len) {
-    return fileName.substring(0, fileName.length() - len);
-  }
-
 }
@@ -17,5 +17,5 @@
 package se.idsec.sigval.sigvalservice.controller;
 
 public enum SessionAttr {
-  signedDoc, docName, docType, docMimeType, validationResult, resultPageData, uploadErrorMessage, svtDocument;
+  signedDoc, docName, docType, docMimeType, uploadErrorMessage, svtDocument, validationResult;
 }
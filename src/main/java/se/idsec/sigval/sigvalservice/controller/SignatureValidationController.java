@@ -19,78 +19,87 @@ package se.idsec.sigval.sigvalservice.controller;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
-import org.springframework.web.bind.annotation.CookieValue;
 import org.springframework.web.bind.annotation.RequestMapping;
-import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
-import se.swedenconnect.sigval.commons.data.ExtendedSigValResult;
-import se.swedenconnect.sigval.commons.data.SignedDocumentValidationResult;
+import org.springframework.web.context.request.async.DeferredResult;
 import se.swedenconnect.sigval.commons.document.DocType;
-import se.swedenconnect.sigval.jose.verify.JOSESignedDocumentValidator;
-import se.swedenconnect.sigval.pdf.verify.ExtendedPDFSignatureValidator;
-import se.idsec.sigval.sigvalservice.configuration.SignatureValidatorProvider;
+import se.idsec.sigval.sigvalservice.admission.AdmissionControl;
+import se.idsec.sigval.sigvalservice.admission.AsyncRequestExecutor;
+import se.idsec.sigval.sigvalservice.configuration.ui.UIText;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
 import se.idsec.sigval.sigvalservice.result.ResultPageDataGenerator;
-import se.idsec.sigval.sigvalservice.result.data.ResultPageData;
-import se.swedenconnect.sigval.xml.utils.XMLDocumentBuilder;
-import se.swedenconnect.sigval.xml.verify.ExtendedXMLSignedDocumentValidator;
+import se.idsec.sigval.sigvalservice.result.data.StoredValidationResult;
+import se.idsec.sigval.sigvalservice.store.SessionDocumentStore;
+import se.idsec.sigval.sigvalservice.validation.DocumentValidationService;
+import se.swedenconnect.sigval.commons.data.ExtendedSigValResult;
+import se.swedenconnect.sigval.commons.data.SignedDocumentValidationResult;
 
 import javax.servlet.http.HttpSession;
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.IOException;
-import java.security.SignatureException;
 
 @Slf4j
 @Controller
 public class SignatureValidationController {
 
   private final HttpSession httpSession;
-  private final SignatureValidatorProvider signatureValidatorProvider;
+  private final DocumentValidationService documentValidationService;
+  private final SessionDocumentStore sessionDocumentStore;
+  private final AdmissionControl admissionControl;
+  private final AsyncRequestExecutor asyncRequestExecutor;
   private final ResultPageDataGenerator resultPageDataGenerator;
+  private final ValidationMetrics validationMetrics;
 
   @Autowired
   public SignatureValidationController(HttpSession httpSession,
-    SignatureValidatorProvider signatureValidatorProvider,
-    ResultPageDataGenerator resultPageDataGenerator) {
+    DocumentValidationService documentValidationService,
+    SessionDocumentStore sessionDocumentStore, AdmissionControl admissionControl,
+    AsyncRequestExecutor asyncRequestExecutor, ResultPageDataGenerator resultPageDataGenerator,
+    ValidationMetrics validationMetrics) {
     this.httpSession = httpSession;
-    this.signatureValidatorProvider = signatureValidatorProvider;
+    this.documentValidationService = documentValidationService;
+    this.sessionDocumentStore = sessionDocumentStore;
+    this.admissionControl = admissionControl;
+    this.asyncRequestExecutor = asyncRequestExecutor;
     this.resultPageDataGenerator = resultPageDataGenerator;
+    this.validationMetrics = validationMetrics;
   }
 
+  /**
+   * Validates the uploaded document and stores a compact validation result that is displayed by the result page
+   *
+   * @param session the HTTP session of the request. This is the session object itself, which unlike the injected
+   *   session proxy can be used after the request thread is released
+   * @return the view to redirect to when the document is validated
+   * @throws IOException on errors reading the uploaded document
+   */
+  @SuppressWarnings("try")
   @RequestMapping("/validate")
-  public String validateUploadedFile(@CookieValue(name = "langSelect", defaultValue = "sv") String lang)
-    throws ParserConfigurationException, SignatureException, SAXException, IOException {
+  public DeferredResult<String> validateUploadedFile(HttpSession session) throws IOException {
 
-    byte[] signedDoc = (byte[]) httpSession.getAttribute(SessionAttr.signedDoc.name());
-    String docMimeType = (String) httpSession.getAttribute(SessionAttr.docMimeType.name());
-    String docName = (String) httpSession.getAttribute(SessionAttr.docName.name());
-
-    SignedDocumentValidationResult<? extends ExtendedSigValResult> validationResult;
+    byte[] signedDoc = sessionDocumentStore.getDocument(httpSession, SessionAttr.signedDoc.name());
+    if (signedDoc == null) return asyncRequestExecutor.completed("redirect:/");
 
     DocType docType = DocType.getDocType(signedDoc);
-    switch (docType){
-    case XML:
-      ExtendedXMLSignedDocumentValidator xmlValidator = signatureValidatorProvider.getXmlSignedDocumentValidator();
-      Document document = XMLDocumentBuilder.getDocument(signedDoc);
-      validationResult = xmlValidator.extendedResultValidation(
-        document);
-      break;
-    case PDF:
-      ExtendedPDFSignatureValidator pdfValidator = signatureValidatorProvider.getPdfSignatureValidator();
-      validationResult = pdfValidator.extendedResultValidation(signedDoc);
-      break;
-    case JOSE:
-    case JOSE_COMPACT:
-      JOSESignedDocumentValidator joseSignedDocumentValidator = signatureValidatorProvider.getJoseSignedDocumentValidator();
-      validationResult = joseSignedDocumentValidator.extendedResultValidation(signedDoc);
-      break;
-    default:
-      throw new IOException("Unable to handle uploaded document - illegal document content");
-    }
-    ResultPageData resultPageData = resultPageDataGenerator.getResultPageData(validationResult, docName, docMimeType, lang);
+    String docName = (String) httpSession.getAttribute(SessionAttr.docName.name());
+    String docMimeType = (String) httpSession.getAttribute(SessionAttr.docMimeType.name());
     httpSession.setAttribute(SessionAttr.docType.name(), docType);
-    httpSession.setAttribute(SessionAttr.validationResult.name(), validationResult);
-    httpSession.setAttribute(SessionAttr.resultPageData.name(), resultPageData);
+    httpSession.removeAttribute(SessionAttr.validationResult.name());
+    Object documentHandle = session.getAttribute(SessionAttr.signedDoc.name());
 
-    return "redirect:/result";
+    return asyncRequestExecutor.execute(AdmissionControl.VALIDATE, () -> {
+      SignedDocumentValidationResult<? extends ExtendedSigValResult> validationResult;
+      try (AdmissionControl.Permit permit = admissionControl.admit(AdmissionControl.VALIDATE, docType,
+        signedDoc.length)) {
+        validationResult = documentValidationService.validate(signedDoc, docType);
+      }
+      StoredValidationResult storedResult = resultPageDataGenerator.getStoredValidationResult(validationResult,
+        signedDoc, docType, docName, docMimeType);
+      // Results are counted once per validation and not each time the result page is displayed
+      validationMetrics.countResult(storedResult.getResultPageData(UIText.DEFAULT_LANGUAGE));
+      // The result is not stored if another document was uploaded during validation
+      if (session.getAttribute(SessionAttr.signedDoc.name()) == documentHandle) {
+        sessionDocumentStore.setObject(session, SessionAttr.validationResult.name(), storedResult);
+      }
+      return "redirect:/result";
+    });
   }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.controller;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import se.idsec.sigval.sigvalservice.svt.SvtJobRequest;
+import se.idsec.sigval.sigvalservice.svt.SvtJobService;
+import se.idsec.sigval.sigvalservice.svt.SvtJobStatus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * REST API for asynchronous SVT issuance jobs.
+ *
+ * <p>A job issues SVT for all documents of an uploaded ZIP file or of a set of paths on the local file system of the
+ * service. The job is processed in the background and the client polls the status of the job and fetches the SVT
+ * enhanced documents when the job is completed.</p>
+ */
+@Slf4j
+@RestController
+public class SvtJobController {
+
+  private static final String JOBS_PATH = "/api/v1/svt/jobs";
+
+  private final SvtJobService svtJobService;
+
+  @Autowired
+  public SvtJobController(SvtJobService svtJobService) {
+    this.svtJobService = svtJobService;
+  }
+
+  /**
+   * Submits a job for the documents of a ZIP file
+   */
+  @PostMapping(value = JOBS_PATH, consumes = "application/zip", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<SvtJobStatus> submitZipJob(
+    InputStream postedZipStream,
+    @RequestParam(name = "replace", required = false) Boolean replace
+  ) throws IOException {
+    return getAcceptedResponse(svtJobService.submitZip(postedZipStream, replace));
+  }
+
+  /**
+   * Submits a job for documents on the local file system of the service
+   */
+  @PostMapping(value = JOBS_PATH, consumes = MediaType.APPLICATION_JSON_VALUE,
+    produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<SvtJobStatus> submitLocalJob(@RequestBody SvtJobRequest jobRequest) throws IOException {
+    return getAcceptedResponse(svtJobService.submitLocal(jobRequest));
+  }
+
+  @GetMapping(value = JOBS_PATH, produces = MediaType.APPLICATION_JSON_VALUE)
+  public List<SvtJobStatus> getJobs() {
+    return svtJobService.getStatusList();
+  }
+
+  @GetMapping(value = JOBS_PATH + "/{jobId}", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<SvtJobStatus> getJob(@PathVariable("jobId") String jobId) {
+    SvtJobStatus status = svtJobService.getStatus(jobId);
+    return status == null
+      ? new ResponseEntity<>(HttpStatus.NOT_FOUND)
+      : ResponseEntity.ok(status);
+  }
+
+  /**
+   * Returns the result of each processed document of a job as one line of JSON
+   */
+  @GetMapping(value = JOBS_PATH + "/{jobId}/items", produces = ValidationApiController.NDJSON_MEDIA_TYPE)
+  public ResponseEntity<StreamingResponseBody> getJobItems(@PathVariable("jobId") String jobId) {
+    if (svtJobService.getStatus(jobId) == null) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    return ResponseEntity
+      .ok()
+      .contentType(MediaType.parseMediaType(ValidationApiController.NDJSON_MEDIA_TYPE))
+      .body(outputStream -> svtJobService.writeItems(jobId, outputStream));
+  }
+
+  /**
+   * Returns the SVT enhanced document of one processed document of a job
+   */
+  @GetMapping(value = JOBS_PATH + "/{jobId}/items/{index}")
+  public ResponseEntity<FileSystemResource> getJobItemOutput(@PathVariable("jobId") String jobId,
+    @PathVariable("index") long index) throws IOException {
+    Path output = svtJobService.getItemOutput(jobId, index);
+    if (output == null) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    return ResponseEntity
+      .ok()
+      .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + output.getFileName())
+      .contentType(MediaType.APPLICATION_OCTET_STREAM)
+      .body(new FileSystemResource(output));
+  }
+
+  /**
+   * Returns the SVT enhanced documents of a job as a ZIP file
+   */
+  @GetMapping(value = JOBS_PATH + "/{jobId}/output", produces = "application/zip")
+  public ResponseEntity<StreamingResponseBody> getJobOutput(@PathVariable("jobId") String jobId) {
+    if (svtJobService.getStatus(jobId) == null) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    return ResponseEntity
+      .ok()
+      .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=svt-job-" + jobId + ".zip")
+      .contentType(MediaType.parseMediaType("application/zip"))
+      .body(outputStream -> svtJobService.writeOutputZip(jobId, outputStream));
+  }
+
+  /**
+   * Cancels a job and deletes its stored documents
+   */
+  @DeleteMapping(JOBS_PATH + "/{jobId}")
+  public ResponseEntity<Void> deleteJob(@PathVariable("jobId") String jobId) {
+    return svtJobService.delete(jobId)
+      ? new ResponseEntity<>(HttpStatus.NO_CONTENT)
+      : new ResponseEntity<>(HttpStatus.NOT_FOUND);
+  }
+
+  private ResponseEntity<SvtJobStatus> getAcceptedResponse(SvtJobStatus status) {
+    return ResponseEntity
+      .accepted()
+      .location(ServletUriComponentsBuilder.fromCurrentRequest()
+        .path("/{jobId}")
+        .buildAndExpand(status.getJobId())
+        .toUri())
+      .body(status);
+  }
+
+  /**
+   * The job API is not available when SVT jobs are not enabled
+   */
+  @ExceptionHandler(IllegalStateException.class)
+  public ResponseEntity<Map<String, String>> handleNotEnabled(IllegalStateException ex) {
+    log.debug("SVT job API request rejected - {}", ex.getMessage());
+    return ResponseEntity
+      .status(HttpStatus.NOT_FOUND)
+      .contentType(MediaType.APPLICATION_JSON)
+      .body(Collections.singletonMap("message", ex.getMessage()));
+  }
+
+  @ExceptionHandler({ IOException.class, RuntimeException.class })
+  public ResponseEntity<Map<String, String>> handleException(Exception ex) {
+    log.debug("Bad SVT job API request - {}", ex.getMessage());
+    return ResponseEntity
+      .badRequest()
+      .contentType(MediaType.APPLICATION_JSON)
+      .body(Collections.singletonMap("message", ex.getMessage()));
+  }
+
+}
@@ -16,23 +16,24 @@
 
 package se.idsec.sigval.sigvalservice.controller;
 
-import com.nimbusds.jose.JWSObject;
-import com.nimbusds.jose.JWSObjectJSON;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.log4j.Log4j2;
-import org.apache.pdfbox.pdmodel.PDDocument;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
-import se.swedenconnect.sigval.commons.data.ExtendedSigValResult;
-import se.swedenconnect.sigval.commons.data.SignedDocumentValidationResult;
 import se.swedenconnect.sigval.commons.document.DocType;
 import se.idsec.sigval.sigvalservice.configuration.FileSize;
-import se.swedenconnect.sigval.xml.utils.XMLDocumentBuilder;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.idsec.sigval.sigvalservice.result.data.StoredValidationResult;
+import se.idsec.sigval.sigvalservice.store.LeadingPartResource;
+import se.idsec.sigval.sigvalservice.store.SessionDocumentStore;
+import se.idsec.sigval.sigvalservice.validation.DocumentStructureChecker;
 
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.text.ParseException;
 import java.util.List;
 
 @Log4j2
@@ -41,11 +42,16 @@ public class UploadController {
 
   private final HttpSession httpSession;
   private final FileSize maxFileSize;
+  private final SessionDocumentStore sessionDocumentStore;
+  private final ValidationMetrics validationMetrics;
 
   @Autowired
-  public UploadController(HttpSession httpSession, FileSize maxFileSize) {
+  public UploadController(HttpSession httpSession, FileSize maxFileSize, SessionDocumentStore sessionDocumentStore,
+    ValidationMetrics validationMetrics) {
     this.httpSession = httpSession;
     this.maxFileSize = maxFileSize;
+    this.sessionDocumentStore = sessionDocumentStore;
+    this.validationMetrics = validationMetrics;
   }
 
   @PostMapping("/sigupload")
@@ -57,42 +63,75 @@ public class UploadController {
       throw new IllegalArgumentException("Too large upload file to sign");
     }
 
-    byte[] signedDoc = file.getBytes();
-    checkFileValidity(file.getBytes());
-
-    httpSession.setAttribute(SessionAttr.signedDoc.name(), signedDoc);
-    httpSession.setAttribute(SessionAttr.docMimeType.name(), file.getContentType());
-    httpSession.setAttribute(SessionAttr.docName.name(), file.getOriginalFilename());
+    Timer.Sample sample = validationMetrics.start();
+    DocType docType = null;
+    String outcome = "rejected";
+    try {
+      // The multipart file is spooled to disk by the container. Read it into memory once
+      byte[] signedDoc = file.getBytes();
+      docType = DocType.getDocType(signedDoc);
+      checkFileValidity(signedDoc, docType);
+
+      sessionDocumentStore.setDocument(httpSession, SessionAttr.signedDoc.name(), signedDoc);
+      httpSession.removeAttribute(SessionAttr.validationResult.name());
+      httpSession.setAttribute(SessionAttr.docMimeType.name(), file.getContentType());
+      httpSession.setAttribute(SessionAttr.docName.name(), file.getOriginalFilename());
+      outcome = "accepted";
+    }
+    finally {
+      validationMetrics.stop(sample, ValidationMetrics.UPLOAD,
+        "doctype", ValidationMetrics.docTypeTag(docType), "outcome", outcome);
+    }
     return "[]";
   }
 
   /**
-   * Just returns the bytes of a PDF document for display on the web page
+   * Just returns a PDF document for display on the web page. The document is written from the document store, and
+   * HTTP Range requests are supported so that the PDF viewer can fetch parts of the document as they are displayed.
    * @param id indicator of id of the signed document or null to get the uploaded validated document
-   * @return the bytes of the referenced document
+   * @return the referenced document
    * @throws IOException on failure to obtain the requested document
    */
   @RequestMapping(value = "/inlinepdf", method = RequestMethod.GET, produces = "application/pdf")
-  public byte[] getInlinePdfDocument(
+  public ResponseEntity<Resource> getInlinePdfDocument(
     @RequestParam(value = "id", required = false) String id) throws IOException{
-    byte[] docBytes = null;
+    String docMimeType = (String) httpSession.getAttribute(SessionAttr.docMimeType.name());
+    if (docMimeType == null || !docMimeType.equalsIgnoreCase("application/pdf")) {
+      throw new IOException("Target PDF file is not available");
+    }
+
+    Resource document;
     if (id == null) {
-      docBytes = (byte[]) httpSession.getAttribute(SessionAttr.signedDoc.name());
+      document = sessionDocumentStore.getDocumentResource(httpSession, SessionAttr.signedDoc.name());
     }
     else {
-      try {
-        docBytes =((SignedDocumentValidationResult<? extends ExtendedSigValResult>) httpSession.getAttribute(SessionAttr.validationResult.name()))
-          .getSignatureValidationResults().get(Integer.valueOf(id)).getSignedDocument();
-      } catch (Exception ex){
-        log.info("unable to locate the signed PDF document bytes of signature with id: {}", id);
-      }
+      // The signed revision of the signature is the leading part of the document with the length stored at validation
+      Long length = getSignedRevisionLength(id);
+      Resource storedDocument = sessionDocumentStore.getDocumentResource(httpSession, SessionAttr.signedDoc.name());
+      document = length == null || storedDocument == null ? null : new LeadingPartResource(storedDocument, length);
     }
-    String docMimeType = (String) httpSession.getAttribute(SessionAttr.docMimeType.name());
 
-    if (docBytes == null || !docMimeType.equalsIgnoreCase("application/pdf")) {
+    if (document == null) {
       throw new IOException("Target PDF file is not available");
     }
-    return docBytes;
+    return ResponseEntity
+      .ok()
+      .contentType(MediaType.APPLICATION_PDF)
+      .body(document);
+  }
+
+  private Long getSignedRevisionLength(String id) throws IOException {
+    StoredValidationResult storedResult = sessionDocumentStore.getObject(httpSession,
+      SessionAttr.validationResult.name(), StoredValidationResult.class);
+    List<Long> lengths = storedResult == null ? null : storedResult.getSignedDocumentLengths();
+    try {
+      int index = Integer.parseInt(id);
+      return lengths == null || index < 0 || index >= lengths.size() ? null : lengths.get(index);
+    }
+    catch (NumberFormatException ex) {
+      log.info("unable to locate the signed PDF document bytes of signature with id: {}", id);
+      return null;
+    }
   }
 
   @ExceptionHandler({IOException.class, RuntimeException.class})
@@ -101,73 +140,15 @@ public class UploadController {
   }
 
   /**
-   * Determines if the uploaded file is a valid document
+   * Determines if the uploaded file is a valid document. This is a structural check only. The document is fully parsed
+   * once when it is validated.
    *
    * @param bytes bytes of the file
+   * @param docType document type of the file
    * @throws IOException on errors parsing the uploaded document
    */
-  private void checkFileValidity(byte[] bytes) throws IOException {
-
-    DocType docType = DocType.getDocType(bytes);
-    switch (docType) {
-    case XML:
-      checkXmlFileValidity(bytes);
-      //No further checks on xml
-      break;
-    case PDF:
-      checkPdfFileValidity(bytes);
-      break;
-    case JOSE:
-    case JOSE_COMPACT:
-      checkJoseValidity(bytes);
-      break;
-    default:
-      log.warn("Upload rejected - Unrecognized file content");
-      throw new IllegalArgumentException("Upload rejected - Illegal file content");
-    }
-  }
-
-  private void checkJoseValidity(byte[] bytes) throws IOException {
-    try {
-      JWSObject.parse(new String(bytes, StandardCharsets.UTF_8));
-      log.debug("Found compact serialized JWS");
-      return;
-    }
-    catch (ParseException e) {
-      log.debug("No compact serialized JWS signature");
-    }
-
-    try {
-      JWSObjectJSON.parse(new String(bytes, StandardCharsets.UTF_8));
-      log.debug("Found JSON serialized JWS");
-      return;
-    }
-    catch (ParseException e) {
-      log.debug("No JSON serialized JWS signature");
-    }
-    log.warn("Error processing the uploaded JOSE document");
-    throw new IOException("Error parsing uploaded JOSE document");
-  }
-
-  private void checkXmlFileValidity(byte[] bytes) throws IOException{
-    try {
-      XMLDocumentBuilder.getDocument(bytes);
-    } catch (Exception ex) {
-      log.warn("Error processing the uploaded XML document");
-      throw new IOException("Error parsing uploaded XML document (" + ex.getMessage() + ").");
-    }
-  }
-
-  private void checkPdfFileValidity(byte[] bytes) throws IOException {
-    try {
-      PDDocument document = PDDocument.load(bytes);
-      // We are not modifying the document, so we close it directly to avoid memory leak
-      document.close();
-    }
-    catch (Exception ex) {
-      log.warn("Error processing the uploaded PDF document");
-      throw new IOException("Error parsing uploaded PDF document (" + ex.getMessage() + ").");
-    }
+  private void checkFileValidity(byte[] bytes, DocType docType) throws IOException {
+    DocumentStructureChecker.check(bytes, docType);
   }
 
 }
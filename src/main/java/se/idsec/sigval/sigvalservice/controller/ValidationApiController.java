@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.multipart.MultipartFile;
+import se.idsec.sigval.sigvalservice.admission.AdmissionControl;
+import se.idsec.sigval.sigvalservice.admission.AdmissionRejectedException;
+import se.idsec.sigval.sigvalservice.admission.AsyncRequestExecutor;
+import se.idsec.sigval.sigvalservice.admission.RequestTimeoutException;
+import se.idsec.sigval.sigvalservice.configuration.FileSize;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.idsec.sigval.sigvalservice.result.ResultPageDataGenerator;
+import se.idsec.sigval.sigvalservice.result.data.ResultPageData;
+import se.idsec.sigval.sigvalservice.validation.BatchValidationService;
+import se.idsec.sigval.sigvalservice.validation.DocumentValidationService;
+import se.swedenconnect.sigval.commons.data.ExtendedSigValResult;
+import se.swedenconnect.sigval.commons.data.SignedDocumentValidationResult;
+import se.swedenconnect.sigval.commons.document.DocType;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Stateless REST API for signature validation returning the validation result as JSON.
+ *
+ * <p>This API does not use the HTTP session. The document is validated and the result is returned in a single request
+ * without creating a signed validation report. Batches of documents are validated in parallel and the results are
+ * streamed as newline delimited JSON.</p>
+ */
+@Slf4j
+@RestController
+public class ValidationApiController {
+
+  public static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
+  private final DocumentValidationService documentValidationService;
+  private final ResultPageDataGenerator resultPageDataGenerator;
+  private final BatchValidationService batchValidationService;
+  private final ObjectMapper objectMapper;
+  private final FileSize maxFileSize;
+  private final ValidationMetrics validationMetrics;
+  private final AdmissionControl admissionControl;
+  private final AsyncRequestExecutor asyncRequestExecutor;
+
+  @Value("${sigval-service.batch.max-documents:10000}") int maxBatchDocuments;
+  @Value("${sigval-service.batch.timeout-seconds:3600}") long batchTimeoutSeconds;
+
+  @Autowired
+  public ValidationApiController(DocumentValidationService documentValidationService,
+    ResultPageDataGenerator resultPageDataGenerator, BatchValidationService batchValidationService,
+    ObjectMapper objectMapper, FileSize maxFileSize, ValidationMetrics validationMetrics,
+    AdmissionControl admissionControl, AsyncRequestExecutor asyncRequestExecutor) {
+    this.documentValidationService = documentValidationService;
+    this.resultPageDataGenerator = resultPageDataGenerator;
+    this.batchValidationService = batchValidationService;
+    this.objectMapper = objectMapper;
+    this.maxFileSize = maxFileSize;
+    this.validationMetrics = validationMetrics;
+    this.admissionControl = admissionControl;
+    this.asyncRequestExecutor = asyncRequestExecutor;
+  }
+
+  @PostMapping(value = "/api/v1/validate", produces = MediaType.APPLICATION_JSON_VALUE)
+  public DeferredResult<ResponseEntity<ResultPageData>> validate(
+    HttpServletRequest request,
+    @RequestHeader(name = HttpHeaders.CONTENT_TYPE, required = false) String contentType,
+    @RequestParam(name = "name", required = false) String name,
+    @RequestParam(name = "lang", defaultValue = "en") String lang
+  ) throws IOException {
+
+    byte[] documentBytes = DocumentReader.read(request.getInputStream(), request.getContentLengthLong(),
+      maxFileSize.getIntValue());
+    if (documentBytes == null) {
+      throw new IllegalArgumentException("No document provided in the request or document was too large");
+    }
+    return asyncRequestExecutor.execute(AdmissionControl.VALIDATE,
+      () -> getValidationResponse(documentBytes, contentType, name, lang));
+  }
+
+  @SuppressWarnings("try")
+  private ResponseEntity<ResultPageData> getValidationResponse(byte[] documentBytes, String contentType, String name,
+    String lang) throws IOException, AdmissionRejectedException {
+    DocType docType = DocType.getDocType(documentBytes);
+    ResultPageData resultPageData;
+    try (AdmissionControl.Permit permit = admissionControl.admit(AdmissionControl.VALIDATE, docType,
+      documentBytes.length)) {
+      SignedDocumentValidationResult<? extends ExtendedSigValResult> validationResult =
+        documentValidationService.validate(documentBytes, docType);
+      resultPageData = resultPageDataGenerator.getResultPageData(validationResult, name,
+        getDocumentType(contentType, docType), lang);
+    }
+    validationMetrics.countResult(resultPageData);
+    return ResponseEntity.ok(resultPageData);
+  }
+
+  /**
+   * Validates the documents of a ZIP file. The result of each document is returned as one line of JSON as soon as it is
+   * available.
+   */
+  @PostMapping(value = "/api/v1/validate/batch", consumes = "application/zip", produces = NDJSON_MEDIA_TYPE)
+  public WebAsyncTask<Void> validateZipBatch(
+    InputStream postedZipStream,
+    HttpServletResponse response,
+    @RequestParam(name = "lang", defaultValue = "en") String lang
+  ) {
+    ZipInputStream zipInputStream = new ZipInputStream(postedZipStream);
+    return getBatchTask(getZipDocumentSource(zipInputStream), lang, response);
+  }
+
+  /**
+   * Validates the documents of a multipart request. The result of each document is returned as one line of JSON as
+   * soon as it is available.
+   */
+  @PostMapping(value = "/api/v1/validate/batch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE, produces = NDJSON_MEDIA_TYPE)
+  public WebAsyncTask<Void> validateMultipartBatch(
+    @RequestParam("documents") List<MultipartFile> documents,
+    HttpServletResponse response,
+    @RequestParam(name = "lang", defaultValue = "en") String lang
+  ) {
+    Iterator<MultipartFile> documentIterator = documents.iterator();
+    AtomicInteger count = new AtomicInteger();
+    return getBatchTask(() -> {
+      if (!documentIterator.hasNext() || count.get() > maxBatchDocuments) {
+        return null;
+      }
+      MultipartFile document = documentIterator.next();
+      if (count.incrementAndGet() > maxBatchDocuments) {
+        return getMaxDocumentsExceeded();
+      }
+      return new BatchValidationService.BatchDocument(document.getOriginalFilename(), document.getBytes(), null);
+    }, lang, response);
+  }
+
+  /**
+   * Get the asynchronous task streaming the batch result. The timeout of the task is set for each batch request, so
+   * that the long timeout of batch requests does not apply to other asynchronous requests.
+   */
+  private WebAsyncTask<Void> getBatchTask(BatchValidationService.DocumentSource documentSource, String lang,
+    HttpServletResponse response) {
+    long timeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(batchTimeoutSeconds, 1));
+    WebAsyncTask<Void> batchTask = new WebAsyncTask<>(timeoutMillis, () -> {
+      response.setContentType(NDJSON_MEDIA_TYPE);
+      OutputStream outputStream = response.getOutputStream();
+      int count = batchValidationService.validate(documentSource, lang, result -> {
+        outputStream.write(objectMapper.writeValueAsBytes(result));
+        outputStream.write('\n');
+        outputStream.flush();
+      });
+      log.debug("Completed batch validation of {} documents", count);
+      return null;
+    });
+    batchTask.onTimeout(() -> {
+      log.warn("Batch validation did not complete within {} seconds - cancelled", batchTimeoutSeconds);
+      throw new RequestTimeoutException("Batch validation timed out");
+    });
+    return batchTask;
+  }
+
+  private BatchValidationService.DocumentSource getZipDocumentSource(ZipInputStream zipInputStream) {
+    AtomicInteger count = new AtomicInteger();
+    return () -> {
+      if (count.get() > maxBatchDocuments) {
+        return null;
+      }
+      ZipEntry entry;
+      while ((entry = zipInputStream.getNextEntry()) != null) {
+        if (entry.isDirectory() || entry.getName().startsWith("__MACOSX/")) {
+          continue;
+        }
+        if (count.incrementAndGet() > maxBatchDocuments) {
+          return getMaxDocumentsExceeded();
+        }
+        byte[] documentBytes = DocumentReader.read(zipInputStream, entry.getSize(), maxFileSize.getIntValue());
+        return documentBytes == null
+          ? new BatchValidationService.BatchDocument(entry.getName(), null, "Empty document or document exceeds the maximum document size")
+          : new BatchValidationService.BatchDocument(entry.getName(), documentBytes, null);
+      }
+      return null;
+    };
+  }
+
+  /**
+   * Get the error document ending a batch that holds more than the maximum number of documents
+   */
+  private BatchValidationService.BatchDocument getMaxDocumentsExceeded() {
+    return new BatchValidationService.BatchDocument(null, null,
+      "Maximum number of documents in a batch (" + maxBatchDocuments + ") exceeded");
+  }
+
+  @ExceptionHandler({ IOException.class, IllegalArgumentException.class })
+  public ResponseEntity<Map<String, String>> handleException(Exception ex) {
+    log.debug("Bad validation API request - {}", ex.getMessage());
+    return ResponseEntity
+      .badRequest()
+      .contentType(MediaType.APPLICATION_JSON)
+      .body(Collections.singletonMap("message", ex.getMessage()));
+  }
+
+  /**
+   * Errors that are not caused by the request, such as an unavailable signing key, are internal errors
+   */
+  @ExceptionHandler(RuntimeException.class)
+  public ResponseEntity<Map<String, String>> handleInternalError(RuntimeException ex) {
+    log.warn("Error processing validation API request", ex);
+    return ResponseEntity
+      .status(HttpStatus.INTERNAL_SERVER_ERROR)
+      .contentType(MediaType.APPLICATION_JSON)
+      .body(Collections.singletonMap("message", "Internal error processing the request"));
+  }
+
+  /**
+   * Get the document type reported in the validation result. The content type of the request is used if it is
+   * provided and is not a generic binary type, otherwise the content type is derived from the document type.
+   */
+  private static String getDocumentType(String contentType, DocType docType) {
+    if (StringUtils.isNotBlank(contentType) && !contentType.startsWith(MediaType.APPLICATION_OCTET_STREAM_VALUE)) {
+      return contentType;
+    }
+    switch (docType) {
+    case XML:
+      return MediaType.TEXT_XML_VALUE;
+    case PDF:
+      return MediaType.APPLICATION_PDF_VALUE;
+    case JOSE:
+    case JOSE_COMPACT:
+      return MediaType.APPLICATION_JSON_VALUE;
+    default:
+      return null;
+    }
+  }
+
+}
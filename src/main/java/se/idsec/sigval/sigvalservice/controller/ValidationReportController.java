@@ -16,11 +16,10 @@
 
 package se.idsec.sigval.sigvalservice.controller;
 
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -30,25 +29,35 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import se.idsec.signservice.xml.DOMUtils;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import se.idsec.sigval.sigvalservice.admission.AdmissionControl;
+import se.idsec.sigval.sigvalservice.admission.AdmissionRejectedException;
+import se.idsec.sigval.sigvalservice.admission.AsyncRequestExecutor;
+import se.idsec.sigval.sigvalservice.configuration.FileSize;
 import se.idsec.sigval.sigvalservice.configuration.SignatureValidatorProvider;
+import se.idsec.sigval.sigvalservice.configuration.ValidatorSet;
+import se.idsec.sigval.sigvalservice.configuration.keys.PooledSigner;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.idsec.sigval.sigvalservice.store.SessionDocumentStore;
+import se.idsec.sigval.sigvalservice.validation.DocumentValidationService;
+import se.swedenconnect.sigval.commons.data.ExtendedSigValResult;
 import se.swedenconnect.sigval.commons.data.SignedDocumentValidationResult;
 import se.swedenconnect.sigval.commons.document.DocType;
 import se.swedenconnect.sigval.jose.data.ExtendedJOSESigvalResult;
-import se.swedenconnect.sigval.jose.verify.JOSESignedDocumentValidator;
 import se.swedenconnect.sigval.pdf.data.ExtendedPdfSigValResult;
-import se.swedenconnect.sigval.pdf.verify.ExtendedPDFSignatureValidator;
 import se.swedenconnect.sigval.report.data.SignedDataRepresentation;
 import se.swedenconnect.sigval.report.data.SigvalReportOptions;
+import se.swedenconnect.sigval.report.xml.ReportSigner;
 import se.swedenconnect.sigval.xml.data.ExtendedXmlSigvalResult;
-import se.swedenconnect.sigval.xml.verify.ExtendedXMLSignedDocumentValidator;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.SignatureException;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * Controller for returning signature validation report
@@ -62,6 +71,8 @@ public class ValidationReportController {
 
   private final HttpSession httpSession;
   private static final MultiValueMap<String,String> headerMap;
+  private static final Set<DocType> SUPPORTED_DOC_TYPES = EnumSet.of(DocType.XML, DocType.PDF, DocType.JOSE,
+    DocType.JOSE_COMPACT);
 
   static {
     headerMap = new LinkedMultiValueMap<>();
@@ -75,37 +86,54 @@ public class ValidationReportController {
   @Value("${sigval-service.report.default-include-siged-doc}") boolean defaultIncludeSignedDoc;
 
   private final SignatureValidatorProvider signatureValidatorProvider;
+  private final DocumentValidationService documentValidationService;
+  private final SessionDocumentStore sessionDocumentStore;
+  private final FileSize maxFileSize;
+  private final ValidationMetrics validationMetrics;
+  private final AdmissionControl admissionControl;
+  private final AsyncRequestExecutor asyncRequestExecutor;
 
   @Autowired
-  public ValidationReportController(SignatureValidatorProvider signatureValidatorProvider, HttpSession httpSession) {
+  public ValidationReportController(SignatureValidatorProvider signatureValidatorProvider,
+    DocumentValidationService documentValidationService, HttpSession httpSession,
+    SessionDocumentStore sessionDocumentStore, FileSize maxFileSize, ValidationMetrics validationMetrics,
+    AdmissionControl admissionControl, AsyncRequestExecutor asyncRequestExecutor) {
     this.signatureValidatorProvider = signatureValidatorProvider;
+    this.validationMetrics = validationMetrics;
+    this.maxFileSize = maxFileSize;
+    this.documentValidationService = documentValidationService;
     this.httpSession = httpSession;
+    this.sessionDocumentStore = sessionDocumentStore;
+    this.admissionControl = admissionControl;
+    this.asyncRequestExecutor = asyncRequestExecutor;
   }
 
   @RequestMapping("/report-internal")
-  public ResponseEntity<InputStreamResource> getValidationReportInternal(
+  public DeferredResult<ResponseEntity<StreamingResponseBody>> getValidationReportInternal(
     @RequestParam(name = "certpath", required = false) String certpath,
     @RequestParam(name = "include-docs", required = false) String includeDocs
-  ) throws SignatureException, IOException {
-    byte[] documentBytes = (byte[]) httpSession.getAttribute(SessionAttr.signedDoc.name());
-    return getValidationReport(documentBytes, certpath, includeDocs);
+  ) throws IOException {
+    byte[] documentBytes = sessionDocumentStore.getDocument(httpSession, SessionAttr.signedDoc.name());
+    return asyncRequestExecutor.execute(AdmissionControl.REPORT,
+      () -> getValidationReport(documentBytes, certpath, includeDocs));
   }
 
   @RequestMapping(value = "/report", method = RequestMethod.POST)
-  public ResponseEntity<InputStreamResource> getValidationReportAPI(
-    InputStream postedDocumentStream,
+  public DeferredResult<ResponseEntity<StreamingResponseBody>> getValidationReportAPI(
+    HttpServletRequest request,
     @RequestParam(name = "certpath", required = false) String certpath,
     @RequestParam(name = "include-docs", required = false) String includeDocs
-  ) throws SignatureException, IOException {
-    byte[] documentBytes = postedDocumentStream == null
-      ? null
-      : IOUtils.toByteArray(postedDocumentStream);
-    return getValidationReport(documentBytes, certpath, includeDocs);
+  ) throws IOException {
+    byte[] documentBytes = DocumentReader.read(request.getInputStream(), request.getContentLengthLong(),
+      maxFileSize.getIntValue());
+    return asyncRequestExecutor.execute(AdmissionControl.REPORT,
+      () -> getValidationReport(documentBytes, certpath, includeDocs));
   }
 
 
-  public ResponseEntity<InputStreamResource> getValidationReport(byte[] documentBytes, String certpath, String includeDocs
-  ) throws SignatureException, IOException {
+  @SuppressWarnings("try")
+  public ResponseEntity<StreamingResponseBody> getValidationReport(byte[] documentBytes, String certpath, String includeDocs
+  ) throws SignatureException, IOException, AdmissionRejectedException {
 
     if (documentBytes == null){
       log.debug("Bad validation request - no document provided in the request or document was to large");
@@ -115,51 +143,73 @@ public class ValidationReportController {
     SigvalReportOptions sigvalReportOptions = getSigValReportOptions(certpath, includeDocs);
     byte[] signedValidationReport;
 
-    // Generate report based on document type
+    // Use the same validator set for validation and report generation
+    ValidatorSet validators = signatureValidatorProvider.getValidators();
+
     DocType docType = DocType.getDocType(documentBytes);
-    switch (docType) {
-    case XML:
-      ExtendedXMLSignedDocumentValidator xmlSignedDocumentValidator = signatureValidatorProvider.getXmlSignedDocumentValidator();
-      SignedDocumentValidationResult<ExtendedXmlSigvalResult> xmlResult = xmlSignedDocumentValidator.extendedResultValidation(
-        DOMUtils.bytesToDocument(documentBytes));
-      signedValidationReport = signatureValidatorProvider.getXmlSigValReportGenerator().getSignedValidationReport(
-        xmlResult, sigvalReportOptions, signatureValidatorProvider.getReportSigner());
-      break;
-    case PDF:
-      ExtendedPDFSignatureValidator pdfSignatureValidator = signatureValidatorProvider.getPdfSignatureValidator();
-      SignedDocumentValidationResult<ExtendedPdfSigValResult> pdfResult = pdfSignatureValidator.extendedResultValidation(
-        documentBytes);
-      signedValidationReport = signatureValidatorProvider.getPdfSigValReportGenerator().getSignedValidationReport(
-        pdfResult, sigvalReportOptions, signatureValidatorProvider.getReportSigner());
-      break;
-    case JOSE:
-    case JOSE_COMPACT:
-      JOSESignedDocumentValidator joseSignedDocumentValidator = signatureValidatorProvider.getJoseSignedDocumentValidator();
-      SignedDocumentValidationResult<ExtendedJOSESigvalResult> joseResult = joseSignedDocumentValidator.extendedResultValidation(
-        documentBytes);
-      signedValidationReport = signatureValidatorProvider.getJoseSigValReportGenerator().getSignedValidationReport(
-        joseResult, sigvalReportOptions, signatureValidatorProvider.getReportSigner());
-      break;
-    default:
+    if (!SUPPORTED_DOC_TYPES.contains(docType)) {
       log.debug("Bad validation request - data type not recognized");
       return getErrorResponse("Bad request - data type not recognized");
     }
+    try (AdmissionControl.Permit permit = admissionControl.admit(AdmissionControl.REPORT, docType,
+      documentBytes.length)) {
+      SignedDocumentValidationResult<? extends ExtendedSigValResult> validationResult =
+        documentValidationService.validate(documentBytes, docType, validators);
+      signedValidationReport = getSignedValidationReport(docType, validationResult, sigvalReportOptions, validators);
+    }
 
     return ResponseEntity
       .ok()
       .headers(new HttpHeaders(headerMap))
       .contentLength(signedValidationReport.length)
       .contentType(MediaType.TEXT_XML)
-      .body(new InputStreamResource(new ByteArrayInputStream(signedValidationReport)));
+      .body(outputStream -> outputStream.write(signedValidationReport));
+  }
+
+  /**
+   * Generate the signed validation report based on document type. Report generation is timed separately
+   */
+  @SuppressWarnings("unchecked")
+  private byte[] getSignedValidationReport(DocType docType,
+    SignedDocumentValidationResult<? extends ExtendedSigValResult> validationResult,
+    SigvalReportOptions sigvalReportOptions, ValidatorSet validators)
+    throws SignatureException, IOException, AdmissionRejectedException {
+    Timer.Sample sample = validationMetrics.start();
+    String outcome = "error";
+    try (PooledSigner.Lease<ReportSigner> reportSigner = validators.getReportSigner().acquire()) {
+      byte[] signedValidationReport;
+      switch (docType) {
+      case XML:
+        signedValidationReport = validators.getXmlSigValReportGenerator().getSignedValidationReport(
+          (SignedDocumentValidationResult<ExtendedXmlSigvalResult>) validationResult,
+          sigvalReportOptions, reportSigner.get());
+        break;
+      case PDF:
+        signedValidationReport = validators.getPdfSigValReportGenerator().getSignedValidationReport(
+          (SignedDocumentValidationResult<ExtendedPdfSigValResult>) validationResult,
+          sigvalReportOptions, reportSigner.get());
+        break;
+      default:
+        signedValidationReport = validators.getJoseSigValReportGenerator().getSignedValidationReport(
+          (SignedDocumentValidationResult<ExtendedJOSESigvalResult>) validationResult,
+          sigvalReportOptions, reportSigner.get());
+      }
+      outcome = "success";
+      return signedValidationReport;
+    }
+    finally {
+      validationMetrics.stop(sample, ValidationMetrics.REPORT,
+        "doctype", ValidationMetrics.docTypeTag(docType), "outcome", outcome);
+    }
   }
 
-  private ResponseEntity<InputStreamResource> getErrorResponse(String message) {
+  private ResponseEntity<StreamingResponseBody> getErrorResponse(String message) {
     byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
     return ResponseEntity
       .badRequest()
       .contentLength(messageBytes.length)
       .contentType(MediaType.TEXT_PLAIN)
-      .body(new InputStreamResource(new ByteArrayInputStream(messageBytes)));
+      .body(outputStream -> outputStream.write(messageBytes));
   }
 
   private SigvalReportOptions getSigValReportOptions(String certpath, String includeDocs) {
@@ -0,0 +1,727 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.crl;
+
+import org.bouncycastle.asn1.*;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.CertificateList;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.bouncycastle.asn1.x509.TBSCertList;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.operator.DefaultAlgorithmNameFinder;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Principal;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.CRLException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * X509CRL with an index of the revoked serial numbers.
+ *
+ * <p>The CRL is decoded once into an index. Revoked serial numbers are held sorted in a single buffer together with
+ * buffers of revocation times and reason codes, so that a revocation check is a binary search that does not decode or
+ * allocate CRL entries. The index and the encoded CRL are held outside of the heap, either in direct buffers or in
+ * memory mapped files. The index can be written to a file with {@link #writeIndex(File)} and a CRL is loaded from the
+ * CRL file and the index file with {@link #load(File, File)} without decoding the CRL again. The encoded CRL is only
+ * used to verify the CRL signature once for each issuer key and to return the encoded CRL.</p>
+ *
+ * <p>Only the reason code extension of CRL entries is retained. Revocation checks of indirect CRLs, of CRLs with entries
+ * holding a certificate issuer extension and of CRLs with entries holding critical extensions are delegated to the
+ * CRL decoded by the JDK, which is created when first needed.</p>
+ */
+public class IndexedX509CRL extends X509CRL {
+
+  /** CRL extensions that are processed by the CRL validation */
+  private static final Set<String> SUPPORTED_CRITICAL_EXTENSIONS = Set.of(
+    Extension.cRLNumber.getId(), Extension.deltaCRLIndicator.getId(), Extension.issuingDistributionPoint.getId(),
+    Extension.authorityKeyIdentifier.getId(), Extension.issuerAlternativeName.getId(), Extension.freshestCRL.getId());
+  private static final byte NO_REASON = -1;
+  /** Index file identifier "SVCI" followed by the index format version */
+  private static final int INDEX_MAGIC = 0x53564349;
+  private static final int INDEX_FORMAT_VERSION = 2;
+  /** Index flag set for an indirect CRL */
+  private static final int FLAG_INDIRECT = 1;
+  /** Index flag set if revocation checks are delegated to the decoded CRL */
+  private static final int FLAG_DECODED_ENTRIES = 2;
+
+  private final ByteBuffer encoded;
+  private final ByteBuffer index;
+  private final byte[] digest;
+  private final int tbsOffset;
+  private final int tbsLength;
+  private final int version;
+  private final X500Principal issuer;
+  private final long thisUpdate;
+  private final long nextUpdate;
+  private final String sigAlgOid;
+  private final String sigAlgName;
+  private final byte[] sigAlgParams;
+  private final byte[] signature;
+  private final Map<String, byte[]> extensionValues = new HashMap<>();
+  private final Set<String> criticalExtensions = new HashSet<>();
+  private final Set<String> nonCriticalExtensions = new HashSet<>();
+  private final boolean indirect;
+  private final boolean decodedEntries;
+  /** CRL decoded by the JDK used for revocation checks if the entries can not be checked using the index */
+  private volatile X509CRL decodedCrl;
+
+  private final int count;
+  private final LongBuffer revocationTimes;
+  /** Offset of each serial number in {@link #serials}, with one extra offset marking the end */
+  private final IntBuffer serialOffsets;
+  private final ByteBuffer reasons;
+  /** Serial numbers in two's complement encoding, sorted by length and value */
+  private final ByteBuffer serials;
+
+  private final Set<PublicKey> verifiedKeys = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Constructor
+   *
+   * @param encoded the encoded CRL
+   * @param index the index of the CRL
+   * @throws CRLException if the index is not a valid index of the CRL
+   */
+  private IndexedX509CRL(ByteBuffer encoded, ByteBuffer index) throws CRLException {
+    this.encoded = encoded;
+    this.index = index;
+    try {
+      ByteBuffer header = index.duplicate().position(0);
+      if (header.getInt() != INDEX_MAGIC || header.getInt() != INDEX_FORMAT_VERSION) {
+        throw new CRLException("Unsupported CRL index format");
+      }
+      if (header.getInt() != encoded.capacity()) {
+        throw new CRLException("CRL index does not match the CRL");
+      }
+      digest = readBytes(header);
+      tbsOffset = header.getInt();
+      tbsLength = header.getInt();
+      version = header.getInt();
+      issuer = new X500Principal(readBytes(header));
+      thisUpdate = header.getLong();
+      nextUpdate = header.getLong();
+      sigAlgOid = new String(readBytes(header), StandardCharsets.UTF_8);
+      sigAlgName = new String(readBytes(header), StandardCharsets.UTF_8);
+      sigAlgParams = readBytes(header);
+      signature = readBytes(header);
+      int extensionCount = header.getInt();
+      for (int i = 0; i < extensionCount; i++) {
+        String oid = new String(readBytes(header), StandardCharsets.UTF_8);
+        (header.get() != 0 ? criticalExtensions : nonCriticalExtensions).add(oid);
+        extensionValues.put(oid, readBytes(header));
+      }
+      int flags = header.getInt();
+      indirect = (flags & FLAG_INDIRECT) != 0;
+      decodedEntries = (flags & FLAG_DECODED_ENTRIES) != 0;
+      count = header.getInt();
+      int serialsLength = header.getInt();
+      int position = align(header.position());
+      revocationTimes = slice(index, position, count * Long.BYTES).asLongBuffer();
+      position += count * Long.BYTES;
+      serialOffsets = slice(index, position, (count + 1) * Integer.BYTES).asIntBuffer();
+      position += (count + 1) * Integer.BYTES;
+      reasons = slice(index, position, count);
+      position += count;
+      serials = slice(index, position, serialsLength);
+    }
+    catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+      throw new CRLException("Invalid CRL index", ex);
+    }
+  }
+
+  /**
+   * Decode and index a CRL
+   *
+   * @param crlBytes DER encoded CRL
+   * @return indexed CRL
+   * @throws CRLException if the CRL cannot be decoded
+   */
+  public static IndexedX509CRL parse(byte[] crlBytes) throws CRLException {
+    CertificateList certificateList;
+    try {
+      certificateList = CertificateList.getInstance(ASN1Primitive.fromByteArray(crlBytes));
+    }
+    catch (IOException | RuntimeException ex) {
+      throw new CRLException("Unable to decode CRL", ex);
+    }
+    TBSCertList tbsCertList = certificateList.getTBSCertList();
+
+    // Collect the entries and sort them by serial number
+    List<byte[]> entrySerials = new ArrayList<>();
+    List<Long> entryTimes = new ArrayList<>();
+    List<Byte> entryReasons = new ArrayList<>();
+    boolean indirect = isIndirect(tbsCertList.getExtensions());
+    boolean decodedEntries = indirect;
+    Enumeration<?> revokedCertificates = tbsCertList.getRevokedCertificateEnumeration();
+    while (revokedCertificates.hasMoreElements()) {
+      TBSCertList.CRLEntry entry = (TBSCertList.CRLEntry) revokedCertificates.nextElement();
+      entrySerials.add(entry.getUserCertificate().getValue().toByteArray());
+      entryTimes.add(entry.getRevocationDate().getDate().getTime());
+      entryReasons.add(getReasonCode(entry.getExtensions()));
+      decodedEntries |= !isIndexable(entry.getExtensions());
+    }
+    Integer[] order = new Integer[entrySerials.size()];
+    int serialsLength = 0;
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+      serialsLength += entrySerials.get(i).length;
+    }
+    Arrays.sort(order, (a, b) -> compare(entrySerials.get(a), entrySerials.get(b)));
+
+    try {
+      ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+      DataOutputStream header = new DataOutputStream(headerBytes);
+      header.writeInt(INDEX_MAGIC);
+      header.writeInt(INDEX_FORMAT_VERSION);
+      header.writeInt(crlBytes.length);
+      writeBytes(header, MessageDigest.getInstance("SHA-256").digest(crlBytes));
+      int tbsOffset = headerLength(crlBytes, 0);
+      header.writeInt(tbsOffset);
+      header.writeInt(headerLength(crlBytes, tbsOffset) + contentLength(crlBytes, tbsOffset));
+      header.writeInt(tbsCertList.getVersionNumber());
+      writeBytes(header, tbsCertList.getIssuer().getEncoded(ASN1Encoding.DER));
+      header.writeLong(tbsCertList.getThisUpdate().getDate().getTime());
+      header.writeLong(tbsCertList.getNextUpdate() == null ? -1 : tbsCertList.getNextUpdate().getDate().getTime());
+      AlgorithmIdentifier signatureAlgorithm = certificateList.getSignatureAlgorithm();
+      writeBytes(header, signatureAlgorithm.getAlgorithm().getId().getBytes(StandardCharsets.UTF_8));
+      writeBytes(header, new DefaultAlgorithmNameFinder().getAlgorithmName(signatureAlgorithm)
+        .getBytes(StandardCharsets.UTF_8));
+      writeBytes(header, encodeOrNull(signatureAlgorithm.getParameters()));
+      writeBytes(header, certificateList.getSignature().getOctets());
+      Extensions extensions = tbsCertList.getExtensions();
+      ASN1ObjectIdentifier[] extensionOids = extensions == null ? new ASN1ObjectIdentifier[0] : extensions.getExtensionOIDs();
+      header.writeInt(extensionOids.length);
+      for (ASN1ObjectIdentifier oid : extensionOids) {
+        Extension extension = extensions.getExtension(oid);
+        writeBytes(header, oid.getId().getBytes(StandardCharsets.UTF_8));
+        header.writeBoolean(extension.isCritical());
+        writeBytes(header, encodeOrNull(extension.getExtnValue()));
+      }
+      header.writeInt((indirect ? FLAG_INDIRECT : 0) | (decodedEntries ? FLAG_DECODED_ENTRIES : 0));
+      header.writeInt(order.length);
+      header.writeInt(serialsLength);
+      header.flush();
+
+      int headerLength = align(headerBytes.size());
+      ByteBuffer index = ByteBuffer.allocateDirect(headerLength + order.length * (Long.BYTES + Integer.BYTES + 1)
+        + Integer.BYTES + serialsLength);
+      index.put(headerBytes.toByteArray()).position(headerLength);
+      for (Integer entryIndex : order) {
+        index.putLong(entryTimes.get(entryIndex));
+      }
+      int offset = 0;
+      for (Integer entryIndex : order) {
+        index.putInt(offset);
+        offset += entrySerials.get(entryIndex).length;
+      }
+      index.putInt(offset);
+      for (Integer entryIndex : order) {
+        index.put(entryReasons.get(entryIndex));
+      }
+      for (Integer entryIndex : order) {
+        index.put(entrySerials.get(entryIndex));
+      }
+      return new IndexedX509CRL(ByteBuffer.allocateDirect(crlBytes.length).put(crlBytes).flip(), index.flip());
+    }
+    catch (IOException | NoSuchAlgorithmException ex) {
+      throw new CRLException("Unable to index CRL", ex);
+    }
+  }
+
+  /**
+   * Load an indexed CRL from a CRL file and its index file. Both files are memory mapped and must not be modified
+   * while the CRL is in use. Files are replaced by creating new files and renaming them.
+   *
+   * @param crlFile file holding the DER encoded CRL
+   * @param indexFile index file written by {@link #writeIndex(File)}
+   * @return indexed CRL
+   * @throws IOException on errors reading the files
+   * @throws CRLException if the index file is not a valid index of the CRL
+   */
+  public static IndexedX509CRL load(File crlFile, File indexFile) throws IOException, CRLException {
+    IndexedX509CRL crl = new IndexedX509CRL(map(crlFile), map(indexFile));
+    // Hashing the mapped CRL is fast compared to decoding it and protects against a CRL and index pair of the same size
+    // that was left by an interrupted update
+    try {
+      MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+      messageDigest.update(crl.encoded.duplicate().position(0));
+      if (!MessageDigest.isEqual(messageDigest.digest(), crl.digest)) {
+        throw new CRLException("CRL index does not match the CRL");
+      }
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new CRLException(ex);
+    }
+    return crl;
+  }
+
+  /**
+   * Write the index of this CRL to a file
+   *
+   * @param indexFile the index file
+   * @throws IOException on errors writing the file
+   */
+  public void writeIndex(File indexFile) throws IOException {
+    try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+      StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer data = index.duplicate().position(0);
+      while (data.hasRemaining()) {
+        channel.write(data);
+      }
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Get the SHA-256 digest of the encoded CRL
+   *
+   * @return digest of the encoded CRL
+   */
+  public byte[] getDigest() {
+    return digest.clone();
+  }
+
+  /**
+   * Get the number of revoked certificates
+   *
+   * @return number of CRL entries
+   */
+  public int getRevokedCount() {
+    return count;
+  }
+
+  /**
+   * Test if this is an indirect CRL holding entries of certificates of other issuers than the CRL issuer
+   *
+   * @return true if this is an indirect CRL
+   */
+  public boolean isIndirect() {
+    return indirect;
+  }
+
+  @Override public boolean isRevoked(Certificate cert) {
+    if (decodedEntries) {
+      return getDecodedCrl().isRevoked(cert);
+    }
+    return cert instanceof X509Certificate && indexOf(((X509Certificate) cert).getSerialNumber()) >= 0;
+  }
+
+  @Override public X509CRLEntry getRevokedCertificate(BigInteger serialNumber) {
+    if (decodedEntries) {
+      return getDecodedCrl().getRevokedCertificate(serialNumber);
+    }
+    int index = indexOf(serialNumber);
+    return index < 0 ? null : getEntry(index);
+  }
+
+  @Override public X509CRLEntry getRevokedCertificate(X509Certificate certificate) {
+    if (decodedEntries) {
+      return getDecodedCrl().getRevokedCertificate(certificate);
+    }
+    return getRevokedCertificate(certificate.getSerialNumber());
+  }
+
+  @Override public Set<? extends X509CRLEntry> getRevokedCertificates() {
+    if (decodedEntries) {
+      return getDecodedCrl().getRevokedCertificates();
+    }
+    if (count == 0) {
+      return null;
+    }
+    Set<X509CRLEntry> entries = new HashSet<>();
+    for (int i = 0; i < count; i++) {
+      entries.add(getEntry(i));
+    }
+    return entries;
+  }
+
+  /**
+   * Verify the CRL signature. A successful verification is remembered for the key.
+   */
+  @Override public void verify(PublicKey key)
+    throws CRLException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, SignatureException {
+    if (verifiedKeys.contains(key)) {
+      return;
+    }
+    decode().verify(key);
+    verifiedKeys.add(key);
+  }
+
+  @Override public void verify(PublicKey key, String sigProvider)
+    throws CRLException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, SignatureException {
+    decode().verify(key, sigProvider);
+  }
+
+  @Override public byte[] getEncoded() {
+    byte[] bytes = new byte[encoded.capacity()];
+    encoded.duplicate().position(0).get(bytes);
+    return bytes;
+  }
+
+  @Override public byte[] getTBSCertList() {
+    byte[] bytes = new byte[tbsLength];
+    encoded.duplicate().position(tbsOffset).get(bytes);
+    return bytes;
+  }
+
+  @Override public int getVersion() {
+    return version;
+  }
+
+  @SuppressWarnings("deprecation")
+  @Override public Principal getIssuerDN() {
+    return issuer;
+  }
+
+  @Override public X500Principal getIssuerX500Principal() {
+    return issuer;
+  }
+
+  @Override public Date getThisUpdate() {
+    return new Date(thisUpdate);
+  }
+
+  @Override public Date getNextUpdate() {
+    return nextUpdate < 0 ? null : new Date(nextUpdate);
+  }
+
+  @Override public byte[] getSignature() {
+    return signature.clone();
+  }
+
+  @Override public String getSigAlgName() {
+    return sigAlgName;
+  }
+
+  @Override public String getSigAlgOID() {
+    return sigAlgOid;
+  }
+
+  @Override public byte[] getSigAlgParams() {
+    return sigAlgParams == null ? null : sigAlgParams.clone();
+  }
+
+  @Override public boolean hasUnsupportedCriticalExtension() {
+    return criticalExtensions.stream().anyMatch(oid -> !SUPPORTED_CRITICAL_EXTENSIONS.contains(oid));
+  }
+
+  @Override public Set<String> getCriticalExtensionOIDs() {
+    return extensionValues.isEmpty() ? null : Collections.unmodifiableSet(criticalExtensions);
+  }
+
+  @Override public Set<String> getNonCriticalExtensionOIDs() {
+    return extensionValues.isEmpty() ? null : Collections.unmodifiableSet(nonCriticalExtensions);
+  }
+
+  @Override public byte[] getExtensionValue(String oid) {
+    byte[] value = extensionValues.get(oid);
+    return value == null ? null : value.clone();
+  }
+
+  @Override public String toString() {
+    return "X.509 CRL v" + version + " issuer: " + issuer.getName() + ", thisUpdate: " + getThisUpdate()
+      + ", nextUpdate: " + getNextUpdate() + ", revoked certificates: " + count;
+  }
+
+  /**
+   * Binary search for a serial number
+   *
+   * @param serialNumber serial number
+   * @return index of the serial number or -1 if not revoked
+   */
+  private int indexOf(BigInteger serialNumber) {
+    byte[] key = serialNumber.toByteArray();
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareAt(mid, key);
+      if (cmp < 0) {
+        low = mid + 1;
+      }
+      else if (cmp > 0) {
+        high = mid - 1;
+      }
+      else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private int compareAt(int index, byte[] key) {
+    int offset = serialOffsets.get(index);
+    int length = serialOffsets.get(index + 1) - offset;
+    if (length != key.length) {
+      return length < key.length ? -1 : 1;
+    }
+    for (int i = 0; i < length; i++) {
+      int cmp = (serials.get(offset + i) & 0xff) - (key[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  private static int compare(byte[] a, byte[] b) {
+    if (a.length != b.length) {
+      return a.length < b.length ? -1 : 1;
+    }
+    for (int i = 0; i < a.length; i++) {
+      int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  private X509CRLEntry getEntry(int index) {
+    int offset = serialOffsets.get(index);
+    byte[] serial = new byte[serialOffsets.get(index + 1) - offset];
+    serials.duplicate().position(offset).get(serial);
+    return new IndexedCRLEntry(new BigInteger(serial), revocationTimes.get(index), reasons.get(index));
+  }
+
+  /**
+   * Get the CRL decoded by the JDK. The decoded CRL is created once and is used for revocation checks that can not use
+   * the index.
+   */
+  private X509CRL getDecodedCrl() {
+    X509CRL crl = decodedCrl;
+    if (crl == null) {
+      try {
+        crl = decode();
+      }
+      catch (CRLException ex) {
+        throw new IllegalStateException("Unable to decode CRL", ex);
+      }
+      decodedCrl = crl;
+    }
+    return crl;
+  }
+
+  private X509CRL decode() throws CRLException {
+    try {
+      return (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(new ByteArrayInputStream(getEncoded()));
+    }
+    catch (CertificateException ex) {
+      throw new CRLException(ex);
+    }
+  }
+
+  private static boolean isIndirect(Extensions crlExtensions) {
+    Extension idp = crlExtensions == null ? null : crlExtensions.getExtension(Extension.issuingDistributionPoint);
+    return idp != null && IssuingDistributionPoint.getInstance(idp.getParsedValue()).isIndirectCRL();
+  }
+
+  /**
+   * Test if a CRL entry can be checked using the index. Entries with a certificate issuer extension or with critical
+   * extensions must be checked by the decoded CRL.
+   */
+  private static boolean isIndexable(Extensions entryExtensions) {
+    if (entryExtensions == null) {
+      return true;
+    }
+    return entryExtensions.getExtension(Extension.certificateIssuer) == null
+      && entryExtensions.getCriticalExtensionOIDs().length == 0;
+  }
+
+  private static byte getReasonCode(Extensions entryExtensions) {
+    if (entryExtensions == null) {
+      return NO_REASON;
+    }
+    Extension reasonCode = entryExtensions.getExtension(Extension.reasonCode);
+    if (reasonCode == null) {
+      return NO_REASON;
+    }
+    return CRLReason.getInstance(reasonCode.getParsedValue()).getValue().byteValue();
+  }
+
+  private static byte[] encodeOrNull(ASN1Encodable asn1Encodable) throws CRLException {
+    if (asn1Encodable == null) {
+      return null;
+    }
+    try {
+      return asn1Encodable.toASN1Primitive().getEncoded(ASN1Encoding.DER);
+    }
+    catch (IOException ex) {
+      throw new CRLException("Unable to encode CRL data", ex);
+    }
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    if (bytes == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private static int align(int position) {
+    return (position + Long.BYTES - 1) & -Long.BYTES;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+    return buffer.duplicate().position(position).limit(position + length).slice();
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  /** Length of the tag and length octets of the DER element at an offset */
+  private static int headerLength(byte[] der, int offset) {
+    int lengthOctet = der[offset + 1] & 0xff;
+    return lengthOctet < 0x80 ? 2 : 2 + (lengthOctet & 0x7f);
+  }
+
+  /** Length of the content of the DER element at an offset */
+  private static int contentLength(byte[] der, int offset) {
+    int lengthOctet = der[offset + 1] & 0xff;
+    if (lengthOctet < 0x80) {
+      return lengthOctet;
+    }
+    int length = 0;
+    for (int i = 0; i < (lengthOctet & 0x7f); i++) {
+      length = (length << 8) | (der[offset + 2 + i] & 0xff);
+    }
+    return length;
+  }
+
+  /**
+   * CRL entry created from the index
+   */
+  private static class IndexedCRLEntry extends X509CRLEntry {
+
+    private final BigInteger serialNumber;
+    private final long revocationTime;
+    private final byte reason;
+
+    IndexedCRLEntry(BigInteger serialNumber, long revocationTime, byte reason) {
+      this.serialNumber = serialNumber;
+      this.revocationTime = revocationTime;
+      this.reason = reason;
+    }
+
+    @Override public byte[] getEncoded() throws CRLException {
+      ASN1EncodableVector entry = new ASN1EncodableVector();
+      entry.add(new ASN1Integer(serialNumber));
+      entry.add(new Time(new Date(revocationTime)));
+      try {
+        if (reason != NO_REASON) {
+          entry.add(new Extensions(new Extension(Extension.reasonCode, false,
+            CRLReason.lookup(reason).getEncoded(ASN1Encoding.DER))));
+        }
+        return new DERSequence(entry).getEncoded(ASN1Encoding.DER);
+      }
+      catch (IOException ex) {
+        throw new CRLException("Unable to encode CRL entry", ex);
+      }
+    }
+
+    @Override public BigInteger getSerialNumber() {
+      return serialNumber;
+    }
+
+    @Override public Date getRevocationDate() {
+      return new Date(revocationTime);
+    }
+
+    @Override public java.security.cert.CRLReason getRevocationReason() {
+      java.security.cert.CRLReason[] values = java.security.cert.CRLReason.values();
+      return reason == NO_REASON || reason >= values.length ? null : values[reason];
+    }
+
+    @Override public boolean hasExtensions() {
+      return reason != NO_REASON;
+    }
+
+    @Override public boolean hasUnsupportedCriticalExtension() {
+      return false;
+    }
+
+    @Override public Set<String> getCriticalExtensionOIDs() {
+      return reason == NO_REASON ? null : Collections.emptySet();
+    }
+
+    @Override public Set<String> getNonCriticalExtensionOIDs() {
+      return reason == NO_REASON ? null : Set.of(Extension.reasonCode.getId());
+    }
+
+    @Override public byte[] getExtensionValue(String oid) {
+      if (reason == NO_REASON || !Extension.reasonCode.getId().equals(oid)) {
+        return null;
+      }
+      try {
+        return new DEROctetString(CRLReason.lookup(reason)).getEncoded(ASN1Encoding.DER);
+      }
+      catch (IOException ex) {
+        return null;
+      }
+    }
+
+    @Override public String toString() {
+      return "Serial number: " + serialNumber.toString(16) + ", revocation date: " + getRevocationDate()
+        + (reason == NO_REASON ? "" : ", reason: " + getRevocationReason());
+    }
+  }
+
+}
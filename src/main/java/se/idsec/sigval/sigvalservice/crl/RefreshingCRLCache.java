@@ -0,0 +1,650 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.crl;
+
+import io.micrometer.core.instrument.Timer;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.util.encoders.Hex;
+import org.springframework.beans.factory.DisposableBean;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.swedenconnect.sigval.cert.validity.crl.CRLCache;
+import se.swedenconnect.sigval.cert.validity.crl.CRLCacheRecord;
+import se.swedenconnect.sigval.cert.validity.crl.CRLInfo;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CRLException;
+import java.security.cert.X509CRL;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * CRL cache that refreshes each CRL distribution point on its own schedule.
+ *
+ * <p>A CRL is downloaded synchronously the first time it is requested. After that the cached CRL is always returned
+ * without blocking and the CRL is refreshed in the background shortly before its nextUpdate time, but at least once
+ * every max refresh interval. HTTP downloads are conditional (ETag and If-Modified-Since) so that unchanged CRLs are
+ * not downloaded again. Downloads run concurrently with a limited number of concurrent downloads per host. A new CRL
+ * replaces the previous CRL atomically once it has been parsed and indexed by {@link IndexedX509CRL}. A failed refresh
+ * keeps the previous CRL and is retried with an increasing delay. A CRL is no longer served when its nextUpdate time
+ * has passed by more than the expiry grace period, so that revocation checks using it fail instead of using outdated
+ * revocation information.</p>
+ *
+ * <p>Downloaded CRLs are stored in the cache folder together with their index, and the stored files are memory mapped.
+ * At startup the stored CRLs are mapped without being decoded again, so that they are available immediately, and are
+ * refreshed in the background when due.</p>
+ */
+@Slf4j
+public class RefreshingCRLCache implements CRLCache, DisposableBean {
+
+  /** Delay before retrying a download that was held back by the per host limit */
+  private static final long HOST_RETRY_DELAY_MILLIS = 1000;
+  private static final String CRL_FILE_SUFFIX = ".crl";
+  private static final String INDEX_FILE_SUFFIX = ".idx";
+  private static final String META_FILE_SUFFIX = ".properties";
+  private static final String LDAP_CRL_ATTRIBUTE = "certificateRevocationList;binary";
+
+  private final File cacheFolder;
+  private final long minRefreshMillis;
+  private final long maxRefreshMillis;
+  private final long refreshMarginMillis;
+  private final long expiryGraceMillis;
+  private final int maxDownloadsPerHost;
+  private final int connectTimeout;
+  private final int readTimeout;
+  private final ValidationMetrics validationMetrics;
+
+  private final Map<String, CrlEntry> entries = new ConcurrentHashMap<>();
+  private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+  private final List<Consumer<X509CRL>> updateListeners = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService scheduler;
+  private final ExecutorService downloadExecutor;
+  private final HttpClient httpClient;
+
+  /**
+   * Constructor
+   *
+   * @param cacheFolder folder where downloaded CRLs are stored
+   * @param minRefreshMillis minimum time between two downloads of the same CRL
+   * @param maxRefreshMillis maximum time between two downloads of the same CRL
+   * @param refreshMarginMillis time before the nextUpdate time of a CRL when the CRL is refreshed
+   * @param expiryGraceMillis time after the nextUpdate time of a CRL that the CRL is still served if it can not be
+   *   refreshed
+   * @param maxDownloadsPerHost maximum number of concurrent downloads from one host
+   * @param connectTimeout connect timeout in milliseconds
+   * @param readTimeout read timeout in milliseconds
+   * @param validationMetrics validation metrics
+   */
+  public RefreshingCRLCache(File cacheFolder, long minRefreshMillis, long maxRefreshMillis, long refreshMarginMillis,
+    long expiryGraceMillis, int maxDownloadsPerHost, int connectTimeout, int readTimeout,
+    ValidationMetrics validationMetrics) {
+    this.cacheFolder = cacheFolder;
+    this.minRefreshMillis = minRefreshMillis;
+    this.maxRefreshMillis = Math.max(maxRefreshMillis, minRefreshMillis);
+    this.refreshMarginMillis = refreshMarginMillis;
+    this.expiryGraceMillis = Math.max(expiryGraceMillis, 0);
+    this.maxDownloadsPerHost = Math.max(maxDownloadsPerHost, 1);
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.validationMetrics = validationMetrics;
+
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("crl-refresh-scheduler"));
+    this.downloadExecutor = Executors.newCachedThreadPool(daemonThreadFactory("crl-download"));
+    this.httpClient = HttpClient.newBuilder()
+      .connectTimeout(Duration.ofMillis(connectTimeout))
+      .followRedirects(HttpClient.Redirect.NORMAL)
+      .executor(downloadExecutor)
+      .build();
+
+    if (!cacheFolder.exists() && !cacheFolder.mkdirs()) {
+      log.warn("Unable to create CRL cache folder {}", cacheFolder.getAbsolutePath());
+    }
+    loadCachedCrls();
+  }
+
+  /**
+   * Add a listener that is called when the content of a cached CRL has changed
+   *
+   * @param listener listener called with the new CRL after it has replaced a previous CRL
+   */
+  public void addUpdateListener(Consumer<X509CRL> listener) {
+    updateListeners.add(listener);
+  }
+
+  /** {@inheritDoc} */
+  @Override public CRLInfo getCRL(CRLDistPoint crlDistPoint) throws IOException {
+    List<String> urls = getCrlUrls(crlDistPoint);
+    if (urls.isEmpty()) {
+      throw new IOException("No supported CRL distribution point URL");
+    }
+    IOException lastException = null;
+    for (String url : urls) {
+      try {
+        return getCRL(url);
+      }
+      catch (IOException ex) {
+        lastException = ex;
+      }
+    }
+    throw lastException;
+  }
+
+  /**
+   * Get the cached CRL of a URL. The CRL is downloaded if it is not cached, or if the cached CRL has expired.
+   *
+   * @param url the CRL URL
+   * @return the CRL
+   * @throws IOException if no CRL is cached and the CRL could not be downloaded, or if the CRL has expired
+   */
+  @Override public CRLInfo getCRL(String url) throws IOException {
+    CrlEntry entry = entries.computeIfAbsent(url, CrlEntry::new);
+    CrlState state = entry.state;
+    if (state != null && !isExpired(state)) {
+      return new CRLInfo(url, state.getCrl());
+    }
+    if (System.currentTimeMillis() - entry.lastFailure < minRefreshMillis) {
+      throw new IOException(state == null
+        ? "CRL download from " + url + " recently failed"
+        : "CRL from " + url + " has expired and could not be refreshed");
+    }
+    try {
+      state = refresh(entry).get(connectTimeout + readTimeout + HOST_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+      if (isExpired(state)) {
+        throw new IOException("CRL from " + url + " has expired (next update " + state.getCrl().getNextUpdate() + ")");
+      }
+      return new CRLInfo(url, state.getCrl());
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while downloading CRL from " + url, ex);
+    }
+    catch (ExecutionException | TimeoutException ex) {
+      throw new IOException("Unable to download CRL from " + url, ex.getCause() != null ? ex.getCause() : ex);
+    }
+  }
+
+  /**
+   * Starts an immediate background refresh of all cached CRLs that have not been downloaded within the minimum refresh
+   * time. This method does not wait for the downloads to complete.
+   */
+  @Override public void recache() {
+    long now = System.currentTimeMillis();
+    for (CrlEntry entry : entries.values()) {
+      CrlState state = entry.state;
+      if (state != null && now - state.getFetchTime() >= minRefreshMillis) {
+        refresh(entry);
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override public List<CRLCacheRecord> getCrlCacheRecords() {
+    return entries.values().stream()
+      .filter(entry -> entry.state != null)
+      .map(entry -> {
+        X509CRL crl = entry.state.getCrl();
+        return new CRLCacheRecord(entry.state.getFetchTime(),
+          crl.getNextUpdate() == null ? 0 : crl.getNextUpdate().getTime(), entry.url,
+          new File(cacheFolder, entry.fileName + CRL_FILE_SUFFIX).getAbsolutePath());
+      })
+      .collect(Collectors.toList());
+  }
+
+  @Override public void destroy() {
+    scheduler.shutdownNow();
+    downloadExecutor.shutdownNow();
+  }
+
+  /**
+   * Start a download of a CRL unless a download is already in progress
+   *
+   * @param entry the cache entry of the CRL
+   * @return future completed with the new state of the entry
+   */
+  private CompletableFuture<CrlState> refresh(CrlEntry entry) {
+    synchronized (entry) {
+      if (entry.inProgress == null) {
+        CompletableFuture<CrlState> result = new CompletableFuture<>();
+        entry.inProgress = result;
+        if (entry.scheduled != null) {
+          entry.scheduled.cancel(false);
+          entry.scheduled = null;
+        }
+        startDownload(entry, result);
+      }
+      return entry.inProgress;
+    }
+  }
+
+  private void startDownload(CrlEntry entry, CompletableFuture<CrlState> result) {
+    Semaphore permits = hostPermits.computeIfAbsent(getHost(entry.url), host -> new Semaphore(maxDownloadsPerHost));
+    if (!permits.tryAcquire()) {
+      scheduler.schedule(() -> startDownload(entry, result), HOST_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+      return;
+    }
+    Timer.Sample sample = validationMetrics.start();
+    CompletableFuture<Download> download;
+    try {
+      download = entry.url.toLowerCase().startsWith("ldap")
+        ? supplyAsync(() -> downloadLdap(entry.url))
+        : downloadHttp(entry.url, entry.state);
+    }
+    catch (RuntimeException ex) {
+      download = CompletableFuture.failedFuture(ex);
+    }
+    download.whenComplete((downloaded, ex) -> {
+      permits.release();
+      Throwable failure = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+      String outcome = "error";
+      if (failure == null) {
+        try {
+          outcome = update(entry, downloaded) ? "updated" : "not-modified";
+        }
+        catch (Exception updateException) {
+          failure = updateException;
+        }
+      }
+      if (failure == null) {
+        entry.failures = 0;
+      }
+      else {
+        entry.failures++;
+        entry.lastFailure = System.currentTimeMillis();
+        log.warn("Failed to download CRL from {}: {}", entry.url, failure.toString());
+      }
+      validationMetrics.stop(sample, ValidationMetrics.CRL_REFRESH, "outcome", outcome);
+      synchronized (entry) {
+        entry.inProgress = null;
+        scheduleRefresh(entry);
+      }
+      if (failure == null) {
+        result.complete(entry.state);
+      }
+      else {
+        result.completeExceptionally(failure);
+      }
+    });
+  }
+
+  /**
+   * Update an entry with a downloaded CRL
+   *
+   * @param entry the cache entry
+   * @param download the download result
+   * @return true if the CRL was changed
+   * @throws Exception on errors parsing or storing the CRL
+   */
+  private boolean update(CrlEntry entry, Download download) throws Exception {
+    long now = System.currentTimeMillis();
+    CrlState current = entry.state;
+    if (current != null && (download.getCrlBytes() == null || Arrays.equals(current.getCrl().getDigest(),
+      digest(download.getCrlBytes())))) {
+      entry.state = new CrlState(current.getCrl(), download.getEtag(), download.getLastModified(), now);
+      storeMetadata(entry);
+      log.debug("CRL from {} is not modified", entry.url);
+      return false;
+    }
+    if (download.getCrlBytes() == null) {
+      throw new IOException("No CRL content received");
+    }
+    IndexedX509CRL crl = storeCrl(entry, download.getCrlBytes(), IndexedX509CRL.parse(download.getCrlBytes()));
+    entry.state = new CrlState(crl, download.getEtag(), download.getLastModified(), now);
+    storeMetadata(entry);
+    log.info("Cached CRL from {} with {} revoked certificates and next update {}", entry.url, crl.getRevokedCount(),
+      crl.getNextUpdate());
+    if (current != null) {
+      for (Consumer<X509CRL> listener : updateListeners) {
+        listener.accept(crl);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Schedule the next refresh of an entry. Must be called while holding the entry lock.
+   *
+   * @param entry the cache entry
+   */
+  private void scheduleRefresh(CrlEntry entry) {
+    CrlState state = entry.state;
+    if (state == null || scheduler.isShutdown()) {
+      // Entries without a CRL are downloaded again on the next request
+      return;
+    }
+    long delay;
+    if (entry.failures > 0) {
+      long backoff = minRefreshMillis << Math.min(entry.failures - 1, 16);
+      delay = Math.min(Math.max(backoff, HOST_RETRY_DELAY_MILLIS), maxRefreshMillis);
+    }
+    else {
+      delay = getRefreshTime(state) - System.currentTimeMillis();
+    }
+    entry.scheduled = scheduler.schedule(() -> refresh(entry), Math.max(delay, 0), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Test if a CRL has passed its nextUpdate time by more than the expiry grace period
+   */
+  private boolean isExpired(CrlState state) {
+    Date nextUpdate = state.getCrl().getNextUpdate();
+    return nextUpdate != null && System.currentTimeMillis() > nextUpdate.getTime() + expiryGraceMillis;
+  }
+
+  private long getRefreshTime(CrlState state) {
+    long refreshTime = state.getFetchTime() + maxRefreshMillis;
+    Date nextUpdate = state.getCrl().getNextUpdate();
+    if (nextUpdate != null) {
+      refreshTime = Math.min(refreshTime, nextUpdate.getTime() - refreshMarginMillis);
+    }
+    return Math.max(refreshTime, state.getFetchTime() + minRefreshMillis);
+  }
+
+  private CompletableFuture<Download> downloadHttp(String url, CrlState current) {
+    HttpRequest.Builder requestBuilder = HttpRequest.newBuilder(URI.create(url))
+      .timeout(Duration.ofMillis(connectTimeout + readTimeout))
+      .GET();
+    if (current != null) {
+      if (current.getEtag() != null) {
+        requestBuilder.header("If-None-Match", current.getEtag());
+      }
+      if (current.getLastModified() != null) {
+        requestBuilder.header("If-Modified-Since", current.getLastModified());
+      }
+    }
+    return httpClient.sendAsync(requestBuilder.build(), HttpResponse.BodyHandlers.ofByteArray())
+      .thenApply(response -> {
+        String etag = response.headers().firstValue("ETag").orElse(null);
+        String lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+        if (response.statusCode() == 200) {
+          return new Download(response.body(), etag, lastModified);
+        }
+        if (response.statusCode() == 304 && current != null) {
+          return new Download(null,
+            etag != null ? etag : current.getEtag(),
+            lastModified != null ? lastModified : current.getLastModified());
+        }
+        throw new CompletionException(new IOException("HTTP status " + response.statusCode()));
+      });
+  }
+
+  private Download downloadLdap(String url) throws NamingException, IOException {
+    int queryIdx = url.indexOf('?');
+    String providerUrl = queryIdx < 0 ? url : url.substring(0, queryIdx);
+    String attributeName = queryIdx < 0 || queryIdx == url.length() - 1
+      ? LDAP_CRL_ATTRIBUTE
+      : url.substring(queryIdx + 1).split("\\?")[0];
+
+    Hashtable<String, String> env = new Hashtable<>();
+    env.put(Context.INITIAL_CONTEXT_FACTORY, LDAP_CONTEXT_FACTORY);
+    env.put(Context.PROVIDER_URL, providerUrl);
+    env.put(LDAP_CONNECT_TIMEOUT, String.valueOf(connectTimeout));
+    env.put(LDAP_READ_TIMEOUT, String.valueOf(readTimeout));
+    DirContext context = new InitialDirContext(env);
+    try {
+      Attribute attribute = context.getAttributes("", new String[] { attributeName }).get(attributeName);
+      if (attribute == null || !(attribute.get() instanceof byte[])) {
+        throw new IOException("No CRL attribute " + attributeName + " at " + url);
+      }
+      return new Download((byte[]) attribute.get(), null, null);
+    }
+    finally {
+      context.close();
+    }
+  }
+
+  private CompletableFuture<Download> supplyAsync(LdapDownloader downloader) {
+    Supplier<Download> supplier = () -> {
+      try {
+        return downloader.download();
+      }
+      catch (Exception ex) {
+        throw new CompletionException(ex);
+      }
+    };
+    return CompletableFuture.supplyAsync(supplier, downloadExecutor);
+  }
+
+  private void loadCachedCrls() {
+    File[] metaFiles = cacheFolder.listFiles((dir, name) -> name.endsWith(META_FILE_SUFFIX));
+    if (metaFiles == null) {
+      return;
+    }
+    for (File metaFile : metaFiles) {
+      try {
+        Properties meta = new Properties();
+        try (InputStream is = Files.newInputStream(metaFile.toPath())) {
+          meta.load(is);
+        }
+        String url = meta.getProperty("url");
+        CrlEntry entry = new CrlEntry(url);
+        File crlFile = getFile(entry, CRL_FILE_SUFFIX);
+        IndexedX509CRL crl;
+        try {
+          crl = IndexedX509CRL.load(crlFile, getFile(entry, INDEX_FILE_SUFFIX));
+        }
+        catch (IOException | CRLException ex) {
+          log.debug("Rebuilding index of cached CRL from {}: {}", url, ex.toString());
+          crl = storeCrl(entry, null, IndexedX509CRL.parse(Files.readAllBytes(crlFile.toPath())));
+        }
+        entry.state = new CrlState(crl, meta.getProperty("etag"), meta.getProperty("last-modified"),
+          Long.parseLong(meta.getProperty("fetch-time", "0")));
+        entries.put(url, entry);
+        synchronized (entry) {
+          scheduleRefresh(entry);
+        }
+        log.debug("Loaded cached CRL from {}", url);
+      }
+      catch (Exception ex) {
+        log.warn("Unable to load cached CRL {}: {}", metaFile.getName(), ex.toString());
+      }
+    }
+    log.info("Loaded {} cached CRLs from {}", entries.size(), cacheFolder.getAbsolutePath());
+  }
+
+  /**
+   * Store a CRL and its index in the cache folder and map the stored files
+   *
+   * @param entry the cache entry
+   * @param crlBytes the encoded CRL, or null if the CRL file is already stored
+   * @param crl the indexed CRL
+   * @return the CRL mapped from the stored files, or the provided CRL if the files could not be stored
+   */
+  private IndexedX509CRL storeCrl(CrlEntry entry, byte[] crlBytes, IndexedX509CRL crl) {
+    File crlFile = getFile(entry, CRL_FILE_SUFFIX);
+    File indexFile = getFile(entry, INDEX_FILE_SUFFIX);
+    try {
+      if (crlBytes != null) {
+        write(crlFile, crlBytes);
+      }
+      File tempFile = new File(cacheFolder, indexFile.getName() + ".tmp");
+      crl.writeIndex(tempFile);
+      Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+      return IndexedX509CRL.load(crlFile, indexFile);
+    }
+    catch (IOException | CRLException ex) {
+      log.warn("Unable to store CRL from {} in the cache folder: {}", entry.url, ex.toString());
+      return crl;
+    }
+  }
+
+  private File getFile(CrlEntry entry, String suffix) {
+    return new File(cacheFolder, entry.fileName + suffix);
+  }
+
+  private void storeMetadata(CrlEntry entry) throws IOException {
+    CrlState state = entry.state;
+    Properties meta = new Properties();
+    meta.setProperty("url", entry.url);
+    meta.setProperty("fetch-time", String.valueOf(state.getFetchTime()));
+    if (state.getEtag() != null) {
+      meta.setProperty("etag", state.getEtag());
+    }
+    if (state.getLastModified() != null) {
+      meta.setProperty("last-modified", state.getLastModified());
+    }
+    File tempFile = new File(cacheFolder, entry.fileName + META_FILE_SUFFIX + ".tmp");
+    try (OutputStream os = Files.newOutputStream(tempFile.toPath())) {
+      meta.store(os, null);
+    }
+    Files.move(tempFile.toPath(), new File(cacheFolder, entry.fileName + META_FILE_SUFFIX).toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void write(File file, byte[] data) throws IOException {
+    File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+    Files.write(tempFile.toPath(), data);
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static byte[] digest(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static String getHost(String url) {
+    try {
+      String host = URI.create(url).getHost();
+      return host == null ? "" : host.toLowerCase();
+    }
+    catch (IllegalArgumentException ex) {
+      return "";
+    }
+  }
+
+  /**
+   * Get the CRL URLs of the CRL distribution points with a full name. URLs of distribution points without CRL issuer
+   * and reasons are returned first, in each group HTTP URLs before LDAP URLs. The scope of CRLs of distribution points
+   * with a CRL issuer or reasons is checked when the CRL is used.
+   *
+   * @param crlDistPoint CRL distribution points extension
+   * @return CRL URLs
+   */
+  static List<String> getCrlUrls(CRLDistPoint crlDistPoint) {
+    List<String> urls = new ArrayList<>();
+    List<String> partialUrls = new ArrayList<>();
+    for (DistributionPoint distributionPoint : crlDistPoint.getDistributionPoints()) {
+      DistributionPointName name = distributionPoint.getDistributionPoint();
+      if (name == null || name.getType() != DistributionPointName.FULL_NAME) {
+        continue;
+      }
+      boolean partial = distributionPoint.getCRLIssuer() != null || distributionPoint.getReasons() != null;
+      for (GeneralName generalName : GeneralNames.getInstance(name.getName()).getNames()) {
+        if (generalName.getTagNo() == GeneralName.uniformResourceIdentifier) {
+          (partial ? partialUrls : urls).add(generalName.getName().toString());
+        }
+      }
+    }
+    List<String> orderedUrls = getHttpFirst(urls);
+    orderedUrls.addAll(getHttpFirst(partialUrls));
+    return orderedUrls;
+  }
+
+  private static List<String> getHttpFirst(List<String> urls) {
+    List<String> httpUrls = urls.stream().filter(url -> url.toLowerCase().startsWith("http")).collect(Collectors.toList());
+    urls.stream().filter(url -> url.toLowerCase().startsWith("ldap")).forEach(httpUrls::add);
+    return httpUrls;
+  }
+
+  private static ThreadFactory daemonThreadFactory(String prefix) {
+    AtomicInteger counter = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private interface LdapDownloader {
+    Download download() throws Exception;
+  }
+
+  /**
+   * Cache entry of one CRL distribution point URL
+   */
+  private static class CrlEntry {
+    private final String url;
+    private final String fileName;
+    /** Current CRL state, replaced as a whole when a CRL is downloaded */
+    private volatile CrlState state;
+    private CompletableFuture<CrlState> inProgress;
+    private ScheduledFuture<?> scheduled;
+    private volatile int failures;
+    private volatile long lastFailure;
+
+    CrlEntry(String url) {
+      this.url = url;
+      this.fileName = Hex.toHexString(digest(url.getBytes(StandardCharsets.UTF_8)));
+    }
+  }
+
+  /**
+   * Immutable state of a cached CRL
+   */
+  @Getter
+  @AllArgsConstructor
+  private static class CrlState {
+    private final IndexedX509CRL crl;
+    private final String etag;
+    private final String lastModified;
+    private final long fetchTime;
+  }
+
+  /**
+   * Result of a CRL download. The CRL bytes are null if the CRL was not modified.
+   */
+  @Getter
+  @AllArgsConstructor
+  private static class Download {
+    private final byte[] crlBytes;
+    private final String etag;
+    private final String lastModified;
+  }
+
+}
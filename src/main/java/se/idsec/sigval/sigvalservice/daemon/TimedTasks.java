@@ -23,36 +23,69 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import se.swedenconnect.sigval.cert.validity.crl.CRLCache;
 import se.idsec.sigval.sigvalservice.configuration.SignatureValidatorProvider;
+import se.idsec.sigval.sigvalservice.configuration.keys.SigningKeyPool;
+import se.idsec.sigval.sigvalservice.crl.IndexedX509CRL;
+import se.idsec.sigval.sigvalservice.crl.RefreshingCRLCache;
+import se.idsec.sigval.sigvalservice.tsl.RefreshingTslTrustStore;
+import se.idsec.sigval.sigvalservice.validation.CertificateValidationCache;
+import se.idsec.sigval.sigvalservice.validation.ValidationResultCache;
 
+import javax.security.auth.x500.X500Principal;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.security.cert.X509CRL;
+import java.util.Map;
 
 @Component
 @Slf4j
 public class TimedTasks implements InitializingBean {
 
-  private final CRLCache crlCache;
   private final SignatureValidatorProvider signatureValidatorProvider;
+  private final CertificateValidationCache certificateValidationCache;
+  private final ValidationResultCache validationResultCache;
+  private final Map<String, SigningKeyPool> signingKeyPoolMap;
 
   @Autowired
-  public TimedTasks(CRLCache crlCache, SignatureValidatorProvider signatureValidatorProvider,
-    @Value("${sigval-service.crl.recache-delay-seconds:3600}") String configuredCrlCacheDelaySeconds,
+  public TimedTasks(RefreshingCRLCache crlCache, RefreshingTslTrustStore tslTrustStore,
+    SignatureValidatorProvider signatureValidatorProvider,
+    CertificateValidationCache certificateValidationCache, ValidationResultCache validationResultCache,
+    Map<String, SigningKeyPool> signingKeyPoolMap,
     @Value("${sigval-service.validators.reload-interval-seconds:600}") String validatorReloadSeconds) {
-    this.crlCache = crlCache;
-    log.info("Setup CRL re-cache delay (seconds): {}", configuredCrlCacheDelaySeconds);
     this.signatureValidatorProvider = signatureValidatorProvider;
+    this.certificateValidationCache = certificateValidationCache;
+    this.validationResultCache = validationResultCache;
+    this.signingKeyPoolMap = signingKeyPoolMap;
     log.info("Setup Validator reload interval (seconds): {}", validatorReloadSeconds);
+    // CRLs are refreshed in the background by the CRL cache. Cached outcomes that may depend on revocation status from
+    // a previous CRL are removed when the CRL is updated.
+    crlCache.addUpdateListener(this::invalidateValidationCaches);
+    // Validators are reloaded as soon as the TSL Trust certificates have changed
+    tslTrustStore.addUpdateListener(this::reloadValidatorsAfterTslUpdate);
   }
 
-  @Scheduled(initialDelayString = "${sigval-service.crl.recache-delay-seconds:3600}" + "000", fixedDelayString =
-    "${sigval-service.crl.recache-delay-seconds:3600}" + "000")
-  public synchronized void recacheCRLs() {
-    log.info("Initiated CRL re-cache");
-    crlCache.recache();
-    log.debug("Finished CRL re-cache");
+  private void reloadValidatorsAfterTslUpdate() {
+    try {
+      reloadValidators();
+    }
+    catch (Exception ex) {
+      log.warn("Unable to reload validators after TSL Trust update: {}", ex.getMessage());
+    }
+  }
+
+  private void invalidateValidationCaches(X509CRL crl) {
+    if (crl instanceof IndexedX509CRL && ((IndexedX509CRL) crl).isIndirect()) {
+      // Entries of an indirect CRL revoke certificates of other issuers than the CRL issuer
+      certificateValidationCache.clear();
+      validationResultCache.clear();
+      log.debug("Cleared validation caches after update of indirect CRL");
+      return;
+    }
+    X500Principal issuer = crl.getIssuerX500Principal();
+    certificateValidationCache.invalidate(issuer);
+    validationResultCache.invalidate(issuer);
+    log.debug("Removed cached validation outcomes depending on {} after CRL update", issuer);
   }
 
   @Scheduled(initialDelayString = "${sigval-service.validators.reload-interval-seconds:600}" + "000", fixedDelayString =
@@ -61,9 +94,16 @@ public class TimedTasks implements InitializingBean {
     signatureValidatorProvider.loadValidators();
   }
 
+  /**
+   * Tests the PKCS#11 signing keys outside of the request path and reloads keys that fail the test
+   */
+  @Scheduled(initialDelayString = "${sigval-service.signing.health-check-interval-seconds:60}" + "000",
+    fixedDelayString = "${sigval-service.signing.health-check-interval-seconds:60}" + "000")
+  public void checkSigningKeys() {
+    signingKeyPoolMap.values().forEach(SigningKeyPool::checkHealth);
+  }
 
   @Override public void afterPropertiesSet() throws Exception {
-    recacheCRLs();
     reloadValidators();
   }
 }
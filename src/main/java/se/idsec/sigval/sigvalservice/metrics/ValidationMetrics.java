@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import se.idsec.sigval.sigvalservice.result.data.ResultPageData;
+import se.idsec.sigval.sigvalservice.result.data.ResultSignatureData;
+import se.swedenconnect.sigval.commons.document.DocType;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Records timers and counters for the validation service phases. Metrics are available through the actuator metrics
+ * endpoint.
+ */
+@Component
+public class ValidationMetrics {
+
+  /** Signed document validation, tagged with doctype, signatures, outcome and cache */
+  public static final String VALIDATION = "sigval.validation";
+  /** Signed validation report generation, tagged with doctype and outcome */
+  public static final String REPORT = "sigval.report";
+  /** SVT issuance, tagged with doctype and outcome */
+  public static final String SVT_ISSUANCE = "sigval.svt.issuance";
+  /** Document upload including the structural check, tagged with doctype and outcome */
+  public static final String UPLOAD = "sigval.upload";
+  /** Certificate path validation, tagged with validator, outcome and cache */
+  public static final String CERTIFICATE_VALIDATION = "sigval.certificate.validation";
+  /** Validator reload, tagged with changed */
+  public static final String VALIDATOR_RELOAD = "sigval.validators.reload";
+  /** Download of one CRL, tagged with outcome */
+  public static final String CRL_REFRESH = "sigval.crl.refresh";
+  /** Revocation check of one certificate, tagged with source, cache and validity */
+  public static final String REVOCATION_CHECK = "sigval.revocation.check";
+  /** Requests rejected by admission control, tagged with endpoint, doctype and reason */
+  public static final String ADMISSION_REJECTED = "sigval.admission.rejected";
+  /** Wait for a signing key slot, tagged with keysource and outcome */
+  public static final String SIGNING_WAIT = "sigval.signing.wait";
+  /** Number of signers waiting for a signing key slot, tagged with keysource */
+  public static final String SIGNING_QUEUE = "sigval.signing.queue";
+  /** Background test of a PKCS#11 signing key, tagged with keysource and outcome */
+  public static final String SIGNING_KEY_CHECK = "sigval.signing.key.check";
+  /** Issuance of a delegated signing key certificate, tagged with keysource and outcome */
+  public static final String SIGNING_DELEGATION = "sigval.signing.delegation";
+  /** Validated documents by document status */
+  public static final String DOCUMENT_STATUS = "sigval.documents";
+  /** Validated signatures by signature status */
+  public static final String SIGNATURE_STATUS = "sigval.signatures";
+
+  private final MeterRegistry meterRegistry;
+
+  @Autowired
+  public ValidationMetrics(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * Start timing an operation
+   *
+   * @return timer sample to be stopped by {@link #stop(Timer.Sample, String, String...)}
+   */
+  public Timer.Sample start() {
+    return Timer.start(meterRegistry);
+  }
+
+  /**
+   * Stop timing an operation and record the time
+   *
+   * @param sample timer sample returned by {@link #start()}
+   * @param name the timer name
+   * @param tags tag names and values
+   */
+  public void stop(Timer.Sample sample, String name, String... tags) {
+    sample.stop(meterRegistry.timer(name, tags));
+  }
+
+  /**
+   * Increment a counter
+   *
+   * @param name the counter name
+   * @param tags tag names and values
+   */
+  public void count(String name, String... tags) {
+    meterRegistry.counter(name, tags).increment();
+  }
+
+  /**
+   * Register a gauge
+   *
+   * @param name the gauge name
+   * @param obj the object providing the gauge value
+   * @param valueFunction function returning the gauge value
+   * @param tags tag names and values
+   * @param <T> the type of the object providing the gauge value
+   */
+  public <T> void gauge(String name, T obj, ToDoubleFunction<T> valueFunction, String... tags) {
+    meterRegistry.gauge(name, Tags.of(tags), obj, valueFunction);
+  }
+
+  /**
+   * Count the document status and the signature status of each signature of a validation result
+   *
+   * @param resultPageData validation result data
+   */
+  public void countResult(ResultPageData resultPageData) {
+    if (resultPageData.getStatus() != null) {
+      meterRegistry.counter(DOCUMENT_STATUS, "status", resultPageData.getStatus().name()).increment();
+    }
+    if (resultPageData.getResultSignatureDataList() != null) {
+      for (ResultSignatureData signatureData : resultPageData.getResultSignatureDataList()) {
+        meterRegistry.counter(SIGNATURE_STATUS, "status", String.valueOf(signatureData.getStatus())).increment();
+      }
+    }
+  }
+
+  /**
+   * Get the tag value for a document type
+   *
+   * @param docType document type
+   * @return tag value
+   */
+  public static String docTypeTag(DocType docType) {
+    return docType == null ? "unknown" : docType.name();
+  }
+
+  /**
+   * Get the tag value for a signature count. Signature counts are grouped to limit the number of tag values.
+   *
+   * @param signatureCount the number of signatures
+   * @return tag value
+   */
+  public static String signatureCountTag(int signatureCount) {
+    if (signatureCount <= 1) {
+      return String.valueOf(Math.max(signatureCount, 0));
+    }
+    if (signatureCount <= 5) {
+      return "2-5";
+    }
+    if (signatureCount <= 20) {
+      return "6-20";
+    }
+    return "21+";
+  }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.ocsp;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.Req;
+import se.swedenconnect.sigval.cert.validity.ocsp.OCSPDataLoader;
+
+import java.io.IOException;
+
+/**
+ * OCSP data loader that answers requests from the {@link OCSPResponseCache} and only contacts the OCSP responder
+ * when no current response is cached.
+ *
+ * <p>An instance is used for one OCSP check. Responses fetched from the responder are not added to the cache by the
+ * loader. The caller adds the response through {@link #getResponse()} when it has been verified.</p>
+ */
+@Slf4j
+public class CachingOCSPDataLoader implements OCSPDataLoader {
+
+  private final OCSPResponseCache ocspResponseCache;
+  private final OCSPDataLoader ocspDataLoader;
+
+  /** The certificate identifier of the last request */
+  @Getter private CertificateID certificateID;
+  /** True if the last request was answered from the cache */
+  @Getter private boolean cacheHit;
+  /** The cached or fetched response of the last request */
+  @Getter private OCSPResp response;
+
+  /**
+   * Constructor
+   *
+   * @param ocspResponseCache OCSP response cache
+   * @param ocspDataLoader data loader used to request responses that are not cached
+   */
+  public CachingOCSPDataLoader(OCSPResponseCache ocspResponseCache, OCSPDataLoader ocspDataLoader) {
+    this.ocspResponseCache = ocspResponseCache;
+    this.ocspDataLoader = ocspDataLoader;
+  }
+
+  @Override public OCSPResp requestOCSPResponse(String url, OCSPReq ocspReq, int connectTimeout, int readTimeout)
+    throws IOException {
+    Req[] requestList = ocspReq.getRequestList();
+    certificateID = requestList.length == 1 ? requestList[0].getCertID() : null;
+    cacheHit = false;
+    response = null;
+
+    if (certificateID != null && ocspResponseCache.isEnabled()) {
+      OCSPResp cachedResponse = ocspResponseCache.get(certificateID);
+      if (cachedResponse != null) {
+        log.debug("Using cached OCSP response for serial {}", certificateID.getSerialNumber().toString(16));
+        cacheHit = true;
+        response = cachedResponse;
+        return response;
+      }
+    }
+    response = ocspDataLoader.requestOCSPResponse(url, ocspReq, connectTimeout, readTimeout);
+    return response;
+  }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.ocsp;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.io.RandomAccessBuffer;
+import org.apache.pdfbox.pdfparser.COSParser;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Adds OCSP responses embedded in signed documents to the {@link OCSPResponseCache} before the document is validated,
+ * so that revocation checking of the signer certificates does not need to contact the OCSP responder.
+ *
+ * <p>OCSP responses are collected from the OCSPs array of the document security store (DSS) of PAdES signed PDF
+ * documents and from the EncapsulatedOCSPValue elements of XAdES revocation values. The PDF document is not loaded. Only
+ * the cross reference table, the trailer and the objects on the path from the document catalog to the OCSP responses
+ * are parsed.</p>
+ *
+ * <p>The embedded responses are added to the cache as unverified responses.</p>
+ */
+@Slf4j
+@Component
+public class EmbeddedOCSPResponses {
+
+  private static final COSName DSS = COSName.getPDFName("DSS");
+  private static final COSName OCSPS = COSName.getPDFName("OCSPs");
+  private static final String ENCAPSULATED_OCSP_VALUE = "EncapsulatedOCSPValue";
+
+  private final OCSPResponseCache ocspResponseCache;
+  private final boolean enabled;
+
+  @Autowired
+  public EmbeddedOCSPResponses(OCSPResponseCache ocspResponseCache,
+    @Value("${sigval-service.ocsp.enabled:true}") boolean ocspEnabled) {
+    this.ocspResponseCache = ocspResponseCache;
+    this.enabled = ocspEnabled && ocspResponseCache.isEnabled();
+  }
+
+  /**
+   * Add the OCSP responses of the document security store of a PDF document to the OCSP response cache
+   *
+   * @param pdfBytes the bytes of the PDF document
+   */
+  public void addFromPdf(byte[] pdfBytes) {
+    if (!enabled) {
+      return;
+    }
+    List<OCSPResp> responses = new ArrayList<>();
+    try (DSSParser parser = new DSSParser(pdfBytes)) {
+      COSArray ocspArray = parser.getOCSPs();
+      for (int i = 0; ocspArray != null && i < ocspArray.size(); i++) {
+        COSBase ocspObject = parser.resolve(ocspArray.get(i));
+        if (ocspObject instanceof COSStream) {
+          try (InputStream is = ((COSStream) ocspObject).createInputStream()) {
+            addResponse(responses, IOUtils.toByteArray(is));
+          }
+        }
+      }
+    }
+    catch (IOException | RuntimeException ex) {
+      log.debug("Unable to read document security store of PDF document: {}", ex.getMessage());
+    }
+    addToCache(responses);
+  }
+
+  /**
+   * Add the OCSP responses of the XAdES revocation values of an XML document to the OCSP response cache
+   *
+   * @param document the XML document
+   */
+  public void addFromXml(Document document) {
+    if (!enabled) {
+      return;
+    }
+    List<OCSPResp> responses = new ArrayList<>();
+    NodeList ocspValues = document.getElementsByTagNameNS("*", ENCAPSULATED_OCSP_VALUE);
+    for (int i = 0; i < ocspValues.getLength(); i++) {
+      try {
+        addResponse(responses, Base64.getMimeDecoder().decode(ocspValues.item(i).getTextContent().trim()));
+      }
+      catch (IllegalArgumentException ex) {
+        log.debug("Illegal encoding of encapsulated OCSP value: {}", ex.getMessage());
+      }
+    }
+    addToCache(responses);
+  }
+
+  private static void addResponse(List<OCSPResp> responses, byte[] responseBytes) {
+    try {
+      responses.add(new OCSPResp(responseBytes));
+    }
+    catch (Exception ex) {
+      log.debug("Unable to parse embedded OCSP response: {}", ex.getMessage());
+    }
+  }
+
+  private void addToCache(List<OCSPResp> responses) {
+    if (!responses.isEmpty()) {
+      int added = ocspResponseCache.putAll(responses);
+      log.debug("Added {} of {} embedded OCSP responses to the OCSP response cache", added, responses.size());
+    }
+  }
+
+  /**
+   * Parser that reads the OCSPs array of the document security store without parsing the rest of the document
+   */
+  private static class DSSParser extends COSParser implements AutoCloseable {
+
+    DSSParser(byte[] pdfBytes) throws IOException {
+      super(new RandomAccessBuffer(pdfBytes));
+      this.fileLen = source.length();
+      this.document = new COSDocument();
+    }
+
+    /**
+     * Get the OCSPs array of the document security store
+     *
+     * @return the OCSPs array or null if the document has no document security store with OCSP responses
+     * @throws IOException on errors parsing the document
+     */
+    COSArray getOCSPs() throws IOException {
+      COSDictionary trailer = retrieveTrailer();
+      COSBase catalog = resolve(trailer.getItem(COSName.ROOT));
+      if (!(catalog instanceof COSDictionary)) {
+        return null;
+      }
+      COSBase dss = resolve(((COSDictionary) catalog).getItem(DSS));
+      if (!(dss instanceof COSDictionary)) {
+        return null;
+      }
+      COSBase ocsps = resolve(((COSDictionary) dss).getItem(OCSPS));
+      return ocsps instanceof COSArray ? (COSArray) ocsps : null;
+    }
+
+    /**
+     * Parse the object of an indirect object reference
+     *
+     * @param base a direct object or an indirect object reference
+     * @return the direct object
+     * @throws IOException on errors parsing the object
+     */
+    COSBase resolve(COSBase base) throws IOException {
+      return base instanceof COSObject
+        ? parseObjectDynamically((COSObject) base, false)
+        : base;
+    }
+
+    @Override public void close() throws IOException {
+      try {
+        document.close();
+      }
+      finally {
+        source.close();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.ocsp;
+
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.swedenconnect.sigval.cert.chain.AbstractPathValidator;
+import se.swedenconnect.sigval.cert.chain.impl.CertificatePathValidator;
+import se.swedenconnect.sigval.cert.chain.impl.CertificatePathValidatorFactory;
+import se.swedenconnect.sigval.cert.chain.impl.CertificateValidityCheckerFactory;
+import se.swedenconnect.sigval.cert.validity.CertificateValidityChecker;
+import se.swedenconnect.sigval.cert.validity.crl.CRLCache;
+import se.swedenconnect.sigval.cert.validity.http.DefaultRevocationDataConnector;
+import se.swedenconnect.sigval.cert.validity.ocsp.OCSPDataLoader;
+
+import java.beans.PropertyChangeListener;
+import java.security.cert.CertStore;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+/**
+ * Path validator factory creating certificate path validators that check the revocation status of each certificate
+ * in the path with the {@link OCSPFirstValidityChecker}.
+ */
+public class OCSPFirstPathValidatorFactory implements CertificatePathValidatorFactory,
+  CertificateValidityCheckerFactory {
+
+  private final OCSPResponseCache ocspResponseCache;
+  private final ValidationMetrics validationMetrics;
+  private final OCSPDataLoader ocspDataLoader;
+
+  /**
+   * Constructor
+   *
+   * @param ocspResponseCache OCSP response cache
+   * @param validationMetrics validation metrics
+   */
+  public OCSPFirstPathValidatorFactory(OCSPResponseCache ocspResponseCache, ValidationMetrics validationMetrics) {
+    this.ocspResponseCache = ocspResponseCache;
+    this.validationMetrics = validationMetrics;
+    this.ocspDataLoader = new DefaultRevocationDataConnector();
+  }
+
+  @Override public AbstractPathValidator getPathValidator(X509Certificate targetCert, List<X509Certificate> chain,
+    List<TrustAnchor> trustAnchors, CertStore certStore, CRLCache crlCache) {
+    CertificatePathValidator pathValidator = new CertificatePathValidator(targetCert, chain, trustAnchors, certStore,
+      crlCache);
+    pathValidator.setCertificateValidityCheckerFactory(this);
+    return pathValidator;
+  }
+
+  @Override public CertificateValidityChecker getCertificateValidityChecker(X509Certificate certificate,
+    X509Certificate issuer, CRLCache crlCache, PropertyChangeListener... propertyChangeListeners) {
+    return new OCSPFirstValidityChecker(certificate, issuer, crlCache, ocspResponseCache, ocspDataLoader,
+      validationMetrics, propertyChangeListeners);
+  }
+
+}
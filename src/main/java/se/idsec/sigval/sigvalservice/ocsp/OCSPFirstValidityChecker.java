@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.ocsp;
+
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.swedenconnect.sigval.cert.validity.CertificateValidityChecker;
+import se.swedenconnect.sigval.cert.validity.ValidationStatus;
+import se.swedenconnect.sigval.cert.validity.ValidityChecker;
+import se.swedenconnect.sigval.cert.validity.crl.CRLCache;
+import se.swedenconnect.sigval.cert.validity.crl.impl.CRLValidityChecker;
+import se.swedenconnect.sigval.cert.validity.impl.BasicValidityPathChecker;
+import se.swedenconnect.sigval.cert.validity.ocsp.OCSPCertificateVerifier;
+import se.swedenconnect.sigval.cert.validity.ocsp.OCSPDataLoader;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.security.cert.X509Certificate;
+
+/**
+ * Certificate validity checker that checks revocation status using OCSP first and only falls back to CRL checking
+ * when OCSP does not give a conclusive answer.
+ *
+ * <p>OCSP requests are sent without nonce so that responses can be served from the {@link OCSPResponseCache}. A cached
+ * response that can not be verified is removed from the cache and a new response is requested from the responder.
+ * Fetched responses are added to the cache when they have been verified, and cached responses are marked as verified
+ * when they have been successfully used.</p>
+ */
+@Slf4j
+public class OCSPFirstValidityChecker extends CertificateValidityChecker {
+
+  private final CRLCache crlCache;
+  private final OCSPResponseCache ocspResponseCache;
+  private final OCSPDataLoader ocspDataLoader;
+  private final ValidationMetrics validationMetrics;
+
+  /**
+   * Constructor
+   *
+   * @param certificate the certificate to check
+   * @param issuer the issuer of the certificate
+   * @param crlCache CRL cache used for CRL fallback and for checking the status token path
+   * @param ocspResponseCache OCSP response cache
+   * @param ocspDataLoader data loader used to request OCSP responses that are not cached
+   * @param validationMetrics validation metrics
+   * @param propertyChangeListeners listeners notified of the validity status
+   */
+  public OCSPFirstValidityChecker(X509Certificate certificate, X509Certificate issuer, CRLCache crlCache,
+    OCSPResponseCache ocspResponseCache, OCSPDataLoader ocspDataLoader, ValidationMetrics validationMetrics,
+    PropertyChangeListener... propertyChangeListeners) {
+    super(certificate, issuer, EVENT_ID, new BasicValidityPathChecker(crlCache), propertyChangeListeners);
+    this.crlCache = crlCache;
+    this.ocspResponseCache = ocspResponseCache;
+    this.ocspDataLoader = ocspDataLoader;
+    this.validationMetrics = validationMetrics;
+  }
+
+  @Override public ValidationStatus checkValidity() {
+    Timer.Sample sample = validationMetrics.start();
+
+    CachingOCSPDataLoader loader = new CachingOCSPDataLoader(ocspResponseCache, ocspDataLoader);
+    ValidationStatus status = checkStatusPath(getOCSPVerifier(loader));
+    boolean cacheHit = loader.isCacheHit();
+    if (!isConclusive(status) && loader.isCacheHit()) {
+      log.debug("Cached OCSP response for {} could not be used - requesting a new response",
+        certificate.getSubjectX500Principal());
+      ocspResponseCache.remove(loader.getCertificateID());
+      loader = new CachingOCSPDataLoader(ocspResponseCache, ocspDataLoader);
+      status = checkStatusPath(getOCSPVerifier(loader));
+    }
+    if (isConclusive(status) && loader.getResponse() != null) {
+      ocspResponseCache.put(loader.getResponse(), true);
+    }
+
+    String source = "ocsp";
+    if (!isConclusive(status)) {
+      log.debug("No conclusive OCSP status for {} - checking CRL", certificate.getSubjectX500Principal());
+      status = checkStatusPath(new CRLValidityChecker(certificate, issuer, crlCache));
+      source = "crl";
+    }
+    validationMetrics.stop(sample, ValidationMetrics.REVOCATION_CHECK,
+      "source", source,
+      "cache", cacheHit ? "hit" : "miss",
+      "validity", status.getValidity() == null ? "unknown" : status.getValidity().name());
+    return status;
+  }
+
+  /**
+   * The OCSP and CRL checks are called synchronously and do not report their status through events
+   */
+  @Override public void propertyChange(PropertyChangeEvent evt) {
+  }
+
+  private OCSPCertificateVerifier getOCSPVerifier(CachingOCSPDataLoader loader) {
+    OCSPCertificateVerifier ocspVerifier = new OCSPCertificateVerifier(certificate, issuer);
+    ocspVerifier.setOcspDataLoader(loader);
+    ocspVerifier.setIncludeNonce(false);
+    return ocspVerifier;
+  }
+
+  /**
+   * Obtains the status from a validity checker and verifies the trust path of the status token
+   */
+  private ValidationStatus checkStatusPath(ValidityChecker validityChecker) {
+    ValidationStatus status;
+    try {
+      status = validityChecker.checkValidity();
+    }
+    catch (Exception ex) {
+      log.debug("Error checking validity status: {}", ex.getMessage());
+      status = null;
+    }
+    if (status == null) {
+      return ValidationStatus.builder()
+        .validity(ValidationStatus.CertificateValidity.UNKNOWN)
+        .exception(new RuntimeException("No status information"))
+        .build();
+    }
+    try {
+      if (!status.isStatusSignatureValid()) {
+        status.setException(new RuntimeException("Invalid or absent status token for " + status.getSourceType()));
+        log.debug("Invalid or absent status token for {}: {}", status.getSourceType(),
+          certificate.getSubjectX500Principal());
+        return status;
+      }
+      validityPathChecker.verifyValidityStatusTrustPath(status);
+    }
+    catch (Exception ex) {
+      log.debug("Exception when checking status token certificate path: {}", ex.getMessage());
+      status.setValidity(ValidationStatus.CertificateValidity.UNKNOWN);
+      status.setException(ex);
+    }
+    return status;
+  }
+
+  private static boolean isConclusive(ValidationStatus status) {
+    return status != null && status.isStatusSignatureValid()
+      && (ValidationStatus.CertificateValidity.VALID.equals(status.getValidity())
+      || ValidationStatus.CertificateValidity.REVOKED.equals(status.getValidity()));
+  }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.ocsp;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.cert.ocsp.*;
+import org.bouncycastle.util.encoders.Hex;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded cache of OCSP responses.
+ *
+ * <p>Responses are cached per certificate identifier (hash algorithm, issuer name hash, issuer key hash and serial
+ * number) until the nextUpdate time of the response, but never longer than the configured max age after thisUpdate.
+ * Responses without nextUpdate are cached for the max age.</p>
+ *
+ * <p>Cached responses are not trusted by the cache. The signature and the responder certificate path of a cached
+ * response are verified by the OCSP verifier each time the response is used. A response is marked as verified when it
+ * has been fetched from the responder or successfully used by the OCSP verifier. Unverified responses, such as
+ * responses embedded in uploaded documents, never replace a verified response. Otherwise a response with a later
+ * thisUpdate replaces a cached response for the same certificate, and a verified response replaces an unverified
+ * response.</p>
+ */
+@Slf4j
+@Component
+public class OCSPResponseCache {
+
+  private final int maxEntries;
+  private final long maxAgeMillis;
+  private final Map<String, CachedResponse> cache;
+
+  public OCSPResponseCache(
+    @Value("${sigval-service.ocsp.cache.max-entries:10000}") int maxEntries,
+    @Value("${sigval-service.ocsp.cache.max-age-seconds:3600}") long maxAgeSeconds) {
+    this.maxEntries = maxEntries;
+    this.maxAgeMillis = Math.max(1, maxAgeSeconds) * 1000;
+    this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+        return size() > OCSPResponseCache.this.maxEntries;
+      }
+    };
+    log.info("OCSP response cache max entries: {}, max age (seconds): {}", maxEntries, maxAgeSeconds);
+  }
+
+  /**
+   * Test if the cache is enabled
+   *
+   * @return true if responses are cached
+   */
+  public boolean isEnabled() {
+    return maxEntries > 0;
+  }
+
+  /**
+   * Get a cached OCSP response that is current for a certificate
+   *
+   * @param certificateID identifier of the certificate
+   * @return cached OCSP response or null if no current response is cached for this certificate
+   */
+  public OCSPResp get(CertificateID certificateID) {
+    String key = getKey(certificateID);
+    synchronized (cache) {
+      CachedResponse cachedResponse = cache.get(key);
+      if (cachedResponse == null) {
+        return null;
+      }
+      if (cachedResponse.getExpiryTime() <= System.currentTimeMillis()) {
+        cache.remove(key);
+        return null;
+      }
+      return cachedResponse.getResponse();
+    }
+  }
+
+  /**
+   * Add an OCSP response to the cache. The response is cached for each certificate it holds a status for. Responses
+   * that are not successful basic OCSP responses and responses holding a nonce are ignored.
+   *
+   * @param response OCSP response
+   * @param verified true if the signature and responder certificate path of the response have been verified
+   * @return true if the response was added to the cache for at least one certificate
+   */
+  public boolean put(OCSPResp response, boolean verified) {
+    if (!isEnabled() || response.getStatus() != OCSPResp.SUCCESSFUL) {
+      return false;
+    }
+    BasicOCSPResp basicResponse;
+    try {
+      basicResponse = (BasicOCSPResp) response.getResponseObject();
+    }
+    catch (Exception ex) {
+      log.debug("Unable to parse OCSP response: {}", ex.getMessage());
+      return false;
+    }
+    // A response with a nonce is rejected by the OCSP verifier when used for a request without nonce
+    if (basicResponse == null || basicResponse.getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce) != null) {
+      return false;
+    }
+
+    boolean added = false;
+    long now = System.currentTimeMillis();
+    for (SingleResp singleResp : basicResponse.getResponses()) {
+      if (singleResp.getCertStatus() instanceof UnknownStatus || singleResp.getThisUpdate() == null) {
+        continue;
+      }
+      long thisUpdate = singleResp.getThisUpdate().getTime();
+      long expiryTime = thisUpdate + maxAgeMillis;
+      Date nextUpdate = singleResp.getNextUpdate();
+      if (nextUpdate != null) {
+        expiryTime = Math.min(expiryTime, nextUpdate.getTime());
+      }
+      if (expiryTime <= now) {
+        continue;
+      }
+      String key = getKey(singleResp.getCertID());
+      synchronized (cache) {
+        CachedResponse cachedResponse = cache.get(key);
+        if (isReplaceable(cachedResponse, thisUpdate, verified)) {
+          cache.put(key, new CachedResponse(response, thisUpdate, expiryTime, verified));
+          added = true;
+        }
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Add unverified OCSP responses to the cache
+   *
+   * @param responses OCSP responses
+   * @return the number of responses that were added to the cache
+   */
+  public int putAll(List<OCSPResp> responses) {
+    int count = 0;
+    for (OCSPResp response : responses) {
+      if (put(response, false)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Remove the cached OCSP response for a certificate
+   *
+   * @param certificateID identifier of the certificate
+   */
+  public void remove(CertificateID certificateID) {
+    synchronized (cache) {
+      cache.remove(getKey(certificateID));
+    }
+  }
+
+  /**
+   * Remove all cached OCSP responses
+   */
+  public void clear() {
+    synchronized (cache) {
+      log.debug("Clearing {} cached OCSP responses", cache.size());
+      cache.clear();
+    }
+  }
+
+  private static boolean isReplaceable(CachedResponse cachedResponse, long thisUpdate, boolean verified) {
+    if (cachedResponse == null) {
+      return true;
+    }
+    if (cachedResponse.isVerified() != verified) {
+      return verified;
+    }
+    return cachedResponse.getThisUpdate() < thisUpdate;
+  }
+
+  private static String getKey(CertificateID certificateID) {
+    return certificateID.getHashAlgOID().getId()
+      + ":" + Hex.toHexString(certificateID.getIssuerNameHash())
+      + ":" + Hex.toHexString(certificateID.getIssuerKeyHash())
+      + ":" + certificateID.getSerialNumber().toString(16);
+  }
+
+  @Getter
+  @AllArgsConstructor
+  private static class CachedResponse {
+    private final OCSPResp response;
+    private final long thisUpdate;
+    private final long expiryTime;
+    private final boolean verified;
+  }
+
+}
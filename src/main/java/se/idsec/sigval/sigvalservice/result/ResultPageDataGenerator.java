@@ -26,6 +26,7 @@ import se.swedenconnect.sigval.commons.data.ExtendedSigValResult;
 import se.swedenconnect.sigval.commons.data.SigValIdentifiers;
 import se.swedenconnect.sigval.commons.data.SignedDocumentValidationResult;
 import se.swedenconnect.sigval.commons.data.TimeValidationResult;
+import se.swedenconnect.sigval.commons.document.DocType;
 import se.swedenconnect.sigval.pdf.data.ExtendedPdfSigValResult;
 import se.idsec.sigval.sigvalservice.configuration.ui.UIText;
 import se.idsec.sigval.sigvalservice.configuration.ui.UIUtils;
@@ -35,6 +36,7 @@ import se.idsec.sigval.sigvalservice.result.data.*;
 import se.swedenconnect.sigval.svt.claims.PolicyValidationClaims;
 import se.swedenconnect.sigval.svt.claims.ValidationConclusion;
 import se.swedenconnect.sigval.xml.data.ExtendedXmlSigvalResult;
+import se.swedenconnect.sigval.xml.utils.XMLDocumentBuilder;
 import se.swedenconnect.cert.extensions.AuthnContext;
 import se.swedenconnect.schemas.cert.authcont.saci_1_0.AttributeMapping;
 import se.swedenconnect.schemas.cert.authcont.saci_1_0.AuthContextInfo;
@@ -43,7 +45,8 @@ import se.swedenconnect.schemas.saml_2_0.assertion.Attribute;
 
 import java.io.IOException;
 import java.security.cert.X509Certificate;
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -51,7 +54,9 @@ import java.util.stream.Collectors;
 @Slf4j
 public class ResultPageDataGenerator {
 
-  private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm z");
+  /** Thread safe date formatter. This generator is used concurrently by request threads and batch workers */
+  private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm z")
+    .withZone(ZoneId.systemDefault());
 
   private final UIText uiText;
 
@@ -76,6 +81,62 @@ public class ResultPageDataGenerator {
     return generateResultPgeData(sigValResult, rpdBuilder.build(), lang);
   }
 
+  /**
+   * Get the compact validation result of an uploaded document that is stored for display on the result page.
+   *
+   * @param sigValResult the validation result
+   * @param documentBytes the bytes of the validated document
+   * @param docType the type of the validated document
+   * @param documentName the name of the document
+   * @param documentType the mime type of the document
+   * @return the compact validation result
+   */
+  public StoredValidationResult getStoredValidationResult(SignedDocumentValidationResult sigValResult,
+    byte[] documentBytes, DocType docType, String documentName, String documentType) {
+
+    Map<String, ResultPageData> resultPageData = new HashMap<>();
+    for (String lang : UIText.LANGUAGES) {
+      resultPageData.put(lang, getResultPageData(sigValResult, documentName, documentType, lang));
+    }
+
+    List<ExtendedSigValResult> signatureValidationResults = sigValResult.getSignatureValidationResults();
+    StoredValidationResult.StoredValidationResultBuilder builder = StoredValidationResult.builder()
+      .resultPageData(resultPageData)
+      .svtAvailable(signatureValidationResults.stream().anyMatch(sigResult -> sigResult.getSvtJWT() == null));
+    if (docType.equals(DocType.XML)) {
+      builder.signedDocuments(signatureValidationResults.stream()
+        .map(sigResult -> getXmlDocumentText(sigResult.getSignedDocument()))
+        .collect(Collectors.toList()));
+    }
+    else {
+      builder.signedDocumentLengths(signatureValidationResults.stream()
+        .map(sigResult -> getSignedRevisionLength(documentBytes, sigResult.getSignedDocument()))
+        .collect(Collectors.toList()));
+    }
+    return builder.build();
+  }
+
+  private static String getXmlDocumentText(byte[] signedDocument) {
+    try {
+      return XMLDocumentBuilder.getDocText(XMLDocumentBuilder.getDocument(signedDocument));
+    }
+    catch (Exception e) {
+      return "No document available";
+    }
+  }
+
+  /**
+   * The signed revision of a PDF signature is the leading part of the document up to the end of the signature
+   * revision. Only the length of the signed revision is stored.
+   */
+  private static Long getSignedRevisionLength(byte[] documentBytes, byte[] signedDocument) {
+    if (signedDocument == null || signedDocument.length > documentBytes.length
+      || !Arrays.equals(documentBytes, 0, signedDocument.length, signedDocument, 0, signedDocument.length)) {
+      return null;
+    }
+    return (long) signedDocument.length;
+  }
+
   private ResultPageData generateResultPgeData(SignedDocumentValidationResult sigValResult, ResultPageData resultPageData, String lang) {
 
     List<ExtendedSigValResult> signatureValidationResults = sigValResult.getSignatureValidationResults();
@@ -164,7 +225,7 @@ public class ResultPageDataGenerator {
       if (signatureValResult.getSvtJWT() != null){
         // This is SVT. Use the SVT expiry date if possible
         if (signatureValResult.getSvtJWT().getJWTClaimsSet().getExpirationTime() != null){
-          return dateFormat.format(signatureValResult.getSvtJWT().getJWTClaimsSet().getExpirationTime());
+          return dateFormat.format(signatureValResult.getSvtJWT().getJWTClaimsSet().getExpirationTime().toInstant());
         } else {
           return null;
         }
@@ -188,7 +249,7 @@ public class ResultPageDataGenerator {
         foundExpiryDate = true;
       }
       if (foundExpiryDate) {
-        return dateFormat.format(mostRecentExpiryDate);
+        return dateFormat.format(mostRecentExpiryDate.toInstant());
       }
 
     } catch (Exception ex){
@@ -224,7 +285,7 @@ public class ResultPageDataGenerator {
       }
     }
     if (foundValidTime) {
-      builder.timeStampTime(dateFormat.format(eariestTime));
+      builder.timeStampTime(dateFormat.format(eariestTime.toInstant()));
       builder.timeStampType(type);
     }
   }
@@ -251,7 +312,7 @@ public class ResultPageDataGenerator {
         .assertionRef(authContextInfo.getAssertionRef())
         .idp(authContextInfo.getIdentityProvider())
         .loa(authContextInfo.getAuthnContextClassRef())
-        .signingTime(dateFormat.format(authContextInfo.getAuthenticationInstant().toGregorianCalendar().getTime()))
+        .signingTime(dateFormat.format(authContextInfo.getAuthenticationInstant().toGregorianCalendar().getTime().toInstant()))
         .serviceProvider(authContextInfo.getServiceID());
       List<DisplayAttribute> displayAttributes = getAttrsFromAuthContextExt(authContextExtData, lang);
       builder.signerAttribute(displayAttributes);
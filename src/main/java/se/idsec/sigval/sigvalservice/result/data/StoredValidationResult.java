@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.result.data;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import se.idsec.sigval.sigvalservice.configuration.ui.UIText;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact result of the validation of an uploaded document. This is created when the document is validated and is
+ * stored in the document store so that the result page and the signed documents of each signature can be displayed
+ * without validating the document again.
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class StoredValidationResult {
+
+  /** Result page data for each supported language */
+  private Map<String, ResultPageData> resultPageData;
+  /** True if at least one signature is not supported by an SVT */
+  private boolean svtAvailable;
+  /** Text of the signed document of each signature of an XML document */
+  private List<String> signedDocuments;
+  /**
+   * Length of the signed revision of each signature of a PDF document. The signed revision is the leading part of the
+   * validated document. The length is null if the signed revision is not available
+   */
+  private List<Long> signedDocumentLengths;
+
+  /**
+   * Get the result page data of a language
+   *
+   * @param lang the language
+   * @return result page data of the language, or of the default language if the language is not supported
+   */
+  @JsonIgnore
+  public ResultPageData getResultPageData(String lang) {
+    ResultPageData data = resultPageData.get(lang);
+    return data != null ? data : resultPageData.get(UIText.DEFAULT_LANGUAGE);
+  }
+
+}
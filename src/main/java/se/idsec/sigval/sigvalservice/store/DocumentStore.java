@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.idsec.sigval.sigvalservice.store;
+
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+
+/**
+ * Store for documents uploaded to the validation UI.
+ *
+ * <p>Documents are identified by a handle created by the store. Only the handle is held in the HTTP session.</p>
+ */
+public interface DocumentStore {
+
+  /**
+   * Store a document
+   *
+   * @param documentBytes the bytes of the document
+   * @return handle identifying the stored document
+   * @throws IOException on errors storing the document
+   */
+  String store(byte[] documentBytes) throws IOException;
+
+  /**
+   * Get a stored document
+   *
+   * @param handle the handle of the stored document
+   * @return the bytes of the document or null if no document is stored under this handle
+   * @throws IOException on errors reading the document
+   */
+  byte[] get(String handle) throws IOException;
+
+  /**
+   * Get a stored document as a resource that is read when the document is written, without reading the whole
+   * document into memory first
+   *
+   * @param handle the handle of the stored document
+   * @return the document resource or null if no document is stored under this handle
+   */
+  Resource getResource(String handle);
+
+  /**
+   * Remove a stored document. Removing a document that is not stored has no effect.
+   *
+   * @param handle the handle of the stored document
+   */
+  void remove(String handle);
+
+}
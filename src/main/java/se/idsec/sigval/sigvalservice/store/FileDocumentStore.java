@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.idsec.sigval.sigvalservice.store;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Document store holding documents in temporary files. Heap use of this store does not depend on document size or
+ * on the number of stored documents.
+ *
+ * <p>Each store instance holds its documents in its own sub folder of the configured folder, so that several service
+ * instances can share the configured folder. The sub folder is deleted when the store is destroyed. Sub folders left
+ * by instances that were not stopped normally are deleted when a store is created, once neither the folder nor any
+ * document in it has been modified for longer than the max age of stored documents.</p>
+ */
+@Slf4j
+public class FileDocumentStore implements DocumentStore, DisposableBean {
+
+  private static final Pattern HANDLE_PATTERN = Pattern.compile("[0-9a-f\\-]{36}");
+  private static final String STORE_FOLDER_PREFIX = "store-";
+
+  private final File storeFolder;
+
+  /**
+   * Constructor
+   *
+   * @param baseFolder the folder holding the sub folder of stored documents of this store instance
+   * @param maxDocumentAgeMillis the time after which documents of other store instances are considered abandoned
+   * @throws IOException if the store folder can not be created
+   */
+  public FileDocumentStore(File baseFolder, long maxDocumentAgeMillis) throws IOException {
+    this.storeFolder = new File(baseFolder, STORE_FOLDER_PREFIX + UUID.randomUUID());
+    deleteStaleStoreFolders(baseFolder, maxDocumentAgeMillis);
+    Files.createDirectories(storeFolder.toPath());
+    log.debug("Storing documents in {}", storeFolder.getAbsolutePath());
+  }
+
+  @Override public String store(byte[] documentBytes) throws IOException {
+    String handle = UUID.randomUUID().toString();
+    try {
+      Files.write(getFile(handle).toPath(), documentBytes);
+    }
+    catch (NoSuchFileException ex) {
+      // The store folder was deleted as stale by another instance while no documents were stored
+      Files.createDirectories(storeFolder.toPath());
+      Files.write(getFile(handle).toPath(), documentBytes);
+    }
+    return handle;
+  }
+
+  @Override public byte[] get(String handle) throws IOException {
+    if (!isValidHandle(handle)) {
+      return null;
+    }
+    try {
+      return Files.readAllBytes(getFile(handle).toPath());
+    }
+    catch (NoSuchFileException ex) {
+      return null;
+    }
+  }
+
+  @Override public Resource getResource(String handle) {
+    if (!isValidHandle(handle)) {
+      return null;
+    }
+    File file = getFile(handle);
+    return file.isFile() ? new FileSystemResource(file) : null;
+  }
+
+  @Override public void remove(String handle) {
+    if (!isValidHandle(handle)) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(getFile(handle).toPath());
+    }
+    catch (IOException ex) {
+      log.warn("Unable to delete stored document {}: {}", handle, ex.getMessage());
+    }
+  }
+
+  @Override public void destroy() {
+    deleteStoredDocuments();
+    if (!storeFolder.delete()) {
+      log.debug("Unable to delete document store folder {}", storeFolder.getAbsolutePath());
+    }
+  }
+
+  private void deleteStoredDocuments() {
+    deleteDocuments(storeFolder);
+  }
+
+  /**
+   * Delete the store folders of other store instances where no document has been modified within the max age
+   */
+  private static void deleteStaleStoreFolders(File baseFolder, long maxDocumentAgeMillis) {
+    File[] folders = baseFolder.listFiles(
+      file -> file.isDirectory() && file.getName().startsWith(STORE_FOLDER_PREFIX));
+    if (folders == null) {
+      return;
+    }
+    long staleTime = System.currentTimeMillis() - maxDocumentAgeMillis;
+    for (File folder : folders) {
+      if (getLastModified(folder) >= staleTime) {
+        continue;
+      }
+      log.info("Deleting abandoned document store folder {}", folder.getAbsolutePath());
+      deleteDocuments(folder);
+      if (!folder.delete()) {
+        log.warn("Unable to delete abandoned document store folder {}", folder.getAbsolutePath());
+      }
+    }
+  }
+
+  private static long getLastModified(File folder) {
+    long lastModified = folder.lastModified();
+    File[] files = folder.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        lastModified = Math.max(lastModified, file.lastModified());
+      }
+    }
+    return lastModified;
+  }
+
+  private static void deleteDocuments(File folder) {
+    File[] files = folder.listFiles((dir, name) -> name.endsWith(".doc"));
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (!file.delete()) {
+        log.debug("Unable to delete stored document file {}", file.getName());
+      }
+    }
+  }
+
+  private File getFile(String handle) {
+    return new File(storeFolder, handle + ".doc");
+  }
+
+  private static boolean isValidHandle(String handle) {
+    return handle != null && HANDLE_PATTERN.matcher(handle).matches();
+  }
+
+}
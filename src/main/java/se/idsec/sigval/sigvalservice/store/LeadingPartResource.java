@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.store;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Resource holding the leading part of another resource. This is used to serve a signed revision of a stored PDF
+ * document without reading the document into memory.
+ */
+public class LeadingPartResource extends AbstractResource {
+
+  private final Resource resource;
+  private final long length;
+
+  /**
+   * Constructor
+   *
+   * @param resource the resource
+   * @param length the number of leading bytes of the resource held by this resource
+   */
+  public LeadingPartResource(Resource resource, long length) {
+    this.resource = resource;
+    this.length = length;
+  }
+
+  @Override public String getDescription() {
+    return "Leading " + length + " bytes of " + resource.getDescription();
+  }
+
+  @Override public boolean exists() {
+    return resource.exists();
+  }
+
+  @Override public long contentLength() {
+    return length;
+  }
+
+  @Override public InputStream getInputStream() throws IOException {
+    return new LeadingPartInputStream(resource.getInputStream(), length);
+  }
+
+  /**
+   * Input stream ending after a number of bytes of the underlying stream
+   */
+  private static class LeadingPartInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    LeadingPartInputStream(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    @Override public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = super.read();
+      if (b >= 0) {
+        remaining--;
+      }
+      return b;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int count = super.read(b, off, (int) Math.min(len, remaining));
+      if (count > 0) {
+        remaining -= count;
+      }
+      return count;
+    }
+
+    @Override public long skip(long n) throws IOException {
+      long skipped = super.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override public int available() throws IOException {
+      return (int) Math.min(super.available(), remaining);
+    }
+
+    @Override public boolean markSupported() {
+      return false;
+    }
+  }
+
+}
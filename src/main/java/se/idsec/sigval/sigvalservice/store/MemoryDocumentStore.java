@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.idsec.sigval.sigvalservice.store;
+
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Document store holding documents in memory
+ */
+public class MemoryDocumentStore implements DocumentStore {
+
+  private final Map<String, byte[]> documentMap = new ConcurrentHashMap<>();
+
+  @Override public String store(byte[] documentBytes) {
+    String handle = UUID.randomUUID().toString();
+    documentMap.put(handle, documentBytes);
+    return handle;
+  }
+
+  @Override public byte[] get(String handle) {
+    return handle == null ? null : documentMap.get(handle);
+  }
+
+  @Override public Resource getResource(String handle) {
+    byte[] documentBytes = get(handle);
+    return documentBytes == null ? null : new ByteArrayResource(documentBytes);
+  }
+
+  @Override public void remove(String handle) {
+    if (handle != null) {
+      documentMap.remove(handle);
+    }
+  }
+
+}
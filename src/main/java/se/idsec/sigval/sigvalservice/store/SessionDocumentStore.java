@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.idsec.sigval.sigvalservice.store;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Holds documents of an HTTP session in the {@link DocumentStore}.
+ *
+ * <p>The session attribute only holds a handle to the stored document. The stored document is removed when the
+ * attribute is removed or replaced, and when the session is invalidated or expires.</p>
+ *
+ * <p>The handle in the session attribute does not reference the document store, so that the handle remains usable
+ * after the session is serialized and restored. The stored document is removed through the document store of the
+ * application.</p>
+ */
+@Slf4j
+@Component
+public class SessionDocumentStore {
+
+  /** The document store of the application used by session attributes when they are unbound */
+  private static volatile DocumentStore applicationDocumentStore;
+
+  private final DocumentStore documentStore;
+  private final ObjectMapper objectMapper;
+
+  @Autowired
+  public SessionDocumentStore(DocumentStore documentStore, ObjectMapper objectMapper) {
+    this.documentStore = documentStore;
+    this.objectMapper = objectMapper;
+    applicationDocumentStore = documentStore;
+  }
+
+  /**
+   * Store a document and set its handle as a session attribute
+   *
+   * @param httpSession the HTTP session
+   * @param attributeName the name of the session attribute
+   * @param documentBytes the bytes of the document
+   * @throws IOException on errors storing the document
+   */
+  public void setDocument(HttpSession httpSession, String attributeName, byte[] documentBytes) throws IOException {
+    httpSession.setAttribute(attributeName, new DocumentHandle(documentStore.store(documentBytes)));
+  }
+
+  /**
+   * Store an object as JSON and set its handle as a session attribute
+   *
+   * @param httpSession the HTTP session
+   * @param attributeName the name of the session attribute
+   * @param object the object to store
+   * @throws IOException on errors storing the object
+   */
+  public void setObject(HttpSession httpSession, String attributeName, Object object) throws IOException {
+    setDocument(httpSession, attributeName, objectMapper.writeValueAsBytes(object));
+  }
+
+  /**
+   * Get the object referenced by a session attribute
+   *
+   * @param httpSession the HTTP session
+   * @param attributeName the name of the session attribute
+   * @param type the class of the object
+   * @param <T> the type of the object
+   * @return the object or null if no object is available
+   * @throws IOException on errors reading the object
+   */
+  public <T> T getObject(HttpSession httpSession, String attributeName, Class<T> type) throws IOException {
+    byte[] objectBytes = getDocument(httpSession, attributeName);
+    return objectBytes == null ? null : objectMapper.readValue(objectBytes, type);
+  }
+
+  /**
+   * Get the document referenced by a session attribute
+   *
+   * @param httpSession the HTTP session
+   * @param attributeName the name of the session attribute
+   * @return the bytes of the document or null if no document is available
+   * @throws IOException on errors reading the document
+   */
+  public byte[] getDocument(HttpSession httpSession, String attributeName) throws IOException {
+    Object attribute = httpSession.getAttribute(attributeName);
+    if (!(attribute instanceof DocumentHandle)) {
+      return null;
+    }
+    return documentStore.get(((DocumentHandle) attribute).getHandle());
+  }
+
+  /**
+   * Get the document referenced by a session attribute as a resource that is read when the document is written
+   *
+   * @param httpSession the HTTP session
+   * @param attributeName the name of the session attribute
+   * @return the document resource or null if no document is available
+   */
+  public Resource getDocumentResource(HttpSession httpSession, String attributeName) {
+    Object attribute = httpSession.getAttribute(attributeName);
+    if (!(attribute instanceof DocumentHandle)) {
+      return null;
+    }
+    return documentStore.getResource(((DocumentHandle) attribute).getHandle());
+  }
+
+  /**
+   * Session attribute value referencing a stored document
+   */
+  @Getter
+  private static class DocumentHandle implements HttpSessionBindingListener, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String handle;
+
+    DocumentHandle(String handle) {
+      this.handle = handle;
+    }
+
+    @Override public void valueUnbound(HttpSessionBindingEvent event) {
+      DocumentStore documentStore = applicationDocumentStore;
+      if (documentStore != null) {
+        log.debug("Removing stored session document {}", handle);
+        documentStore.remove(handle);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.svt;
+
+import com.nimbusds.jwt.SignedJWT;
+import io.micrometer.core.instrument.Timer;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Document;
+import se.idsec.sigval.sigvalservice.admission.AdmissionRejectedException;
+import se.idsec.sigval.sigvalservice.configuration.ValidatorSet;
+import se.idsec.sigval.sigvalservice.configuration.keys.PooledSigner;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.idsec.sigval.sigvalservice.ocsp.EmbeddedOCSPResponses;
+import se.swedenconnect.sigval.commons.document.DocType;
+import se.swedenconnect.sigval.commons.svt.SVTExtendpolicy;
+import se.swedenconnect.sigval.jose.svt.JOSEDocumentSVTIssuer;
+import se.swedenconnect.sigval.pdf.svt.PDFSVTSigValClaimsIssuer;
+import se.swedenconnect.sigval.pdf.timestamp.issue.impl.DefaultPDFDocTimestampSignatureInterface;
+import se.swedenconnect.sigval.pdf.timestamp.issue.impl.PDFDocTimstampProcessor;
+import se.swedenconnect.sigval.svt.issuer.SVTModel;
+import se.swedenconnect.sigval.xml.svt.XMLDocumentSVTIssuer;
+import se.swedenconnect.sigval.xml.utils.XMLDocumentBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Issues SVT for signed documents. Used by the SVT issuance API and by SVT jobs.
+ */
+@Slf4j
+@Component
+public class SvtIssuanceService {
+
+  @Value("${sigval-service.ui.downloaded-svt-suffix}") String svtSuffix;
+
+  private final SVTModel svtModel;
+  private final ValidationMetrics validationMetrics;
+  private final EmbeddedOCSPResponses embeddedOCSPResponses;
+
+  @Autowired
+  public SvtIssuanceService(SVTModel svtModel, ValidationMetrics validationMetrics,
+    EmbeddedOCSPResponses embeddedOCSPResponses) {
+    this.svtModel = svtModel;
+    this.validationMetrics = validationMetrics;
+    this.embeddedOCSPResponses = embeddedOCSPResponses;
+  }
+
+  /**
+   * Issue an SVT for a signed document
+   *
+   * @param documentBytes the signed document
+   * @param docType the document type
+   * @param svtExtendpolicy policy for documents that already hold an SVT
+   * @param validators the validator set used to validate the document and to issue the SVT
+   * @return the document enhanced with the SVT or null if the document type is not supported
+   * @throws IOException if the SVT could not be issued
+   * @throws AdmissionRejectedException if no SVT signing key was available
+   */
+  public IssuedSvtDocument issueSvt(byte[] documentBytes, DocType docType, SVTExtendpolicy svtExtendpolicy,
+    ValidatorSet validators) throws IOException, AdmissionRejectedException {
+    Timer.Sample sample = validationMetrics.start();
+    String outcome = "error";
+    try {
+      IssuedSvtDocument issuedSvtDocument;
+      switch (docType) {
+      case XML:
+        try (PooledSigner.Lease<XMLDocumentSVTIssuer> svtIssuer = validators.getXmlDocumentSVTIssuer().acquire()) {
+          Document xmlDocument = XMLDocumentBuilder.getDocument(documentBytes);
+          embeddedOCSPResponses.addFromXml(xmlDocument);
+          issuedSvtDocument = new IssuedSvtDocument(svtIssuer.get().issueSvt(xmlDocument, svtModel, svtExtendpolicy),
+            MediaType.TEXT_XML);
+        }
+        catch (AdmissionRejectedException ex) {
+          throw ex;
+        }
+        catch (Exception ex) {
+          log.error("Error issuing XML SVT token {}", ex.getMessage());
+          throw new IOException(ex.getMessage());
+        }
+        break;
+      case PDF:
+        try {
+          embeddedOCSPResponses.addFromPdf(documentBytes);
+          // The SVT and the document timestamp are signed one after the other, each holding a signing key
+          SignedJWT signedSvtJWT;
+          try (PooledSigner.Lease<PDFSVTSigValClaimsIssuer> claimsIssuer =
+                 validators.getPdfsvtSigValClaimsIssuer().acquire()) {
+            signedSvtJWT = claimsIssuer.get().getSignedSvtJWT(documentBytes, svtModel);
+          }
+          try (PooledSigner.Lease<DefaultPDFDocTimestampSignatureInterface> svtTsSigner =
+                 validators.getSvtTsSigner().acquire()) {
+            PDFDocTimstampProcessor.Result result = PDFDocTimstampProcessor.createSVTSealedPDF(
+              documentBytes, signedSvtJWT.serialize(), svtTsSigner.get());
+            issuedSvtDocument = getIncrementalUpdate(documentBytes, result.getDocument());
+          }
+        }
+        catch (AdmissionRejectedException ex) {
+          throw ex;
+        }
+        catch (Exception ex) {
+          log.error("Error issuing PDF SVT token {}", ex.getMessage());
+          throw new IOException(ex.getMessage());
+        }
+        break;
+      case JOSE:
+      case JOSE_COMPACT:
+        try (PooledSigner.Lease<JOSEDocumentSVTIssuer> svtIssuer = validators.getJoseDocumentSVTIssuer().acquire()) {
+          issuedSvtDocument = new IssuedSvtDocument(
+            svtIssuer.get().issueSvt(documentBytes, svtModel, svtExtendpolicy), MediaType.APPLICATION_JSON);
+        }
+        catch (AdmissionRejectedException ex) {
+          throw ex;
+        }
+        catch (Exception ex) {
+          log.error("Error issuing JOSE SVT token {}", ex.getMessage());
+          throw new IOException(ex.getMessage());
+        }
+        break;
+      default:
+        log.debug("Bad request - data type not recognized");
+        return null;
+      }
+
+      if (issuedSvtDocument.getUpdate() == null) {
+        throw new IOException("No SVT document was created");
+      }
+      outcome = "success";
+      return issuedSvtDocument;
+    }
+    finally {
+      validationMetrics.stop(sample, ValidationMetrics.SVT_ISSUANCE,
+        "doctype", ValidationMetrics.docTypeTag(docType), "outcome", outcome);
+    }
+  }
+
+  /**
+   * Get the PDF document timestamp holding the SVT as an incremental update of the signed document. The document
+   * timestamp is added with an incremental save, so the sealed document starts with the bytes of the signed document.
+   * Only the appended revision is kept, and the sealed document is written from the signed document followed by the
+   * appended revision rather than from a second copy of the whole document.
+   *
+   * @param documentBytes the signed document
+   * @param sealedDocument the SVT sealed document
+   * @return the SVT sealed document
+   */
+  private static IssuedSvtDocument getIncrementalUpdate(byte[] documentBytes, byte[] sealedDocument) {
+    if (sealedDocument == null) {
+      return new IssuedSvtDocument(null, MediaType.APPLICATION_PDF);
+    }
+    if (sealedDocument.length < documentBytes.length
+      || !Arrays.equals(sealedDocument, 0, documentBytes.length, documentBytes, 0, documentBytes.length)) {
+      log.debug("SVT sealed PDF is not an incremental update of the signed document");
+      return new IssuedSvtDocument(sealedDocument, MediaType.APPLICATION_PDF);
+    }
+    return new IssuedSvtDocument(documentBytes,
+      Arrays.copyOfRange(sealedDocument, documentBytes.length, sealedDocument.length), MediaType.APPLICATION_PDF);
+  }
+
+  /**
+   * Get the file name of a document enhanced with an SVT
+   *
+   * @param fileName the file name of the signed document
+   * @param tbsType the media type of the document
+   * @return file name of the SVT enhanced document
+   */
+  public String getSvtFileName(String fileName, MediaType tbsType) {
+
+    if (tbsType.equals(MediaType.TEXT_XML)) {
+      return fileName.toLowerCase().endsWith(".xml")
+        ? stripFileName(fileName, 4) + svtSuffix + ".xml"
+        : fileName + svtSuffix + ".xml";
+    }
+    if (tbsType.equals(MediaType.APPLICATION_PDF)) {
+      return fileName.toLowerCase().endsWith(".pdf")
+        ? stripFileName(fileName, 4) + svtSuffix + ".pdf"
+        : fileName + svtSuffix + ".pdf";
+    }
+    if (tbsType.equals(MediaType.APPLICATION_JSON)) {
+      return fileName.toLowerCase().endsWith(".json")
+        ? stripFileName(fileName, 5) + svtSuffix + ".json"
+        : fileName + svtSuffix + ".json";
+    }
+    return fileName;
+  }
+
+  private String stripFileName(String fileName, int len) {
+    return fileName.substring(0, fileName.length() - len);
+  }
+
+  /**
+   * A document enhanced with an SVT. The document is either held as a whole, or as a signed document followed by an
+   * incremental update appending the SVT.
+   */
+  @Getter
+  @AllArgsConstructor
+  public static class IssuedSvtDocument {
+
+    /** The signed document updated by the incremental update, or null if the update holds the whole document */
+    private final byte[] baseDocument;
+    /** The incremental update, or the whole document if there is no base document */
+    private final byte[] update;
+    /** The media type of the document */
+    private final MediaType mediaType;
+
+    public IssuedSvtDocument(byte[] document, MediaType mediaType) {
+      this(null, document, mediaType);
+    }
+
+    /**
+     * Get the length of the document
+     *
+     * @return document length
+     */
+    public long getLength() {
+      return (baseDocument == null ? 0 : baseDocument.length) + (long) update.length;
+    }
+
+    /**
+     * Write the document
+     *
+     * @param outputStream the stream receiving the document
+     * @throws IOException on errors writing the document
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+      if (baseDocument != null) {
+        outputStream.write(baseDocument);
+      }
+      outputStream.write(update);
+    }
+  }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.idsec.sigval.sigvalservice.svt;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Result of one document of an SVT job
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class SvtJobItem {
+
+  /** Item status of a document enhanced with an SVT */
+  public static final String ISSUED = "issued";
+  /** Item status of a document that could not be enhanced with an SVT */
+  public static final String FAILED = "failed";
+
+  /** The position of the document in the job, starting with 0 */
+  private long index;
+  private String documentName;
+  private String status;
+  /** Path of the SVT enhanced document, relative to the output directory of the job */
+  private String output;
+  /** Error message if no SVT was issued */
+  private String errorMessage;
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.idsec.sigval.sigvalservice.svt;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Request for an SVT job processing documents stored on the local file system of the service
+ */
+@Data
+@NoArgsConstructor
+public class SvtJobRequest {
+
+  /** Paths of the documents to process */
+  private List<String> paths;
+  /** Directory holding the documents to process. Documents in subdirectories are included */
+  private String directory;
+  /** Directory where SVT enhanced documents are written. If not set, documents are stored with the job */
+  private String outputDirectory;
+  /** True to replace existing SVT, false to extend them, or null to use the service default */
+  private Boolean replace;
+
+}
@@ -0,0 +1,855 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.svt;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+import se.idsec.sigval.sigvalservice.admission.AdmissionRejectedException;
+import se.idsec.sigval.sigvalservice.configuration.FileSize;
+import se.idsec.sigval.sigvalservice.configuration.SignatureValidatorProvider;
+import se.idsec.sigval.sigvalservice.controller.DocumentReader;
+import se.swedenconnect.sigval.commons.document.DocType;
+import se.swedenconnect.sigval.commons.svt.SVTExtendpolicy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Issues SVT for large sets of documents in asynchronous jobs.
+ *
+ * <p>The documents of a job are listed in a manifest when the job is submitted, either from an uploaded ZIP file or
+ * from paths and directories on the local file system. Documents are processed on a pool of worker threads shared by
+ * all jobs, and the result of each document is appended to the item log of the job as soon as it is available.</p>
+ *
+ * <p>Jobs are stored in the job folder and survive a restart of the service. Jobs that were queued or running when
+ * the service was stopped are resumed when the service is started, and documents listed in the item log are not
+ * processed again.</p>
+ *
+ * <p>Local paths are resolved to their real paths, so that symbolic links can not be used to access files outside of
+ * the allowed paths. The real path of each document and of each written SVT enhanced document is checked again when
+ * the document is processed.</p>
+ */
+@Slf4j
+@Component
+public class SvtJobService implements DisposableBean {
+
+  private static final String JOB_FILE = "job.json";
+  private static final String MANIFEST_FILE = "manifest.txt";
+  private static final String ITEMS_FILE = "items.ndjson";
+  private static final String INPUT_FOLDER = "input";
+  private static final String OUTPUT_FOLDER = "output";
+  private static final int STATUS_SAVE_INTERVAL = 1000;
+  private static final int MAX_SIGNING_RETRIES = 60;
+
+  private final boolean enabled;
+  private final Path jobFolder;
+  private final List<Path> allowedPaths;
+  private final boolean defaultReplaceSvt;
+  private final SvtIssuanceService svtIssuanceService;
+  private final SignatureValidatorProvider signatureValidatorProvider;
+  private final ObjectMapper objectMapper;
+  private final FileSize maxFileSize;
+  private final ExecutorService jobExecutor;
+  private final ExecutorService workerExecutor;
+  private final int maxPendingDocuments;
+  private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+  @Autowired
+  public SvtJobService(
+    @Value("${sigval-service.svt-jobs.enabled:false}") boolean enabled,
+    @Value("${sigval-service.svt-jobs.folder:#{null}}") String jobFolder,
+    @Value("${sigval-service.svt-jobs.allowed-paths:}") String allowedPaths,
+    @Value("${sigval-service.svt-jobs.worker-threads:0}") int workerThreads,
+    @Value("${sigval-service.svt-jobs.max-running-jobs:2}") int maxRunningJobs,
+    @Value("${sigval-service.svt.default-replace}") boolean defaultReplaceSvt,
+    SvtIssuanceService svtIssuanceService, SignatureValidatorProvider signatureValidatorProvider,
+    ObjectMapper objectMapper, FileSize maxFileSize) {
+    this.enabled = enabled;
+    this.jobFolder = jobFolder == null
+      ? Paths.get(System.getProperty("java.io.tmpdir"), "sigval-svt-jobs")
+      : Paths.get(jobFolder);
+    this.allowedPaths = Arrays.stream(allowedPaths.split(","))
+      .map(String::trim)
+      .filter(StringUtils::isNotEmpty)
+      .map(SvtJobService::getConfiguredPath)
+      .collect(Collectors.toList());
+    this.defaultReplaceSvt = defaultReplaceSvt;
+    this.svtIssuanceService = svtIssuanceService;
+    this.signatureValidatorProvider = signatureValidatorProvider;
+    this.objectMapper = objectMapper;
+    this.maxFileSize = maxFileSize;
+
+    int threads = workerThreads > 0 ? workerThreads : Runtime.getRuntime().availableProcessors();
+    this.maxPendingDocuments = 2 * threads;
+    this.jobExecutor = Executors.newFixedThreadPool(Math.max(maxRunningJobs, 1), daemonThreadFactory("svt-job-"));
+    this.workerExecutor = Executors.newFixedThreadPool(threads, daemonThreadFactory("svt-job-worker-"));
+    if (enabled) {
+      log.info("SVT jobs are stored at: {}, worker threads: {}, max running jobs: {}, allowed local paths: {}",
+        this.jobFolder.toAbsolutePath(), threads, Math.max(maxRunningJobs, 1), this.allowedPaths);
+    }
+  }
+
+  /**
+   * Submit a job for the documents of a ZIP file. The ZIP file is extracted into the job folder before the job is
+   * queued.
+   *
+   * @param zipInputStream the ZIP file
+   * @param replace true to replace existing SVT, false to extend them, or null to use the service default
+   * @return the status of the queued job
+   * @throws IOException if the ZIP file could not be stored
+   */
+  public SvtJobStatus submitZip(InputStream zipInputStream, Boolean replace) throws IOException {
+    checkEnabled();
+    Job job = createJob("zip", null, replace);
+    Path inputFolder = job.folder.resolve(INPUT_FOLDER);
+    long count = 0;
+    try (ZipInputStream zip = new ZipInputStream(zipInputStream);
+         BufferedWriter manifest = Files.newBufferedWriter(job.folder.resolve(MANIFEST_FILE), StandardCharsets.UTF_8)) {
+      ZipEntry entry;
+      while ((entry = zip.getNextEntry()) != null) {
+        if (entry.isDirectory() || entry.getName().startsWith("__MACOSX/") || !isValidName(entry.getName())) {
+          continue;
+        }
+        Path target = inputFolder.resolve(entry.getName()).normalize();
+        if (!target.startsWith(inputFolder)) {
+          log.debug("Ignoring ZIP entry outside of the job input folder: {}", entry.getName());
+          continue;
+        }
+        // Documents exceeding the maximum document size are not stored and are reported as failed items
+        byte[] documentBytes = DocumentReader.read(zip, entry.getSize(), maxFileSize.getIntValue());
+        if (documentBytes != null) {
+          Files.createDirectories(target.getParent());
+          Files.write(target, documentBytes);
+        }
+        writeManifestLine(manifest, entry.getName(), target);
+        count++;
+      }
+    }
+    catch (IOException ex) {
+      FileSystemUtils.deleteRecursively(job.folder);
+      throw ex;
+    }
+    return queue(job, count);
+  }
+
+  /**
+   * Submit a job for documents on the local file system of the service. All paths must be within the allowed paths.
+   *
+   * @param request the job request
+   * @return the status of the queued job
+   * @throws IOException if the documents could not be listed
+   */
+  public SvtJobStatus submitLocal(SvtJobRequest request) throws IOException {
+    checkEnabled();
+    boolean hasPaths = request.getPaths() != null && !request.getPaths().isEmpty();
+    if (hasPaths == StringUtils.isNotBlank(request.getDirectory())) {
+      throw new IllegalArgumentException("Either paths or directory must be provided");
+    }
+    Path outputDirectory = null;
+    if (StringUtils.isNotBlank(request.getOutputDirectory())) {
+      outputDirectory = getAllowedPath(request.getOutputDirectory());
+    }
+    List<Path> paths = new ArrayList<>();
+    if (hasPaths) {
+      for (String path : request.getPaths()) {
+        paths.add(getAllowedPath(path));
+      }
+    }
+    Path directory = hasPaths ? null : getAllowedPath(request.getDirectory());
+    if (directory != null && !Files.isDirectory(directory)) {
+      throw new IllegalArgumentException("Not a directory: " + request.getDirectory());
+    }
+
+    Job job = createJob(hasPaths ? "paths" : "directory", outputDirectory, request.getReplace());
+    long count = 0;
+    try (BufferedWriter manifest = Files.newBufferedWriter(job.folder.resolve(MANIFEST_FILE), StandardCharsets.UTF_8)) {
+      if (hasPaths) {
+        for (Path path : paths) {
+          // The document name is the path without its root, so that output names do not collide
+          writeManifestLine(manifest, path.getRoot().relativize(path).toString(), path);
+          count++;
+        }
+      }
+      else {
+        try (Stream<Path> files = Files.walk(directory)) {
+          for (Path path : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+            String name = directory.relativize(path).toString();
+            // A symbolic link in the directory may point outside of the allowed paths
+            Path realPath = path.toRealPath();
+            if (!isAllowedPath(realPath)) {
+              log.debug("Ignoring document outside of the allowed paths of SVT jobs: {}", path);
+              continue;
+            }
+            if (isValidName(name)) {
+              writeManifestLine(manifest, name, realPath);
+              count++;
+            }
+          }
+        }
+      }
+    }
+    catch (IOException ex) {
+      FileSystemUtils.deleteRecursively(job.folder);
+      throw ex;
+    }
+    return queue(job, count);
+  }
+
+  /**
+   * Get the status of a job
+   *
+   * @param jobId the job ID
+   * @return job status or null if there is no such job
+   */
+  public SvtJobStatus getStatus(String jobId) {
+    checkEnabled();
+    Job job = jobs.get(jobId);
+    return job == null ? null : job.getStatusSnapshot();
+  }
+
+  /**
+   * Get the status of all jobs
+   *
+   * @return job status of all jobs ordered by creation time
+   */
+  public List<SvtJobStatus> getStatusList() {
+    checkEnabled();
+    return jobs.values().stream()
+      .map(Job::getStatusSnapshot)
+      .sorted(Comparator.comparing(SvtJobStatus::getCreated))
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Write the item log of a job as newline delimited JSON
+   *
+   * @param jobId the job ID
+   * @param outputStream the stream receiving the item log
+   * @return false if there is no such job
+   * @throws IOException on errors writing the item log
+   */
+  public boolean writeItems(String jobId, OutputStream outputStream) throws IOException {
+    Job job = jobs.get(checkJobId(jobId));
+    if (job == null) {
+      return false;
+    }
+    Path itemsFile = job.folder.resolve(ITEMS_FILE);
+    if (Files.exists(itemsFile)) {
+      Files.copy(itemsFile, outputStream);
+    }
+    return true;
+  }
+
+  /**
+   * Get the SVT enhanced document of one item of a job
+   *
+   * @param jobId the job ID
+   * @param index the index of the item
+   * @return the path of the SVT enhanced document or null if there is no such job, item or document
+   * @throws IOException on errors reading the item log
+   */
+  public Path getItemOutput(String jobId, long index) throws IOException {
+    Job job = jobs.get(checkJobId(jobId));
+    if (job == null) {
+      return null;
+    }
+    SvtJobItem[] found = new SvtJobItem[1];
+    readItems(job, item -> {
+      if (item.getIndex() == index && item.getOutput() != null) {
+        found[0] = item;
+      }
+    });
+    if (found[0] == null) {
+      return null;
+    }
+    Path output = getOutputFolder(job).resolve(found[0].getOutput());
+    return Files.isRegularFile(output) ? output : null;
+  }
+
+  /**
+   * Write the SVT enhanced documents of a job as a ZIP file
+   *
+   * @param jobId the job ID
+   * @param outputStream the stream receiving the ZIP file
+   * @return false if there is no such job
+   * @throws IOException on errors writing the ZIP file
+   */
+  public boolean writeOutputZip(String jobId, OutputStream outputStream) throws IOException {
+    Job job = jobs.get(checkJobId(jobId));
+    if (job == null) {
+      return false;
+    }
+    Path outputFolder = getOutputFolder(job);
+    try (ZipOutputStream zip = new ZipOutputStream(outputStream)) {
+      readItems(job, item -> {
+        Path output = item.getOutput() == null ? null : outputFolder.resolve(item.getOutput());
+        if (output != null && Files.isRegularFile(output)) {
+          zip.putNextEntry(new ZipEntry(item.getOutput().replace(File.separatorChar, '/')));
+          Files.copy(output, zip);
+          zip.closeEntry();
+        }
+      });
+    }
+    return true;
+  }
+
+  /**
+   * Cancel a job and delete the job folder. SVT enhanced documents written to an output directory are not deleted.
+   *
+   * @param jobId the job ID
+   * @return false if there is no such job
+   */
+  public boolean delete(String jobId) {
+    Job job = jobs.remove(checkJobId(jobId));
+    if (job == null) {
+      return false;
+    }
+    job.cancelled = true;
+    synchronized (job) {
+      if (job.future != null) {
+        job.future.cancel(true);
+      }
+    }
+    try {
+      FileSystemUtils.deleteRecursively(job.folder);
+    }
+    catch (IOException ex) {
+      log.warn("Unable to delete SVT job folder {}: {}", job.folder, ex.getMessage());
+    }
+    log.info("Deleted SVT job {}", jobId);
+    return true;
+  }
+
+  /**
+   * Load the stored jobs and resume jobs that were queued or running when the service was stopped
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void resumeJobs() {
+    if (!enabled || !Files.isDirectory(jobFolder)) {
+      return;
+    }
+    try (DirectoryStream<Path> folders = Files.newDirectoryStream(jobFolder, Files::isDirectory)) {
+      for (Path folder : folders) {
+        Path jobFile = folder.resolve(JOB_FILE);
+        if (!Files.exists(jobFile)) {
+          continue;
+        }
+        try {
+          Job job = new Job(folder, objectMapper.readValue(jobFile.toFile(), SvtJobStatus.class));
+          jobs.put(job.status.getJobId(), job);
+          if (job.status.getState() == SvtJobStatus.State.QUEUED
+            || job.status.getState() == SvtJobStatus.State.RUNNING) {
+            log.info("Resuming SVT job {} after {} of {} documents", job.status.getJobId(),
+              job.status.getProcessedItems(), job.status.getTotalItems());
+            job.updateStatus(status -> status.setState(SvtJobStatus.State.QUEUED));
+            start(job);
+          }
+        }
+        catch (IOException ex) {
+          log.warn("Unable to load SVT job from {}: {}", folder, ex.getMessage());
+        }
+      }
+    }
+    catch (IOException ex) {
+      log.warn("Unable to load SVT jobs from {}: {}", jobFolder, ex.getMessage());
+    }
+  }
+
+  private Job createJob(String source, Path outputDirectory, Boolean replace) throws IOException {
+    SvtJobStatus status = new SvtJobStatus();
+    status.setJobId(UUID.randomUUID().toString());
+    status.setState(SvtJobStatus.State.QUEUED);
+    status.setSource(source);
+    status.setOutputDirectory(outputDirectory == null ? null : outputDirectory.toString());
+    status.setReplace(replace == null ? defaultReplaceSvt : replace);
+    status.setCreated(Instant.now().toString());
+    Path folder = jobFolder.resolve(status.getJobId());
+    Files.createDirectories(folder);
+    return new Job(folder, status);
+  }
+
+  private SvtJobStatus queue(Job job, long count) throws IOException {
+    job.status.setTotalItems(count);
+    saveStatus(job);
+    jobs.put(job.status.getJobId(), job);
+    start(job);
+    log.info("Queued SVT job {} with {} documents", job.status.getJobId(), count);
+    return job.getStatusSnapshot();
+  }
+
+  private void start(Job job) {
+    synchronized (job) {
+      job.future = jobExecutor.submit(() -> run(job));
+    }
+  }
+
+  /**
+   * Process the documents of a job. Documents are submitted to the worker threads in the order of the manifest, and
+   * the number of documents submitted but not yet logged is limited.
+   */
+  private void run(Job job) {
+    SvtJobStatus status = job.status;
+    if (job.cancelled) {
+      return;
+    }
+    job.updateStatus(jobStatus -> {
+      jobStatus.setState(SvtJobStatus.State.RUNNING);
+      jobStatus.setStarted(Instant.now().toString());
+      jobStatus.setProcessedItems(0);
+      jobStatus.setIssuedItems(0);
+      jobStatus.setFailedItems(0);
+    });
+    CompletionService<SvtJobItem> completionService = new ExecutorCompletionService<>(workerExecutor);
+    Set<Future<SvtJobItem>> pendingFutures = new HashSet<>();
+    try {
+      // Documents already in the item log were processed before a restart
+      BitSet processed = new BitSet();
+      job.outputs.clear();
+      readItems(job, item -> {
+        processed.set((int) item.getIndex());
+        if (item.getOutput() != null) {
+          job.outputs.add(item.getOutput());
+        }
+        job.updateStatus(jobStatus -> countItem(jobStatus, item));
+      });
+      saveStatus(job);
+      endItemLog(job);
+
+      try (BufferedReader manifest = Files.newBufferedReader(job.folder.resolve(MANIFEST_FILE), StandardCharsets.UTF_8);
+           BufferedWriter items = Files.newBufferedWriter(job.folder.resolve(ITEMS_FILE), StandardCharsets.UTF_8,
+             StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+        String line;
+        int index = 0;
+        while ((line = manifest.readLine()) != null && !job.cancelled) {
+          int itemIndex = index++;
+          if (processed.get(itemIndex)) {
+            continue;
+          }
+          while (pendingFutures.size() >= maxPendingDocuments) {
+            logItem(job, items, getResult(completionService.take(), pendingFutures));
+          }
+          String[] manifestLine = line.split("\t", 2);
+          pendingFutures.add(completionService.submit(
+            () -> processItem(job, itemIndex, manifestLine[0], Paths.get(manifestLine[1]))));
+        }
+        while (!pendingFutures.isEmpty()) {
+          logItem(job, items, getResult(completionService.take(), pendingFutures));
+        }
+      }
+      if (!job.cancelled) {
+        job.updateStatus(jobStatus -> jobStatus.setState(SvtJobStatus.State.COMPLETED));
+        log.info("Completed SVT job {} - issued: {}, failed: {}", status.getJobId(), status.getIssuedItems(),
+          status.getFailedItems());
+      }
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      if (!job.cancelled) {
+        // The service is stopping. The job is resumed at the next start.
+        return;
+      }
+    }
+    catch (Exception ex) {
+      log.warn("SVT job {} failed: {}", status.getJobId(), ex.getMessage());
+      job.updateStatus(jobStatus -> {
+        jobStatus.setState(SvtJobStatus.State.FAILED);
+        jobStatus.setErrorMessage(ex.getMessage());
+      });
+    }
+    finally {
+      pendingFutures.forEach(future -> future.cancel(true));
+    }
+    job.updateStatus(jobStatus -> {
+      if (job.cancelled) {
+        jobStatus.setState(SvtJobStatus.State.CANCELLED);
+      }
+      jobStatus.setCompleted(Instant.now().toString());
+    });
+    saveStatusQuietly(job);
+  }
+
+  private SvtJobItem processItem(Job job, long index, String documentName, Path path) throws InterruptedException {
+    SvtJobItem.SvtJobItemBuilder builder = SvtJobItem.builder()
+      .index(index)
+      .documentName(documentName)
+      .status(SvtJobItem.FAILED);
+    try {
+      if (!Files.isRegularFile(path)) {
+        return builder.errorMessage("Empty document, document not found or document exceeds the maximum document size")
+          .build();
+      }
+      // The path may have been replaced by a symbolic link after the job was submitted
+      path = path.toRealPath();
+      if (!isAllowedDocument(job, path)) {
+        return builder.errorMessage("Document is not within the allowed paths of SVT jobs").build();
+      }
+      if (Files.size(path) > maxFileSize.getIntValue()) {
+        return builder.errorMessage("Document exceeds the maximum document size").build();
+      }
+      byte[] documentBytes = Files.readAllBytes(path);
+      SvtIssuanceService.IssuedSvtDocument issuedSvtDocument = issueSvt(job, documentBytes);
+      if (issuedSvtDocument == null) {
+        return builder.errorMessage("Document type not recognized").build();
+      }
+
+      Path documentPath = Paths.get(documentName).normalize();
+      String outputName = svtIssuanceService.getSvtFileName(documentPath.getFileName().toString(),
+        issuedSvtDocument.getMediaType());
+      Path relativeOutput = documentPath.getParent() == null
+        ? Paths.get(outputName)
+        : documentPath.getParent().resolve(outputName);
+      // Different documents, such as a.pdf and a, may get the same output name
+      if (!job.outputs.add(relativeOutput.toString())) {
+        return builder.errorMessage("The SVT enhanced document name " + relativeOutput
+          + " is already used by another document of the job").build();
+      }
+      try {
+        writeOutput(job, relativeOutput, issuedSvtDocument);
+      }
+      catch (IOException | RuntimeException ex) {
+        job.outputs.remove(relativeOutput.toString());
+        throw ex;
+      }
+      return builder
+        .status(SvtJobItem.ISSUED)
+        .output(relativeOutput.toString())
+        .build();
+    }
+    catch (IOException | RuntimeException ex) {
+      log.debug("Failed to issue SVT for {} in job {}: {}", documentName, job.status.getJobId(), ex.getMessage());
+      return builder.errorMessage(ex.getMessage()).build();
+    }
+  }
+
+  /**
+   * Write an SVT enhanced document to the output folder of a job. The real path of the output is checked to be within
+   * the output folder, so that symbolic links in the output folder can not redirect the document.
+   */
+  private void writeOutput(Job job, Path relativeOutput, SvtIssuanceService.IssuedSvtDocument issuedSvtDocument)
+    throws IOException {
+    Path outputFolder = getOutputFolder(job);
+    if (job.status.getOutputDirectory() != null) {
+      Files.createDirectories(outputFolder);
+    }
+    Path realOutputFolder = getRealPath(outputFolder);
+    if (job.status.getOutputDirectory() != null && !isAllowedPath(realOutputFolder)) {
+      throw new IOException("The output directory is not within the allowed paths of SVT jobs");
+    }
+    Path output = outputFolder.resolve(relativeOutput);
+    Files.createDirectories(output.getParent());
+    if (!getRealPath(output).startsWith(realOutputFolder)) {
+      throw new IOException("The SVT enhanced document is not within the output directory of the job");
+    }
+    // Write to a temporary file first, so that an interrupted job never leaves a partial document
+    Path tempFile = Files.createTempFile(output.getParent(), ".svt", ".tmp");
+    try (OutputStream outputStream = Files.newOutputStream(tempFile)) {
+      issuedSvtDocument.writeTo(outputStream);
+    }
+    Files.move(tempFile, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Issue an SVT. Jobs are not subject to admission control, but wait and retry when no SVT signing key is available
+   */
+  private SvtIssuanceService.IssuedSvtDocument issueSvt(Job job, byte[] documentBytes)
+    throws IOException, InterruptedException {
+    SVTExtendpolicy svtExtendpolicy = job.status.isReplace() ? SVTExtendpolicy.REPLACE : SVTExtendpolicy.EXTEND;
+    DocType docType = DocType.getDocType(documentBytes);
+    for (int attempt = 1; ; attempt++) {
+      try {
+        // The current validator set is used, since a job may run through several trust configuration updates
+        return svtIssuanceService.issueSvt(documentBytes, docType, svtExtendpolicy,
+          signatureValidatorProvider.getValidators());
+      }
+      catch (AdmissionRejectedException ex) {
+        if (attempt >= MAX_SIGNING_RETRIES || job.cancelled) {
+          throw new IOException("No SVT signing key available", ex);
+        }
+        TimeUnit.SECONDS.sleep(ex.getRetryAfterSeconds());
+      }
+    }
+  }
+
+  private void logItem(Job job, BufferedWriter items, SvtJobItem item) throws IOException {
+    items.write(objectMapper.writeValueAsString(item));
+    items.newLine();
+    items.flush();
+    job.updateStatus(status -> countItem(status, item));
+    if (job.status.getProcessedItems() % STATUS_SAVE_INTERVAL == 0) {
+      saveStatus(job);
+    }
+  }
+
+  /**
+   * End the last line of the item log, which is incomplete if the service was stopped while the line was written
+   */
+  private static void endItemLog(Job job) throws IOException {
+    Path itemsFile = job.folder.resolve(ITEMS_FILE);
+    if (!Files.exists(itemsFile) || Files.size(itemsFile) == 0) {
+      return;
+    }
+    try (SeekableByteChannel channel = Files.newByteChannel(itemsFile, StandardOpenOption.READ,
+      StandardOpenOption.WRITE)) {
+      ByteBuffer lastByte = ByteBuffer.allocate(1);
+      channel.position(channel.size() - 1).read(lastByte);
+      if (lastByte.get(0) != '\n') {
+        channel.position(channel.size()).write(ByteBuffer.wrap(new byte[] { '\n' }));
+      }
+    }
+  }
+
+  private static void countItem(SvtJobStatus status, SvtJobItem item) {
+    status.setProcessedItems(status.getProcessedItems() + 1);
+    if (SvtJobItem.ISSUED.equals(item.getStatus())) {
+      status.setIssuedItems(status.getIssuedItems() + 1);
+    }
+    else {
+      status.setFailedItems(status.getFailedItems() + 1);
+    }
+  }
+
+  private static SvtJobItem getResult(Future<SvtJobItem> future, Set<Future<SvtJobItem>> pendingFutures)
+    throws InterruptedException, ExecutionException {
+    pendingFutures.remove(future);
+    return future.get();
+  }
+
+  private void readItems(Job job, ItemConsumer consumer) throws IOException {
+    Path itemsFile = job.folder.resolve(ITEMS_FILE);
+    if (!Files.exists(itemsFile)) {
+      return;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(itemsFile, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (StringUtils.isBlank(line)) {
+          continue;
+        }
+        SvtJobItem item;
+        try {
+          item = objectMapper.readValue(line, SvtJobItem.class);
+        }
+        catch (IOException ex) {
+          // A line may be incomplete if the service was stopped while it was written
+          log.debug("Ignoring invalid item log line of SVT job {}", job.status.getJobId());
+          continue;
+        }
+        consumer.accept(item);
+      }
+    }
+  }
+
+  private void saveStatus(Job job) throws IOException {
+    Path jobFile = job.folder.resolve(JOB_FILE);
+    Path tempFile = job.folder.resolve(JOB_FILE + ".tmp");
+    objectMapper.writeValue(tempFile.toFile(), job.getStatusSnapshot());
+    Files.move(tempFile, jobFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void saveStatusQuietly(Job job) {
+    try {
+      if (jobs.containsKey(job.status.getJobId())) {
+        saveStatus(job);
+      }
+    }
+    catch (IOException ex) {
+      log.warn("Unable to save status of SVT job {}: {}", job.status.getJobId(), ex.getMessage());
+    }
+  }
+
+  private Path getOutputFolder(Job job) {
+    return job.status.getOutputDirectory() == null
+      ? job.folder.resolve(OUTPUT_FOLDER)
+      : Paths.get(job.status.getOutputDirectory());
+  }
+
+  /**
+   * Get the real path of a path within the allowed paths
+   *
+   * @param path the requested path
+   * @return the real path
+   * @throws IOException if the real path could not be resolved
+   * @throws IllegalArgumentException if the real path is not within the allowed paths
+   */
+  private Path getAllowedPath(String path) throws IOException {
+    Path realPath = getRealPath(Paths.get(path));
+    if (!isAllowedPath(realPath)) {
+      throw new IllegalArgumentException("Path is not within the allowed paths of SVT jobs: " + path);
+    }
+    return realPath;
+  }
+
+  private boolean isAllowedPath(Path realPath) {
+    return allowedPaths.stream().anyMatch(realPath::startsWith);
+  }
+
+  /**
+   * Test if a document may be read by a job. Documents of ZIP jobs must be within the input folder of the job.
+   */
+  private boolean isAllowedDocument(Job job, Path realPath) throws IOException {
+    return "zip".equals(job.status.getSource())
+      ? realPath.startsWith(getRealPath(job.folder.resolve(INPUT_FOLDER)))
+      : isAllowedPath(realPath);
+  }
+
+  /**
+   * Get the real path of a path that may not exist. Symbolic links in the existing part of the path are resolved.
+   *
+   * @param path the path
+   * @return the real path
+   * @throws IOException if the existing part of the path could not be resolved, e.g. for a broken symbolic link
+   */
+  private static Path getRealPath(Path path) throws IOException {
+    Path absolutePath = path.toAbsolutePath().normalize();
+    Path existing = absolutePath;
+    while (existing != null && !Files.exists(existing, LinkOption.NOFOLLOW_LINKS)) {
+      existing = existing.getParent();
+    }
+    return existing == null
+      ? absolutePath
+      : existing.toRealPath().resolve(existing.relativize(absolutePath));
+  }
+
+  /**
+   * Get the real path of a configured allowed path
+   */
+  private static Path getConfiguredPath(String path) {
+    try {
+      return getRealPath(Paths.get(path));
+    }
+    catch (IOException ex) {
+      log.warn("Unable to resolve allowed path of SVT jobs {}: {}", path, ex.getMessage());
+      return Paths.get(path).toAbsolutePath().normalize();
+    }
+  }
+
+  private static void writeManifestLine(BufferedWriter manifest, String name, Path path) throws IOException {
+    manifest.write(name);
+    manifest.write('\t');
+    manifest.write(path.toAbsolutePath().toString());
+    manifest.newLine();
+  }
+
+  /**
+   * Names are stored in the line based manifest and must not hold line breaks or tabs
+   */
+  private static boolean isValidName(String name) {
+    return StringUtils.isNotBlank(name) && StringUtils.containsNone(name, '\n', '\r', '\t');
+  }
+
+  private static String checkJobId(String jobId) {
+    try {
+      return UUID.fromString(jobId).toString();
+    }
+    catch (IllegalArgumentException ex) {
+      throw new IllegalArgumentException("Invalid job ID");
+    }
+  }
+
+  private void checkEnabled() {
+    if (!enabled) {
+      throw new IllegalStateException("SVT jobs are not enabled");
+    }
+  }
+
+  private static ThreadFactory daemonThreadFactory(String namePrefix) {
+    AtomicInteger threadCount = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  @Override public void destroy() {
+    jobExecutor.shutdownNow();
+    workerExecutor.shutdownNow();
+  }
+
+  @FunctionalInterface
+  private interface ItemConsumer {
+    void accept(SvtJobItem item) throws IOException;
+  }
+
+  private static class Job {
+    private final Path folder;
+    /** The status of the job. The status is updated and copied under its lock. */
+    private final SvtJobStatus status;
+    /** The output names of the processed documents of the job */
+    private final Set<String> outputs = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+    private Future<?> future;
+
+    private Job(Path folder, SvtJobStatus status) {
+      this.folder = folder;
+      this.status = status;
+    }
+
+    private void updateStatus(Consumer<SvtJobStatus> update) {
+      synchronized (status) {
+        update.accept(status);
+      }
+    }
+
+    private SvtJobStatus getStatusSnapshot() {
+      synchronized (status) {
+        return status.toBuilder().build();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.idsec.sigval.sigvalservice.svt;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Status and progress of an SVT job
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder(toBuilder = true)
+public class SvtJobStatus {
+
+  /** Job states */
+  public enum State {
+    QUEUED, RUNNING, COMPLETED, CANCELLED, FAILED
+  }
+
+  private String jobId;
+  private State state;
+  /** The source of the documents: zip, paths or directory */
+  private String source;
+  /** Directory of SVT enhanced documents if they are not stored with the job */
+  private String outputDirectory;
+  private boolean replace;
+  private String created;
+  private String started;
+  private String completed;
+  /** Number of documents in the job */
+  private long totalItems;
+  private long processedItems;
+  private long issuedItems;
+  private long failedItems;
+  /** Error message if the job failed */
+  private String errorMessage;
+
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.tsl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.util.encoders.Hex;
+import org.springframework.beans.factory.DisposableBean;
+import se.idsec.sigval.sigvalservice.configuration.keys.TslTrustCertStoreFactory;
+import se.swedenconnect.sigval.commons.utils.SVAUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Holds the certificates of the caRepository of TSL Trust policy roots and refreshes them in the background.
+ *
+ * <p>Policy roots are identified by their certificate, so validators configured with the same policy root share one
+ * caRepository download and one cert store. The last successfully downloaded caRepository of each policy root is stored
+ * in the cache folder and is loaded from there at startup. The caRepository is only downloaded synchronously if no
+ * stored copy exists. A refresh only creates a new cert store if the downloaded content has changed, and a failed
+ * refresh keeps the previous certificates.</p>
+ */
+@Slf4j
+public class RefreshingTslTrustStore implements DisposableBean {
+
+  private static final String SNAPSHOT_FILE_SUFFIX = ".p7c";
+  private static final int CONNECT_TIMEOUT = 5000;
+  private static final int READ_TIMEOUT = 10000;
+
+  private final File cacheFolder;
+  private final long refreshMillis;
+  private final long retryMillis;
+
+  private final Map<String, TslEntry> entries = new ConcurrentHashMap<>();
+  private final List<Runnable> updateListeners = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * Constructor
+   *
+   * @param cacheFolder folder where downloaded caRepository content is stored
+   * @param refreshMillis time between two downloads of the caRepository of a policy root
+   * @param retryMillis initial retry delay after a failed download
+   */
+  public RefreshingTslTrustStore(File cacheFolder, long refreshMillis, long retryMillis) {
+    this.cacheFolder = cacheFolder;
+    this.refreshMillis = Math.max(refreshMillis, 1000);
+    this.retryMillis = Math.max(Math.min(retryMillis, this.refreshMillis), 1000);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "tsl-refresh");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (!cacheFolder.exists() && !cacheFolder.mkdirs()) {
+      log.warn("Unable to create TSL Trust cache folder {}", cacheFolder.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Add a listener that is called when the caRepository content of a policy root has changed
+   *
+   * @param listener listener called after new certificates have replaced the previous certificates
+   */
+  public void addUpdateListener(Runnable listener) {
+    updateListeners.add(listener);
+  }
+
+  /**
+   * Get the current cert store of a TSL Trust policy root
+   *
+   * @param policyRootLocation file holding the policy root certificate
+   * @return cert store factory holding the policy root, the cert store and the certificates of the caRepository
+   * @throws IOException on error reading the policy root certificate
+   * @throws CertificateException on error parsing the policy root certificate
+   */
+  public TslTrustCertStoreFactory getTslTrust(String policyRootLocation) throws IOException, CertificateException {
+    X509Certificate policyRoot = SVAUtils.getCertificate(FileUtils.readFileToByteArray(new File(policyRootLocation)));
+    String id = Hex.toHexString(digest(policyRoot.getEncoded()));
+    TslEntry entry = entries.computeIfAbsent(id, key -> new TslEntry(key, policyRoot));
+    synchronized (entry) {
+      if (entry.trust == null) {
+        initialize(entry);
+      }
+    }
+    return entry.trust;
+  }
+
+  @Override public void destroy() {
+    scheduler.shutdownNow();
+  }
+
+  private void initialize(TslEntry entry) {
+    entry.location = TslTrustCertStoreFactory.getCaRepositoryLocation(entry.policyRoot);
+    if (entry.location == null) {
+      log.debug("Policy root {} contains no caRepository SubjectInformationAccess Extension",
+        entry.policyRoot.getSubjectX500Principal());
+      entry.trust = new TslTrustCertStoreFactory(entry.policyRoot, new ArrayList<>());
+      return;
+    }
+
+    File snapshotFile = getSnapshotFile(entry);
+    if (snapshotFile.exists()) {
+      try {
+        byte[] bytes = Files.readAllBytes(snapshotFile.toPath());
+        entry.trust = new TslTrustCertStoreFactory(entry.policyRoot,
+          TslTrustCertStoreFactory.getCertificates(bytes));
+        entry.digest = digest(bytes);
+        log.info("Loaded {} stored TSL Trust certificates for {}", entry.trust.getCertificates().size(),
+          entry.policyRoot.getSubjectX500Principal());
+        scheduleRefresh(entry, 0);
+        return;
+      }
+      catch (IOException ex) {
+        log.warn("Unable to load stored TSL Trust certificates from {}: {}", snapshotFile.getAbsolutePath(),
+          ex.getMessage());
+      }
+    }
+
+    // No stored copy - the first download is done synchronously
+    refresh(entry);
+    if (entry.trust == null) {
+      log.warn("No TSL Trust certificates available for {} - only the policy root is trusted until {} can be read",
+        entry.policyRoot.getSubjectX500Principal(), entry.location);
+      entry.trust = new TslTrustCertStoreFactory(entry.policyRoot, new ArrayList<>());
+    }
+    scheduleRefresh(entry, getRefreshDelay(entry));
+  }
+
+  private void scheduledRefresh(TslEntry entry) {
+    if (refresh(entry)) {
+      for (Runnable listener : updateListeners) {
+        try {
+          listener.run();
+        }
+        catch (Exception ex) {
+          log.warn("TSL Trust update listener failed: {}", ex.getMessage());
+        }
+      }
+    }
+    scheduleRefresh(entry, getRefreshDelay(entry));
+  }
+
+  /**
+   * Downloads the caRepository of a policy root and replaces the current certificates if the content has changed
+   *
+   * @return true if the certificates were replaced
+   */
+  private boolean refresh(TslEntry entry) {
+    try {
+      byte[] bytes = download(entry.location);
+      byte[] digest = digest(bytes);
+      entry.failures = 0;
+      if (entry.digest != null && Arrays.equals(digest, entry.digest)) {
+        log.debug("TSL Trust certificates from {} are unchanged", entry.location);
+        return false;
+      }
+      TslTrustCertStoreFactory trust = new TslTrustCertStoreFactory(entry.policyRoot,
+        TslTrustCertStoreFactory.getCertificates(bytes));
+      try {
+        File snapshotFile = getSnapshotFile(entry);
+        File tempFile = new File(cacheFolder, snapshotFile.getName() + ".tmp");
+        Files.write(tempFile.toPath(), bytes);
+        Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (IOException ex) {
+        log.warn("Unable to store TSL Trust certificates from {}: {}", entry.location, ex.getMessage());
+      }
+      entry.trust = trust;
+      entry.digest = digest;
+      log.info("Updated TSL Trust certificates from {} with {} certificates", entry.location,
+        trust.getCertificates().size());
+      return true;
+    }
+    catch (Exception ex) {
+      entry.failures++;
+      log.warn("Unable to refresh TSL Trust certificates from {} - keeping current certificates: {}", entry.location,
+        ex.getMessage());
+      return false;
+    }
+  }
+
+  private void scheduleRefresh(TslEntry entry, long delay) {
+    if (!scheduler.isShutdown()) {
+      scheduler.schedule(() -> scheduledRefresh(entry), delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private long getRefreshDelay(TslEntry entry) {
+    if (entry.failures == 0) {
+      return refreshMillis;
+    }
+    return Math.min(refreshMillis, retryMillis << Math.min(entry.failures - 1, 10));
+  }
+
+  private File getSnapshotFile(TslEntry entry) {
+    return new File(cacheFolder, entry.id + SNAPSHOT_FILE_SUFFIX);
+  }
+
+  private static byte[] download(String location) throws IOException {
+    URLConnection connection = new URL(location).openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT);
+    connection.setReadTimeout(READ_TIMEOUT);
+    return IOUtils.toByteArray(connection);
+  }
+
+  private static byte[] digest(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static class TslEntry {
+    private final String id;
+    private final X509Certificate policyRoot;
+    private String location;
+    private volatile TslTrustCertStoreFactory trust;
+    private volatile byte[] digest;
+    private volatile int failures;
+
+    TslEntry(String id, X509Certificate policyRoot) {
+      this.id = id;
+      this.policyRoot = policyRoot;
+    }
+  }
+
+}
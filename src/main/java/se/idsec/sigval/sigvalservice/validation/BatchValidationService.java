@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.validation;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.idsec.sigval.sigvalservice.admission.AdmissionControl;
+import se.idsec.sigval.sigvalservice.configuration.SignatureValidatorProvider;
+import se.idsec.sigval.sigvalservice.configuration.ValidatorSet;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.idsec.sigval.sigvalservice.result.ResultPageDataGenerator;
+import se.idsec.sigval.sigvalservice.result.data.BatchResultData;
+import se.idsec.sigval.sigvalservice.result.data.ResultPageData;
+import se.swedenconnect.sigval.commons.data.ExtendedSigValResult;
+import se.swedenconnect.sigval.commons.data.SignedDocumentValidationResult;
+import se.swedenconnect.sigval.commons.document.DocType;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Validates batches of documents on a bounded pool of worker threads.
+ *
+ * <p>Documents are read from a {@link DocumentSource} and validated in parallel. Results are passed to a
+ * {@link ResultWriter} in the order they complete. The number of documents read but not yet written is limited for
+ * each batch so that memory use does not depend on the size of the batch.</p>
+ *
+ * <p>Each document is admitted by the {@link AdmissionControl} as a validation request before it is validated. A
+ * document that is not admitted is reported with an error message in the batch result.</p>
+ */
+@Slf4j
+@Component
+public class BatchValidationService implements DisposableBean {
+
+  private final DocumentValidationService documentValidationService;
+  private final SignatureValidatorProvider signatureValidatorProvider;
+  private final ResultPageDataGenerator resultPageDataGenerator;
+  private final ValidationMetrics validationMetrics;
+  private final AdmissionControl admissionControl;
+  private final ExecutorService executorService;
+  private final int maxPendingDocuments;
+
+  @Autowired
+  public BatchValidationService(DocumentValidationService documentValidationService,
+    SignatureValidatorProvider signatureValidatorProvider, ResultPageDataGenerator resultPageDataGenerator,
+    ValidationMetrics validationMetrics, AdmissionControl admissionControl,
+    @Value("${sigval-service.batch.worker-threads:0}") int workerThreads,
+    @Value("${sigval-service.batch.max-pending-documents:0}") int maxPendingDocuments) {
+    this.documentValidationService = documentValidationService;
+    this.signatureValidatorProvider = signatureValidatorProvider;
+    this.resultPageDataGenerator = resultPageDataGenerator;
+    this.validationMetrics = validationMetrics;
+    this.admissionControl = admissionControl;
+
+    int threads = workerThreads > 0 ? workerThreads : Runtime.getRuntime().availableProcessors();
+    this.maxPendingDocuments = maxPendingDocuments > 0 ? maxPendingDocuments : 2 * threads;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executorService = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "batch-validation-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    log.info("Batch validation worker threads: {}, max pending documents per batch: {}", threads,
+      this.maxPendingDocuments);
+  }
+
+  /**
+   * Validate a batch of documents
+   *
+   * @param documentSource the source of the documents to validate
+   * @param lang the language used for display attribute names in the result
+   * @param resultWriter the writer receiving the result of each document as soon as it is available
+   * @return the number of processed documents
+   * @throws IOException on errors reading documents or writing results
+   */
+  public int validate(DocumentSource documentSource, String lang, ResultWriter resultWriter) throws IOException {
+
+    // All documents in a batch are validated using the same validator set
+    ValidatorSet validators = signatureValidatorProvider.getValidators();
+    CompletionService<BatchResultData> completionService = new ExecutorCompletionService<>(executorService);
+    Set<Future<BatchResultData>> pendingFutures = new HashSet<>();
+    int index = 0;
+
+    try {
+      BatchDocument document;
+      while ((document = documentSource.next()) != null) {
+        // Write completed results while the number of pending documents is at its limit
+        while (pendingFutures.size() >= maxPendingDocuments) {
+          resultWriter.write(getResult(takeCompleted(completionService), pendingFutures));
+        }
+        pendingFutures.add(completionService.submit(getValidationTask(document, index++, validators, lang)));
+        // Write any already completed results without waiting
+        Future<BatchResultData> completed;
+        while ((completed = completionService.poll()) != null) {
+          resultWriter.write(getResult(completed, pendingFutures));
+        }
+      }
+      while (!pendingFutures.isEmpty()) {
+        resultWriter.write(getResult(takeCompleted(completionService), pendingFutures));
+      }
+    }
+    finally {
+      if (!pendingFutures.isEmpty()) {
+        log.debug("Batch validation aborted - cancelling {} pending validations", pendingFutures.size());
+        pendingFutures.forEach(future -> future.cancel(true));
+      }
+    }
+    return index;
+  }
+
+  @SuppressWarnings("try")
+  private Callable<BatchResultData> getValidationTask(BatchDocument document, int index, ValidatorSet validators,
+    String lang) {
+    return () -> {
+      BatchResultData.BatchResultDataBuilder builder = BatchResultData.builder()
+        .index(index)
+        .documentName(document.getName());
+      if (document.getErrorMessage() != null) {
+        return builder.errorMessage(document.getErrorMessage()).build();
+      }
+      try {
+        DocType docType = DocType.getDocType(document.getBytes());
+        SignedDocumentValidationResult<? extends ExtendedSigValResult> validationResult;
+        try (AdmissionControl.Permit permit = admissionControl.admit(AdmissionControl.VALIDATE, docType,
+          document.getBytes().length)) {
+          validationResult = documentValidationService.validate(document.getBytes(), docType, validators);
+        }
+        ResultPageData resultPageData = resultPageDataGenerator.getResultPageData(validationResult,
+          document.getName(), null, lang);
+        validationMetrics.countResult(resultPageData);
+        return builder.result(resultPageData).build();
+      }
+      catch (Exception ex) {
+        log.debug("Failed to validate batch document {}: {}", document.getName(), ex.getMessage());
+        return builder.errorMessage(ex.getMessage()).build();
+      }
+    };
+  }
+
+  private static Future<BatchResultData> takeCompleted(CompletionService<BatchResultData> completionService)
+    throws IOException {
+    try {
+      return completionService.take();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Batch validation was interrupted", e);
+    }
+  }
+
+  private static BatchResultData getResult(Future<BatchResultData> future, Set<Future<BatchResultData>> pendingFutures)
+    throws IOException {
+    pendingFutures.remove(future);
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Batch validation was interrupted", e);
+    }
+    catch (ExecutionException e) {
+      throw new IOException("Batch validation failed", e.getCause());
+    }
+  }
+
+  @Override public void destroy() {
+    executorService.shutdownNow();
+  }
+
+  /**
+   * A document in a batch
+   */
+  @Getter
+  @AllArgsConstructor
+  public static class BatchDocument {
+    private final String name;
+    private final byte[] bytes;
+    /** Error message if the document could not be read. Such documents are reported but not validated */
+    private final String errorMessage;
+  }
+
+  /**
+   * Source of batch documents
+   */
+  @FunctionalInterface
+  public interface DocumentSource {
+
+    /**
+     * Get the next document of the batch
+     *
+     * @return the next document or null if there are no more documents
+     * @throws IOException on errors reading the document
+     */
+    BatchDocument next() throws IOException;
+  }
+
+  /**
+   * Receiver of batch validation results
+   */
+  @FunctionalInterface
+  public interface ResultWriter {
+
+    /**
+     * Write the result of one document
+     *
+     * @param result validation result of one document
+     * @throws IOException on errors writing the result
+     */
+    void write(BatchResultData result) throws IOException;
+  }
+
+}
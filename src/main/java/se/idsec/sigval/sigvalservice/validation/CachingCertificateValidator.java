@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.idsec.sigval.sigvalservice.validation;
+
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.util.encoders.Hex;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.idsec.signservice.security.certificate.CertificateValidationResult;
+import se.idsec.signservice.security.certificate.CertificateValidator;
+import se.swedenconnect.sigval.cert.chain.ExtendedCertPathValidatorException;
+import se.swedenconnect.sigval.cert.chain.PathValidationResult;
+import se.swedenconnect.sigval.cert.validity.ValidationStatus;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertPathBuilderException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Certificate validator serving validation outcomes from the {@link CertificateValidationCache}.
+ *
+ * <p>Outcomes are cached per certificate, supporting certificates, trust anchors and validation time bucket. The
+ * trust configuration of the wrapped validator is identified by a trust identifier that is part of the cache key, so
+ * outcomes are never shared between validators with different trust. Requests that provide CRLs are not cached.</p>
+ *
+ * <p>Only definitive outcomes are cached: valid paths, paths with a revoked or invalid certificate and certificates
+ * for which no path to a trust anchor can be built. Failures to obtain revocation status, e.g. because a revocation
+ * source is unavailable, are not cached. A cached failure is thrown as a new exception on each call.</p>
+ */
+@Slf4j
+public class CachingCertificateValidator implements CertificateValidator {
+
+  private final CertificateValidator validator;
+  private final CertificateValidationCache cache;
+  private final String trustId;
+  private final ValidationMetrics validationMetrics;
+  private final String validatorName;
+
+  /**
+   * Constructor
+   *
+   * @param validator the certificate validator performing the actual validation
+   * @param cache certificate validation cache
+   * @param trustId identifier of the trust configuration of the wrapped validator
+   * @param validationMetrics validation metrics
+   * @param validatorName name of the validator used as metrics tag
+   */
+  public CachingCertificateValidator(CertificateValidator validator, CertificateValidationCache cache, String trustId,
+    ValidationMetrics validationMetrics, String validatorName) {
+    this.validator = validator;
+    this.cache = cache;
+    this.trustId = trustId;
+    this.validationMetrics = validationMetrics;
+    this.validatorName = validatorName;
+  }
+
+  @Override public CertificateValidationResult validate(X509Certificate subjectCertificate,
+    List<X509Certificate> additionalCertificates, List<X509CRL> crls) throws GeneralSecurityException {
+    return validate(() -> validator.validate(subjectCertificate, additionalCertificates, crls),
+      subjectCertificate, additionalCertificates, crls, null);
+  }
+
+  @Override public CertificateValidationResult validate(X509Certificate subjectCertificate,
+    List<X509Certificate> additionalCertificates, List<X509CRL> crls, List<X509Certificate> trustAnchors)
+    throws GeneralSecurityException {
+    return validate(() -> validator.validate(subjectCertificate, additionalCertificates, crls, trustAnchors),
+      subjectCertificate, additionalCertificates, crls, trustAnchors);
+  }
+
+  private CertificateValidationResult validate(ValidationCall validationCall, X509Certificate subjectCertificate,
+    List<X509Certificate> additionalCertificates, List<X509CRL> crls, List<X509Certificate> trustAnchors)
+    throws GeneralSecurityException {
+    Timer.Sample sample = validationMetrics.start();
+    String cacheTag = "none";
+    String outcomeTag = "invalid";
+    try {
+      CertificateValidationResult result;
+      if (isCacheable(crls)) {
+        String key = getKey(subjectCertificate, additionalCertificates, trustAnchors);
+        CertificateValidationCache.Outcome outcome = cache.get(key);
+        cacheTag = outcome == null ? "miss" : "hit";
+        if (outcome != null) {
+          log.debug("Using cached certificate validation outcome");
+        }
+        else {
+          List<X509Certificate> certificates = new ArrayList<>();
+          certificates.add(subjectCertificate);
+          if (additionalCertificates != null) {
+            certificates.addAll(additionalCertificates);
+          }
+          try {
+            CertificateValidationResult validationResult = validationCall.validate();
+            outcome = new CertificateValidationCache.Outcome(validationResult, null,
+              IssuerDependencies.getIssuers(certificates, validationResult, null));
+          }
+          catch (GeneralSecurityException ex) {
+            if (!isDefinitiveFailure(ex)) {
+              throw ex;
+            }
+            outcome = new CertificateValidationCache.Outcome(null, ex,
+              IssuerDependencies.getIssuers(certificates, null, ex));
+          }
+          cache.put(key, outcome);
+        }
+        result = getResult(outcome);
+      }
+      else {
+        result = validationCall.validate();
+      }
+      outcomeTag = "valid";
+      return result;
+    }
+    finally {
+      validationMetrics.stop(sample, ValidationMetrics.CERTIFICATE_VALIDATION,
+        "validator", validatorName, "outcome", outcomeTag, "cache", cacheTag);
+    }
+  }
+
+  @Override public boolean isRevocationCheckingActive() {
+    return validator.isRevocationCheckingActive();
+  }
+
+  @Override public List<X509Certificate> getDefaultTrustAnchors() {
+    return validator.getDefaultTrustAnchors();
+  }
+
+  private boolean isCacheable(List<X509CRL> crls) {
+    return cache.isEnabled() && (crls == null || crls.isEmpty());
+  }
+
+  /**
+   * Test if a validation failure is definitive. A failure is definitive if no path to a trust anchor can be built, or
+   * if the revocation status of a certificate of the path shows that the certificate is revoked or invalid.
+   */
+  private static boolean isDefinitiveFailure(GeneralSecurityException ex) {
+    if (ex instanceof CertPathBuilderException) {
+      return true;
+    }
+    if (ex instanceof ExtendedCertPathValidatorException) {
+      PathValidationResult pathValidationResult = ((ExtendedCertPathValidatorException) ex).getPathValidationResult();
+      if (pathValidationResult == null || pathValidationResult.getValidationStatusList() == null) {
+        return false;
+      }
+      return pathValidationResult.getValidationStatusList().stream()
+        .anyMatch(status -> status.getValidity() == ValidationStatus.CertificateValidity.REVOKED
+          || status.getValidity() == ValidationStatus.CertificateValidity.INVALID);
+    }
+    return false;
+  }
+
+  /**
+   * Get the result of a cached outcome. A cached failure is thrown as a new exception holding the cached failure so
+   * that the cached exception instance is never thrown to, and modified by, callers.
+   */
+  private static CertificateValidationResult getResult(CertificateValidationCache.Outcome outcome)
+    throws GeneralSecurityException {
+    GeneralSecurityException exception = outcome.getException();
+    if (exception instanceof ExtendedCertPathValidatorException) {
+      throw new ExtendedCertPathValidatorException(exception.getMessage(), exception,
+        ((ExtendedCertPathValidatorException) exception).getPathValidationResult());
+    }
+    if (exception instanceof CertPathBuilderException) {
+      throw new CertPathBuilderException(exception.getMessage(), exception);
+    }
+    if (exception != null) {
+      throw new GeneralSecurityException(exception.getMessage(), exception);
+    }
+    return outcome.getResult();
+  }
+
+  private String getKey(X509Certificate subjectCertificate, List<X509Certificate> additionalCertificates,
+    List<X509Certificate> trustAnchors) throws GeneralSecurityException {
+    long timeBucket = System.currentTimeMillis() / cache.getTimeBucketMillis();
+    return trustId + ":" + timeBucket + ":" + getCertHash(subjectCertificate)
+      + ":" + getCertListHash(additionalCertificates)
+      + ":" + (trustAnchors == null ? "default" : getCertListHash(trustAnchors));
+  }
+
+  /**
+   * Get a hash of a list of certificates that does not depend on the order of the certificates
+   */
+  private static String getCertListHash(List<X509Certificate> certificates) throws GeneralSecurityException {
+    if (certificates == null || certificates.isEmpty()) {
+      return "";
+    }
+    List<String> certHashList = new ArrayList<>();
+    for (X509Certificate certificate : certificates) {
+      certHashList.add(getCertHash(certificate));
+    }
+    Collections.sort(certHashList);
+    return Hex.toHexString(getDigest().digest(String.join(",", certHashList).getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static String getCertHash(X509Certificate certificate) throws GeneralSecurityException {
+    return Hex.toHexString(getDigest().digest(certificate.getEncoded()));
+  }
+
+  private static MessageDigest getDigest() throws NoSuchAlgorithmException {
+    return MessageDigest.getInstance("SHA-256");
+  }
+
+  /**
+   * Validation performed by the wrapped validator
+   */
+  @FunctionalInterface
+  private interface ValidationCall {
+    CertificateValidationResult validate() throws GeneralSecurityException;
+  }
+
+}
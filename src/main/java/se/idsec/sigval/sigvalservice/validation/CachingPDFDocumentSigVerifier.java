@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.validation;
+
+import se.swedenconnect.sigval.commons.data.SignedDocumentValidationResult;
+import se.swedenconnect.sigval.pdf.data.ExtendedPdfSigValResult;
+import se.swedenconnect.sigval.pdf.pdfstruct.impl.DefaultPDFSignatureContextFactory;
+import se.swedenconnect.sigval.pdf.svt.PDFSVTValidator;
+import se.swedenconnect.sigval.pdf.verify.PDFSingleSignatureValidator;
+
+import java.security.SignatureException;
+
+/**
+ * PDF document signature verifier that serves extended validation results from the {@link ValidationResultCache}.
+ *
+ * <p>This is used as the validator of the PDF SVT claims issuer, which validates the document itself, so that SVT
+ * issuance for a PDF document that was just validated by the {@link DocumentValidationService} does not repeat the full
+ * validation.</p>
+ */
+public class CachingPDFDocumentSigVerifier extends ParallelPDFDocumentSigVerifier {
+
+  private final ValidationResultCache validationResultCache;
+  private final long generation;
+
+  /**
+   * Constructor
+   *
+   * @param pdfSignatureVerifier verifier of single PDF signatures
+   * @param pdfsvtValidator SVT validator or null if SVT validation is not enabled
+   * @param pdfContextFactory PDF signature context factory
+   * @param signatureValidationExecutor executor validating the signatures of a document
+   * @param validationResultCache validation result cache
+   * @param generation the trust configuration generation of the validator set of this verifier
+   */
+  public CachingPDFDocumentSigVerifier(PDFSingleSignatureValidator pdfSignatureVerifier,
+    PDFSVTValidator pdfsvtValidator, DefaultPDFSignatureContextFactory pdfContextFactory,
+    SignatureValidationExecutor signatureValidationExecutor, ValidationResultCache validationResultCache,
+    long generation) {
+    super(pdfSignatureVerifier, pdfsvtValidator, pdfContextFactory, signatureValidationExecutor);
+    this.validationResultCache = validationResultCache;
+    this.generation = generation;
+  }
+
+  /** {@inheritDoc} */
+  @SuppressWarnings("unchecked")
+  @Override
+  public SignedDocumentValidationResult<ExtendedPdfSigValResult> extendedResultValidation(byte[] pdfDocBytes)
+    throws SignatureException {
+    String cacheKey = validationResultCache.getKey(pdfDocBytes, generation);
+    SignedDocumentValidationResult<ExtendedPdfSigValResult> result =
+      (SignedDocumentValidationResult<ExtendedPdfSigValResult>) validationResultCache.get(cacheKey);
+    if (result == null) {
+      result = super.extendedResultValidation(pdfDocBytes);
+      validationResultCache.put(cacheKey, result);
+    }
+    return result;
+  }
+
+}
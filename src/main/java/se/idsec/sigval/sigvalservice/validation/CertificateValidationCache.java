@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.idsec.sigval.sigvalservice.validation;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.idsec.signservice.security.certificate.CertificateValidationResult;
+
+import javax.security.auth.x500.X500Principal;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded cache of certificate validation outcomes.
+ *
+ * <p>Both successful results and definitive validation failures are cached. The cache key is created by the
+ * {@link CachingCertificateValidator} from the validated certificate, the supporting certificates, the trust anchors
+ * and the validation time bucket. When a cached CRL is updated, the outcomes that depend on certificates issued by the
+ * CRL issuer are removed so that revocation status changes are picked up.</p>
+ */
+@Slf4j
+@Component
+public class CertificateValidationCache {
+
+  private final int maxEntries;
+  @Getter private final long timeBucketMillis;
+  private final Map<String, Outcome> cache;
+
+  public CertificateValidationCache(
+    @Value("${sigval-service.cert-validation-cache.max-entries:1000}") int maxEntries,
+    @Value("${sigval-service.cert-validation-cache.time-bucket-seconds:300}") long timeBucketSeconds) {
+    this.maxEntries = maxEntries;
+    this.timeBucketMillis = Math.max(1, timeBucketSeconds) * 1000;
+    this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Outcome> eldest) {
+        return size() > CertificateValidationCache.this.maxEntries;
+      }
+    };
+    log.info("Certificate validation cache max entries: {}, time bucket (seconds): {}", maxEntries, timeBucketSeconds);
+  }
+
+  /**
+   * Test if the cache is enabled
+   *
+   * @return true if outcomes are cached
+   */
+  public boolean isEnabled() {
+    return maxEntries > 0;
+  }
+
+  /**
+   * Get a cached validation outcome
+   *
+   * @param key the cache key
+   * @return cached outcome or null if no outcome is cached for this key
+   */
+  public Outcome get(String key) {
+    synchronized (cache) {
+      return cache.get(key);
+    }
+  }
+
+  /**
+   * Add a validation outcome to the cache
+   *
+   * @param key the cache key
+   * @param outcome the validation outcome
+   */
+  public void put(String key, Outcome outcome) {
+    synchronized (cache) {
+      cache.put(key, outcome);
+    }
+  }
+
+  /**
+   * Remove the cached validation outcomes that depend on certificates issued by an issuer
+   *
+   * @param issuer the certificate issuer
+   */
+  public void invalidate(X500Principal issuer) {
+    synchronized (cache) {
+      int size = cache.size();
+      cache.values().removeIf(outcome -> outcome.getIssuers().contains(issuer));
+      log.debug("Removed {} cached certificate validation outcomes depending on {}", size - cache.size(), issuer);
+    }
+  }
+
+  /**
+   * Remove all cached validation outcomes
+   */
+  public void clear() {
+    synchronized (cache) {
+      log.debug("Clearing {} cached certificate validation outcomes", cache.size());
+      cache.clear();
+    }
+  }
+
+  /**
+   * Outcome of a certificate validation holding either the validation result or the validation exception, and the
+   * issuers of the certificates that the outcome depends on
+   */
+  @Getter
+  @AllArgsConstructor
+  public static class Outcome {
+    private final CertificateValidationResult result;
+    private final GeneralSecurityException exception;
+    private final Set<X500Principal> issuers;
+  }
+
+}
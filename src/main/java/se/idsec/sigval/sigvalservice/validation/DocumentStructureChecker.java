@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.idsec.sigval.sigvalservice.validation;
+
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.util.Base64URL;
+import com.nimbusds.jose.util.JSONObjectUtils;
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.sigval.commons.document.DocType;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lightweight structural check of uploaded documents.
+ *
+ * <p>The check rejects documents that can not be validated without fully parsing them. The full parse is left to the
+ * signature validator so that each document is parsed once. PDF documents are checked for header, cross reference
+ * pointer and end of file marker, XML documents are scanned for well-formedness with a streaming parser and JOSE
+ * documents are checked by parsing the JWS headers only.</p>
+ */
+@Slf4j
+public class DocumentStructureChecker {
+
+  /** Number of bytes at the start and end of a PDF document searched for PDF markers */
+  private static final int PDF_MARKER_SEARCH_LENGTH = 1024;
+
+  private static final XMLInputFactory XML_INPUT_FACTORY;
+
+  static {
+    XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  /**
+   * Check the structure of a document
+   *
+   * @param bytes the bytes of the document
+   * @param docType the document type
+   * @throws IOException if the document is not a structurally valid document of the specified type
+   * @throws IllegalArgumentException if the document type is not supported
+   */
+  public static void check(byte[] bytes, DocType docType) throws IOException {
+    switch (docType) {
+    case XML:
+      checkXml(bytes);
+      break;
+    case PDF:
+      checkPdf(bytes);
+      break;
+    case JOSE:
+    case JOSE_COMPACT:
+      checkJose(bytes);
+      break;
+    default:
+      log.warn("Upload rejected - Unrecognized file content");
+      throw new IllegalArgumentException("Upload rejected - Illegal file content");
+    }
+  }
+
+  private static void checkPdf(byte[] bytes) throws IOException {
+    if (indexOf(bytes, "%PDF-", 0, Math.min(bytes.length, PDF_MARKER_SEARCH_LENGTH)) < 0) {
+      throw new IOException("Error parsing uploaded PDF document (no PDF header).");
+    }
+    int trailerStart = Math.max(0, bytes.length - PDF_MARKER_SEARCH_LENGTH);
+    if (indexOf(bytes, "startxref", trailerStart, bytes.length) < 0) {
+      throw new IOException("Error parsing uploaded PDF document (no cross reference pointer).");
+    }
+    if (indexOf(bytes, "%%EOF", trailerStart, bytes.length) < 0) {
+      throw new IOException("Error parsing uploaded PDF document (no end of file marker).");
+    }
+  }
+
+  private static void checkXml(byte[] bytes) throws IOException {
+    XMLStreamReader reader = null;
+    try {
+      reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(bytes));
+      while (reader.hasNext()) {
+        reader.next();
+      }
+    }
+    catch (XMLStreamException ex) {
+      log.warn("Error processing the uploaded XML document");
+      throw new IOException("Error parsing uploaded XML document (" + ex.getMessage() + ").");
+    }
+    finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        }
+        catch (XMLStreamException ignored) {
+        }
+      }
+    }
+  }
+
+  private static void checkJose(byte[] bytes) throws IOException {
+    String joseString = new String(bytes, StandardCharsets.UTF_8).trim();
+    try {
+      if (joseString.startsWith("{")) {
+        checkJsonSerializedHeaders(JSONObjectUtils.parse(joseString));
+        log.debug("Found JSON serialized JWS");
+      }
+      else {
+        String[] parts = joseString.split("\\.", -1);
+        if (parts.length != 3) {
+          throw new ParseException("Compact serialized JWS must have 3 parts", 0);
+        }
+        JWSHeader.parse(new Base64URL(parts[0]));
+        log.debug("Found compact serialized JWS");
+      }
+    }
+    catch (ParseException ex) {
+      log.warn("Error processing the uploaded JOSE document");
+      throw new IOException("Error parsing uploaded JOSE document (" + ex.getMessage() + ").");
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void checkJsonSerializedHeaders(Map<String, Object> jsonObject) throws ParseException {
+    if (!jsonObject.containsKey("payload")) {
+      throw new ParseException("No payload in JSON serialized JWS", 0);
+    }
+    Object signatures = jsonObject.get("signatures");
+    if (signatures == null) {
+      // Flattened JSON serialization
+      parseProtectedHeader(jsonObject);
+      return;
+    }
+    if (!(signatures instanceof List) || ((List<?>) signatures).isEmpty()) {
+      throw new ParseException("No signatures in JSON serialized JWS", 0);
+    }
+    for (Object signature : (List<?>) signatures) {
+      if (!(signature instanceof Map)) {
+        throw new ParseException("Illegal signature in JSON serialized JWS", 0);
+      }
+      parseProtectedHeader((Map<String, Object>) signature);
+    }
+  }
+
+  private static void parseProtectedHeader(Map<String, Object> signatureObject) throws ParseException {
+    Base64URL protectedHeader = JSONObjectUtils.getBase64URL(signatureObject, "protected");
+    if (protectedHeader == null) {
+      throw new ParseException("No protected header in JSON serialized JWS", 0);
+    }
+    JWSHeader.parse(protectedHeader);
+  }
+
+  private static int indexOf(byte[] bytes, String marker, int start, int end) {
+    byte[] markerBytes = marker.getBytes(StandardCharsets.US_ASCII);
+    for (int i = start; i <= end - markerBytes.length; i++) {
+      int j = 0;
+      while (j < markerBytes.length && bytes[i + j] == markerBytes[j]) {
+        j++;
+      }
+      if (j == markerBytes.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+}
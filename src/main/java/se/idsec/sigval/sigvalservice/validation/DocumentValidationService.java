@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.validation;
+
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Document;
+import se.idsec.sigval.sigvalservice.configuration.SignatureValidatorProvider;
+import se.idsec.sigval.sigvalservice.configuration.ValidatorSet;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.idsec.sigval.sigvalservice.ocsp.EmbeddedOCSPResponses;
+import se.swedenconnect.sigval.commons.data.ExtendedSigValResult;
+import se.swedenconnect.sigval.commons.data.SignedDocumentValidationResult;
+import se.swedenconnect.sigval.commons.document.DocType;
+import se.swedenconnect.sigval.xml.utils.XMLDocumentBuilder;
+
+import java.io.IOException;
+
+/**
+ * Validates signed documents using the validators of the {@link SignatureValidatorProvider}.
+ *
+ * <p>Validation results are shared between the UI validation, the validation report and the SVT issuance functions
+ * through the {@link ValidationResultCache} so that the same document is only validated once under the current trust
+ * configuration.</p>
+ *
+ * <p>OCSP responses embedded in PDF and XML documents are added to the OCSP response cache before the document is
+ * validated.</p>
+ */
+@Slf4j
+@Component
+public class DocumentValidationService {
+
+  private final SignatureValidatorProvider signatureValidatorProvider;
+  private final ValidationResultCache validationResultCache;
+  private final ValidationMetrics validationMetrics;
+  private final EmbeddedOCSPResponses embeddedOCSPResponses;
+
+  @Autowired
+  public DocumentValidationService(SignatureValidatorProvider signatureValidatorProvider,
+    ValidationResultCache validationResultCache, ValidationMetrics validationMetrics,
+    EmbeddedOCSPResponses embeddedOCSPResponses) {
+    this.signatureValidatorProvider = signatureValidatorProvider;
+    this.validationResultCache = validationResultCache;
+    this.validationMetrics = validationMetrics;
+    this.embeddedOCSPResponses = embeddedOCSPResponses;
+  }
+
+  /**
+   * Validate a signed document
+   *
+   * @param documentBytes the bytes of the signed document
+   * @param docType the document type of the signed document
+   * @return signed document validation result
+   * @throws IOException if the document type is not supported or if the document can not be validated
+   */
+  public SignedDocumentValidationResult<? extends ExtendedSigValResult> validate(byte[] documentBytes, DocType docType)
+    throws IOException {
+    return validate(documentBytes, docType, signatureValidatorProvider.getValidators());
+  }
+
+  /**
+   * Validate a signed document using a specific validator set
+   *
+   * @param documentBytes the bytes of the signed document
+   * @param docType the document type of the signed document
+   * @param validators the validator set to use
+   * @return signed document validation result
+   * @throws IOException if the document type is not supported or if the document can not be validated. Runtime
+   *   exceptions thrown by the validators are rethrown unchanged
+   */
+  public SignedDocumentValidationResult<? extends ExtendedSigValResult> validate(byte[] documentBytes, DocType docType,
+    ValidatorSet validators) throws IOException {
+
+    Timer.Sample sample = validationMetrics.start();
+    String cacheKey = validationResultCache.getKey(documentBytes, validators.getTrustConfigGeneration());
+    SignedDocumentValidationResult<? extends ExtendedSigValResult> validationResult =
+      validationResultCache.get(cacheKey);
+    if (validationResult != null) {
+      stopTimer(sample, docType, validationResult, "hit");
+      return validationResult;
+    }
+
+    try {
+      switch (docType) {
+      case XML:
+        Document document = XMLDocumentBuilder.getDocument(documentBytes);
+        embeddedOCSPResponses.addFromXml(document);
+        validationResult = validators.getXmlSignedDocumentValidator().extendedResultValidation(document);
+        break;
+      case PDF:
+        embeddedOCSPResponses.addFromPdf(documentBytes);
+        validationResult = validators.getPdfSignatureValidator().extendedResultValidation(documentBytes);
+        break;
+      case JOSE:
+      case JOSE_COMPACT:
+        validationResult = validators.getJoseSignedDocumentValidator().extendedResultValidation(documentBytes);
+        break;
+      default:
+        throw new IOException("Unable to handle uploaded document - illegal document content");
+      }
+    }
+    catch (IOException | RuntimeException ex) {
+      // Runtime exceptions are internal errors and are not reported as errors of the document
+      stopTimer(sample, docType, null, "miss");
+      throw ex;
+    }
+    catch (Exception ex) {
+      stopTimer(sample, docType, null, "miss");
+      log.debug("Error validating signed document: {}", ex.getMessage());
+      throw new IOException("Error validating signed document (" + ex.getMessage() + ")", ex);
+    }
+
+    stopTimer(sample, docType, validationResult, "miss");
+    validationResultCache.put(cacheKey, validationResult);
+    return validationResult;
+  }
+
+  private void stopTimer(Timer.Sample sample, DocType docType,
+    SignedDocumentValidationResult<? extends ExtendedSigValResult> validationResult, String cache) {
+    validationMetrics.stop(sample, ValidationMetrics.VALIDATION,
+      "doctype", ValidationMetrics.docTypeTag(docType),
+      "signatures", validationResult == null ? "unknown" : ValidationMetrics.signatureCountTag(validationResult.getSignatureCount()),
+      "outcome", validationResult == null ? "error" : "success",
+      "cache", cache);
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.validation;
+
+import se.idsec.signservice.security.certificate.CertificateValidationResult;
+import se.swedenconnect.sigval.cert.chain.ExtendedCertPathValidatorException;
+import se.swedenconnect.sigval.cert.chain.PathValidationResult;
+import se.swedenconnect.sigval.cert.validity.ValidationStatus;
+import se.swedenconnect.sigval.commons.data.ExtendedSigValResult;
+import se.swedenconnect.sigval.commons.data.SignedDocumentValidationResult;
+import se.swedenconnect.sigval.commons.data.TimeValidationResult;
+
+import javax.security.auth.x500.X500Principal;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collects the issuers of the certificates that a cached validation outcome depends on.
+ *
+ * <p>The revocation status of a certificate is provided by a CRL of the certificate issuer. A cached outcome is
+ * therefore only affected by an updated CRL if the CRL issuer is the issuer of one of the collected certificates.</p>
+ */
+public final class IssuerDependencies {
+
+  private IssuerDependencies() {
+  }
+
+  /**
+   * Get the issuers of the certificates of a certificate validation
+   *
+   * @param certificates the validated certificate and the supporting certificates
+   * @param result the validation result or null if the validation failed
+   * @param exception the validation failure or null if the validation succeeded
+   * @return the issuers of the certificates
+   */
+  public static Set<X500Principal> getIssuers(Collection<X509Certificate> certificates,
+    CertificateValidationResult result, Exception exception) {
+    Set<X500Principal> issuers = new HashSet<>();
+    addIssuers(issuers, certificates);
+    addIssuers(issuers, result);
+    if (exception instanceof ExtendedCertPathValidatorException) {
+      addIssuers(issuers, ((ExtendedCertPathValidatorException) exception).getPathValidationResult());
+    }
+    return issuers;
+  }
+
+  /**
+   * Get the issuers of the certificates of all signatures and time stamps of a document validation result
+   *
+   * @param result the document validation result
+   * @return the issuers of the certificates
+   */
+  public static Set<X500Principal> getIssuers(SignedDocumentValidationResult<? extends ExtendedSigValResult> result) {
+    Set<X500Principal> issuers = new HashSet<>();
+    List<? extends ExtendedSigValResult> signatureResults = result.getSignatureValidationResults();
+    if (signatureResults == null) {
+      return issuers;
+    }
+    for (ExtendedSigValResult signatureResult : signatureResults) {
+      if (signatureResult.getSignerCertificate() != null) {
+        issuers.add(signatureResult.getSignerCertificate().getIssuerX500Principal());
+      }
+      addIssuers(issuers, signatureResult.getSignatureCertificateChain());
+      addIssuers(issuers, signatureResult.getCertificateValidationResult());
+      if (signatureResult.getTimeValidationResults() != null) {
+        for (TimeValidationResult timeValidationResult : signatureResult.getTimeValidationResults()) {
+          addIssuers(issuers, timeValidationResult.getCertificateValidationResult());
+        }
+      }
+    }
+    return issuers;
+  }
+
+  private static void addIssuers(Set<X500Principal> issuers, CertificateValidationResult result) {
+    if (result == null) {
+      return;
+    }
+    addIssuers(issuers, result.getValidatedCertificatePath());
+    if (result instanceof PathValidationResult && ((PathValidationResult) result).getValidationStatusList() != null) {
+      for (ValidationStatus status : ((PathValidationResult) result).getValidationStatusList()) {
+        if (status.getCertificate() != null) {
+          issuers.add(status.getCertificate().getIssuerX500Principal());
+        }
+      }
+    }
+  }
+
+  private static void addIssuers(Set<X500Principal> issuers, Collection<X509Certificate> certificates) {
+    if (certificates == null) {
+      return;
+    }
+    for (X509Certificate certificate : certificates) {
+      if (certificate != null) {
+        issuers.add(certificate.getIssuerX500Principal());
+      }
+    }
+  }
+
+}
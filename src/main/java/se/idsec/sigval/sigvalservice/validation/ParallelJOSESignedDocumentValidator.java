@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.validation;
+
+import com.nimbusds.jose.util.JSONObjectUtils;
+import se.idsec.signservice.security.sign.SignatureValidationResult;
+import se.swedenconnect.sigval.jose.verify.JOSESignatureDataValidator;
+import se.swedenconnect.sigval.jose.verify.JOSESignedDocumentValidator;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SignatureException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * JOSE signed document validator that validates the signatures of a general JSON serialized JWS with more than one
+ * signature in parallel using the {@link SignatureValidationExecutor}.
+ *
+ * <p>Each signature of the general JSON serialization is validated as a flattened JSON serialized JWS with the same
+ * payload, so that each signature is validated by the validator of this class. Compact and flattened JWS hold one
+ * signature and are validated as they are.</p>
+ */
+public class ParallelJOSESignedDocumentValidator extends JOSESignedDocumentValidator {
+
+  private final SignatureValidationExecutor signatureValidationExecutor;
+
+  /**
+   * Constructor
+   *
+   * @param signatureDataValidator validator of single JOSE signatures
+   * @param signatureValidationExecutor executor validating the signatures of a document
+   */
+  public ParallelJOSESignedDocumentValidator(JOSESignatureDataValidator signatureDataValidator,
+    SignatureValidationExecutor signatureValidationExecutor) {
+    super(signatureDataValidator);
+    this.signatureValidationExecutor = signatureValidationExecutor;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<SignatureValidationResult> validate(byte[] document) throws SignatureException {
+    List<byte[]> signatureDocuments = signatureValidationExecutor.isEnabled() ? getSignatureDocuments(document) : null;
+    if (signatureDocuments == null) {
+      return super.validate(document);
+    }
+    List<Callable<List<SignatureValidationResult>>> tasks = new ArrayList<>(signatureDocuments.size());
+    for (byte[] signatureDocument : signatureDocuments) {
+      tasks.add(() -> super.validate(signatureDocument));
+    }
+    List<SignatureValidationResult> results = new ArrayList<>(signatureDocuments.size());
+    signatureValidationExecutor.invokeAll(tasks).forEach(results::addAll);
+    return results;
+  }
+
+  /**
+   * Get a flattened JSON serialized JWS for each signature of a general JSON serialized JWS
+   *
+   * @param document the JOSE document
+   * @return one document per signature, or null if the document is not a general JSON serialized JWS with more than
+   *   one signature
+   */
+  private static List<byte[]> getSignatureDocuments(byte[] document) {
+    String joseString = new String(document, StandardCharsets.UTF_8).trim();
+    if (!joseString.startsWith("{")) {
+      return null;
+    }
+    try {
+      Map<String, Object> jsonObject = JSONObjectUtils.parse(joseString);
+      List<Object> signatures = JSONObjectUtils.getJSONArray(jsonObject, "signatures");
+      if (signatures == null || signatures.size() < 2) {
+        return null;
+      }
+      List<byte[]> signatureDocuments = new ArrayList<>(signatures.size());
+      for (Object signature : signatures) {
+        if (!(signature instanceof Map)) {
+          return null;
+        }
+        Map<String, Object> flattened = new LinkedHashMap<>();
+        flattened.put("payload", jsonObject.get("payload"));
+        ((Map<?, ?>) signature).forEach((name, value) -> flattened.put(String.valueOf(name), value));
+        signatureDocuments.add(JSONObjectUtils.toJSONString(flattened).getBytes(StandardCharsets.UTF_8));
+      }
+      return signatureDocuments;
+    }
+    catch (ParseException ex) {
+      // Left to the validator to report
+      return null;
+    }
+  }
+
+}
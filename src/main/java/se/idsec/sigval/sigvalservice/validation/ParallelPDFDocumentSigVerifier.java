@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.validation;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import se.idsec.signservice.security.sign.SignatureValidationResult;
+import se.swedenconnect.sigval.pdf.pdfstruct.PDFSignatureContext;
+import se.swedenconnect.sigval.pdf.pdfstruct.impl.DefaultPDFSignatureContextFactory;
+import se.swedenconnect.sigval.pdf.svt.PDFSVTValidator;
+import se.swedenconnect.sigval.pdf.timestamp.PDFDocTimeStamp;
+import se.swedenconnect.sigval.pdf.verify.PDFSingleSignatureValidator;
+import se.swedenconnect.sigval.pdf.verify.impl.SVTenabledPDFDocumentSigVerifier;
+
+import java.io.IOException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * PDF document signature verifier that validates the signatures of a document with more than one signature in
+ * parallel using the {@link SignatureValidationExecutor}.
+ *
+ * <p>Document timestamps are verified once before the signatures are validated. Documents with a document timestamp
+ * are validated by the SVT enabled verifier in sequence when SVT validation is enabled, since the signatures of a
+ * document with a valid SVT are validated using the SVT.</p>
+ */
+public class ParallelPDFDocumentSigVerifier extends SVTenabledPDFDocumentSigVerifier {
+
+  /** The sub filter of document timestamps, including SVT document timestamps */
+  private static final String DOC_TIMESTAMP_SUB_FILTER = "ETSI.RFC3161";
+
+  private final PDFSingleSignatureValidator pdfSignatureVerifier;
+  private final boolean svtValidation;
+  private final DefaultPDFSignatureContextFactory pdfContextFactory;
+  private final SignatureValidationExecutor signatureValidationExecutor;
+
+  /**
+   * Constructor
+   *
+   * @param pdfSignatureVerifier verifier of single PDF signatures
+   * @param pdfsvtValidator SVT validator or null if SVT validation is not enabled
+   * @param pdfContextFactory PDF signature context factory
+   * @param signatureValidationExecutor executor validating the signatures of a document
+   */
+  public ParallelPDFDocumentSigVerifier(PDFSingleSignatureValidator pdfSignatureVerifier,
+    PDFSVTValidator pdfsvtValidator, DefaultPDFSignatureContextFactory pdfContextFactory,
+    SignatureValidationExecutor signatureValidationExecutor) {
+    super(pdfSignatureVerifier, pdfsvtValidator, pdfContextFactory);
+    this.pdfSignatureVerifier = pdfSignatureVerifier;
+    this.svtValidation = pdfsvtValidator != null;
+    this.pdfContextFactory = pdfContextFactory;
+    this.signatureValidationExecutor = signatureValidationExecutor;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<SignatureValidationResult> validate(byte[] pdfDocBytes) throws SignatureException {
+    if (!signatureValidationExecutor.isEnabled()) {
+      return super.validate(pdfDocBytes);
+    }
+    try (PDDocument document = PDDocument.load(pdfDocBytes)) {
+      List<PDSignature> signatures = new ArrayList<>();
+      List<PDSignature> docTimestamps = new ArrayList<>();
+      for (PDSignature signature : document.getSignatureDictionaries()) {
+        if (DOC_TIMESTAMP_SUB_FILTER.equals(signature.getSubFilter())) {
+          docTimestamps.add(signature);
+        }
+        else {
+          signatures.add(signature);
+        }
+      }
+      if (signatures.size() < 2 || (svtValidation && !docTimestamps.isEmpty())) {
+        return super.validate(pdfDocBytes);
+      }
+
+      PDFSignatureContext signatureContext = pdfContextFactory.getPdfSignatureContext(pdfDocBytes);
+      List<PDFDocTimeStamp> documentTimestamps =
+        pdfSignatureVerifier.verifyDocumentTimestamps(docTimestamps, pdfDocBytes);
+      List<Callable<SignatureValidationResult>> tasks = new ArrayList<>(signatures.size());
+      for (PDSignature signature : signatures) {
+        tasks.add(() -> pdfSignatureVerifier.verifySignature(signature, pdfDocBytes, documentTimestamps,
+          signatureContext));
+      }
+      return signatureValidationExecutor.invokeAll(tasks);
+    }
+    catch (IOException ex) {
+      throw new SignatureException("Error reading the signatures of the PDF document (" + ex.getMessage() + ")", ex);
+    }
+  }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.validation;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import se.idsec.signservice.security.sign.SignatureValidationResult;
+import se.swedenconnect.sigval.xml.verify.XMLSignatureElementValidator;
+import se.swedenconnect.sigval.xml.verify.impl.XMLSignedDocumentValidator;
+import se.swedenconnect.sigval.xml.xmlstruct.impl.DefaultXMLSignatureContextFactory;
+
+import javax.xml.crypto.dsig.XMLSignature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * XML signed document validator that validates the signatures of a document with more than one signature in parallel
+ * using the {@link SignatureValidationExecutor}.
+ *
+ * <p>DOM implementations are not thread safe, not even for reading, so each signature is validated in its own copy of
+ * the document. The copies are made by the calling thread before the signatures are validated.</p>
+ */
+public class ParallelXMLSignedDocumentValidator extends XMLSignedDocumentValidator {
+
+  private final XMLSignatureElementValidator signatureElementValidator;
+  private final SignatureValidationExecutor signatureValidationExecutor;
+
+  /**
+   * Constructor
+   *
+   * @param signatureElementValidator validator of single XML signatures
+   * @param signatureValidationExecutor executor validating the signatures of a document
+   */
+  public ParallelXMLSignedDocumentValidator(XMLSignatureElementValidator signatureElementValidator,
+    SignatureValidationExecutor signatureValidationExecutor) {
+    super(signatureElementValidator);
+    this.signatureElementValidator = signatureElementValidator;
+    this.signatureValidationExecutor = signatureValidationExecutor;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<SignatureValidationResult> validate(Document document) throws SignatureException {
+    int signatureCount = document.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature").getLength();
+    if (!signatureValidationExecutor.isEnabled() || signatureCount < 2) {
+      return super.validate(document);
+    }
+    List<Callable<SignatureValidationResult>> tasks = new ArrayList<>(signatureCount);
+    for (int i = 0; i < signatureCount; i++) {
+      Document copy = (Document) document.cloneNode(true);
+      Element signature = (Element) copy.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature").item(i);
+      tasks.add(() -> signatureElementValidator.validateSignature(signature,
+        new DefaultXMLSignatureContextFactory().getSignatureContext(copy)));
+    }
+    return signatureValidationExecutor.invokeAll(tasks);
+  }
+
+}
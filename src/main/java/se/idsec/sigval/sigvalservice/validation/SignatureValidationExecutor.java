@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.validation;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared, bounded thread pool validating the independent signatures of one document in parallel.
+ *
+ * <p>The validation time of a document with many signatures then follows the slowest signature instead of the sum of
+ * all signatures. The pool is shared by all requests and does not queue work. A signature is validated by the thread
+ * validating the document when no pool thread is idle, so a busy pool falls back to validation in sequence.</p>
+ */
+@Slf4j
+@Component
+public class SignatureValidationExecutor implements DisposableBean {
+
+  /** The executor, or null if signatures are validated in sequence */
+  private final ThreadPoolExecutor executor;
+
+  public SignatureValidationExecutor(@Value("${sigval-service.validator.signature-threads:0}") int threads) {
+    if (threads <= 0) {
+      this.executor = null;
+      log.info("The signatures of a document are validated in sequence");
+      return;
+    }
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = runnable -> {
+      Thread thread = new Thread(runnable, "sigval-signature-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    // Tasks that no idle pool thread takes are run by the submitting thread, also after shutdown
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+      threadFactory, (runnable, pool) -> runnable.run());
+    this.executor.allowCoreThreadTimeOut(true);
+    log.info("The signatures of a document are validated in parallel on {} shared threads", threads);
+  }
+
+  /**
+   * Test if signatures are validated in parallel
+   *
+   * @return true if signatures are validated in parallel
+   */
+  public boolean isEnabled() {
+    return executor != null;
+  }
+
+  /**
+   * Validate signatures. The signatures are validated in parallel if this executor is enabled.
+   *
+   * @param tasks tasks each validating one signature
+   * @param <T> the signature validation result type
+   * @return the results of the tasks in the order of the tasks
+   * @throws SignatureException if a task fails with a checked exception or if the thread is interrupted
+   */
+  public <T> List<T> invokeAll(List<Callable<T>> tasks) throws SignatureException {
+    List<T> results = new ArrayList<>(tasks.size());
+    if (executor == null || tasks.size() < 2) {
+      for (Callable<T> task : tasks) {
+        results.add(call(task));
+      }
+      return results;
+    }
+
+    // The last signature is validated by the calling thread while the pool validates the others
+    List<Future<T>> futures = new ArrayList<>(tasks.size() - 1);
+    try {
+      for (Callable<T> task : tasks.subList(0, tasks.size() - 1)) {
+        futures.add(executor.submit(task));
+      }
+      T lastResult = call(tasks.get(tasks.size() - 1));
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+      results.add(lastResult);
+      return results;
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new SignatureException("Interrupted while validating signatures", ex);
+    }
+    catch (ExecutionException ex) {
+      throw toSignatureException(ex.getCause());
+    }
+    finally {
+      futures.forEach(future -> future.cancel(true));
+    }
+  }
+
+  private static <T> T call(Callable<T> task) throws SignatureException {
+    try {
+      return task.call();
+    }
+    catch (Exception ex) {
+      throw toSignatureException(ex);
+    }
+  }
+
+  /**
+   * Rethrow runtime exceptions and errors unchanged and wrap other exceptions in a signature exception
+   */
+  private static SignatureException toSignatureException(Throwable cause) {
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    if (cause instanceof SignatureException) {
+      return (SignatureException) cause;
+    }
+    return new SignatureException("Error validating signature (" + cause.getMessage() + ")", cause);
+  }
+
+  @Override public void destroy() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.validation;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.util.encoders.Hex;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.swedenconnect.sigval.commons.data.ExtendedSigValResult;
+import se.swedenconnect.sigval.commons.data.SignedDocumentValidationResult;
+
+import javax.security.auth.x500.X500Principal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded cache of signed document validation results.
+ *
+ * <p>Results are keyed by the SHA-256 hash of the validated document together with the trust configuration generation
+ * that was used to validate it. A reload of the validators therefore never serves a result created under an older
+ * trust configuration. Entries expire after a time to live that by default follows the max CRL refresh interval, and
+ * the least recently used entry is evicted when the cache is full. When a cached CRL is updated, the results that
+ * depend on certificates issued by the CRL issuer are removed.</p>
+ */
+@Slf4j
+@Component
+public class ValidationResultCache {
+
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final Map<String, CacheEntry> cache;
+
+  public ValidationResultCache(
+    @Value("${sigval-service.validation-cache.max-entries:100}") int maxEntries,
+    @Value("${sigval-service.validation-cache.ttl-seconds:${sigval-service.crl.recache-delay-seconds:3600}}") long ttlSeconds) {
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlSeconds * 1000;
+    this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+        return size() > ValidationResultCache.this.maxEntries;
+      }
+    };
+    log.info("Validation result cache max entries: {}, time to live (seconds): {}", maxEntries, ttlSeconds);
+  }
+
+  /**
+   * Get the cache key of a document. The key is computed once per validation and used both to look up and to add the
+   * validation result.
+   *
+   * @param documentBytes the bytes of the validated document
+   * @param generation the trust configuration generation of the validators used
+   * @return cache key or null if the cache is disabled
+   */
+  public String getKey(byte[] documentBytes, long generation) {
+    if (!isEnabled()) {
+      return null;
+    }
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      return Hex.toHexString(md.digest(documentBytes)) + ":" + generation;
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-256 is not supported", e);
+    }
+  }
+
+  /**
+   * Get a cached validation result
+   *
+   * @param key the cache key of the validated document
+   * @return cached validation result or null if no valid cached result is available
+   */
+  public SignedDocumentValidationResult<? extends ExtendedSigValResult> get(String key) {
+    if (key == null) {
+      return null;
+    }
+    synchronized (cache) {
+      CacheEntry entry = cache.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (System.currentTimeMillis() > entry.getExpiryTime()) {
+        cache.remove(key);
+        return null;
+      }
+      log.debug("Using cached validation result");
+      return entry.getResult();
+    }
+  }
+
+  /**
+   * Add a validation result to the cache
+   *
+   * @param key the cache key of the validated document
+   * @param result the validation result
+   */
+  public void put(String key, SignedDocumentValidationResult<? extends ExtendedSigValResult> result) {
+    if (key == null || result == null) {
+      return;
+    }
+    synchronized (cache) {
+      cache.put(key, new CacheEntry(result, IssuerDependencies.getIssuers(result),
+        System.currentTimeMillis() + ttlMillis));
+    }
+  }
+
+  /**
+   * Remove the cached validation results that depend on certificates issued by an issuer
+   *
+   * @param issuer the certificate issuer
+   */
+  public void invalidate(X500Principal issuer) {
+    synchronized (cache) {
+      cache.values().removeIf(entry -> entry.getIssuers().contains(issuer));
+    }
+  }
+
+  /**
+   * Remove all cached validation results
+   */
+  public void clear() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  private boolean isEnabled() {
+    return maxEntries > 0 && ttlMillis > 0;
+  }
+
+  @Getter
+  @AllArgsConstructor
+  private static class CacheEntry {
+    private final SignedDocumentValidationResult<? extends ExtendedSigValResult> result;
+    private final Set<X500Principal> issuers;
+    private final long expiryTime;
+  }
+
+}
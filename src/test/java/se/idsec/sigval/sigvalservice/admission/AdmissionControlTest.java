@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.admission;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.idsec.sigval.sigvalservice.configuration.FileSize;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.swedenconnect.sigval.commons.document.DocType;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControlTest {
+
+  private SimpleMeterRegistry meterRegistry;
+
+  @BeforeEach
+  void init() {
+    meterRegistry = new SimpleMeterRegistry();
+  }
+
+  @Test
+  void testAdmitAndRelease() throws Exception {
+    AdmissionControl admissionControl = getAdmissionControl(2, 0, "0", 0, 0);
+    AdmissionControl.Permit permit1 = admit(admissionControl, DocType.PDF, 100);
+    AdmissionControl.Permit permit2 = admit(admissionControl, DocType.XML, 100);
+    assertRejected(admissionControl, DocType.PDF, 100, "queue-full");
+
+    permit1.close();
+    // Closing a permit again does not release more capacity
+    permit1.close();
+    AdmissionControl.Permit permit3 = admit(admissionControl, DocType.PDF, 100);
+    assertRejected(admissionControl, DocType.PDF, 100, "queue-full");
+    permit2.close();
+    permit3.close();
+  }
+
+  @Test
+  void testQueueFull() throws Exception {
+    AdmissionControl admissionControl = getAdmissionControl(1, 0, "0", 1, 5000);
+    AdmissionControl.Permit permit = admit(admissionControl, DocType.PDF, 100);
+
+    CompletableFuture<AdmissionControl.Permit> queued = admitAsync(admissionControl, DocType.PDF, 100);
+    awaitQueued(queued);
+    assertRejected(admissionControl, DocType.PDF, 100, "queue-full");
+
+    // The queued request is admitted when the capacity is released
+    permit.close();
+    queued.get(5, TimeUnit.SECONDS).close();
+  }
+
+  @Test
+  void testQueueTimeout() throws Exception {
+    AdmissionControl admissionControl = getAdmissionControl(1, 0, "0", 5, 200);
+    AdmissionControl.Permit permit = admit(admissionControl, DocType.PDF, 100);
+
+    long start = System.nanoTime();
+    assertRejected(admissionControl, DocType.PDF, 100, "queue-timeout");
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+
+    permit.close();
+    admit(admissionControl, DocType.PDF, 100).close();
+  }
+
+  @Test
+  void testWaitingRequestHoldsNoCapacity() throws Exception {
+    // Max 2 requests in total and max 1 PDF document
+    AdmissionControl admissionControl = getAdmissionControl(2, 1, "0", 5, 5000);
+    AdmissionControl.Permit pdfPermit = admit(admissionControl, DocType.PDF, 100);
+
+    // The waiting PDF request must not hold any of the total capacity
+    CompletableFuture<AdmissionControl.Permit> queuedPdf = admitAsync(admissionControl, DocType.PDF, 100);
+    awaitQueued(queuedPdf);
+    AdmissionControl.Permit xmlPermit = admit(admissionControl, DocType.XML, 100);
+    assertFalse(queuedPdf.isDone());
+
+    xmlPermit.close();
+    pdfPermit.close();
+    queuedPdf.get(5, TimeUnit.SECONDS).close();
+  }
+
+  @Test
+  void testWaitingRequestIsNotPassed() throws Exception {
+    AdmissionControl admissionControl = getAdmissionControl(10, 0, "1000", 5, 5000);
+    AdmissionControl.Permit permit1 = admit(admissionControl, DocType.PDF, 400);
+    AdmissionControl.Permit permit2 = admit(admissionControl, DocType.PDF, 400);
+
+    // A small document that fits is not admitted ahead of a large document waiting for the document size limit
+    CompletableFuture<AdmissionControl.Permit> queuedLarge = admitAsync(admissionControl, DocType.PDF, 600);
+    awaitQueued(queuedLarge);
+    CompletableFuture<AdmissionControl.Permit> queuedSmall = admitAsync(admissionControl, DocType.XML, 100);
+    awaitQueued(queuedSmall);
+
+    permit1.close();
+    AdmissionControl.Permit largePermit = queuedLarge.get(5, TimeUnit.SECONDS);
+    awaitQueued(queuedSmall);
+    permit2.close();
+    queuedSmall.get(5, TimeUnit.SECONDS).close();
+    largePermit.close();
+  }
+
+  @Test
+  void testDocumentSizeLimit() throws Exception {
+    AdmissionControl admissionControl = getAdmissionControl(10, 0, "1000", 0, 0);
+    AdmissionControl.Permit permit1 = admit(admissionControl, DocType.PDF, 600);
+    assertRejected(admissionControl, DocType.PDF, 600, "queue-full");
+    AdmissionControl.Permit permit2 = admit(admissionControl, DocType.XML, 400);
+    permit1.close();
+    permit2.close();
+
+    // A document larger than the limit is admitted when no other document is processed
+    AdmissionControl.Permit permit3 = admit(admissionControl, DocType.PDF, 5000);
+    assertRejected(admissionControl, DocType.XML, 1, "queue-full");
+    permit3.close();
+  }
+
+  @Test
+  void testDisabled() throws Exception {
+    AdmissionControl admissionControl = new AdmissionControl(false, 1, 0, 0, 0, 0, 0, 0, "0", 0, 0, 5,
+      new FileSize("1MB"), new ValidationMetrics(meterRegistry));
+    AdmissionControl.Permit permit1 = admit(admissionControl, DocType.PDF, 100);
+    AdmissionControl.Permit permit2 = admit(admissionControl, DocType.PDF, 100);
+    permit1.close();
+    permit2.close();
+  }
+
+  private AdmissionControl getAdmissionControl(int maxConcurrent, int maxPdf, String maxDocumentSize, int queueSize,
+    long queueTimeoutMillis) {
+    return new AdmissionControl(true, maxConcurrent, 0, 0, 0, maxPdf, 0, 0, maxDocumentSize, queueSize,
+      queueTimeoutMillis, 5, new FileSize("1MB"), new ValidationMetrics(meterRegistry));
+  }
+
+  private static AdmissionControl.Permit admit(AdmissionControl admissionControl, DocType docType, long size)
+    throws AdmissionRejectedException {
+    return admissionControl.admit(AdmissionControl.VALIDATE, docType, size);
+  }
+
+  private static CompletableFuture<AdmissionControl.Permit> admitAsync(AdmissionControl admissionControl,
+    DocType docType, long size) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return admit(admissionControl, docType, size);
+      }
+      catch (AdmissionRejectedException ex) {
+        throw new IllegalStateException(ex);
+      }
+    });
+  }
+
+  /**
+   * Wait until an asynchronous request has entered the queue
+   */
+  private static void awaitQueued(CompletableFuture<AdmissionControl.Permit> queued)
+    throws InterruptedException, ExecutionException {
+    try {
+      queued.get(200, TimeUnit.MILLISECONDS);
+      fail("Request was not queued");
+    }
+    catch (TimeoutException ex) {
+      // The request is waiting
+    }
+  }
+
+  private void assertRejected(AdmissionControl admissionControl, DocType docType, long size, String reason) {
+    double rejected = getRejectedCount(reason);
+    AdmissionRejectedException ex = assertThrows(AdmissionRejectedException.class,
+      () -> admit(admissionControl, docType, size));
+    assertEquals(5, ex.getRetryAfterSeconds());
+    assertEquals(rejected + 1, getRejectedCount(reason));
+  }
+
+  private double getRejectedCount(String reason) {
+    return meterRegistry.find(ValidationMetrics.ADMISSION_REJECTED).tag("reason", reason).counters().stream()
+      .mapToDouble(counter -> counter.count())
+      .sum();
+  }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.admission;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import se.idsec.sigval.sigvalservice.controller.AdmissionExceptionHandler;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class AsyncRequestExecutorTest {
+
+  private SimpleMeterRegistry meterRegistry;
+  private AsyncRequestExecutor asyncRequestExecutor;
+  private MockMvc mockMvc;
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private volatile boolean interrupted;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    // One thread so that a second request waits in the queue while the first request is processed
+    asyncRequestExecutor = new AsyncRequestExecutor(true, 1, 10, 60, 5, new ValidationMetrics(meterRegistry));
+    mockMvc = MockMvcBuilders.standaloneSetup(new TestController())
+      .setControllerAdvice(new AdmissionExceptionHandler())
+      .build();
+  }
+
+  @AfterEach
+  void tearDown() {
+    release.countDown();
+    asyncRequestExecutor.destroy();
+  }
+
+  @Test
+  void testCompleted() throws Exception {
+    release.countDown();
+    MvcResult mvcResult = mockMvc.perform(get("/test").param("name", "done"))
+      .andExpect(request().asyncStarted())
+      .andReturn();
+    mockMvc.perform(asyncDispatch(mvcResult))
+      .andExpect(status().isOk())
+      .andExpect(content().string("done"));
+  }
+
+  @Test
+  void testTimeoutOfQueuedAndRunningRequests() throws Exception {
+    MvcResult running = mockMvc.perform(get("/test").param("name", "running")).andReturn();
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    MvcResult queued = mockMvc.perform(get("/test").param("name", "queued")).andReturn();
+
+    // A request that times out before it is started is rejected as busy
+    timeout(queued);
+    mockMvc.perform(asyncDispatch(queued))
+      .andExpect(status().isServiceUnavailable())
+      .andExpect(header().string("Retry-After", "5"));
+    assertEquals(1, meterRegistry.get(ValidationMetrics.ADMISSION_REJECTED).tag("reason", "timeout").counter().count());
+
+    // A request that times out while it is processed is cancelled
+    timeout(running);
+    mockMvc.perform(asyncDispatch(running))
+      .andExpect(status().isGatewayTimeout());
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!interrupted && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(interrupted);
+    assertEquals(1, meterRegistry.get(ValidationMetrics.ADMISSION_REJECTED).counter().count());
+  }
+
+  private static void timeout(MvcResult mvcResult) throws Exception {
+    MockAsyncContext asyncContext = (MockAsyncContext) mvcResult.getRequest().getAsyncContext();
+    assertNotNull(asyncContext);
+    for (AsyncListener listener : asyncContext.getListeners()) {
+      listener.onTimeout(new AsyncEvent(asyncContext));
+    }
+  }
+
+  @RestController
+  class TestController {
+
+    @GetMapping("/test")
+    public DeferredResult<String> test(@RequestParam("name") String name) {
+      return asyncRequestExecutor.execute(AdmissionControl.VALIDATE, () -> {
+        started.countDown();
+        try {
+          release.await();
+        }
+        catch (InterruptedException ex) {
+          interrupted = true;
+          throw ex;
+        }
+        return name;
+      });
+    }
+  }
+
+}
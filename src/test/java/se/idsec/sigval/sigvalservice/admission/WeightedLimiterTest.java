@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.admission;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WeightedLimiterTest {
+
+  @Test
+  void testAcquireAndRelease() {
+    WeightedLimiter limiter = new WeightedLimiter(10);
+    assertTrue(limiter.isAvailable(6));
+    limiter.acquire(6);
+    assertEquals(6, limiter.getUsed());
+    assertTrue(limiter.isAvailable(4));
+    assertFalse(limiter.isAvailable(5));
+
+    limiter.release(6);
+    assertEquals(0, limiter.getUsed());
+    assertTrue(limiter.isAvailable(10));
+  }
+
+  @Test
+  void testWeightLargerThanCapacity() {
+    WeightedLimiter limiter = new WeightedLimiter(10);
+    // A request larger than the capacity is given the whole capacity
+    assertTrue(limiter.isAvailable(100));
+    limiter.acquire(100);
+    assertEquals(10, limiter.getUsed());
+    assertFalse(limiter.isAvailable(1));
+
+    limiter.release(100);
+    assertEquals(0, limiter.getUsed());
+  }
+
+  @Test
+  void testMinimumWeight() {
+    WeightedLimiter limiter = new WeightedLimiter(2);
+    limiter.acquire(0);
+    limiter.acquire(0);
+    assertEquals(2, limiter.getUsed());
+    assertFalse(limiter.isAvailable(0));
+  }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.configuration.keys;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opensaml.security.x509.X509Credential;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class DelegatedSignerTest {
+
+  private static KeyPair issuerKeyPair;
+
+  @BeforeAll
+  static void init() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    issuerKeyPair = generator.generateKeyPair();
+  }
+
+  @Test
+  void testCaIssuer() throws Exception {
+    X509Certificate issuerCert = getCertificate(true, KeyUsage.keyCertSign | KeyUsage.cRLSign);
+    DelegatedSigner<List<X509Certificate>> signer = new DelegatedSigner<>(getKeyPool(issuerCert),
+      (privateKey, certificateChain) -> certificateChain, 60, false, getValidationMetrics());
+
+    try (PooledSigner.Lease<List<X509Certificate>> lease = signer.acquire()) {
+      List<X509Certificate> chain = lease.get();
+      assertEquals(2, chain.size());
+      assertSame(issuerCert, chain.get(1));
+      chain.get(0).verify(issuerKeyPair.getPublic());
+      assertEquals(-1, chain.get(0).getBasicConstraints());
+    }
+  }
+
+  @Test
+  void testNonCaIssuerRejected() throws Exception {
+    // End entity certificate
+    SigningKeyPool endEntityPool = getKeyPool(getCertificate(false, KeyUsage.digitalSignature));
+    assertThrows(IllegalArgumentException.class, () -> new DelegatedSigner<>(endEntityPool,
+      (privateKey, certificateChain) -> certificateChain, 60, false, getValidationMetrics()));
+
+    // CA certificate without the keyCertSign key usage
+    SigningKeyPool noCertSignPool = getKeyPool(getCertificate(true, KeyUsage.cRLSign));
+    assertThrows(IllegalArgumentException.class, () -> new DelegatedSigner<>(noCertSignPool,
+      (privateKey, certificateChain) -> certificateChain, 60, false, getValidationMetrics()));
+
+    // An issuer certificate that is trusted directly must be explicitly allowed
+    DelegatedSigner<List<X509Certificate>> signer = new DelegatedSigner<>(endEntityPool,
+      (privateKey, certificateChain) -> certificateChain, 60, true, getValidationMetrics());
+    try (PooledSigner.Lease<List<X509Certificate>> lease = signer.acquire()) {
+      assertEquals(2, lease.get().size());
+    }
+  }
+
+  private static ValidationMetrics getValidationMetrics() {
+    return new ValidationMetrics(new SimpleMeterRegistry());
+  }
+
+  private static SigningKeyPool getKeyPool(X509Certificate issuerCert) throws Exception {
+    X509Credential credential = mock(X509Credential.class);
+    when(credential.getEntityCertificateChain()).thenReturn(List.of(issuerCert));
+    LocalKeySource keySource = mock(LocalKeySource.class);
+    when(keySource.getCredential()).thenReturn(credential);
+    when(keySource.isPkcs11()).thenReturn(false);
+    when(keySource.getSlotNames()).thenReturn(List.of("slot0"));
+    PrivateKey privateKey = issuerKeyPair.getPrivate();
+    when(keySource.loadPrivateKey(anyString())).thenReturn(privateKey);
+    return new SigningKeyPool("report", keySource, 1, 1000, 5, getValidationMetrics());
+  }
+
+  private static X509Certificate getCertificate(boolean ca, int keyUsage) throws Exception {
+    long now = System.currentTimeMillis();
+    X500Name name = new X500Name("CN=Report signer");
+    X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, BigInteger.ONE,
+      new Date(now - 60000), new Date(now + 3600000), name, issuerKeyPair.getPublic())
+      .addExtension(Extension.basicConstraints, true, new BasicConstraints(ca))
+      .addExtension(Extension.keyUsage, true, new KeyUsage(keyUsage));
+    return new JcaX509CertificateConverter().getCertificate(
+      builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(issuerKeyPair.getPrivate())));
+  }
+
+}
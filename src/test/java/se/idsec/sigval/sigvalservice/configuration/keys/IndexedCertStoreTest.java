@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.configuration.keys;
+
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.security.auth.x500.X500Principal;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertSelector;
+import java.security.cert.CertStore;
+import java.security.cert.Certificate;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.PKIXCertPathBuilderResult;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexedCertStoreTest {
+
+  private static X509Certificate root;
+  private static X509Certificate intermediate;
+  private static X509Certificate endEntity;
+  /** Certificate without subject key identifier, with the same subject and serial number as another certificate */
+  private static X509Certificate noKeyId;
+  private static List<X509Certificate> certificates;
+  private static CertStore indexedStore;
+  private static CertStore collectionStore;
+
+  @BeforeAll
+  static void init() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    KeyPair rootKeyPair = generator.generateKeyPair();
+    KeyPair intermediateKeyPair = generator.generateKeyPair();
+    root = createCertificate("CN=Root CA,C=SE", rootKeyPair, "CN=Root CA,C=SE", rootKeyPair, 1, true, true);
+    intermediate = createCertificate("CN=Intermediate CA,C=SE", intermediateKeyPair, "CN=Root CA,C=SE", rootKeyPair,
+      2, true, true);
+    endEntity = createCertificate("CN=Signer,C=SE", generator.generateKeyPair(), "CN=Intermediate CA,C=SE",
+      intermediateKeyPair, 3, false, true);
+    noKeyId = createCertificate("CN=Signer,C=SE", generator.generateKeyPair(), "CN=Other CA,C=SE",
+      generator.generateKeyPair(), 3, false, false);
+
+    certificates = new ArrayList<>(List.of(root, intermediate, endEntity, noKeyId));
+    KeyPair otherKeyPair = generator.generateKeyPair();
+    for (int i = 0; i < 50; i++) {
+      certificates.add(createCertificate("CN=Other " + i + ",C=SE", generator.generateKeyPair(), "CN=Other CA,C=SE",
+        otherKeyPair, 100 + i, i % 2 == 0, i % 3 != 0));
+    }
+    indexedStore = IndexedCertStore.getInstance(certificates);
+    collectionStore = CertStore.getInstance("Collection", new CollectionCertStoreParameters(certificates));
+  }
+
+  @Test
+  void testSelectorMatching() throws Exception {
+    // Certificate
+    assertMatches(certificateSelector(endEntity), endEntity);
+    assertMatches(certificateSelector(noKeyId), noKeyId);
+
+    // Subject, also in another string form of the same name
+    X509CertSelector subjectSelector = new X509CertSelector();
+    subjectSelector.setSubject(new X500Principal("c=se, cn=signer"));
+    assertMatches(subjectSelector, endEntity, noKeyId);
+
+    // Issuer and serial number
+    X509CertSelector issuerSerialSelector = new X509CertSelector();
+    issuerSerialSelector.setIssuer(endEntity.getIssuerX500Principal());
+    issuerSerialSelector.setSerialNumber(endEntity.getSerialNumber());
+    assertMatches(issuerSerialSelector, endEntity);
+
+    // Subject key identifier, and subject key identifier with a subject that does not match
+    X509CertSelector keyIdSelector = new X509CertSelector();
+    keyIdSelector.setSubjectKeyIdentifier(
+      ASN1OctetString.getInstance(intermediate.getExtensionValue(Extension.subjectKeyIdentifier.getId())).getOctets());
+    assertMatches(keyIdSelector, intermediate);
+    keyIdSelector.setSubject(root.getSubjectX500Principal());
+    assertMatches(keyIdSelector);
+
+    // Criteria that are not indexed are matched against all certificates
+    X509CertSelector basicConstraintsSelector = new X509CertSelector();
+    basicConstraintsSelector.setBasicConstraints(0);
+    assertEquals(27, assertMatches(basicConstraintsSelector).size());
+
+    // Selectors that are not X509 certificate selectors
+    CertSelector customSelector = new CertSelector() {
+      @Override public boolean match(Certificate certificate) {
+        return ((X509Certificate) certificate).getSerialNumber().equals(BigInteger.valueOf(3));
+      }
+
+      @Override public Object clone() {
+        return this;
+      }
+    };
+    assertMatches(customSelector, endEntity, noKeyId);
+
+    assertEquals(certificates.size(), indexedStore.getCertificates(null).size());
+    assertTrue(indexedStore.getCRLs(null).isEmpty());
+  }
+
+  @Test
+  void testNoMatch() throws Exception {
+    X509CertSelector subjectSelector = new X509CertSelector();
+    subjectSelector.setSubject(new X500Principal("CN=Unknown,C=SE"));
+    assertMatches(subjectSelector);
+
+    X509CertSelector issuerSerialSelector = new X509CertSelector();
+    issuerSerialSelector.setIssuer(endEntity.getIssuerX500Principal());
+    issuerSerialSelector.setSerialNumber(BigInteger.valueOf(4));
+    assertMatches(issuerSerialSelector);
+  }
+
+  @Test
+  void testPathBuilding() throws Exception {
+    X509CertSelector target = new X509CertSelector();
+    target.setCertificate(endEntity);
+    PKIXBuilderParameters params = new PKIXBuilderParameters(
+      Collections.singleton(new TrustAnchor(root, null)), target);
+    params.addCertStore(indexedStore);
+    params.setRevocationEnabled(false);
+
+    PKIXCertPathBuilderResult result = (PKIXCertPathBuilderResult) CertPathBuilder.getInstance("PKIX").build(params);
+    assertEquals(List.of(endEntity, intermediate), result.getCertPath().getCertificates());
+    assertEquals(root, result.getTrustAnchor().getTrustedCert());
+  }
+
+  /**
+   * Assert that the indexed store and a collection store return the same certificates for a selector
+   */
+  private static Collection<? extends Certificate> assertMatches(CertSelector selector,
+    X509Certificate... expected) throws Exception {
+    Collection<? extends Certificate> matches = indexedStore.getCertificates(selector);
+    assertEquals(new HashSet<>(collectionStore.getCertificates(selector)), new HashSet<>(matches));
+    if (expected.length > 0) {
+      assertEquals(new HashSet<>(List.of(expected)), new HashSet<>(matches));
+    }
+    return matches;
+  }
+
+  private static X509CertSelector certificateSelector(X509Certificate certificate) {
+    X509CertSelector selector = new X509CertSelector();
+    selector.setCertificate(certificate);
+    return selector;
+  }
+
+  private static X509Certificate createCertificate(String subject, KeyPair keyPair, String issuer,
+    KeyPair issuerKeyPair, int serial, boolean ca, boolean keyIdentifiers) throws Exception {
+    long now = System.currentTimeMillis();
+    X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name(issuer), BigInteger.valueOf(serial),
+      new Date(now - 3600000L), new Date(now + 86400000L), new X500Name(subject), keyPair.getPublic());
+    if (ca) {
+      builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+      builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+    }
+    if (keyIdentifiers) {
+      JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils();
+      builder.addExtension(Extension.subjectKeyIdentifier, false,
+        extensionUtils.createSubjectKeyIdentifier(keyPair.getPublic()));
+      builder.addExtension(Extension.authorityKeyIdentifier, false,
+        extensionUtils.createAuthorityKeyIdentifier(issuerKeyPair.getPublic()));
+    }
+    return new JcaX509CertificateConverter().getCertificate(
+      builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(issuerKeyPair.getPrivate())));
+  }
+
+}
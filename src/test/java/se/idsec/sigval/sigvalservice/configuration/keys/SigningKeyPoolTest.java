@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.configuration.keys;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opensaml.security.x509.X509Credential;
+import se.idsec.sigval.sigvalservice.admission.AdmissionRejectedException;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class SigningKeyPoolTest {
+
+  /** A key that can not be used for signing */
+  private static final PrivateKey BROKEN_KEY = new PrivateKey() {
+    @Override public String getAlgorithm() {
+      return "EC";
+    }
+
+    @Override public String getFormat() {
+      return null;
+    }
+
+    @Override public byte[] getEncoded() {
+      return null;
+    }
+  };
+
+  private static PrivateKey key0;
+  private static PrivateKey key1;
+
+  private SimpleMeterRegistry meterRegistry;
+  private ValidationMetrics validationMetrics;
+  /** The key loaded from each slot, or null if loading the key fails */
+  private Map<String, PrivateKey> slotKeys;
+  private AtomicInteger loads;
+
+  @BeforeAll
+  static void init() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    key0 = generator.generateKeyPair().getPrivate();
+    key1 = generator.generateKeyPair().getPrivate();
+  }
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    validationMetrics = new ValidationMetrics(meterRegistry);
+    slotKeys = new HashMap<>(Map.of("slot0", key0, "slot1", key1));
+    loads = new AtomicInteger();
+  }
+
+  @Test
+  void testSlotSelection() throws Exception {
+    SigningKeyPool pool = new SigningKeyPool("svt", keySource(true, "slot0", "slot1"), 2, 100, 5, validationMetrics);
+    List<SigningKeyPool.Lease> leases = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      leases.add(pool.acquire());
+    }
+    // The least used slot is selected, so the signing operations are spread over both slots
+    assertEquals(List.of(key0, key1, key0, key1), leases.stream().map(SigningKeyPool.Lease::getPrivateKey).toList());
+
+    // A released slot is selected again
+    leases.remove(1).close();
+    try (SigningKeyPool.Lease lease = pool.acquire()) {
+      assertSame(key1, lease.getPrivateKey());
+    }
+    leases.forEach(SigningKeyPool.Lease::close);
+    assertEquals(5, meterRegistry.get(ValidationMetrics.SIGNING_WAIT).tag("outcome", "acquired").timer().count());
+  }
+
+  @Test
+  void testAcquireTimeout() throws Exception {
+    SigningKeyPool pool = new SigningKeyPool("svt", keySource(true, "slot0"), 1, 200, 5, validationMetrics);
+    SigningKeyPool.Lease lease = pool.acquire();
+
+    long start = System.nanoTime();
+    AdmissionRejectedException rejected = assertThrows(AdmissionRejectedException.class, pool::acquire);
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+    assertEquals(5, rejected.getRetryAfterSeconds());
+    assertEquals(1, meterRegistry.get(ValidationMetrics.SIGNING_WAIT).tag("outcome", "timeout").timer().count());
+
+    // A waiting signer gets the slot when it is released
+    SigningKeyPool waitingPool = new SigningKeyPool("report", keySource(true, "slot0"), 1, 5000, 5, validationMetrics);
+    SigningKeyPool.Lease first = waitingPool.acquire();
+    CompletableFuture<SigningKeyPool.Lease> waiter = CompletableFuture.supplyAsync(() -> {
+      try {
+        return waitingPool.acquire();
+      }
+      catch (AdmissionRejectedException ex) {
+        throw new IllegalStateException(ex);
+      }
+    });
+    while (meterRegistry.get(ValidationMetrics.SIGNING_QUEUE).tag("keysource", "report").gauge().value() < 1) {
+      Thread.sleep(10);
+    }
+    assertFalse(waiter.isDone());
+    first.close();
+    waiter.get(5, TimeUnit.SECONDS).close();
+    assertEquals(0, meterRegistry.get(ValidationMetrics.SIGNING_QUEUE).tag("keysource", "report").gauge().value());
+    lease.close();
+  }
+
+  @Test
+  void testSoftwareKey() throws Exception {
+    slotKeys.put(LocalKeySource.LOCAL_SLOT, key0);
+    SigningKeyPool pool = new SigningKeyPool("svt", keySource(false, LocalKeySource.LOCAL_SLOT), 1, 0, 5,
+      validationMetrics);
+    // Software keys are not limited to the number of sessions per slot
+    List<SigningKeyPool.Lease> leases = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      leases.add(pool.acquire());
+    }
+    leases.forEach(SigningKeyPool.Lease::close);
+
+    // and are not tested
+    pool.checkHealth();
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  void testHealthCheckReload() throws Exception {
+    // The key of slot1 is loaded, but can not be used for signing
+    slotKeys.put("slot1", BROKEN_KEY);
+    SigningKeyPool pool = new SigningKeyPool("svt", keySource(true, "slot0", "slot1"), 1, 100, 5, validationMetrics);
+    AtomicInteger built = new AtomicInteger();
+    PooledSigner<String> signer = new PooledSigner<>(pool, (privateKey, chain) -> "signer-" + built.incrementAndGet());
+    try (PooledSigner.Lease<String> lease0 = signer.acquire(); PooledSigner.Lease<String> lease1 = signer.acquire()) {
+      assertEquals("signer-1", lease0.get());
+      assertEquals("signer-2", lease1.get());
+    }
+
+    // The key in slot1 fails the test signature and the reloaded key also fails, so slot1 is not used
+    pool.checkHealth();
+    assertEquals(1, countKeyCheck("ok"));
+    assertEquals(1, countKeyCheck("failed"));
+    try (SigningKeyPool.Lease lease = pool.acquire()) {
+      assertSame(key0, lease.getPrivateKey());
+      assertThrows(AdmissionRejectedException.class, pool::acquire);
+    }
+
+    // The key is reloaded by the next health check and a new signer is created for the reloaded key
+    slotKeys.put("slot1", key1);
+    pool.checkHealth();
+    assertEquals(2, countKeyCheck("ok"));
+    assertEquals(1, countKeyCheck("reloaded"));
+    try (PooledSigner.Lease<String> lease0 = signer.acquire(); PooledSigner.Lease<String> lease1 = signer.acquire()) {
+      assertEquals("signer-1", lease0.get());
+      assertEquals("signer-3", lease1.get());
+    }
+  }
+
+  @Test
+  void testHealthCheckBusySlot() throws Exception {
+    // The key of slot1 can not be loaded when the pool is created
+    slotKeys.remove("slot1");
+    SigningKeyPool pool = new SigningKeyPool("svt", keySource(true, "slot0", "slot1"), 1, 100, 5, validationMetrics);
+    try (SigningKeyPool.Lease lease = pool.acquire()) {
+      assertSame(key0, lease.getPrivateKey());
+      assertThrows(AdmissionRejectedException.class, pool::acquire);
+
+      // Slots where all sessions are in use are not tested, but slots without a key are
+      slotKeys.put("slot1", key1);
+      pool.checkHealth();
+      assertEquals(0, countKeyCheck("ok"));
+      assertEquals(1, countKeyCheck("reloaded"));
+      try (SigningKeyPool.Lease lease1 = pool.acquire()) {
+        assertSame(key1, lease1.getPrivateKey());
+      }
+    }
+  }
+
+  @Test
+  void testNoHealthySlot() throws Exception {
+    slotKeys.put("slot0", BROKEN_KEY);
+    slotKeys.put("slot1", BROKEN_KEY);
+    SigningKeyPool pool = new SigningKeyPool("svt", keySource(true, "slot0", "slot1"), 1, 100, 5, validationMetrics);
+    pool.checkHealth();
+    assertEquals(2, countKeyCheck("failed"));
+
+    // Unhealthy slots are used when no slot is healthy, so that signing fails with the error of the key
+    try (SigningKeyPool.Lease lease0 = pool.acquire(); SigningKeyPool.Lease lease1 = pool.acquire()) {
+      assertSame(BROKEN_KEY, lease0.getPrivateKey());
+      assertSame(BROKEN_KEY, lease1.getPrivateKey());
+    }
+  }
+
+  private double countKeyCheck(String outcome) {
+    Counter counter = meterRegistry.find(ValidationMetrics.SIGNING_KEY_CHECK).tag("outcome", outcome).counter();
+    return counter != null ? counter.count() : 0;
+  }
+
+  private LocalKeySource keySource(boolean pkcs11, String... slotNames) throws Exception {
+    X509Credential credential = mock(X509Credential.class);
+    when(credential.getEntityCertificateChain()).thenReturn(Collections.emptyList());
+    LocalKeySource keySource = mock(LocalKeySource.class);
+    when(keySource.getCredential()).thenReturn(credential);
+    when(keySource.isPkcs11()).thenReturn(pkcs11);
+    when(keySource.getSlotNames()).thenReturn(List.of(slotNames));
+    when(keySource.loadPrivateKey(anyString())).thenAnswer(invocation -> {
+      loads.incrementAndGet();
+      PrivateKey privateKey = slotKeys.get(invocation.<String>getArgument(0));
+      if (privateKey == null) {
+        throw new GeneralSecurityException("No key in slot");
+      }
+      return privateKey;
+    });
+    return keySource;
+  }
+
+}
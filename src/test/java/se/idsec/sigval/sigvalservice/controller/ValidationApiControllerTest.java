@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import se.idsec.sigval.sigvalservice.admission.AdmissionControl;
+import se.idsec.sigval.sigvalservice.admission.AsyncRequestExecutor;
+import se.idsec.sigval.sigvalservice.configuration.FileSize;
+import se.idsec.sigval.sigvalservice.configuration.SignatureValidatorProvider;
+import se.idsec.sigval.sigvalservice.configuration.ValidatorSet;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.idsec.sigval.sigvalservice.ocsp.EmbeddedOCSPResponses;
+import se.idsec.sigval.sigvalservice.result.ResultPageDataGenerator;
+import se.idsec.sigval.sigvalservice.result.data.BatchResultData;
+import se.idsec.sigval.sigvalservice.validation.BatchValidationService;
+import se.idsec.sigval.sigvalservice.validation.DocumentValidationService;
+import se.idsec.sigval.sigvalservice.validation.ValidationResultCache;
+import se.swedenconnect.sigval.pdf.verify.ExtendedPDFSignatureValidator;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SignatureException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Tests mapping of validation errors to HTTP status codes in the validation API
+ */
+class ValidationApiControllerTest {
+
+  private static final byte[] PDF_DOCUMENT = "%PDF-1.7\n1 0 obj\n<<>>\nendobj\nstartxref\n0\n%%EOF\n"
+    .getBytes(StandardCharsets.US_ASCII);
+
+  private ExtendedPDFSignatureValidator pdfSignatureValidator;
+  private BatchValidationService batchValidationService;
+  private MockMvc mockMvc;
+
+  @BeforeEach
+  void setUp() {
+    ValidationMetrics validationMetrics = new ValidationMetrics(new SimpleMeterRegistry());
+    pdfSignatureValidator = mock(ExtendedPDFSignatureValidator.class);
+    SignatureValidatorProvider signatureValidatorProvider = mock(SignatureValidatorProvider.class);
+    when(signatureValidatorProvider.getValidators()).thenReturn(ValidatorSet.builder()
+      .trustConfigGeneration(1)
+      .pdfSignatureValidator(pdfSignatureValidator)
+      .build());
+    DocumentValidationService documentValidationService = new DocumentValidationService(signatureValidatorProvider,
+      new ValidationResultCache(0, 0), validationMetrics, mock(EmbeddedOCSPResponses.class));
+    AdmissionControl admissionControl = new AdmissionControl(false, 0, 0, 0, 0, 0, 0, 0, "0", 0, 0, 5,
+      new FileSize("1MB"), validationMetrics);
+    AsyncRequestExecutor asyncRequestExecutor = new AsyncRequestExecutor(false, 0, 0, 0, 5, validationMetrics);
+
+    batchValidationService = mock(BatchValidationService.class);
+
+    mockMvc = MockMvcBuilders.standaloneSetup(new ValidationApiController(documentValidationService,
+      mock(ResultPageDataGenerator.class), batchValidationService, new ObjectMapper(),
+      new FileSize("1MB"), validationMetrics, admissionControl, asyncRequestExecutor))
+      .setControllerAdvice(new AdmissionExceptionHandler())
+      .build();
+  }
+
+  @Test
+  void testValidatorRuntimeExceptionIsInternalError() throws Exception {
+    when(pdfSignatureValidator.extendedResultValidation(any(byte[].class))).thenThrow(new NullPointerException());
+
+    performValidate()
+      .andExpect(status().isInternalServerError())
+      .andExpect(jsonPath("$.message").value("Internal error processing the request"));
+  }
+
+  @Test
+  void testValidationErrorIsBadRequest() throws Exception {
+    when(pdfSignatureValidator.extendedResultValidation(any(byte[].class)))
+      .thenThrow(new SignatureException("Bad signature"));
+
+    performValidate()
+      .andExpect(status().isBadRequest())
+      .andExpect(jsonPath("$.message").value("Error validating signed document (Bad signature)"));
+  }
+
+  @Test
+  void testBatchResultIsStreamed() throws Exception {
+    when(batchValidationService.validate(any(), anyString(), any())).thenAnswer(invocation -> {
+      BatchValidationService.ResultWriter resultWriter = invocation.getArgument(2);
+      resultWriter.write(BatchResultData.builder().index(0).documentName("a.pdf").errorMessage("Error").build());
+      resultWriter.write(BatchResultData.builder().index(1).documentName("b.pdf").errorMessage("Error").build());
+      return 2;
+    });
+
+    MvcResult mvcResult = mockMvc.perform(post("/api/v1/validate/batch")
+        .contentType("application/zip")
+        .content(new byte[0]))
+      .andExpect(request().asyncStarted())
+      .andReturn();
+    String[] lines = mockMvc.perform(asyncDispatch(mvcResult))
+      .andExpect(status().isOk())
+      .andExpect(content().contentType(ValidationApiController.NDJSON_MEDIA_TYPE))
+      .andReturn().getResponse().getContentAsString().split("\n");
+    assertEquals(2, lines.length);
+    assertTrue(lines[1].contains("\"documentName\":\"b.pdf\""));
+  }
+
+  private ResultActions performValidate() throws Exception {
+    MvcResult mvcResult = mockMvc.perform(post("/api/v1/validate").content(PDF_DOCUMENT))
+      .andExpect(request().asyncStarted())
+      .andReturn();
+    return mockMvc.perform(asyncDispatch(mvcResult));
+  }
+
+}
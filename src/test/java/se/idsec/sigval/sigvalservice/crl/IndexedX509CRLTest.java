@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.idsec.sigval.sigvalservice.crl;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SignatureException;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexedX509CRLTest {
+
+  private static final X500Name CA_NAME = new X500Name("CN=Test CA,C=SE");
+  private static final X500Name OTHER_CA_NAME = new X500Name("CN=Other CA,C=SE");
+
+  private static KeyPair caKeyPair;
+  private static ContentSigner crlSigner;
+
+  @BeforeAll
+  static void init() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    caKeyPair = generator.generateKeyPair();
+    crlSigner = new JcaContentSignerBuilder("SHA256withECDSA").build(caKeyPair.getPrivate());
+  }
+
+  @Test
+  void testRevokedSerialsAreFound() throws Exception {
+    Date now = new Date();
+    X509v2CRLBuilder builder = getCrlBuilder(now);
+    Random random = new Random(1);
+    List<BigInteger> serials = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      BigInteger serial = i % 3 == 0 ? BigInteger.valueOf(random.nextInt(1 << 20)) : new BigInteger(159, random);
+      if (!serials.contains(serial)) {
+        serials.add(serial);
+        builder.addCRLEntry(serial, new Date(now.getTime() - i * 1000L), i % 2 == 0 ? CRLReason.keyCompromise : 0);
+      }
+    }
+    byte[] crlBytes = builder.build(crlSigner).getEncoded();
+    X509CRL jdkCrl = decode(crlBytes);
+    IndexedX509CRL crl = IndexedX509CRL.parse(crlBytes);
+
+    assertEquals(serials.size(), crl.getRevokedCount());
+    assertFalse(crl.isIndirect());
+    for (BigInteger serial : serials) {
+      X509CRLEntry expected = jdkCrl.getRevokedCertificate(serial);
+      X509CRLEntry entry = crl.getRevokedCertificate(serial);
+      assertNotNull(entry, "Serial " + serial.toString(16));
+      assertEquals(expected.getRevocationDate(), entry.getRevocationDate());
+      assertEquals(expected.getRevocationReason(), entry.getRevocationReason());
+      assertArrayEquals(expected.getEncoded(), entry.getEncoded());
+    }
+    for (int i = 0; i < 1000; i++) {
+      BigInteger serial = new BigInteger(159, random);
+      assertEquals(jdkCrl.getRevokedCertificate(serial) == null, crl.getRevokedCertificate(serial) == null);
+    }
+    assertEquals(serials.size(), crl.getRevokedCertificates().size());
+  }
+
+  @Test
+  void testNegativeAndLeadingZeroSerials() throws Exception {
+    Date now = new Date();
+    // 0x80 and 0xFF00 are encoded with a leading zero byte. Negative serials are encoded in two's complement
+    List<BigInteger> serials = Arrays.asList(BigInteger.valueOf(0x80), BigInteger.valueOf(0xFF00),
+      BigInteger.valueOf(-1), BigInteger.valueOf(-128), BigInteger.valueOf(-129), BigInteger.ZERO,
+      new BigInteger("00ff00ff00ff00ff00ff", 16));
+    X509v2CRLBuilder builder = getCrlBuilder(now);
+    for (BigInteger serial : serials) {
+      builder.addCRLEntry(serial, now, 0);
+    }
+    IndexedX509CRL crl = IndexedX509CRL.parse(builder.build(crlSigner).getEncoded());
+
+    for (BigInteger serial : serials) {
+      X509CRLEntry entry = crl.getRevokedCertificate(serial);
+      assertNotNull(entry, "Serial " + serial);
+      assertEquals(serial, entry.getSerialNumber());
+    }
+    assertNull(crl.getRevokedCertificate(BigInteger.valueOf(0x7F)));
+    assertNull(crl.getRevokedCertificate(BigInteger.valueOf(128 * 256)));
+    assertNull(crl.getRevokedCertificate(BigInteger.valueOf(-2)));
+    assertNull(crl.getRevokedCertificate(BigInteger.valueOf(-127)));
+    assertNull(crl.getRevokedCertificate(BigInteger.ONE));
+  }
+
+  @Test
+  void testCrlData() throws Exception {
+    Date now = new Date(System.currentTimeMillis() / 1000 * 1000);
+    X509v2CRLBuilder builder = getCrlBuilder(now);
+    builder.addCRLEntry(BigInteger.TEN, now, CRLReason.superseded);
+    byte[] crlBytes = builder.build(crlSigner).getEncoded();
+    X509CRL jdkCrl = decode(crlBytes);
+    IndexedX509CRL crl = IndexedX509CRL.parse(crlBytes);
+
+    assertArrayEquals(crlBytes, crl.getEncoded());
+    assertArrayEquals(jdkCrl.getTBSCertList(), crl.getTBSCertList());
+    assertEquals(jdkCrl.getIssuerX500Principal(), crl.getIssuerX500Principal());
+    assertEquals(jdkCrl.getThisUpdate(), crl.getThisUpdate());
+    assertEquals(jdkCrl.getNextUpdate(), crl.getNextUpdate());
+    assertEquals(jdkCrl.getSigAlgOID(), crl.getSigAlgOID());
+    assertArrayEquals(jdkCrl.getExtensionValue(Extension.cRLNumber.getId()),
+      crl.getExtensionValue(Extension.cRLNumber.getId()));
+    assertFalse(crl.hasUnsupportedCriticalExtension());
+
+    crl.verify(caKeyPair.getPublic());
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    assertThrows(SignatureException.class, () -> crl.verify(generator.generateKeyPair().getPublic()));
+  }
+
+  @Test
+  void testIndirectCrlUsesDecodedCrl() throws Exception {
+    Date now = new Date();
+    X509v2CRLBuilder builder = getCrlBuilder(now);
+    builder.addExtension(Extension.issuingDistributionPoint, true,
+      new IssuingDistributionPoint(null, false, false, null, true, false));
+    builder.addCRLEntry(BigInteger.ONE, now, 0);
+    ExtensionsGenerator entryExtensions = new ExtensionsGenerator();
+    entryExtensions.addExtension(Extension.certificateIssuer, true,
+      new GeneralNames(new GeneralName(OTHER_CA_NAME)));
+    builder.addCRLEntry(BigInteger.TEN, now, entryExtensions.generate());
+    IndexedX509CRL crl = IndexedX509CRL.parse(builder.build(crlSigner).getEncoded());
+
+    assertTrue(crl.isIndirect());
+    // Serial 10 is only revoked for certificates of the other CA
+    assertTrue(crl.isRevoked(getCertificate(OTHER_CA_NAME, BigInteger.TEN)));
+    assertFalse(crl.isRevoked(getCertificate(CA_NAME, BigInteger.TEN)));
+    assertTrue(crl.isRevoked(getCertificate(CA_NAME, BigInteger.ONE)));
+    assertFalse(crl.isRevoked(getCertificate(OTHER_CA_NAME, BigInteger.ONE)));
+  }
+
+  @Test
+  void testCriticalEntryExtensionUsesDecodedCrl() throws Exception {
+    Date now = new Date();
+    X509v2CRLBuilder builder = getCrlBuilder(now);
+    ExtensionsGenerator entryExtensions = new ExtensionsGenerator();
+    entryExtensions.addExtension(Extension.instructionCode, true, new ASN1ObjectIdentifier("1.2.840.10040.2.1"));
+    builder.addCRLEntry(BigInteger.TEN, now, entryExtensions.generate());
+    IndexedX509CRL crl = IndexedX509CRL.parse(builder.build(crlSigner).getEncoded());
+
+    assertFalse(crl.isIndirect());
+    X509CRLEntry entry = crl.getRevokedCertificate(BigInteger.TEN);
+    assertNotNull(entry);
+    assertTrue(entry.getCriticalExtensionOIDs().contains(Extension.instructionCode.getId()));
+    assertNull(crl.getRevokedCertificate(BigInteger.ONE));
+  }
+
+  @Test
+  void testIndexRoundTrip(@TempDir File folder) throws Exception {
+    Date now = new Date();
+    X509v2CRLBuilder builder = getCrlBuilder(now);
+    for (int i = 1; i <= 100; i++) {
+      builder.addCRLEntry(BigInteger.valueOf(i * 1000L), now, i % 2 == 0 ? CRLReason.cessationOfOperation : 0);
+    }
+    byte[] crlBytes = builder.build(crlSigner).getEncoded();
+    IndexedX509CRL parsed = IndexedX509CRL.parse(crlBytes);
+    File crlFile = new File(folder, "test.crl");
+    File indexFile = new File(folder, "test.idx");
+    Files.write(crlFile.toPath(), crlBytes);
+    parsed.writeIndex(indexFile);
+
+    IndexedX509CRL loaded = IndexedX509CRL.load(crlFile, indexFile);
+    assertEquals(parsed.getRevokedCount(), loaded.getRevokedCount());
+    assertArrayEquals(parsed.getDigest(), loaded.getDigest());
+    assertArrayEquals(crlBytes, loaded.getEncoded());
+    assertEquals(parsed.getIssuerX500Principal(), loaded.getIssuerX500Principal());
+    assertEquals(parsed.getNextUpdate(), loaded.getNextUpdate());
+    for (int i = 1; i <= 100; i++) {
+      BigInteger serial = BigInteger.valueOf(i * 1000L);
+      assertEquals(parsed.getRevokedCertificate(serial).getRevocationReason(),
+        loaded.getRevokedCertificate(serial).getRevocationReason());
+    }
+    assertNull(loaded.getRevokedCertificate(BigInteger.valueOf(1001)));
+    loaded.verify(caKeyPair.getPublic());
+  }
+
+  @Test
+  void testStaleIndexIsRejected(@TempDir File folder) throws Exception {
+    Date now = new Date();
+    byte[] crlBytes = getCrlBuilder(now).addCRLEntry(BigInteger.ONE, now, 0).build(crlSigner).getEncoded();
+    File crlFile = new File(folder, "test.crl");
+    File indexFile = new File(folder, "test.idx");
+    Files.write(crlFile.toPath(), crlBytes);
+    IndexedX509CRL.parse(crlBytes).writeIndex(indexFile);
+
+    // A CRL of the same size with other content, as left by an interrupted update
+    byte[] modified = crlBytes.clone();
+    modified[modified.length - 1] ^= 1;
+    Files.write(crlFile.toPath(), modified);
+    assertThrows(CRLException.class, () -> IndexedX509CRL.load(crlFile, indexFile));
+
+    // A CRL of another size
+    byte[] otherCrl = getCrlBuilder(now).addCRLEntry(BigInteger.TEN, now, CRLReason.keyCompromise)
+      .addCRLEntry(BigInteger.ONE, now, 0).build(crlSigner).getEncoded();
+    Files.write(crlFile.toPath(), otherCrl);
+    assertThrows(CRLException.class, () -> IndexedX509CRL.load(crlFile, indexFile));
+
+    // An index that is not an index file
+    Files.write(crlFile.toPath(), crlBytes);
+    Files.write(indexFile.toPath(), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+    assertThrows(CRLException.class, () -> IndexedX509CRL.load(crlFile, indexFile));
+  }
+
+  private static X509v2CRLBuilder getCrlBuilder(Date now) {
+    X509v2CRLBuilder builder = new X509v2CRLBuilder(CA_NAME, now);
+    builder.setNextUpdate(new Date(now.getTime() + 86400000L));
+    try {
+      builder.addExtension(Extension.cRLNumber, false, new CRLNumber(BigInteger.ONE));
+    }
+    catch (Exception ex) {
+      throw new IllegalStateException(ex);
+    }
+    return builder;
+  }
+
+  private static X509Certificate getCertificate(X500Name issuer, BigInteger serial) throws Exception {
+    Date now = new Date();
+    return new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(issuer, serial, now,
+      new Date(now.getTime() + 86400000L), new X500Name("CN=Subject"), caKeyPair.getPublic()).build(crlSigner));
+  }
+
+  private static X509CRL decode(byte[] crlBytes) throws Exception {
+    return (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(new ByteArrayInputStream(crlBytes));
+  }
+
+}
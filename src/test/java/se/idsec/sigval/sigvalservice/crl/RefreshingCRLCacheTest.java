@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.crl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.ReasonFlags;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.swedenconnect.sigval.cert.validity.crl.CRLInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509CRL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RefreshingCRLCacheTest {
+
+  private static final X500Name CA_NAME = new X500Name("CN=Test CA,C=SE");
+  private static final X500Name OTHER_CA_NAME = new X500Name("CN=Other CA,C=SE");
+  private static final long HOUR = 3600000L;
+
+  private static ContentSigner crlSigner;
+
+  @TempDir File cacheFolder;
+
+  private HttpServer server;
+  private String crlUrl;
+  private final List<RefreshingCRLCache> caches = new ArrayList<>();
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  /** The If-None-Match header of each received request, or an empty string if the header was not set */
+  private final List<String> requests = new CopyOnWriteArrayList<>();
+  private volatile byte[] crlBytes;
+  private volatile String etag;
+  private volatile int errorStatus;
+
+  @BeforeAll
+  static void initSigner() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    KeyPair caKeyPair = generator.generateKeyPair();
+    crlSigner = new JcaContentSignerBuilder("SHA256withECDSA").build(caKeyPair.getPrivate());
+  }
+
+  @BeforeEach
+  void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/ca.crl", this::handleRequest);
+    server.start();
+    crlUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/ca.crl";
+  }
+
+  @AfterEach
+  void stop() {
+    caches.forEach(RefreshingCRLCache::destroy);
+    server.stop(0);
+  }
+
+  @Test
+  void testConditionalDownload() throws Exception {
+    setCrl(1, HOUR, "\"v1\"");
+    RefreshingCRLCache cache = getCache(0, HOUR);
+    List<X509CRL> updates = new CopyOnWriteArrayList<>();
+    cache.addUpdateListener(updates::add);
+
+    CRLInfo crlInfo = cache.getCRL(crlUrl);
+    assertEquals(BigInteger.ONE, getCrlNumber(crlInfo.getCrl()));
+    assertEquals(Collections.singletonList(""), requests);
+
+    // An unchanged CRL is not downloaded again
+    cache.recache();
+    awaitCondition(() -> getRefreshCount("not-modified") == 1);
+    assertEquals("\"v1\"", requests.get(1));
+    assertSame(crlInfo.getCrl(), cache.getCRL(crlUrl).getCrl());
+    assertTrue(updates.isEmpty());
+
+    // A changed CRL replaces the cached CRL and is reported to the update listeners
+    setCrl(2, HOUR, "\"v2\"");
+    cache.recache();
+    awaitCondition(() -> getRefreshCount("updated") == 2);
+    assertEquals("\"v1\"", requests.get(2));
+    assertEquals(BigInteger.TWO, getCrlNumber(cache.getCRL(crlUrl).getCrl()));
+    assertEquals(1, updates.size());
+    assertEquals(BigInteger.TWO, getCrlNumber(updates.get(0)));
+  }
+
+  @Test
+  void testRefreshBeforeNextUpdate() throws Exception {
+    // The CRL is refreshed one second before its next update. The next update is encoded with second precision, so
+    // the refresh is due between 2 and 3 seconds after the CRL was created.
+    setCrl(1, 4000, null);
+    RefreshingCRLCache cache = getCache(0, HOUR, 1000);
+    cache.getCRL(crlUrl);
+    setCrl(2, HOUR, null);
+
+    long start = System.currentTimeMillis();
+    awaitCondition(() -> requests.size() == 2);
+    assertTrue(System.currentTimeMillis() - start >= 1000);
+    awaitCondition(() -> BigInteger.TWO.equals(getCachedCrlNumber(cache)));
+  }
+
+  @Test
+  void testRefreshAtMaxRefreshInterval() throws Exception {
+    setCrl(1, HOUR, null);
+    RefreshingCRLCache cache = getCache(0, 500);
+    cache.getCRL(crlUrl);
+    setCrl(2, HOUR, null);
+
+    awaitCondition(() -> BigInteger.TWO.equals(getCachedCrlNumber(cache)));
+  }
+
+  @Test
+  void testFailedRefreshKeepsCrl() throws Exception {
+    setCrl(1, HOUR, null);
+    RefreshingCRLCache cache = getCache(0, HOUR);
+    X509CRL crl = cache.getCRL(crlUrl).getCrl();
+
+    errorStatus = 500;
+    cache.recache();
+    awaitCondition(() -> getRefreshCount("error") == 1);
+    assertSame(crl, cache.getCRL(crlUrl).getCrl());
+  }
+
+  @Test
+  void testFailedFirstDownload() {
+    errorStatus = 404;
+    RefreshingCRLCache cache = getCache(HOUR, HOUR);
+    assertThrows(IOException.class, () -> cache.getCRL(crlUrl));
+    // The download is not repeated within the min refresh time
+    assertThrows(IOException.class, () -> cache.getCRL(crlUrl));
+    assertEquals(1, requests.size());
+  }
+
+  @Test
+  void testExpiredCrlIsNotServed() throws Exception {
+    setCrl(1, 1000, null);
+    RefreshingCRLCache cache = getCache(200, HOUR, 0, 1000);
+    assertEquals(BigInteger.ONE, getCachedCrlNumber(cache));
+
+    // The CRL is served until one second after its next update while refreshes fail
+    errorStatus = 500;
+    awaitCondition(() -> getCachedCrlNumber(cache) == null);
+    assertTrue(getRefreshCount("error") >= 1);
+
+    // A new CRL is served when the CRL can be downloaded again
+    errorStatus = 0;
+    setCrl(2, HOUR, null);
+    awaitCondition(() -> BigInteger.TWO.equals(getCachedCrlNumber(cache)));
+  }
+
+  @Test
+  void testDistributionPoints() throws Exception {
+    CRLDistPoint crlDistPoint = new CRLDistPoint(new DistributionPoint[] {
+      getDistributionPoint("http://a.example.com/partial.crl", new ReasonFlags(ReasonFlags.keyCompromise), null),
+      getDistributionPoint("ldap://b.example.com/indirect", null, new GeneralNames(new GeneralName(OTHER_CA_NAME))),
+      getDistributionPoint("ldap://c.example.com/full", null, null),
+      getDistributionPoint("http://d.example.com/full.crl", null, null),
+      new DistributionPoint(new DistributionPointName(DistributionPointName.NAME_RELATIVE_TO_CRL_ISSUER,
+        new X500Name("CN=Relative").getRDNs()[0]), null, null)
+    });
+    assertEquals(List.of("http://d.example.com/full.crl", "ldap://c.example.com/full",
+      "http://a.example.com/partial.crl", "ldap://b.example.com/indirect"), RefreshingCRLCache.getCrlUrls(crlDistPoint));
+
+    // The CRL of a distribution point with reasons is downloaded
+    setCrl(1, HOUR, null);
+    RefreshingCRLCache cache = getCache(0, HOUR);
+    CRLInfo crlInfo = cache.getCRL(new CRLDistPoint(new DistributionPoint[] {
+      getDistributionPoint(crlUrl, new ReasonFlags(ReasonFlags.keyCompromise), null) }));
+    assertEquals(BigInteger.ONE, getCrlNumber(crlInfo.getCrl()));
+  }
+
+  @Test
+  void testStoredCrlsAreLoadedAtStartup() throws Exception {
+    setCrl(1, HOUR, "\"v1\"");
+    getCache(0, HOUR).getCRL(crlUrl);
+
+    RefreshingCRLCache restarted = getCache(0, HOUR);
+    assertEquals(1, restarted.getCrlCacheRecords().size());
+    assertEquals(BigInteger.ONE, getCrlNumber(restarted.getCRL(crlUrl).getCrl()));
+    assertEquals(1, requests.size());
+
+    // The stored ETag is used for the next download
+    restarted.recache();
+    awaitCondition(() -> requests.size() == 2);
+    assertEquals("\"v1\"", requests.get(1));
+  }
+
+  private RefreshingCRLCache getCache(long minRefreshMillis, long maxRefreshMillis) {
+    return getCache(minRefreshMillis, maxRefreshMillis, 0);
+  }
+
+  private RefreshingCRLCache getCache(long minRefreshMillis, long maxRefreshMillis, long refreshMarginMillis) {
+    return getCache(minRefreshMillis, maxRefreshMillis, refreshMarginMillis, HOUR);
+  }
+
+  private RefreshingCRLCache getCache(long minRefreshMillis, long maxRefreshMillis, long refreshMarginMillis,
+    long expiryGraceMillis) {
+    RefreshingCRLCache cache = new RefreshingCRLCache(cacheFolder, minRefreshMillis, maxRefreshMillis,
+      refreshMarginMillis, expiryGraceMillis, 2, 5000, 5000, new ValidationMetrics(meterRegistry));
+    caches.add(cache);
+    return cache;
+  }
+
+  private static DistributionPoint getDistributionPoint(String url, ReasonFlags reasons, GeneralNames crlIssuer) {
+    return new DistributionPoint(new DistributionPointName(
+      new GeneralNames(new GeneralName(GeneralName.uniformResourceIdentifier, url))), reasons, crlIssuer);
+  }
+
+  private void handleRequest(HttpExchange exchange) throws IOException {
+    String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+    requests.add(ifNoneMatch == null ? "" : ifNoneMatch);
+    byte[] body = crlBytes;
+    String currentEtag = etag;
+    if (errorStatus > 0) {
+      exchange.sendResponseHeaders(errorStatus, -1);
+    }
+    else if (currentEtag != null && currentEtag.equals(ifNoneMatch)) {
+      exchange.getResponseHeaders().add("ETag", currentEtag);
+      exchange.sendResponseHeaders(304, -1);
+    }
+    else {
+      if (currentEtag != null) {
+        exchange.getResponseHeaders().add("ETag", currentEtag);
+      }
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+    }
+    exchange.close();
+  }
+
+  private void setCrl(int crlNumber, long nextUpdateMillis, String etag) throws Exception {
+    long now = System.currentTimeMillis();
+    X509v2CRLBuilder builder = new X509v2CRLBuilder(CA_NAME, new Date(now - 1000));
+    builder.setNextUpdate(new Date(now + nextUpdateMillis));
+    builder.addExtension(Extension.cRLNumber, false, new CRLNumber(BigInteger.valueOf(crlNumber)));
+    builder.addCRLEntry(BigInteger.valueOf(crlNumber), new Date(now - 1000), 0);
+    this.crlBytes = builder.build(crlSigner).getEncoded();
+    this.etag = etag;
+  }
+
+  private double getRefreshCount(String outcome) {
+    return meterRegistry.find(ValidationMetrics.CRL_REFRESH).tag("outcome", outcome).timers().stream()
+      .mapToLong(timer -> timer.count())
+      .sum();
+  }
+
+  private BigInteger getCachedCrlNumber(RefreshingCRLCache cache) {
+    try {
+      return getCrlNumber(cache.getCRL(crlUrl).getCrl());
+    }
+    catch (IOException ex) {
+      return null;
+    }
+  }
+
+  private static BigInteger getCrlNumber(X509CRL crl) {
+    byte[] extension = crl.getExtensionValue(Extension.cRLNumber.getId());
+    return CRLNumber.getInstance(
+      ASN1OctetString.getInstance(extension).getOctets()).getCRLNumber();
+  }
+
+  private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.currentTimeMillis() < deadline, "Condition not met within 10 seconds");
+      Thread.sleep(20);
+    }
+  }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.ocsp;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.idsec.sigval.sigvalservice.metrics.ValidationMetrics;
+import se.swedenconnect.sigval.cert.validity.ValidationStatus;
+import se.swedenconnect.sigval.cert.validity.crl.CRLCache;
+import se.swedenconnect.sigval.cert.validity.ocsp.OCSPDataLoader;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class OCSPFirstValidityCheckerTest {
+
+  private static final X500Name CA_NAME = new X500Name("CN=Test CA,C=SE");
+  private static final long HOUR = 3600000L;
+
+  private static X509Certificate caCert;
+  private static X509Certificate certificate;
+  private static ContentSigner caSigner;
+  private static ContentSigner otherSigner;
+
+  private OCSPResponseCache ocspResponseCache;
+  private OCSPDataLoader ocspDataLoader;
+  private SimpleMeterRegistry meterRegistry;
+
+  @BeforeAll
+  static void init() throws Exception {
+    // The OCSP verifier uses the BC provider, which is installed by the application
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.insertProviderAt(new BouncyCastleProvider(), 2);
+    }
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    KeyPair caKeyPair = generator.generateKeyPair();
+    caSigner = new JcaContentSignerBuilder("SHA256withECDSA").build(caKeyPair.getPrivate());
+    otherSigner = new JcaContentSignerBuilder("SHA256withECDSA").build(generator.generateKeyPair().getPrivate());
+    long now = System.currentTimeMillis();
+    JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
+    caCert = converter.getCertificate(new JcaX509v3CertificateBuilder(CA_NAME, BigInteger.ONE, new Date(now - HOUR),
+      new Date(now + 24 * HOUR), CA_NAME, caKeyPair.getPublic())
+      .addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+      .addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign))
+      .build(caSigner));
+    certificate = converter.getCertificate(new JcaX509v3CertificateBuilder(CA_NAME, BigInteger.valueOf(42),
+      new Date(now - HOUR), new Date(now + 24 * HOUR), new X500Name("CN=Signer,C=SE"),
+      generator.generateKeyPair().getPublic())
+      .addExtension(Extension.authorityInfoAccess, false, new AuthorityInformationAccess(AccessDescription.id_ad_ocsp,
+        new GeneralName(GeneralName.uniformResourceIdentifier, "http://localhost/ocsp")))
+      .build(caSigner));
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    ocspResponseCache = new OCSPResponseCache(100, 3600);
+    meterRegistry = new SimpleMeterRegistry();
+    ocspDataLoader = mock(OCSPDataLoader.class);
+    when(ocspDataLoader.requestOCSPResponse(anyString(), any(OCSPReq.class), anyInt(), anyInt())).thenAnswer(
+      invocation -> getResponse(invocation.<OCSPReq>getArgument(1).getRequestList()[0].getCertID(), caSigner));
+  }
+
+  @Test
+  void testResponseIsCached() throws Exception {
+    assertEquals(ValidationStatus.CertificateValidity.VALID, checkValidity().getValidity());
+    verify(ocspDataLoader, times(1)).requestOCSPResponse(anyString(), any(OCSPReq.class), anyInt(), anyInt());
+
+    // The verified response is served from the cache
+    assertEquals(ValidationStatus.CertificateValidity.VALID, checkValidity().getValidity());
+    verify(ocspDataLoader, times(1)).requestOCSPResponse(anyString(), any(OCSPReq.class), anyInt(), anyInt());
+    assertEquals(1, getRevocationChecks("hit"));
+    assertEquals(1, getRevocationChecks("miss"));
+  }
+
+  @Test
+  void testUnverifiableCachedResponseIsReplaced() throws Exception {
+    // A response with an invalid signature, such as a response embedded in an uploaded document
+    CertificateID certificateID = new CertificateID(new JcaDigestCalculatorProviderBuilder().build()
+      .get(CertificateID.HASH_SHA1), new JcaX509CertificateHolder(caCert), certificate.getSerialNumber());
+    OCSPResp badResponse = getResponse(certificateID, otherSigner);
+    assertTrue(ocspResponseCache.put(badResponse, false));
+
+    // The cached response is removed and a new response is fetched from the responder
+    assertEquals(ValidationStatus.CertificateValidity.VALID, checkValidity().getValidity());
+    verify(ocspDataLoader, times(1)).requestOCSPResponse(anyString(), any(OCSPReq.class), anyInt(), anyInt());
+    OCSPResp cachedResponse = ocspResponseCache.get(certificateID);
+    assertNotNull(cachedResponse);
+    assertNotSame(badResponse, cachedResponse);
+
+    // The fetched response is cached as verified and is not replaced by an unverified response
+    assertEquals(0, ocspResponseCache.putAll(List.of(getResponse(certificateID, otherSigner))));
+    assertEquals(ValidationStatus.CertificateValidity.VALID, checkValidity().getValidity());
+    verify(ocspDataLoader, times(1)).requestOCSPResponse(anyString(), any(OCSPReq.class), anyInt(), anyInt());
+  }
+
+  private ValidationStatus checkValidity() {
+    return new OCSPFirstValidityChecker(certificate, caCert, mock(CRLCache.class), ocspResponseCache, ocspDataLoader,
+      new ValidationMetrics(meterRegistry)).checkValidity();
+  }
+
+  private long getRevocationChecks(String cache) {
+    return meterRegistry.get(ValidationMetrics.REVOCATION_CHECK).tag("cache", cache).timer().count();
+  }
+
+  private static OCSPResp getResponse(CertificateID certificateID, ContentSigner signer) throws Exception {
+    long now = System.currentTimeMillis();
+    BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(new RespID(CA_NAME));
+    builder.addResponse(certificateID, CertificateStatus.GOOD, new Date(now - 1000), new Date(now + HOUR), null);
+    return new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, builder.build(signer,
+      new X509CertificateHolder[] { new X509CertificateHolder(caCert.getEncoded()) }, new Date()));
+  }
+
+}
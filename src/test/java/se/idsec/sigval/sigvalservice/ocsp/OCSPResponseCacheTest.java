@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.ocsp;
+
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.UnknownStatus;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OCSPResponseCacheTest {
+
+  private static final X500Name CA_NAME = new X500Name("CN=Test CA,C=SE");
+  private static final long HOUR = 3600000L;
+
+  private static X509CertificateHolder caCert;
+  private static ContentSigner responseSigner;
+  private static CertificateID certificateID;
+
+  @BeforeAll
+  static void init() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    KeyPair caKeyPair = generator.generateKeyPair();
+    responseSigner = new JcaContentSignerBuilder("SHA256withECDSA").build(caKeyPair.getPrivate());
+    long now = System.currentTimeMillis();
+    caCert = new JcaX509v3CertificateBuilder(CA_NAME, BigInteger.ONE, new Date(now - HOUR), new Date(now + 24 * HOUR),
+      CA_NAME, caKeyPair.getPublic())
+      .addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+      .addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign))
+      .build(responseSigner);
+    certificateID = getCertificateID(BigInteger.valueOf(42));
+  }
+
+  @Test
+  void testReplacement() throws Exception {
+    OCSPResponseCache cache = new OCSPResponseCache(100, 3600);
+    long now = System.currentTimeMillis();
+    OCSPResp first = getResponse(certificateID, now - 20000, now + HOUR, null);
+    OCSPResp older = getResponse(certificateID, now - 30000, now + HOUR, null);
+    OCSPResp newer = getResponse(certificateID, now - 10000, now + HOUR, null);
+
+    assertTrue(cache.put(first, false));
+    assertSame(first, cache.get(certificateID));
+    // An older response does not replace a response of the same verification state
+    assertFalse(cache.put(older, false));
+    assertSame(first, cache.get(certificateID));
+    assertTrue(cache.put(newer, false));
+    assertSame(newer, cache.get(certificateID));
+
+    // A verified response replaces an unverified response even if it is older
+    assertTrue(cache.put(older, true));
+    assertSame(older, cache.get(certificateID));
+
+    // An unverified response never replaces a verified response
+    OCSPResp latest = getResponse(certificateID, now - 1000, now + HOUR, null);
+    assertFalse(cache.put(latest, false));
+    assertEquals(0, cache.putAll(List.of(latest, newer)));
+    assertSame(older, cache.get(certificateID));
+    assertTrue(cache.put(latest, true));
+    assertSame(latest, cache.get(certificateID));
+
+    // Responses are cached per certificate
+    CertificateID otherID = getCertificateID(BigInteger.valueOf(43));
+    assertNull(cache.get(otherID));
+    assertEquals(1, cache.putAll(List.of(getResponse(otherID, now - 1000, now + HOUR, null))));
+    assertNotNull(cache.get(otherID));
+    assertSame(latest, cache.get(certificateID));
+
+    cache.remove(certificateID);
+    assertNull(cache.get(certificateID));
+    assertNotNull(cache.get(otherID));
+  }
+
+  @Test
+  void testNonceRejected() throws Exception {
+    OCSPResponseCache cache = new OCSPResponseCache(100, 3600);
+    long now = System.currentTimeMillis();
+    Extensions nonce = new Extensions(new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false,
+      new DEROctetString(new DEROctetString(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }))));
+
+    assertFalse(cache.put(getResponse(certificateID, now - 1000, now + HOUR, nonce), true));
+    assertFalse(cache.put(getResponse(certificateID, now - 1000, now + HOUR, nonce), false));
+    assertNull(cache.get(certificateID));
+
+    // Responses that are not successful or have unknown status are not cached
+    assertFalse(cache.put(new OCSPRespBuilder().build(OCSPRespBuilder.TRY_LATER, null), true));
+    BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(new RespID(CA_NAME));
+    builder.addResponse(certificateID, new UnknownStatus(), new Date(now - 1000), new Date(now + HOUR), null);
+    assertFalse(cache.put(getResponse(builder), true));
+    assertNull(cache.get(certificateID));
+  }
+
+  @Test
+  void testExpiry() throws Exception {
+    OCSPResponseCache cache = new OCSPResponseCache(100, 3600);
+    long now = System.currentTimeMillis();
+
+    // Expired by nextUpdate or by max age after thisUpdate
+    assertFalse(cache.put(getResponse(certificateID, now - 10000, now - 1000, null), true));
+    assertFalse(cache.put(getResponse(certificateID, now - HOUR - 1000, now + HOUR, null), true));
+    assertNull(cache.get(certificateID));
+
+    // nextUpdate before the max age after thisUpdate
+    assertTrue(cache.put(getResponse(certificateID, now - 1000, now + 1500, null), true));
+    assertNotNull(cache.get(certificateID));
+    // Max age after thisUpdate before nextUpdate
+    CertificateID otherID = getCertificateID(BigInteger.valueOf(43));
+    assertTrue(cache.put(getResponse(otherID, now - HOUR + 1500, now + HOUR, null), true));
+    assertNotNull(cache.get(otherID));
+    // No nextUpdate
+    CertificateID noNextUpdateID = getCertificateID(BigInteger.valueOf(44));
+    assertTrue(cache.put(getResponse(noNextUpdateID, now - HOUR + 1500, null, null), true));
+    assertNotNull(cache.get(noNextUpdateID));
+
+    // Times in OCSP responses have a precision of one second
+    Thread.sleep(1600);
+    assertNull(cache.get(certificateID));
+    assertNull(cache.get(otherID));
+    assertNull(cache.get(noNextUpdateID));
+  }
+
+  @Test
+  void testDisabledAndBounded() throws Exception {
+    long now = System.currentTimeMillis();
+    OCSPResponseCache disabled = new OCSPResponseCache(0, 3600);
+    assertFalse(disabled.isEnabled());
+    assertFalse(disabled.put(getResponse(certificateID, now - 1000, now + HOUR, null), true));
+
+    OCSPResponseCache cache = new OCSPResponseCache(2, 3600);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(cache.put(getResponse(getCertificateID(BigInteger.valueOf(i)), now - 1000, now + HOUR, null), true));
+    }
+    assertNull(cache.get(getCertificateID(BigInteger.ZERO)));
+    assertNotNull(cache.get(getCertificateID(BigInteger.ONE)));
+    assertNotNull(cache.get(getCertificateID(BigInteger.TWO)));
+  }
+
+  private static CertificateID getCertificateID(BigInteger serial) throws Exception {
+    return new CertificateID(new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1), caCert,
+      serial);
+  }
+
+  private static OCSPResp getResponse(CertificateID id, long thisUpdate, Long nextUpdate, Extensions extensions)
+    throws Exception {
+    BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(new RespID(CA_NAME));
+    builder.addResponse(id, CertificateStatus.GOOD, new Date(thisUpdate),
+      nextUpdate == null ? null : new Date(nextUpdate), null);
+    if (extensions != null) {
+      builder.setResponseExtensions(extensions);
+    }
+    return getResponse(builder);
+  }
+
+  private static OCSPResp getResponse(BasicOCSPRespBuilder builder) throws Exception {
+    BasicOCSPResp basicResponse = builder.build(responseSigner, new X509CertificateHolder[] { caCert }, new Date());
+    return new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, basicResponse);
+  }
+
+}
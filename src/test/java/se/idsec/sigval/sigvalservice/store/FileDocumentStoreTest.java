@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileDocumentStoreTest {
+
+  private static final long MAX_AGE = 30 * 60 * 1000L;
+
+  @TempDir
+  Path baseFolder;
+
+  @Test
+  void testStaleStoreFoldersAreDeleted() throws Exception {
+    long now = System.currentTimeMillis();
+    File staleFolder = createStoreFolder(now - 2 * MAX_AGE, now - 2 * MAX_AGE);
+    File activeFolder = createStoreFolder(now - 2 * MAX_AGE, now - MAX_AGE / 2);
+    File otherFolder = new File(baseFolder.toFile(), "other");
+    assertTrue(otherFolder.mkdir());
+    assertTrue(otherFolder.setLastModified(now - 2 * MAX_AGE));
+
+    FileDocumentStore documentStore = new FileDocumentStore(baseFolder.toFile(), MAX_AGE);
+    assertFalse(staleFolder.exists());
+    assertTrue(activeFolder.exists());
+    assertTrue(otherFolder.exists());
+    assertEquals(3, baseFolder.toFile().list().length);
+
+    documentStore.destroy();
+    assertEquals(2, baseFolder.toFile().list().length);
+  }
+
+  @Test
+  void testStoreFolderIsRecreated() throws Exception {
+    FileDocumentStore documentStore = new FileDocumentStore(baseFolder.toFile(), MAX_AGE);
+    File[] storeFolders = baseFolder.toFile().listFiles();
+    assertNotNull(storeFolders);
+    assertEquals(1, storeFolders.length);
+
+    // The folder of a store without documents may be deleted as stale by another instance
+    assertTrue(storeFolders[0].delete());
+    String handle = documentStore.store("document".getBytes(StandardCharsets.UTF_8));
+    assertTrue(Arrays.equals("document".getBytes(StandardCharsets.UTF_8), documentStore.get(handle)));
+    documentStore.remove(handle);
+    assertNull(documentStore.get(handle));
+  }
+
+  private File createStoreFolder(long folderModified, long documentModified) throws Exception {
+    File folder = new File(baseFolder.toFile(), "store-" + UUID.randomUUID());
+    assertTrue(folder.mkdir());
+    File document = new File(folder, UUID.randomUUID() + ".doc");
+    Files.write(document.toPath(), new byte[] { 1, 2, 3 });
+    assertTrue(document.setLastModified(documentModified));
+    assertTrue(folder.setLastModified(folderModified));
+    return folder;
+  }
+
+}
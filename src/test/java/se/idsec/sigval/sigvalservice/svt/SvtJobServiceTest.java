@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.svt;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.MediaType;
+import se.idsec.sigval.sigvalservice.configuration.FileSize;
+import se.idsec.sigval.sigvalservice.configuration.SignatureValidatorProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class SvtJobServiceTest {
+
+  @TempDir Path tempDir;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final List<SvtJobService> services = new ArrayList<>();
+  private SvtIssuanceService svtIssuanceService;
+  private Path jobFolder;
+  private Path allowedFolder;
+
+  @BeforeEach
+  void init() throws Exception {
+    jobFolder = tempDir.resolve("jobs");
+    allowedFolder = Files.createDirectories(tempDir.resolve("allowed"));
+    svtIssuanceService = mock(SvtIssuanceService.class);
+    when(svtIssuanceService.issueSvt(any(), any(), any(), any())).thenAnswer(invocation -> {
+      String document = new String((byte[]) invocation.getArgument(0), StandardCharsets.UTF_8);
+      if (document.startsWith("bad")) {
+        throw new IOException("Bad document");
+      }
+      return new SvtIssuanceService.IssuedSvtDocument((document + " with SVT").getBytes(StandardCharsets.UTF_8),
+        MediaType.APPLICATION_PDF);
+    });
+    when(svtIssuanceService.getSvtFileName(anyString(), any())).thenAnswer(invocation -> {
+      String name = invocation.getArgument(0);
+      return name.endsWith(".pdf")
+        ? name.substring(0, name.length() - 4) + "_svt.pdf"
+        : name + "_svt.pdf";
+    });
+  }
+
+  @AfterEach
+  void destroy() {
+    services.forEach(SvtJobService::destroy);
+  }
+
+  @Test
+  void testZipJob() throws Exception {
+    SvtJobService service = getService();
+    SvtJobStatus status = service.submitZip(getZip("a/x.pdf", "doc x", "b.pdf", "doc b", "c.pdf", "bad c"), null);
+    assertEquals(3, status.getTotalItems());
+
+    status = awaitCompleted(service, status.getJobId());
+    assertEquals(3, status.getProcessedItems());
+    assertEquals(2, status.getIssuedItems());
+    assertEquals(1, status.getFailedItems());
+
+    List<SvtJobItem> items = getItems(service, status.getJobId());
+    SvtJobItem item = items.stream().filter(i -> i.getIndex() == 0).findFirst().orElseThrow();
+    assertEquals(SvtJobItem.ISSUED, item.getStatus());
+    assertEquals("doc x with SVT", Files.readString(service.getItemOutput(status.getJobId(), 0)));
+    assertNull(service.getItemOutput(status.getJobId(), 2));
+
+    ByteArrayOutputStream outputZip = new ByteArrayOutputStream();
+    assertTrue(service.writeOutputZip(status.getJobId(), outputZip));
+    assertEquals(Set.of("a/x_svt.pdf", "b_svt.pdf"), getZipEntryNames(outputZip.toByteArray()));
+  }
+
+  @Test
+  void testZipPathTraversal() throws Exception {
+    SvtJobService service = getService();
+    SvtJobStatus status = service.submitZip(getZip(
+      "../evil.pdf", "doc evil",
+      "a/../../evil2.pdf", "doc evil2",
+      "a/../ok.pdf", "doc ok"), null);
+    assertEquals(1, status.getTotalItems());
+
+    status = awaitCompleted(service, status.getJobId());
+    assertEquals(1, status.getIssuedItems());
+    try (var files = Files.walk(tempDir)) {
+      assertTrue(files.noneMatch(path -> path.getFileName().toString().startsWith("evil")));
+    }
+  }
+
+  @Test
+  void testResumeAfterRestart() throws Exception {
+    List<String> entries = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      entries.add("doc" + i + ".pdf");
+      entries.add("doc " + i);
+    }
+    SvtJobService service = getService();
+    SvtJobStatus status = awaitCompleted(service,
+      service.submitZip(getZip(entries.toArray(new String[0])), null).getJobId());
+    assertEquals(20, status.getIssuedItems());
+    service.destroy();
+
+    // Simulate a stop after 10 logged documents while the next item log line was written
+    Path folder = jobFolder.resolve(status.getJobId());
+    List<String> lines = Files.readAllLines(folder.resolve("items.ndjson"));
+    Files.writeString(folder.resolve("items.ndjson"), String.join("\n", lines.subList(0, 10)) + "\n{\"index\":");
+    SvtJobStatus storedStatus = objectMapper.readValue(folder.resolve("job.json").toFile(), SvtJobStatus.class);
+    storedStatus.setState(SvtJobStatus.State.RUNNING);
+    objectMapper.writeValue(folder.resolve("job.json").toFile(), storedStatus);
+    clearInvocations(svtIssuanceService);
+
+    SvtJobService restarted = getService();
+    restarted.resumeJobs();
+    status = awaitCompleted(restarted, status.getJobId());
+    assertEquals(20, status.getProcessedItems());
+    assertEquals(20, status.getIssuedItems());
+    // Only the documents that were not logged are processed again
+    verify(svtIssuanceService, times(10)).issueSvt(any(), any(), any(), any());
+    List<SvtJobItem> items = getItems(restarted, status.getJobId());
+    assertEquals(20, items.stream().map(SvtJobItem::getIndex).distinct().count());
+  }
+
+  @Test
+  void testOutputNameCollision() throws Exception {
+    SvtJobService service = getService();
+    SvtJobStatus status = awaitCompleted(service,
+      service.submitZip(getZip("a.pdf", "doc a.pdf", "a", "doc a"), null).getJobId());
+    assertEquals(1, status.getIssuedItems());
+    assertEquals(1, status.getFailedItems());
+
+    List<SvtJobItem> failed = getItems(service, status.getJobId()).stream()
+      .filter(item -> SvtJobItem.FAILED.equals(item.getStatus()))
+      .collect(Collectors.toList());
+    assertEquals(1, failed.size());
+    assertTrue(failed.get(0).getErrorMessage().contains("a_svt.pdf"));
+  }
+
+  @Test
+  void testSymbolicLinksOutsideAllowedPaths() throws Exception {
+    Path outsideFolder = Files.createDirectories(tempDir.resolve("outside"));
+    Path secret = Files.writeString(outsideFolder.resolve("secret.pdf"), "secret");
+    Path documents = Files.createDirectories(allowedFolder.resolve("docs"));
+    Files.writeString(documents.resolve("p.pdf"), "doc p");
+    Files.createSymbolicLink(documents.resolve("link.pdf"), secret);
+    Files.createSymbolicLink(allowedFolder.resolve("linkdir"), outsideFolder);
+    SvtJobService service = getService();
+
+    // Linked documents outside of the allowed paths are not included in a directory job
+    SvtJobRequest request = new SvtJobRequest();
+    request.setDirectory(documents.toString());
+    SvtJobStatus status = awaitCompleted(service, service.submitLocal(request).getJobId());
+    assertEquals(1, status.getTotalItems());
+    assertEquals(1, status.getIssuedItems());
+
+    SvtJobRequest linkRequest = new SvtJobRequest();
+    linkRequest.setPaths(Collections.singletonList(documents.resolve("link.pdf").toString()));
+    assertThrows(IllegalArgumentException.class, () -> service.submitLocal(linkRequest));
+
+    SvtJobRequest linkDirectoryRequest = new SvtJobRequest();
+    linkDirectoryRequest.setDirectory(allowedFolder.resolve("linkdir").toString());
+    assertThrows(IllegalArgumentException.class, () -> service.submitLocal(linkDirectoryRequest));
+
+    SvtJobRequest linkOutputRequest = new SvtJobRequest();
+    linkOutputRequest.setDirectory(documents.toString());
+    linkOutputRequest.setOutputDirectory(allowedFolder.resolve("linkdir").resolve("out").toString());
+    assertThrows(IllegalArgumentException.class, () -> service.submitLocal(linkOutputRequest));
+  }
+
+  @Test
+  void testNotEnabled() {
+    SvtJobService service = new SvtJobService(false, jobFolder.toString(), allowedFolder.toString(), 2, 1, false,
+      svtIssuanceService, mock(SignatureValidatorProvider.class), objectMapper, new FileSize("1MB"));
+    services.add(service);
+    assertThrows(IllegalStateException.class, () -> service.getStatus("c0a8f1d2-0000-4000-8000-000000000000"));
+  }
+
+  private SvtJobService getService() {
+    SvtJobService service = new SvtJobService(true, jobFolder.toString(), allowedFolder.toString(), 2, 1, false,
+      svtIssuanceService, mock(SignatureValidatorProvider.class), objectMapper, new FileSize("1MB"));
+    services.add(service);
+    return service;
+  }
+
+  private static SvtJobStatus awaitCompleted(SvtJobService service, String jobId) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    SvtJobStatus status = service.getStatus(jobId);
+    while (status.getState() != SvtJobStatus.State.COMPLETED) {
+      assertTrue(System.currentTimeMillis() < deadline, "SVT job was not completed");
+      assertNotEquals(SvtJobStatus.State.FAILED, status.getState());
+      Thread.sleep(20);
+      status = service.getStatus(jobId);
+    }
+    return status;
+  }
+
+  private List<SvtJobItem> getItems(SvtJobService service, String jobId) throws IOException {
+    ByteArrayOutputStream itemLog = new ByteArrayOutputStream();
+    assertTrue(service.writeItems(jobId, itemLog));
+    List<SvtJobItem> items = new ArrayList<>();
+    for (String line : itemLog.toString(StandardCharsets.UTF_8).split("\n")) {
+      if (line.endsWith("}")) {
+        items.add(objectMapper.readValue(line, SvtJobItem.class));
+      }
+    }
+    return items;
+  }
+
+  /**
+   * Get a ZIP file from pairs of entry name and content
+   */
+  private static ByteArrayInputStream getZip(String... entries) throws IOException {
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    try (ZipOutputStream zip = new ZipOutputStream(zipBytes)) {
+      for (int i = 0; i < entries.length; i += 2) {
+        zip.putNextEntry(new ZipEntry(entries[i]));
+        zip.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+      }
+    }
+    return new ByteArrayInputStream(zipBytes.toByteArray());
+  }
+
+  private static Set<String> getZipEntryNames(byte[] zipBytes) throws IOException {
+    Set<String> names = new HashSet<>();
+    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(zipBytes))) {
+      ZipEntry entry;
+      while ((entry = zip.getNextEntry()) != null) {
+        names.add(entry.getName());
+      }
+    }
+    return names;
+  }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.validation;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.junit.jupiter.api.Test;
+import se.swedenconnect.sigval.commons.document.DocType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentStructureCheckerTest {
+
+  private static final String JWS_HEADER = base64Url("{\"alg\":\"ES256\"}");
+
+  @Test
+  void testPdf() throws Exception {
+    byte[] pdf = getPdf();
+    DocumentStructureChecker.check(pdf, DocType.PDF);
+
+    // Content before the PDF header is accepted within the search length
+    byte[] prefixed = concat(new byte[100], pdf);
+    DocumentStructureChecker.check(prefixed, DocType.PDF);
+
+    assertThrows(IOException.class, () -> DocumentStructureChecker.check(concat(new byte[2000], pdf), DocType.PDF));
+    assertThrows(IOException.class,
+      () -> DocumentStructureChecker.check(Arrays.copyOf(pdf, pdf.length - 10), DocType.PDF));
+    assertThrows(IOException.class, () -> DocumentStructureChecker.check(concat(pdf, new byte[2000]), DocType.PDF));
+    assertThrows(IOException.class, () -> DocumentStructureChecker.check(new byte[0], DocType.PDF));
+  }
+
+  @Test
+  void testXml() throws Exception {
+    DocumentStructureChecker.check(
+      "<?xml version=\"1.0\" encoding=\"UTF-8\"?><doc><a attr=\"1\">text</a></doc>".getBytes(StandardCharsets.UTF_8),
+      DocType.XML);
+    assertThrows(IOException.class,
+      () -> DocumentStructureChecker.check("<doc><a></doc>".getBytes(StandardCharsets.UTF_8), DocType.XML));
+    assertThrows(IOException.class,
+      () -> DocumentStructureChecker.check("<doc>".getBytes(StandardCharsets.UTF_8), DocType.XML));
+  }
+
+  @Test
+  void testCompactJose() throws Exception {
+    DocumentStructureChecker.check(jose(JWS_HEADER + "." + base64Url("payload") + ".c2ln"), DocType.JOSE_COMPACT);
+    // Detached payload
+    DocumentStructureChecker.check(jose(JWS_HEADER + "..c2ln"), DocType.JOSE_COMPACT);
+
+    assertThrows(IOException.class,
+      () -> DocumentStructureChecker.check(jose(JWS_HEADER + "." + base64Url("payload")), DocType.JOSE_COMPACT));
+    assertThrows(IOException.class,
+      () -> DocumentStructureChecker.check(jose(base64Url("{\"typ\":\"JWT\"}") + ".cA.c2ln"), DocType.JOSE_COMPACT));
+    assertThrows(IOException.class,
+      () -> DocumentStructureChecker.check(jose("bm90IGpzb24.cA.c2ln"), DocType.JOSE_COMPACT));
+  }
+
+  @Test
+  void testJsonSerializedJose() throws Exception {
+    // Flattened and general JSON serialization
+    DocumentStructureChecker.check(jose("{\"payload\":\"cA\",\"protected\":\"" + JWS_HEADER + "\",\"signature\":\"c2ln\"}"),
+      DocType.JOSE);
+    DocumentStructureChecker.check(jose("{\"payload\":\"cA\",\"signatures\":[{\"protected\":\"" + JWS_HEADER
+      + "\",\"signature\":\"c2ln\"}]}"), DocType.JOSE);
+
+    assertThrows(IOException.class, () -> DocumentStructureChecker.check(
+      jose("{\"protected\":\"" + JWS_HEADER + "\",\"signature\":\"c2ln\"}"), DocType.JOSE));
+    assertThrows(IOException.class, () -> DocumentStructureChecker.check(
+      jose("{\"payload\":\"cA\",\"signatures\":[]}"), DocType.JOSE));
+    assertThrows(IOException.class, () -> DocumentStructureChecker.check(
+      jose("{\"payload\":\"cA\",\"signatures\":[{\"signature\":\"c2ln\"}]}"), DocType.JOSE));
+    assertThrows(IOException.class, () -> DocumentStructureChecker.check(jose("{\"payload\":"), DocType.JOSE));
+  }
+
+  @Test
+  void testUnsupportedDocType() {
+    assertThrows(IllegalArgumentException.class,
+      () -> DocumentStructureChecker.check(new byte[10], DocType.CADES));
+  }
+
+  private static byte[] getPdf() throws IOException {
+    try (PDDocument document = new PDDocument()) {
+      document.addPage(new PDPage());
+      ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+      document.save(pdf);
+      return pdf.toByteArray();
+    }
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, bytes, first.length, second.length);
+    return bytes;
+  }
+
+  private static byte[] jose(String jose) {
+    return jose.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String base64Url(String value) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2022. IDsec Solutions AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.idsec.sigval.sigvalservice.validation;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SignatureValidationExecutorTest {
+
+  @Test
+  void testParallelValidation() throws Exception {
+    SignatureValidationExecutor executor = new SignatureValidationExecutor(3);
+    try {
+      // Each task waits for all tasks to run, which only completes if the tasks run at the same time
+      CountDownLatch running = new CountDownLatch(4);
+      List<Callable<String>> tasks = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        String result = "signature-" + i;
+        long delay = 40L - 10L * i;
+        tasks.add(() -> {
+          running.countDown();
+          assertTrue(running.await(5, TimeUnit.SECONDS));
+          Thread.sleep(delay);
+          return result;
+        });
+      }
+      assertEquals(List.of("signature-0", "signature-1", "signature-2", "signature-3"), executor.invokeAll(tasks));
+    }
+    finally {
+      executor.destroy();
+    }
+  }
+
+  @Test
+  void testBusyPool() throws Exception {
+    SignatureValidationExecutor executor = new SignatureValidationExecutor(1);
+    try {
+      // The first task occupies the only pool thread until the second task has run on the calling thread
+      CountDownLatch secondDone = new CountDownLatch(1);
+      List<Callable<String>> tasks = List.of(
+        () -> {
+          assertTrue(secondDone.await(5, TimeUnit.SECONDS));
+          return Thread.currentThread().getName();
+        },
+        () -> {
+          secondDone.countDown();
+          return Thread.currentThread().getName();
+        },
+        () -> Thread.currentThread().getName());
+      String caller = Thread.currentThread().getName();
+      assertEquals(List.of("sigval-signature-1", caller, caller), executor.invokeAll(tasks));
+    }
+    finally {
+      executor.destroy();
+    }
+  }
+
+  @Test
+  void testDisabled() throws Exception {
+    SignatureValidationExecutor executor = new SignatureValidationExecutor(0);
+    assertFalse(executor.isEnabled());
+    String caller = Thread.currentThread().getName();
+    List<Callable<String>> tasks = List.of(() -> "a" + Thread.currentThread().getName(),
+      () -> "b" + Thread.currentThread().getName());
+    assertEquals(List.of("a" + caller, "b" + caller), executor.invokeAll(tasks));
+  }
+
+  @Test
+  void testExceptions() throws Exception {
+    SignatureValidationExecutor executor = new SignatureValidationExecutor(2);
+    try {
+      // Runtime exceptions are not wrapped, so that they are handled as internal errors
+      IllegalStateException runtimeException = new IllegalStateException("failure");
+      assertSame(runtimeException, assertThrows(IllegalStateException.class, () -> executor.invokeAll(List.of(
+        () -> {
+          throw runtimeException;
+        },
+        () -> "ok"))));
+
+      SignatureException signatureException = new SignatureException("invalid");
+      assertSame(signatureException, assertThrows(SignatureException.class, () -> executor.invokeAll(List.of(
+        () -> "ok",
+        () -> {
+          throw signatureException;
+        }))));
+
+      SignatureException wrapped = assertThrows(SignatureException.class, () -> executor.invokeAll(List.of(
+        () -> {
+          throw new IOException("bad document");
+        },
+        () -> "ok")));
+      assertTrue(wrapped.getCause() instanceof IOException);
+    }
+    finally {
+      executor.destroy();
+    }
+  }
+
+}